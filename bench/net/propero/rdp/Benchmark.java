@@ -0,0 +1,61 @@
+/* Benchmark.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Base class for a single microbenchmark
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+/**
+ * A named operation to be timed by BenchmarkRunner. setUp is called once
+ * before warmup, so anything expensive to build, such as a surface, should be
+ * created there rather than in the constructor.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepare state for this benchmark
+	 *
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Perform one operation
+	 *
+	 * @return A value derived from the result, so that the work cannot be
+	 *         optimised away
+	 * @throws Exception
+	 */
+	public abstract int run() throws Exception;
+}
@@ -0,0 +1,145 @@
+/* BenchmarkRunner.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Runs the decoder and drawing microbenchmarks
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Minimal benchmark harness: each benchmark is warmed up, then run in
+ * repeated measurement rounds, and the mean and best time per operation
+ * are reported.
+ *
+ * Usage: BenchmarkRunner [-corpus DIR] [-warmup MS] [-time MS]
+ * [-rounds N] [FILTER]
+ *
+ * A corpus directory is filled by running the client with
+ * --capture_bitmaps=DIR; without one, synthetic tiles are used. FILTER
+ * selects benchmarks whose name contains it.
+ *
+ * Before anything is timed, BitmapUpdateCheck compares a bitmap update
+ * decoded in parallel with the same update decoded sequentially, and the
+ * run stops if they differ.
+ */
+public class BenchmarkRunner {
+
+	/* keeps results live so the JIT cannot discard the work */
+	static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		String corpus = null, filter = null;
+		long warmup = 1000, time = 1000;
+		int rounds = 5;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-corpus"))
+				corpus = args[++i];
+			else if (args[i].equals("-warmup"))
+				warmup = Long.parseLong(args[++i]);
+			else if (args[i].equals("-time"))
+				time = Long.parseLong(args[++i]);
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else
+				filter = args[i];
+		}
+
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		// timings of a decoder that draws the wrong pixels mean nothing
+		String error = BitmapUpdateCheck.check();
+		if (error != null) {
+			System.err.println("Parallel bitmap decoding is wrong, " + error);
+			System.exit(1);
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(BitmapBenchmarks.create(corpus));
+		benchmarks.addAll(RasterOpBenchmarks.create());
+		benchmarks.addAll(GlyphBenchmarks.create());
+
+		System.out.println(pad("Benchmark", 40) + pad("mean ns/op", 14)
+				+ pad("best ns/op", 14) + "ops");
+		for (Benchmark b : benchmarks) {
+			if (filter != null && b.getName().indexOf(filter) < 0)
+				continue;
+			measure(b, warmup, time, rounds);
+		}
+	}
+
+	private static void measure(Benchmark b, long warmup, long time,
+			int rounds) throws Exception {
+		b.setUp();
+		loop(b, warmup);
+
+		long total_ops = 0, total_ns = 0;
+		double best = Double.MAX_VALUE;
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			long ops = loop(b, time);
+			long ns = System.nanoTime() - start;
+			total_ops += ops;
+			total_ns += ns;
+			best = Math.min(best, (double) ns / ops);
+		}
+		System.out.println(pad(b.getName(), 40)
+				+ pad(format((double) total_ns / total_ops), 14)
+				+ pad(format(best), 14) + total_ops);
+	}
+
+	/* Run b repeatedly for about ms milliseconds, returning the op count */
+	private static long loop(Benchmark b, long ms) throws Exception {
+		long deadline = System.nanoTime() + ms * 1000000L;
+		long ops = 0;
+		int acc = 0;
+		int batch = 1;
+		do {
+			for (int i = 0; i < batch; i++)
+				acc += b.run();
+			ops += batch;
+			if (batch < 1024)
+				batch <<= 1;
+		} while (System.nanoTime() < deadline);
+		sink += acc;
+		return ops;
+	}
+
+	private static String format(double ns) {
+		return String.valueOf(Math.round(ns * 10) / 10.0);
+	}
+
+	private static String pad(String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width)
+			sb.append(' ');
+		return sb.toString();
+	}
+}
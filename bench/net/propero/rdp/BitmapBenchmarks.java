@@ -0,0 +1,304 @@
+/* BitmapBenchmarks.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Microbenchmarks for the interleaved RLE bitmap decoders
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for each Bitmap decompressor at each colour depth. Tiles are
+ * read from a corpus captured with --capture_bitmaps, or, when no corpus is
+ * given, generated so that every RLE opcode appears in every tile.
+ */
+public class BitmapBenchmarks {
+
+	private static final int[] DEPTHS = { 8, 15, 16, 24 };
+
+	/* synthetic tile size, the most common size sent by servers */
+	private static final int TILE_SIZE = 64;
+
+	/* number of distinct 16 pixel segments generated by segment() */
+	private static final int NUM_SEGMENTS = 12;
+
+	static class Tile {
+		int width;
+
+		int height;
+
+		byte[] data;
+
+		RdpPacket_Localised packet;
+	}
+
+	/**
+	 * Build the bitmap benchmarks
+	 *
+	 * @param corpus
+	 *            Directory of captured tiles, or null to use synthetic tiles
+	 * @return List of benchmarks, one per decoder and colour depth
+	 * @throws IOException
+	 */
+	public static List<Benchmark> create(String corpus) throws IOException {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int d = 0; d < DEPTHS.length; d++) {
+			final int bpp = DEPTHS[d];
+			final Tile[] tiles = corpus == null ? synthesise(bpp) : load(
+					corpus, bpp);
+			if (tiles.length == 0)
+				continue;
+			final int Bpp = (bpp + 7) / 8;
+			final IndexColorModel cm = Bpp == 1 ? greyscale() : null;
+
+			if (Bpp == 1) {
+				/* the byte array decoder only handles 8bpp */
+				benchmarks.add(new BitmapBenchmark("Bitmap.decompress", bpp,
+						tiles) {
+					int decode(Tile t) throws RdesktopException {
+						byte[] pixel = Bitmap.decompress(t.width, t.height,
+								t.data, t.data.length, Bpp);
+						return pixel[0];
+					}
+				});
+			}
+
+			benchmarks.add(new BitmapBenchmark("Bitmap.decompressInt", bpp,
+					tiles) {
+				int decode(Tile t) throws RdesktopException {
+					int[] pixel = Bitmap.decompressInt(t.width, t.height,
+							t.data, t.data.length, bpp);
+					return pixel[0];
+				}
+			});
+
+			benchmarks.add(new BitmapBenchmark("Bitmap.decompressImg", bpp,
+					tiles) {
+				int decode(Tile t) throws RdesktopException {
+					t.packet.setPosition(0);
+					return Bitmap.decompressImg(t.width, t.height,
+							t.data.length, t.packet, bpp, cm).getWidth(null);
+				}
+			});
+
+			benchmarks.add(new BitmapBenchmark("Bitmap.decompressImgDirect",
+					bpp, tiles) {
+				WrappedImage screen = new WrappedImage(1024, 768,
+						BufferedImage.TYPE_INT_RGB);
+
+				int decode(Tile t) throws RdesktopException {
+					t.packet.setPosition(0);
+					return Bitmap.decompressImgDirect(t.width, t.height,
+							t.data.length, t.packet, bpp, cm, 0, 0, screen)
+							.getWidth();
+				}
+			});
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * Benchmark decoding each tile of one colour depth in turn
+	 */
+	abstract static class BitmapBenchmark extends Benchmark {
+		private final Tile[] tiles;
+
+		private int next = 0;
+
+		BitmapBenchmark(String name, int bpp, Tile[] tiles) {
+			super(name + "." + bpp + "bpp");
+			this.tiles = tiles;
+		}
+
+		public int run() throws Exception {
+			Tile t = tiles[next];
+			if (++next == tiles.length)
+				next = 0;
+			return decode(t);
+		}
+
+		abstract int decode(Tile t) throws RdesktopException;
+	}
+
+	/**
+	 * Load the captured tiles of one colour depth. Each file holds the width,
+	 * height and depth as little-endian 16 bit values, followed by the
+	 * compressed bitmap data.
+	 */
+	private static Tile[] load(String corpus, int bpp) throws IOException {
+		File[] files = new File(corpus).listFiles();
+		if (files == null)
+			throw new IOException("Cannot read corpus directory " + corpus);
+
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int i = 0; i < files.length; i++) {
+			if (!files[i].getName().startsWith(bpp + "-")
+					|| !files[i].getName().endsWith(".rle"))
+				continue;
+
+			byte[] file = readFile(files[i]);
+			if (file.length < 6
+					|| ((file[4] & 0xff) | ((file[5] & 0xff) << 8)) != bpp)
+				continue;
+			byte[] data = new byte[file.length - 6];
+			System.arraycopy(file, 6, data, 0, data.length);
+			tiles.add(tile((file[0] & 0xff) | ((file[1] & 0xff) << 8),
+					(file[2] & 0xff) | ((file[3] & 0xff) << 8), data));
+		}
+		return tiles.toArray(new Tile[tiles.size()]);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Generate a set of tiles built from 16 pixel segments, each using a
+	 * different RLE order, so the whole decoder is exercised. The tiles
+	 * differ in the order in which the segments appear.
+	 */
+	static Tile[] synthesise(int bpp) {
+		int Bpp = (bpp + 7) / 8;
+		int per_tile = TILE_SIZE * TILE_SIZE / 16;
+		Tile[] tiles = new Tile[NUM_SEGMENTS];
+		for (int t = 0; t < tiles.length; t++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (int s = 0; s < per_tile; s++)
+				segment(out, (s + t + s / NUM_SEGMENTS) % NUM_SEGMENTS, s,
+						Bpp);
+			tiles[t] = tile(TILE_SIZE, TILE_SIZE, out.toByteArray());
+		}
+		return tiles;
+	}
+
+	/**
+	 * Write one segment of 16 pixels
+	 *
+	 * @param out
+	 *            Stream to receive the compressed data
+	 * @param type
+	 *            Order to use, from 0 to NUM_SEGMENTS - 1
+	 * @param seed
+	 *            Value from which colours and masks are derived
+	 * @param Bpp
+	 *            Bytes per pixel
+	 */
+	private static void segment(ByteArrayOutputStream out, int type,
+			int seed, int Bpp) {
+		int colour = seed * 0x010307;
+		switch (type) {
+		case 0: /* fill */
+			out.write(0x10);
+			break;
+		case 1: /* mix */
+			out.write(0x30);
+			break;
+		case 2: /* fill or mix, count in units of 8 */
+			out.write(0x42);
+			out.write(seed);
+			out.write(~seed);
+			break;
+		case 3: /* colour */
+			out.write(0x70);
+			colour(out, colour, Bpp);
+			break;
+		case 4: /* copy */
+			out.write(0x90);
+			for (int i = 0; i < 16; i++)
+				colour(out, colour + i * 0x0f0f0f, Bpp);
+			break;
+		case 5: /* set mix, mix */
+			out.write(0xc0);
+			out.write(0x00);
+			colour(out, colour, Bpp);
+			break;
+		case 6: /* set mix, fill or mix */
+			out.write(0xd2);
+			colour(out, colour, Bpp);
+			out.write(seed);
+			out.write(~seed);
+			break;
+		case 7: /* bicolour, count is in pairs of pixels */
+			out.write(0xe8);
+			colour(out, colour, Bpp);
+			colour(out, ~colour, Bpp);
+			break;
+		case 8: /* fill or mix, first form */
+			out.write(0xf9);
+			out.write(0xf9);
+			break;
+		case 9: /* fill or mix, second form */
+			out.write(0xfa);
+			out.write(0xfa);
+			break;
+		case 10: /* white */
+			for (int i = 0; i < 16; i++)
+				out.write(0xfd);
+			break;
+		default: /* black */
+			for (int i = 0; i < 16; i++)
+				out.write(0xfe);
+			break;
+		}
+	}
+
+	private static void colour(ByteArrayOutputStream out, int colour, int Bpp) {
+		for (int i = 0; i < Bpp; i++)
+			out.write(colour >> (8 * i));
+	}
+
+	private static Tile tile(int width, int height, byte[] data) {
+		Tile tile = new Tile();
+		tile.width = width;
+		tile.height = height;
+		tile.data = data;
+		tile.packet = new RdpPacket_Localised(data.length);
+		tile.packet.copyFromByteArray(data, 0, 0, data.length);
+		tile.packet.markEnd(data.length);
+		return tile;
+	}
+
+	private static IndexColorModel greyscale() {
+		byte[] grey = new byte[256];
+		for (int i = 0; i < grey.length; i++)
+			grey[i] = (byte) i;
+		return new IndexColorModel(8, 256, grey, grey, grey);
+	}
+}
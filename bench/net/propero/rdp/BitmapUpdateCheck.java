@@ -0,0 +1,160 @@
+/* BitmapUpdateCheck.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Check that bitmap updates decoded in parallel draw the same
+ *          pixels as when decoded one rectangle at a time
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import net.propero.rdp.rdp5.VChannels;
+
+/**
+ * Decodes a synthetic bitmap update through processBitmapUpdates once in
+ * parallel and once sequentially, onto screens holding the same picture,
+ * and compares the results. The update has a row of tiles along the top of
+ * the screen, tiles below them, a pair that overlap and a clipped tile, so
+ * both the in-place and the blitted paths of the parallel decoder are
+ * used, next to tiles that other workers write at the same time.
+ */
+public class BitmapUpdateCheck {
+
+	private static final int[] DEPTHS = { 15, 16, 24 };
+
+	private static final int SCREEN_WIDTH = 1024;
+
+	private static final int SCREEN_HEIGHT = 768;
+
+	/* the parallel result depends on scheduling when wrong, so repeat it */
+	private static final int PASSES = 50;
+
+	/* compression flag for rectangles without a compressed data header */
+	private static final int NO_BITMAP_COMPRESSION_HDR = 0x400;
+
+	/**
+	 * Run the check at each colour depth
+	 *
+	 * @return Description of the first difference found, or null if the
+	 *         parallel and sequential decoders agree
+	 * @throws Exception
+	 */
+	public static String check() throws Exception {
+		for (int d = 0; d < DEPTHS.length; d++) {
+			String error = check(DEPTHS[d]);
+			if (error != null)
+				return error;
+		}
+		return null;
+	}
+
+	private static String check(int bpp) throws Exception {
+		BitmapBenchmarks.Tile[] tiles = BitmapBenchmarks.synthesise(bpp);
+		RdpPacket_Localised update = update(tiles, bpp);
+
+		int[] expected = decode(update, bpp, false);
+		for (int pass = 0; pass < PASSES; pass++) {
+			int[] actual = decode(update, bpp, true);
+			for (int i = 0; i < expected.length; i++) {
+				if (actual[i] != expected[i])
+					return bpp + "bpp: pixel (" + (i % SCREEN_WIDTH) + ", "
+							+ (i / SCREEN_WIDTH) + ") is 0x"
+							+ Integer.toHexString(actual[i])
+							+ " decoded in parallel, 0x"
+							+ Integer.toHexString(expected[i])
+							+ " decoded sequentially";
+			}
+		}
+		return null;
+	}
+
+	/* draw the update on a new screen and return its pixels */
+	private static int[] decode(RdpPacket_Localised update, int bpp,
+			boolean parallel) throws RdesktopException {
+		Options options = new Options();
+		options.set_bpp(bpp);
+		options.parallel_bitmaps = parallel;
+		RdpContext context = new RdpContext(options);
+		Rdp rdp = new Rdp(context, new VChannels(context));
+		RdesktopSurface surface = new RdesktopSurface(options, SCREEN_WIDTH,
+				SCREEN_HEIGHT);
+		rdp.registerDrawingSurface(surface);
+
+		// anything read from outside a tile shows up as a difference
+		int[] pixels = surface.backstore.getData();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (i * 0x9e3779b1) & 0xffffff;
+
+		update.setPosition(0);
+		rdp.processBitmapUpdates(update);
+		return pixels;
+	}
+
+	/* lay the tiles out as one bitmap update */
+	private static RdpPacket_Localised update(BitmapBenchmarks.Tile[] tiles,
+			int bpp) {
+		int n = tiles.length;
+		int[] left = new int[n];
+		int[] top = new int[n];
+		int[] cx = new int[n];
+		for (int i = 0; i < n; i++) {
+			int size = tiles[i].width;
+			cx[i] = size;
+			if (i < n - 2) {
+				// two rows, the first along the top of the screen
+				left[i] = (i % (n / 2)) * size;
+				top[i] = (i / (n / 2)) * size;
+			} else if (i == n - 2) {
+				// overlaps the tile before it
+				left[i] = left[i - 1] + size / 2;
+				top[i] = top[i - 1] + size / 2;
+			} else {
+				// clipped, on a row of its own
+				left[i] = 0;
+				top[i] = 3 * size;
+				cx[i] = size - 8;
+			}
+		}
+
+		int length = 2;
+		for (int i = 0; i < n; i++)
+			length += 18 + tiles[i].data.length;
+		RdpPacket_Localised update = new RdpPacket_Localised(length);
+		update.setLittleEndian16(n);
+		for (int i = 0; i < n; i++) {
+			BitmapBenchmarks.Tile t = tiles[i];
+			update.setLittleEndian16(left[i]);
+			update.setLittleEndian16(top[i]);
+			update.setLittleEndian16(left[i] + cx[i] - 1);
+			update.setLittleEndian16(top[i] + t.height - 1);
+			update.setLittleEndian16(t.width);
+			update.setLittleEndian16(t.height);
+			update.setLittleEndian16(bpp);
+			update.setLittleEndian16(1 | NO_BITMAP_COMPRESSION_HDR);
+			update.setLittleEndian16(t.data.length);
+			update.copyFromByteArray(t.data, 0, update.getPosition(),
+					t.data.length);
+			update.incrementPosition(t.data.length);
+		}
+		update.markEnd();
+		return update;
+	}
+}
@@ -0,0 +1,109 @@
+/* GlyphBenchmarks.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Microbenchmarks for glyph drawing
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for RdesktopSurface.drawGlyph, drawing a line of 80 glyphs of
+ * 8x16 pixels in transparent and opaque mode, one at a time and as a laid
+ * out run as for a cached text fragment. The surface is never shown, so
+ * these run headless.
+ */
+public class GlyphBenchmarks {
+
+	private static final int GLYPH_WIDTH = 8;
+
+	private static final int GLYPH_HEIGHT = 16;
+
+	private static final int GLYPHS_PER_LINE = 80;
+
+	public static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new GlyphBenchmark("Glyph.drawGlyph.transparent", 0));
+		benchmarks.add(new GlyphBenchmark("Glyph.drawGlyph.opaque", 1));
+		benchmarks.add(new GlyphBenchmark("Glyph.drawGlyphs.opaque", 1) {
+			public int run() {
+				surface.drawGlyphs(1, 4, 100, line, xs, ys, GLYPHS_PER_LINE,
+						0x000000, 0xffffff);
+				return surface.backstore.getRGB(4, 100);
+			}
+		});
+		return benchmarks;
+	}
+
+	static class GlyphBenchmark extends Benchmark {
+		private final int mixmode;
+
+		RdesktopSurface surface;
+
+		private Glyph[] glyphs;
+
+		/* the whole line, laid out relative to its start */
+		Glyph[] line;
+
+		int[] xs;
+
+		int[] ys;
+
+		GlyphBenchmark(String name, int mixmode) {
+			super(name);
+			this.mixmode = mixmode;
+		}
+
+		public void setUp() {
+			Options options = new Options();
+			options.set_bpp(24);
+			surface = new RdesktopSurface(options, 1024, 768);
+
+			/* a few distinct 1bpp patterns, one byte per row */
+			glyphs = new Glyph[8];
+			for (int g = 0; g < glyphs.length; g++) {
+				byte[] data = new byte[GLYPH_HEIGHT];
+				for (int row = 0; row < GLYPH_HEIGHT; row++)
+					data[row] = (byte) ((row * 0x25 + g * 0x3b) ^ (0x81 << (row & 3)));
+				glyphs[g] = new Glyph(0, g, 0, 0, GLYPH_WIDTH, GLYPH_HEIGHT,
+						data);
+			}
+
+			line = new Glyph[GLYPHS_PER_LINE];
+			xs = new int[GLYPHS_PER_LINE];
+			ys = new int[GLYPHS_PER_LINE];
+			for (int i = 0; i < GLYPHS_PER_LINE; i++) {
+				line[i] = glyphs[i & 7];
+				xs[i] = i * GLYPH_WIDTH;
+			}
+		}
+
+		public int run() {
+			for (int i = 0; i < GLYPHS_PER_LINE; i++)
+				surface.drawGlyph(mixmode, 4 + i * GLYPH_WIDTH, 100,
+						glyphs[i & 7], 0x000000, 0xffffff);
+			return surface.backstore.getRGB(4, 100);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/* RasterOpBenchmarks.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Microbenchmarks for the raster operations
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.propero.rdp.orders.Brush;
+
+/**
+ * Benchmarks for RasterOp.do_array, one per binary raster operation,
+ * applying a 256x256 source to a screen sized image at 24bpp, for a few
+ * ternary operations through do_rop3, and for the surface's solid and
+ * pattern fills.
+ */
+public class RasterOpBenchmarks {
+
+	private static final int WIDTH = 1024;
+
+	private static final int HEIGHT = 768;
+
+	private static final int SIZE = 256;
+
+	public static List<Benchmark> create() {
+		Options options = new Options();
+		options.set_bpp(24);
+		final RasterOp rop = new RasterOp(options);
+		final WrappedImage screen = new WrappedImage(WIDTH, HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		final int[] src = new int[SIZE * SIZE];
+		for (int i = 0; i < src.length; i++)
+			src[i] = (i * 0x010307) & 0xffffff;
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int op = 0; op < 16; op++) {
+			final int opcode = op;
+			String name = "RasterOp.do_array.0x"
+					+ Integer.toHexString(opcode);
+			benchmarks.add(new Benchmark(name) {
+				int x = 0;
+
+				public int run() {
+					/* move the destination so every run is not identical */
+					x = (x + 16) & 511;
+					rop.do_array(opcode, screen, WIDTH, x, 64, SIZE, SIZE, src,
+							SIZE, 0, 0);
+					return screen.getRGB(x, 64);
+				}
+			});
+		}
+
+		/* common tri-blit codes, and one left to the generic evaluator */
+		final int[] rop3s = { 0x69, 0xb8, 0xe2, 0x1b };
+		final int[] pattern = new int[64];
+		for (int i = 0; i < pattern.length; i++)
+			pattern[i] = (i & 1) == 0 ? 0xffffff : 0;
+		for (int i = 0; i < rop3s.length; i++) {
+			final int opcode = rop3s[i];
+			benchmarks.add(new Benchmark("RasterOp.do_rop3.0x"
+					+ Integer.toHexString(opcode)) {
+				int x = 0;
+
+				public int run() {
+					x = (x + 16) & 511;
+					rop.do_rop3(opcode, screen, x, 64, SIZE, SIZE, src, SIZE,
+							0, 0, pattern);
+					return screen.getRGB(x, 64);
+				}
+			});
+		}
+
+		final RdesktopSurface surface = new RdesktopSurface(options, WIDTH,
+				HEIGHT);
+		benchmarks.add(new Benchmark("RdesktopSurface.fillRectangle.screen") {
+			int colour = 0;
+
+			public int run() {
+				surface.fillRectangle(0, 0, WIDTH, HEIGHT, colour++);
+				return surface.getFramebuffer()[0];
+			}
+		});
+
+		final Brush brush = new Brush();
+		brush.setStyle(3);
+		brush.setPattern(new byte[] { (byte) 0xaa, 0x55, (byte) 0xaa, 0x55,
+				(byte) 0xaa, 0x55, (byte) 0xaa, 0x55 });
+		benchmarks.add(new Benchmark("RdesktopSurface.patBltOrder.pattern") {
+			int x = 0;
+
+			public int run() {
+				x = (x + 16) & 511;
+				surface.patBltOrder(0xf0, x, 64, SIZE, SIZE, 0xffffff, 0, brush);
+				return surface.getFramebuffer()[64 * WIDTH + x];
+			}
+		});
+		return benchmarks;
+	}
+}
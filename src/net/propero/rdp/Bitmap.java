@@ -53,10 +53,10 @@ public class Bitmap {
 
 	protected static Logger logger = Logger.getLogger(Rdp.class);
 
-	public static int convertTo24(int colour) {
-		if (Options.server_bpp == 15)
+	public static int convertTo24(int colour, int bpp) {
+		if (bpp == 15)
 			return convert15to24(colour);
-		if (Options.server_bpp == 16)
+		if (bpp == 16)
 			return convert16to24(colour);
 		return colour;
 	}
@@ -94,13 +94,14 @@ public class Bitmap {
 	 *            Array to read from
 	 * @param offset
 	 *            Offset in array to read from
-	 * @param Bpp
-	 *            Number of bytes to read
+	 * @param bpp
+	 *            Bits per pixel of the data, 15 and 16 bit colours are
+	 *            converted to 24 bit
 	 * @return
 	 */
-	static int cvalx(byte[] data, int offset, int Bpp) {
+	static int cvalx(byte[] data, int offset, int bpp) {
 		int rv = 0;
-		if (Options.server_bpp == 15) {
+		if (bpp == 15) {
 			int lower = data[offset] & 0xFF;
 			int full = (data[offset + 1] & 0xFF) << 8 | lower;
 
@@ -113,7 +114,7 @@ public class Bitmap {
 
 			return (r24 << 16) | (g24 << 8) | b24;
 
-		} else if (Options.server_bpp == 16) {
+		} else if (bpp == 16) {
 			int lower = data[offset] & 0xFF;
 			int full = (data[offset + 1] & 0xFF) << 8 | lower;
 
@@ -127,7 +128,7 @@ public class Bitmap {
 			return (r24 << 16) | (g24 << 8) | b24;
 
 		} else {
-			for (int i = (Bpp - 1); i >= 0; i--) {
+			for (int i = ((bpp + 7) / 8 - 1); i >= 0; i--) {
 				rv = rv << 8;
 				rv |= data[offset + i] & 0xFF;
 			}
@@ -179,11 +180,12 @@ public class Bitmap {
 	 * 
 	 * @param bitmap
 	 *            Byte array of bitmap data
-	 * @param Bpp
-	 *            Bytes-per-pixel for bitmap
+	 * @param bpp
+	 *            Bits-per-pixel for bitmap
 	 * @return Integer array of pixel data representing input image data
 	 */
-	static int[] convertImage(byte[] bitmap, int Bpp) {
+	static int[] convertImage(byte[] bitmap, int bpp) {
+		int Bpp = (bpp + 7) / 8;
 		int[] out = new int[bitmap.length / Bpp];
 
 		for (int i = 0; i < out.length; i++) {
@@ -196,7 +198,7 @@ public class Bitmap {
 				out[i] = ((bitmap[i * Bpp + 2] & 0xFF) << 16)
 						| ((bitmap[i * Bpp + 1] & 0xFF) << 8)
 						| (bitmap[i * Bpp] & 0xFF);
-			out[i] = Bitmap.convertTo24(out[i]);
+			out[i] = Bitmap.convertTo24(out[i], bpp);
 		}
 		return out;
 	}
@@ -238,11 +240,11 @@ public class Bitmap {
 	 *            Desired x-coordinate of bitmap
 	 * @param y
 	 *            Desired y-coordinate of bitmap
-	 * @param Bpp
-	 *            Number of bytes per pixel in image represented by data
+	 * @param bpp
+	 *            Number of bits per pixel in image represented by data
 	 */
-	public Bitmap(byte[] data, int width, int height, int x, int y, int Bpp) {
-		this.highdata = Bitmap.convertImage(data, Bpp);
+	public Bitmap(byte[] data, int width, int height, int x, int y, int bpp) {
+		this.highdata = Bitmap.convertImage(data, bpp);
 		this.width = width;
 		this.height = height;
 		this.x = x;
@@ -307,8 +309,8 @@ public class Bitmap {
 	 *            Size of compressed data in bytes
 	 * @param data
 	 *            Packet containing bitmap data
-	 * @param Bpp
-	 *            Bytes per-pixel for bitmap
+	 * @param bpp
+	 *            Bits per-pixel for bitmap
 	 * @param cm
 	 *            Colour model of bitmap
 	 * @param left
@@ -322,8 +324,9 @@ public class Bitmap {
 	 * @throws RdesktopException
 	 */
 	public static WrappedImage decompressImgDirect(int width, int height,
-			int size, RdpPacket_Localised data, int Bpp, IndexColorModel cm,
+			int size, RdpPacket_Localised data, int bpp, IndexColorModel cm,
 			int left, int top, WrappedImage w) throws RdesktopException {
+		int Bpp = (bpp + 7) / 8;
 
 		// WrappedImage w = null;
 
@@ -397,18 +400,18 @@ public class Bitmap {
 					insertmix = true;
 				break;
 			case 8: /* Bicolor */
-				color1 = cvalx(compressed_pixel, input, Bpp);
+				color1 = cvalx(compressed_pixel, input, bpp);
 				// (compressed_pixel[input++]&0x000000ff);
 				input += Bpp;
 			case 3: /* Color */
-				color2 = cvalx(compressed_pixel, input, Bpp);
+				color2 = cvalx(compressed_pixel, input, bpp);
 				// color2 = (compressed_pixel[input++]&0x000000ff);
 				input += Bpp;
 				break;
 			case 6: /* SetMix/Mix */
 			case 7: /* SetMix/FillOrMix */
 				// mix = compressed_pixel[input++];
-				mix = cvalx(compressed_pixel, input, Bpp);
+				mix = cvalx(compressed_pixel, input, bpp);
 				input += Bpp;
 				opcode -= 5;
 				break;
@@ -648,7 +651,7 @@ public class Bitmap {
 							// pixel[line + x] = cvalx(compressed_pixel, input,
 							// Bpp);
 							w.setRGB(left + x, top + height, cvalx(
-									compressed_pixel, input, Bpp));
+									compressed_pixel, input, bpp));
 							input += Bpp;
 							count--;
 							x++;
@@ -658,7 +661,7 @@ public class Bitmap {
 						// pixel[line + x] = cvalx(compressed_pixel, input,
 						// Bpp);
 						w.setRGB(left + x, top + height, cvalx(
-								compressed_pixel, input, Bpp));
+								compressed_pixel, input, bpp));
 						input += Bpp;
 						count--;
 						x++;
@@ -759,16 +762,17 @@ public class Bitmap {
 	 *            Size of compressed data in bytes
 	 * @param data
 	 *            Packet containing bitmap data
-	 * @param Bpp
-	 *            Bytes per-pixel for bitmap
+	 * @param bpp
+	 *            Bits per-pixel for bitmap
 	 * @param cm
 	 *            Colour model for bitmap (if using indexed palette)
 	 * @return Decompressed bitmap as Image object
 	 * @throws RdesktopException
 	 */
 	public static Image decompressImg(int width, int height, int size,
-			RdpPacket_Localised data, int Bpp, IndexColorModel cm)
+			RdpPacket_Localised data, int bpp, IndexColorModel cm)
 			throws RdesktopException {
+		int Bpp = (bpp + 7) / 8;
 
 		WrappedImage w = null;
 
@@ -847,18 +851,18 @@ public class Bitmap {
 					insertmix = true;
 				break;
 			case 8: /* Bicolor */
-				color1 = cvalx(compressed_pixel, input, Bpp);
+				color1 = cvalx(compressed_pixel, input, bpp);
 				// (compressed_pixel[input++]&0x000000ff);
 				input += Bpp;
 			case 3: /* Color */
-				color2 = cvalx(compressed_pixel, input, Bpp);
+				color2 = cvalx(compressed_pixel, input, bpp);
 				// color2 = (compressed_pixel[input++]&0x000000ff);
 				input += Bpp;
 				break;
 			case 6: /* SetMix/Mix */
 			case 7: /* SetMix/FillOrMix */
 				// mix = compressed_pixel[input++];
-				mix = cvalx(compressed_pixel, input, Bpp);
+				mix = cvalx(compressed_pixel, input, bpp);
 				input += Bpp;
 				opcode -= 5;
 				break;
@@ -1083,7 +1087,7 @@ public class Bitmap {
 							// pixel[line + x] = cvalx(compressed_pixel, input,
 							// Bpp);
 							w.setRGB(x, height, cvalx(compressed_pixel, input,
-									Bpp));
+									bpp));
 							input += Bpp;
 							count--;
 							x++;
@@ -1094,7 +1098,7 @@ public class Bitmap {
 						// Bpp);
 						w
 								.setRGB(x, height, cvalx(compressed_pixel,
-										input, Bpp));
+										input, bpp));
 						input += Bpp;
 						// pixel[line+x] = compressed_pixel[input++];
 						count--;
@@ -1196,30 +1200,89 @@ public class Bitmap {
 	 *            Size of compressed data in bytes
 	 * @param data
 	 *            Packet containing bitmap data
-	 * @param Bpp
-	 *            Bytes per-pixel for bitmap
+	 * @param bpp
+	 *            Bits per-pixel for bitmap
 	 * @return Integer array of pixels containing decompressed bitmap data
 	 * @throws RdesktopException
 	 */
 	public static int[] decompressInt(int width, int height, int size,
-			RdpPacket_Localised data, int Bpp) throws RdesktopException {
+			RdpPacket_Localised data, int bpp) throws RdesktopException {
 
 		byte[] compressed_pixel = new byte[size];
 		data.copyToByteArray(compressed_pixel, 0, data.getPosition(), size);
 		data.incrementPosition(size);
 
-		int previous = -1, line = 0;
-		int input = 0, output = 0, end = size;
+		return decompressInt(width, height, compressed_pixel, size, bpp);
+	}
+
+	/**
+	 * Decompress bitmap data held in an array to an integer array of
+	 * pixels. Uses no shared state, so may be called from several threads
+	 * at once.
+	 * 
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param compressed_pixel
+	 *            Compressed bitmap data
+	 * @param size
+	 *            Size of compressed data in bytes
+	 * @param bpp
+	 *            Bits per-pixel for bitmap
+	 * @return Integer array of pixels containing decompressed bitmap data
+	 * @throws RdesktopException
+	 */
+	public static int[] decompressInt(int width, int height,
+			byte[] compressed_pixel, int size, int bpp)
+			throws RdesktopException {
+		int[] pixel = new int[width * height];
+		decompressInt(width, height, compressed_pixel, size, bpp, pixel, 0,
+				width);
+		return pixel;
+	}
+
+	/**
+	 * Decompress bitmap data into an existing array of pixels, such as the
+	 * backing array of an image raster. Every pixel of the width x height
+	 * area is written, and no others, so the area must lie wholly within
+	 * the array. Pixels are written as 0xRRGGBB, with the top byte of
+	 * 32bpp colours cleared.
+	 * 
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param compressed_pixel
+	 *            Compressed bitmap data
+	 * @param size
+	 *            Size of compressed data in bytes
+	 * @param bpp
+	 *            Bits per-pixel for bitmap
+	 * @param pixel
+	 *            Array to receive the decompressed pixels
+	 * @param output
+	 *            Index in pixel of the top left pixel of the bitmap
+	 * @param stride
+	 *            Distance in pixel between the starts of two lines
+	 * @throws RdesktopException
+	 */
+	public static void decompressInt(int width, int height,
+			byte[] compressed_pixel, int size, int bpp, int[] pixel,
+			int output, int stride) throws RdesktopException {
+		int Bpp = (bpp + 7) / 8;
+		/* no line before the first, which takes the previous == -1 cases */
+		int previous = -1, line = -1;
+		int input = 0, end = size;
 		int opcode = 0, count = 0, offset = 0, x = width;
 		int lastopcode = -1, fom_mask = 0;
 		int code = 0, color1 = 0, color2 = 0;
 		byte mixmask = 0;
 		int mask = 0;
-		int mix = 0xffffffff;
+		int mix = 0xffffff;
 
 		boolean insertmix = false, bicolor = false, isfillormix = false;
 
-		int[] pixel = new int[width * height];
 		while (input < end) {
 			fom_mask = 0;
 			code = (compressed_pixel[input++] & 0x000000ff);
@@ -1275,18 +1338,18 @@ public class Bitmap {
 					insertmix = true;
 				break;
 			case 8: /* Bicolor */
-				color1 = cvalx(compressed_pixel, input, Bpp);
+				color1 = cvalx(compressed_pixel, input, bpp) & 0xffffff;
 				// (compressed_pixel[input++]&0x000000ff);
 				input += Bpp;
 			case 3: /* Color */
-				color2 = cvalx(compressed_pixel, input, Bpp);
+				color2 = cvalx(compressed_pixel, input, bpp) & 0xffffff;
 				// color2 = (compressed_pixel[input++]&0x000000ff);
 				input += Bpp;
 				break;
 			case 6: /* SetMix/Mix */
 			case 7: /* SetMix/FillOrMix */
 				// mix = compressed_pixel[input++];
-				mix = cvalx(compressed_pixel, input, Bpp);
+				mix = cvalx(compressed_pixel, input, bpp) & 0xffffff;
 				input += Bpp;
 				opcode -= 5;
 				break;
@@ -1318,7 +1381,7 @@ public class Bitmap {
 					height--;
 
 					previous = line;
-					line = output + height * width;
+					line = output + height * stride;
 				}
 
 				switch (opcode) {
@@ -1418,7 +1481,7 @@ public class Bitmap {
 								}
 								if ((mask & mixmask) != 0)
 									// setli(pixel, line, x, mix, Bpp);
-									pixel[line + x] = (byte) mix;
+									pixel[line + x] = mix;
 								else
 									// setli(pixel, line, x, 0, Bpp);
 									pixel[line + x] = 0;
@@ -1511,7 +1574,7 @@ public class Bitmap {
 							// input, Bpp), Bpp);
 							// pixel[line+x] = compressed_pixel[input++];
 							pixel[line + x] = cvalx(compressed_pixel, input,
-									Bpp);
+									bpp) & 0xffffff;
 							input += Bpp;
 							count--;
 							x++;
@@ -1520,7 +1583,8 @@ public class Bitmap {
 					while ((count > 0) && (x < width)) {
 						// setli(pixel, line, x, cvalx(compressed_pixel,
 						// input,Bpp), Bpp);
-						pixel[line + x] = cvalx(compressed_pixel, input, Bpp);
+						pixel[line + x] = cvalx(compressed_pixel, input, bpp)
+								& 0xffffff;
 						input += Bpp;
 						// pixel[line+x] = compressed_pixel[input++];
 						count--;
@@ -1603,12 +1667,6 @@ public class Bitmap {
 			}
 		}
 
-		/*
-		 * if(Options.server_bpp == 16){ for(int i = 0; i < pixel.length; i++)
-		 * pixel[i] = Bitmap.convert16to24(pixel[i]); }
-		 */
-
-		return pixel;
 	}
 
 	/**
@@ -1634,6 +1692,29 @@ public class Bitmap {
 		data.copyToByteArray(compressed_pixel, 0, data.getPosition(), size);
 		data.incrementPosition(size);
 
+		return decompress(width, height, compressed_pixel, size, Bpp);
+	}
+
+	/**
+	 * Decompress bitmap data held in an array to a byte array of pixels.
+	 * Uses no shared state, so may be called from several threads at once.
+	 * 
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param compressed_pixel
+	 *            Compressed bitmap data
+	 * @param size
+	 *            Size of compressed data in bytes
+	 * @param Bpp
+	 *            Bytes per-pixel for bitmap
+	 * @return Byte array of pixels containing decompressed bitmap data
+	 * @throws RdesktopException
+	 */
+	public static byte[] decompress(int width, int height,
+			byte[] compressed_pixel, int size, int Bpp)
+			throws RdesktopException {
 		int previous = 0, line = 0;
 		int input = 0, output = 0, end = size;
 		int opcode = 0, count = 0, offset = 0, x = width;
@@ -1701,19 +1782,19 @@ public class Bitmap {
 					insertmix = true;
 				break;
 			case 8: /* Bicolor */
-				// color1 = cvalx(compressed_pixel, input, Bpp); //
+				// color1 = cvalx(compressed_pixel, input, bpp); //
 				// (compressed_pixel[input++]&0x000000ff);
 				color1 = (compressed_pixel[input++] & 0x000000ff);
 				// input += Bpp;
 			case 3: /* Color */
-				// color2 = cvalx(compressed_pixel, input, Bpp);
+				// color2 = cvalx(compressed_pixel, input, bpp);
 				color2 = (compressed_pixel[input++] & 0x000000ff);
 				// input += Bpp;
 				break;
 			case 6: /* SetMix/Mix */
 			case 7: /* SetMix/FillOrMix */
 				mix = compressed_pixel[input++];
-				// mix = cvalx(compressed_pixel, input, Bpp);
+				// mix = cvalx(compressed_pixel, input, bpp);
 				// input += Bpp;
 				opcode -= 5;
 				break;
@@ -40,25 +40,151 @@ public class Cache {
 
 	private static final int RDPCACHE_COLOURMAPSIZE = 0x06; // unified patch
 
-	private Bitmap[][] bitmapcache = new Bitmap[3][600];
+	/* bitmaps by cache id and cell, sized by setBitmapCells() */
+	private Bitmap[][] bitmapcache = new Bitmap[3][];
+
+	/* least recently used order of each bitmap cache, as doubly linked lists
+	 * of cell indices, -1 terminated */
+	private int[][] lru_prev = new int[3][];
+
+	private int[][] lru_next = new int[3][];
+
+	private int[] lru_head = new int[3];
+
+	private int[] lru_tail = new int[3];
 
 	private Cursor[] cursorcache = new Cursor[32];
 
 	private Glyph[][] fontcache = new Glyph[12][256];
 
-	private DataBlob[] textcache = new DataBlob[256];
+	/* bumped whenever a glyph of the font changes, so that text fragments
+	 * laid out with the old glyph know to lay themselves out again */
+	private int[] font_generation = new int[12];
+
+	private TextFragment[] textcache = new TextFragment[256];
 
 	private int[] highdeskcache = new int[921600];
 
 	private int num_bitmaps_in_memory[] = new int[3];
 
+	/* most bitmaps each cache may hold, fewer than its cells when the rest
+	 * can be reloaded from the persistent cache */
+	private int max_bitmaps_in_memory[] = new int[3];
+
+	/* bytes of pixel data held, and the limit across all bitmap caches */
+	private long bitmap_bytes = 0;
+
+	private final long max_bitmap_bytes;
+
+	private long bitmap_hits = 0;
+
+	private long bitmap_misses = 0;
+
+	private long bitmap_evictions = 0;
+
+	private long bitmap_loads = 0;
+
 	private IndexColorModel[] colourcache = new IndexColorModel[RDPCACHE_COLOURMAPSIZE];
 
-	public Cache() {
+	/* offscreen surfaces by id, and their size as counted by the server, at
+	 * the session's colour depth rather than as stored */
+	private RdesktopSurface[] offscreencache;
+
+	private long offscreen_bytes = 0;
+
+	private final long max_offscreen_bytes;
+
+	private final Options options;
+
+	private final PstCache pstcache;
+
+	/**
+	 * Create an empty cache, with bitmap caches of the sizes offered in the
+	 * version 1 bitmap cache capability set
+	 * 
+	 * @param options
+	 *            Session options, giving the memory allowed for bitmaps and
+	 *            offscreen surfaces
+	 * @param pstcache
+	 *            Persistent cache backing the bitmap caches
+	 */
+	public Cache(Options options, PstCache pstcache) {
+		this.options = options;
+		this.pstcache = pstcache;
+		this.max_bitmap_bytes = options.bitmap_cache_mb * 1024L * 1024L;
+		this.max_offscreen_bytes = options.offscreen_cache_kb * 1024L;
+		this.offscreencache = new RdesktopSurface[Math.max(0,
+				options.offscreen_cache_entries)];
+		setBitmapCells(0, 0x258, 0x258);
+		setBitmapCells(1, 0x12c, 0x12c);
+		setBitmapCells(2, 0x106, 0x106);
+	}
+
+	/**
+	 * Size a bitmap cache to the number of cells offered to the server. The
+	 * cache is emptied if its size changes.
+	 * 
+	 * @param cache_id
+	 *            Bitmap cache to size
+	 * @param cells
+	 *            Number of cells the server may use
+	 * @param in_memory
+	 *            Most bitmaps to keep in memory, the remainder being
+	 *            reloaded from the persistent cache when used
+	 */
+	public void setBitmapCells(int cache_id, int cells, int in_memory) {
+		max_bitmaps_in_memory[cache_id] = Math.min(cells, in_memory);
+		if (bitmapcache[cache_id] != null
+				&& bitmapcache[cache_id].length == cells)
+			return;
+
+		if (bitmapcache[cache_id] != null) {
+			for (int i = 0; i < bitmapcache[cache_id].length; i++) {
+				if (bitmapcache[cache_id][i] != null)
+					bitmap_bytes -= bitmapBytes(bitmapcache[cache_id][i]);
+			}
+		}
+		bitmapcache[cache_id] = new Bitmap[cells];
+		lru_prev[cache_id] = new int[cells];
+		lru_next[cache_id] = new int[cells];
+		lru_head[cache_id] = -1;
+		lru_tail[cache_id] = -1;
+		num_bitmaps_in_memory[cache_id] = 0;
 	}
 
 	void TOUCH(int id, int idx) {
-		bitmapcache[id][idx].usage = ++PstCache.g_stamp;
+		bitmapcache[id][idx].usage = ++pstcache.g_stamp;
+		if (lru_head[id] != idx) {
+			unlink(id, idx);
+			linkHead(id, idx);
+		}
+	}
+
+	private void linkHead(int id, int idx) {
+		lru_prev[id][idx] = -1;
+		lru_next[id][idx] = lru_head[id];
+		if (lru_head[id] >= 0)
+			lru_prev[id][lru_head[id]] = idx;
+		else
+			lru_tail[id] = idx;
+		lru_head[id] = idx;
+	}
+
+	private void unlink(int id, int idx) {
+		int prev = lru_prev[id][idx], next = lru_next[id][idx];
+		if (prev >= 0)
+			lru_next[id][prev] = next;
+		else
+			lru_head[id] = next;
+		if (next >= 0)
+			lru_prev[id][next] = prev;
+		else
+			lru_tail[id] = prev;
+	}
+
+	private static long bitmapBytes(Bitmap bitmap) {
+		int[] data = bitmap.getBitmapData();
+		return data == null ? 0 : 4L * data.length;
 	}
 
 	/**
@@ -68,21 +194,85 @@ public class Cache {
 	 *            Number of cache from which to remove bitmap
 	 */
 	void removeLRUBitmap(int cache_id) {
-		int i;
-		int cache_idx = 0;
-		int m = 0xffffffff;
-
-		for (i = 0; i < bitmapcache[cache_id].length; i++) {
-			if ((bitmapcache[cache_id][i] != null)
-					&& (bitmapcache[cache_id][i].getBitmapData() != null)
-					&& (bitmapcache[cache_id][i].usage < m)) {
-				cache_idx = i;
-				m = bitmapcache[cache_id][i].usage;
+		int cache_idx = lru_tail[cache_id];
+		if (cache_idx < 0)
+			return;
+
+		unlink(cache_id, cache_idx);
+		// the last use is kept with the persistent copy, if there is one
+		pstcache.touchBitmap(cache_id, cache_idx,
+				bitmapcache[cache_id][cache_idx].usage);
+		bitmap_bytes -= bitmapBytes(bitmapcache[cache_id][cache_idx]);
+		bitmapcache[cache_id][cache_idx] = null;
+		--num_bitmaps_in_memory[cache_id];
+		bitmap_evictions++;
+	}
+
+	/**
+	 * Remove least-recently-used bitmaps, from whichever cache holds the
+	 * oldest, until the bitmaps fit in the memory allowed. The most recent
+	 * bitmap is always kept.
+	 */
+	private void trimBitmaps() {
+		while (bitmap_bytes > max_bitmap_bytes) {
+			int oldest = -1;
+			int total = 0;
+			for (int id = 0; id < bitmapcache.length; id++) {
+				total += num_bitmaps_in_memory[id];
+				if (lru_tail[id] >= 0
+						&& (oldest < 0 || bitmapcache[id][lru_tail[id]].usage
+								- bitmapcache[oldest][lru_tail[oldest]].usage < 0))
+					oldest = id;
 			}
+			if (total <= 1)
+				return;
+			removeLRUBitmap(oldest);
 		}
+	}
 
-		bitmapcache[cache_id][cache_idx] = null;
-		--num_bitmaps_in_memory[cache_id];
+	/**
+	 * @param cache_id
+	 *            Bitmap cache to query
+	 * @return Most bitmaps the cache keeps in memory
+	 */
+	public int getMaxBitmapsInMemory(int cache_id) {
+		return max_bitmaps_in_memory[cache_id];
+	}
+
+	/**
+	 * @return Number of bitmaps found in the cache when asked for
+	 */
+	public long getBitmapHits() {
+		return bitmap_hits;
+	}
+
+	/**
+	 * @return Number of bitmaps asked for but not in the cache
+	 */
+	public long getBitmapMisses() {
+		return bitmap_misses;
+	}
+
+	/**
+	 * @return Number of bitmaps removed to keep within the cache limits
+	 */
+	public long getBitmapEvictions() {
+		return bitmap_evictions;
+	}
+
+	/**
+	 * @return Number of bitmaps loaded from the persistent cache when asked
+	 *         for
+	 */
+	public long getBitmapLoads() {
+		return bitmap_loads;
+	}
+
+	/**
+	 * @return Bytes of pixel data held in the bitmap caches
+	 */
+	public long getBitmapBytes() {
+		return bitmap_bytes;
 	}
 
 	/**
@@ -138,19 +328,24 @@ public class Cache {
 		Bitmap bitmap = null;
 
 		if ((cache_id < bitmapcache.length)
-				&& (cache_idx < bitmapcache[0].length)) {
+				&& (cache_idx < bitmapcache[cache_id].length)) {
 			bitmap = bitmapcache[cache_id][cache_idx];
-			/*
-			 * try { if (bitmap != null ||
-			 * PstCache.pstcache_load_bitmap(cache_id, cache_idx)){ if
-			 * (PstCache.IS_PERSISTENT(cache_id)) TOUCH(cache_id, cache_idx);
-			 * return bitmap; } } catch (IOException e) { e.printStackTrace(); }
-			 * catch (RdesktopException e) { e.printStackTrace(); }
-			 */
-			if (bitmap != null)
+			if (bitmap != null) {
+				bitmap_hits++;
+				TOUCH(cache_id, cache_idx);
 				return bitmap;
+			}
+
+			// cells not held in memory may be on disk
+			bitmap = pstcache.pstcache_load_bitmap(cache_id, cache_idx);
+			if (bitmap != null) {
+				bitmap_loads++;
+				putBitmap(cache_id, cache_idx, bitmap, 0);
+				return bitmap;
+			}
 		}
 
+		bitmap_misses++;
 		throw new RdesktopException("Could not get Bitmap!");
 	}
 
@@ -170,23 +365,119 @@ public class Cache {
 	public void putBitmap(int cache_id, int cache_idx, Bitmap bitmap, int stamp)
 			throws RdesktopException {
 
-		// Bitmap old;
-
 		if ((cache_id < bitmapcache.length)
-				&& (cache_idx < bitmapcache[0].length)) {
+				&& (cache_idx < bitmapcache[cache_id].length)) {
+			Bitmap old = bitmapcache[cache_id][cache_idx];
+			if (old != null) {
+				unlink(cache_id, cache_idx);
+				bitmap_bytes -= bitmapBytes(old);
+				--num_bitmaps_in_memory[cache_id];
+			}
+			if (num_bitmaps_in_memory[cache_id] >= max_bitmaps_in_memory[cache_id])
+				removeLRUBitmap(cache_id);
+
 			bitmapcache[cache_id][cache_idx] = bitmap;
-			/*
-			 * if (Options.use_rdp5) { if (++num_bitmaps_in_memory[cache_id] >
-			 * Rdp.BMPCACHE2_C2_CELLS) removeLRUBitmap(cache_id); }
-			 * 
-			 * bitmapcache[cache_id][cache_idx] = bitmap;
-			 * bitmapcache[cache_id][cache_idx].usage = stamp;
-			 */
+			bitmap.usage = stamp != 0 ? stamp : ++pstcache.g_stamp;
+			linkHead(cache_id, cache_idx);
+			++num_bitmaps_in_memory[cache_id];
+			bitmap_bytes += bitmapBytes(bitmap);
+			if (max_bitmap_bytes > 0)
+				trimBitmaps();
 		} else {
 			throw new RdesktopException("Could not put Bitmap!");
 		}
 	}
 
+	/**
+	 * Retrieve an offscreen surface
+	 * 
+	 * @param id
+	 *            Id given to the surface by the server
+	 * @return Surface with the specified id
+	 * @throws RdesktopException
+	 */
+	public RdesktopSurface getOffscreen(int id) throws RdesktopException {
+		if (id >= 0 && id < offscreencache.length
+				&& offscreencache[id] != null)
+			return offscreencache[id];
+		throw new RdesktopException("Offscreen surface " + id + " not found");
+	}
+
+	/**
+	 * Store an offscreen surface, replacing any with the same id. The server
+	 * deletes surfaces to stay within the size offered to it, so a surface
+	 * that would exceed it is refused.
+	 * 
+	 * @param id
+	 *            Id given to the surface by the server
+	 * @param surface
+	 *            Surface to store
+	 * @throws RdesktopException
+	 */
+	public void putOffscreen(int id, RdesktopSurface surface)
+			throws RdesktopException {
+		if (id < 0 || id >= offscreencache.length)
+			throw new RdesktopException("Could not put offscreen surface "
+					+ id);
+
+		removeOffscreen(id);
+		long bytes = offscreenBytes(surface);
+		if (offscreen_bytes + bytes > max_offscreen_bytes)
+			throw new RdesktopException("Offscreen cache full, surface " + id
+					+ " refused");
+		offscreencache[id] = surface;
+		offscreen_bytes += bytes;
+	}
+
+	/**
+	 * Delete an offscreen surface, if there is one with the specified id
+	 * 
+	 * @param id
+	 *            Id given to the surface by the server
+	 */
+	public void removeOffscreen(int id) {
+		if (id < 0 || id >= offscreencache.length
+				|| offscreencache[id] == null)
+			return;
+		offscreen_bytes -= offscreenBytes(offscreencache[id]);
+		offscreencache[id] = null;
+	}
+
+	/**
+	 * Delete every offscreen surface, as the server forgets them when the
+	 * session is reactivated
+	 */
+	public void clearOffscreen() {
+		for (int i = 0; i < offscreencache.length; i++)
+			offscreencache[i] = null;
+		offscreen_bytes = 0;
+	}
+
+	/**
+	 * Set the colour palette of every offscreen surface
+	 * 
+	 * @param cm
+	 *            Colour model used by the session
+	 */
+	public void registerOffscreenPalette(IndexColorModel cm) {
+		for (int i = 0; i < offscreencache.length; i++) {
+			if (offscreencache[i] != null)
+				offscreencache[i].registerPalette(cm);
+		}
+	}
+
+	/**
+	 * @return Size of the offscreen surfaces held, at the session's colour
+	 *         depth
+	 */
+	public long getOffscreenBytes() {
+		return offscreen_bytes;
+	}
+
+	private long offscreenBytes(RdesktopSurface surface) {
+		return (long) surface.getWidth() * surface.getHeight() * options.Bpp;
+	}
+
 	/**
 	 * Retrieve a Cursor object from the cache
 	 * 
@@ -237,6 +528,7 @@ public class Cache {
 		if ((glyph.getFont() < fontcache.length)
 				&& (glyph.getCharacter() < fontcache[0].length)) {
 			fontcache[glyph.getFont()][glyph.getCharacter()] = glyph;
+			font_generation[glyph.getFont()]++;
 		} else {
 			throw new RdesktopException("Could not put font");
 		}
@@ -249,9 +541,11 @@ public class Cache {
 		int id, idx;
 
 		for (id = 0; id < bitmapcache.length; id++)
-			if (PstCache.IS_PERSISTENT(id))
+			if (pstcache.IS_PERSISTENT(id))
 				for (idx = 0; idx < bitmapcache[id].length; idx++)
-					PstCache.touchBitmap(id, idx, bitmapcache[id][idx].usage);
+					if (bitmapcache[id][idx] != null)
+						pstcache.touchBitmap(id, idx,
+								bitmapcache[id][idx].usage);
 	}
 
 	/**
@@ -276,16 +570,26 @@ public class Cache {
 				+ character);
 	}
 
+	/**
+	 * @param font
+	 *            ID of font
+	 * @return Number of times a glyph of the font has been stored
+	 */
+	public int getFontGeneration(int font) {
+		return font < font_generation.length ? font_generation[font] : 0;
+	}
+
 	/**
 	 * Retrieve text stored in the cache
 	 * 
 	 * @param cache_id
 	 *            ID of cache containing text
-	 * @return Text stored in specified cache, represented as a DataBlob
+	 * @return Text stored in specified cache, with the layout it was last
+	 *         drawn with
 	 * @throws RdesktopException
 	 */
-	public DataBlob getText(int cache_id) throws RdesktopException {
-		DataBlob entry = null;
+	public TextFragment getText(int cache_id) throws RdesktopException {
+		TextFragment entry = null;
 		if (cache_id < textcache.length) {
 			entry = textcache[cache_id];
 			if (entry != null) {
@@ -304,10 +608,11 @@ public class Cache {
 	 * @param cache_id
 	 *            ID of cache in which to store the text
 	 * @param entry
-	 *            DataBlob representing the text to be stored
+	 *            Glyph entries of the text to be stored
 	 * @throws RdesktopException
 	 */
-	public void putText(int cache_id, DataBlob entry) throws RdesktopException {
+	public void putText(int cache_id, TextFragment entry)
+			throws RdesktopException {
 		if (cache_id < textcache.length) {
 			textcache[cache_id] = entry;
 		} else {
@@ -7,8 +7,7 @@
  *
  * Copyright (c) 2005 Propero Limited
  *
- * Purpose: Provide a static interface to individual network layers
- *          and UI components
+ * Purpose: Process-wide state shared by all sessions
  * 
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -30,24 +29,11 @@
  */
 package net.propero.rdp;
 
-import net.propero.rdp.rdp5.Rdp5;
-
+/**
+ * State belonging to the JVM rather than to any one connection. Everything
+ * specific to a session is held by its RdpContext.
+ */
 public class Common {
 
 	public static boolean underApplet = false;
-
-	public static Rdp5 rdp;
-
-	public static Secure secure;
-
-	public static MCS mcs;
-
-	public static RdesktopFrame frame;
-
-	/**
-	 * Quit the application
-	 */
-	public static void exit() {
-		Rdesktop.exit(0, rdp, frame, true);
-	}
 }
@@ -35,37 +35,48 @@ package net.propero.rdp;
 
 public class CommunicationMonitor {
 
-	public static Object locker = null;
+	private Object locker = null;
+
+	/* thread holding the lock, and how many times it has taken it */
+	private Thread owner = null;
+
+	private int holds = 0;
 
 	/**
 	 * Identify whether or not communications are locked
 	 * 
 	 * @return True if locked
 	 */
-	public static boolean locked() {
+	public synchronized boolean locked() {
 		return locker != null;
 	}
 
 	/**
-	 * Wait for a lock on communications
+	 * Wait for a lock on communications. A thread already holding the lock
+	 * may take it again, and must unlock once for each time it locked.
 	 * 
 	 * @param o
 	 *            Calling object should supply reference to self
 	 */
-	public static void lock(Object o) {
-		if (locker == null)
-			locker = o;
-		else {
-			while (locker != null) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					System.err.println("InterruptedException: "
-							+ e.getMessage());
-					e.printStackTrace();
-				}
+	public synchronized void lock(Object o) {
+		Thread self = Thread.currentThread();
+		if (owner == self) {
+			holds++;
+			return;
+		}
+		boolean interrupted = false;
+		while (locker != null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
 			}
 		}
+		locker = o;
+		owner = self;
+		holds = 1;
+		if (interrupted)
+			self.interrupt();
 	}
 
 	/**
@@ -74,14 +85,17 @@ public class CommunicationMonitor {
 	 * 
 	 * @param o
 	 *            Calling object should supply reference to self
-	 * @return
+	 * @return True if the caller held the lock
 	 */
-	public static boolean unlock(Object o) {
-		if (locker == o) {
-			locker = null;
+	public synchronized boolean unlock(Object o) {
+		if (owner != Thread.currentThread())
+			return false;
+		if (--holds > 0)
 			return true;
-		}
-		return false;
+		locker = null;
+		owner = null;
+		notifyAll();
+		return true;
 	}
 
 }
@@ -0,0 +1,184 @@
+/* DirtyRegion.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Accumulates the areas of a surface changed by drawing, so they
+ *          can be repainted together
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records which parts of a surface have changed as a bitmap of fixed-size
+ * tiles. Marking an area costs the same however often it is repeated, so a
+ * PDU of several hundred glyphs leaves a handful of dirty tiles rather than
+ * several hundred repaint requests. take() returns the dirty tiles merged
+ * into rectangles: runs of tiles along a row, extended downwards while the
+ * rows below have the same run.
+ */
+public class DirtyRegion {
+
+	/* tile edge in pixels, small enough that text damage stays tight */
+	public static final int TILE_SIZE = 16;
+
+	private final int width;
+
+	private final int height;
+
+	private final int tiles_x;
+
+	private final int tiles_y;
+
+	private final boolean[] tiles;
+
+	/* rows holding at least one dirty tile, so clean rows are skipped */
+	private final boolean[] rows;
+
+	private boolean dirty = false;
+
+	/**
+	 * @param width
+	 *            Width of the tracked surface in pixels
+	 * @param height
+	 *            Height of the tracked surface in pixels
+	 */
+	public DirtyRegion(int width, int height) {
+		this.width = width;
+		this.height = height;
+		tiles_x = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tiles_y = (height + TILE_SIZE - 1) / TILE_SIZE;
+		tiles = new boolean[tiles_x * tiles_y];
+		rows = new boolean[tiles_y];
+	}
+
+	/**
+	 * Mark an area as changed. Parts outside the surface are ignored.
+	 *
+	 * @param x
+	 *            x coordinate of area
+	 * @param y
+	 *            y coordinate of area
+	 * @param cx
+	 *            Width of area
+	 * @param cy
+	 *            Height of area
+	 */
+	public synchronized void add(int x, int y, int cx, int cy) {
+		int x2 = Math.min(x + cx, width);
+		int y2 = Math.min(y + cy, height);
+		if (x < 0)
+			x = 0;
+		if (y < 0)
+			y = 0;
+		if (x >= x2 || y >= y2)
+			return;
+
+		int tx1 = x / TILE_SIZE, tx2 = (x2 - 1) / TILE_SIZE;
+		int ty1 = y / TILE_SIZE, ty2 = (y2 - 1) / TILE_SIZE;
+		for (int ty = ty1; ty <= ty2; ty++) {
+			int row = ty * tiles_x;
+			for (int tx = tx1; tx <= tx2; tx++)
+				tiles[row + tx] = true;
+			rows[ty] = true;
+		}
+		dirty = true;
+	}
+
+	/**
+	 * @return True if any area has been marked since the last take()
+	 */
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Collect the changed areas and clear them
+	 *
+	 * @return Rectangles covering every changed area, clipped to the
+	 *         surface, or an empty list if nothing has changed
+	 */
+	public synchronized List<Rectangle> take() {
+		List<Rectangle> done = new ArrayList<Rectangle>();
+		if (!dirty)
+			return done;
+
+		/* rectangles that reached the previous row, by starting tile */
+		Rectangle[] open = new Rectangle[tiles_x];
+		Rectangle[] next = new Rectangle[tiles_x];
+
+		for (int ty = 0; ty < tiles_y; ty++) {
+			int row = ty * tiles_x;
+			if (rows[ty]) {
+				int tx = 0;
+				while (tx < tiles_x) {
+					if (!tiles[row + tx]) {
+						tx++;
+						continue;
+					}
+					int start = tx;
+					while (tx < tiles_x && tiles[row + tx])
+						tiles[row + tx++] = false;
+
+					Rectangle r = open[start];
+					if (r != null && r.width == (tx - start) * TILE_SIZE) {
+						r.height += TILE_SIZE;
+						open[start] = null;
+					} else {
+						r = new Rectangle(start * TILE_SIZE, ty * TILE_SIZE,
+								(tx - start) * TILE_SIZE, TILE_SIZE);
+					}
+					next[start] = r;
+				}
+				rows[ty] = false;
+			}
+
+			/* anything not continued on this row is finished */
+			for (int i = 0; i < tiles_x; i++) {
+				if (open[i] != null)
+					done.add(open[i]);
+			}
+			Rectangle[] swap = open;
+			open = next;
+			next = swap;
+			Arrays.fill(next, null);
+		}
+		for (int i = 0; i < tiles_x; i++) {
+			if (open[i] != null)
+				done.add(open[i]);
+		}
+
+		/* the last row and column of tiles may overhang the surface */
+		for (int i = 0; i < done.size(); i++) {
+			Rectangle r = done.get(i);
+			if (r.x + r.width > width)
+				r.width = width - r.x;
+			if (r.y + r.height > height)
+				r.height = height - r.y;
+		}
+		dirty = false;
+		return done;
+	}
+}
@@ -48,6 +48,15 @@ public class Glyph {
 
 	private byte[] fontdata = null;
 
+	/* set pixels as runs of columns, a start and an end (exclusive) each;
+	 * the runs of row r lie between runs[rows[r]] and runs[rows[r + 1]] */
+	private int[] runs = null;
+
+	private int[] rows = null;
+
+	/* one byte per pixel, -1 where set and 0 elsewhere, for opaque drawing */
+	private byte[] mask = null;
+
 	/**
 	 * Construct a Glyph object
 	 * 
@@ -75,6 +84,52 @@ public class Glyph {
 		this.width = width;
 		this.height = height;
 		this.fontdata = fontdata;
+		expand();
+	}
+
+	/*
+	 * Convert the 1bpp data, most significant bit first and rows padded to a
+	 * whole byte, into runs, so that drawing fills spans instead of testing
+	 * each bit
+	 */
+	private void expand() {
+		int bytes_per_row = (width + 7) / 8;
+		int count = 0;
+		int[] found = new int[Math.max(width, 1) + 1];
+		int[] all = new int[16];
+		rows = new int[Math.max(height, 0) + 1];
+		mask = new byte[Math.max(width, 0) * Math.max(height, 0)];
+
+		for (int r = 0; r < height; r++) {
+			rows[r] = count;
+			int n = 0;
+			int p = r * bytes_per_row;
+			boolean set = false;
+			for (int c = 0; c < width; c++) {
+				boolean bit = p + (c >> 3) < fontdata.length
+						&& (fontdata[p + (c >> 3)] & (0x80 >> (c & 7))) != 0;
+				if (bit)
+					mask[r * width + c] = -1;
+				if (bit != set) {
+					found[n++] = c;
+					set = bit;
+				}
+			}
+			if (set)
+				found[n++] = width;
+
+			if (count + n > all.length) {
+				int[] grown = new int[Math.max(all.length * 2, count + n)];
+				System.arraycopy(all, 0, grown, 0, count);
+				all = grown;
+			}
+			System.arraycopy(found, 0, all, count, n);
+			count += n;
+		}
+		rows[Math.max(height, 0)] = count;
+
+		runs = new int[count];
+		System.arraycopy(all, 0, runs, 0, count);
 	}
 
 	/**
@@ -139,4 +194,29 @@ public class Glyph {
 	public byte[] getFontData() {
 		return this.fontdata;
 	}
+
+	/**
+	 * Columns set in this Glyph, as start and end (exclusive) pairs, row by
+	 * row
+	 * 
+	 * @return Runs of set pixels, indexed by getRows()
+	 */
+	int[] getRuns() {
+		return this.runs;
+	}
+
+	/**
+	 * @return Index in getRuns() of the first run of each row, followed by
+	 *         the total number of entries
+	 */
+	int[] getRows() {
+		return this.rows;
+	}
+
+	/**
+	 * @return One byte per pixel, row by row: -1 if set, 0 if clear
+	 */
+	byte[] getMask() {
+		return this.mask;
+	}
 }
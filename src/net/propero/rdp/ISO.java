@@ -29,13 +29,10 @@
  */
 package net.propero.rdp;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 import net.propero.rdp.crypto.CryptoException;
 
@@ -46,11 +43,17 @@ public abstract class ISO {
 
 	private HexDump dump = null;
 
-	protected Socket rdpsock = null;
+	protected final RdpContext context;
 
-	private DataInputStream in = null;
+	protected final Options options;
 
-	private DataOutputStream out = null;
+	protected SocketChannel rdpsock = null;
+
+	/* largest frame a TPKT or fast-path header can describe */
+	private static final int MAX_FRAME_SIZE = 0xffff;
+
+	/* receive buffer, reused for every incoming frame */
+	private RdpPacket_Localised rcvbuf = null;
 
 	/* this for the ISO Layer */
 	private static final int CONNECTION_REQUEST = 0xE0;
@@ -69,20 +72,26 @@ public abstract class ISO {
 
 	/**
 	 * Construct ISO object, initialises hex dump
+	 * 
+	 * @param context
+	 *            Session this layer belongs to
 	 */
-	public ISO() {
+	public ISO(RdpContext context) {
+		this.context = context;
+		this.options = context.options;
 		dump = new HexDump();
 	}
 
 	/**
-	 * Initialise an ISO PDU
+	 * Initialise an ISO PDU. The packet is taken from the PacketPool and goes
+	 * back to it once it has been passed to send().
 	 * 
 	 * @param length
 	 *            Desired length of PDU
 	 * @return Packet configured as ISO PDU, ready to write at higher level
 	 */
 	public RdpPacket_Localised init(int length) {
-		RdpPacket_Localised data = new RdpPacket_Localised(length + 7);// getMemory(length+7);
+		RdpPacket_Localised data = PacketPool.acquire(length + 7);// getMemory(length+7);
 		data.incrementPosition(7);
 		data.setStart(data.getPosition());
 		return data;
@@ -103,7 +112,7 @@ public abstract class ISO {
 	 */
 	protected void doSocketConnect(InetAddress host, int port)
 			throws IOException {
-		this.rdpsock = new Socket(host, port);
+		this.rdpsock = SocketChannel.open(new InetSocketAddress(host, port));
 	}
 
 	/**
@@ -122,12 +131,8 @@ public abstract class ISO {
 			RdesktopException, OrderException, CryptoException {
 		int[] code = new int[1];
 		doSocketConnect(host, port);
-		rdpsock.setTcpNoDelay(Options.low_latency);
-		// this.in = new InputStreamReader(rdpsock.getInputStream());
-		this.in = new DataInputStream(new BufferedInputStream(rdpsock
-				.getInputStream()));
-		this.out = new DataOutputStream(new BufferedOutputStream(rdpsock
-				.getOutputStream()));
+		rdpsock.socket().setTcpNoDelay(options.low_latency);
+		this.rcvbuf = new RdpPacket_Localised(MAX_FRAME_SIZE);
 		send_connection_request();
 
 		receiveMessage(code);
@@ -137,7 +142,7 @@ public abstract class ISO {
 		}
 
 		/*
-		 * if(Options.use_ssl){ try { rdpsock = this.negotiateSSL(rdpsock);
+		 * if(options.use_ssl){ try { rdpsock = this.negotiateSSL(rdpsock);
 		 * this.in = new DataInputStream(rdpsock.getInputStream()); this.out=
 		 * new DataOutputStream(rdpsock.getOutputStream()); } catch (Exception
 		 * e) { e.printStackTrace(); throw new RdesktopException("SSL
@@ -155,8 +160,7 @@ public abstract class ISO {
 	 *                when an I/O Error occurs
 	 */
 	private void sendMessage(int type) throws IOException {
-		RdpPacket_Localised buffer = new RdpPacket_Localised(11);// getMemory(11);
-		byte[] packet = new byte[11];
+		RdpPacket_Localised buffer = PacketPool.acquire(11);// getMemory(11);
 
 		buffer.set8(PROTOCOL_VERSION); // send Version Info
 		buffer.set8(0); // reserved byte
@@ -169,13 +173,16 @@ public abstract class ISO {
 		buffer.setBigEndian16(0); // source reference should be a reasonable
 									// address we use 0
 		buffer.set8(0); // service class
-		buffer.copyToByteArray(packet, 0, 0, packet.length);
-		out.write(packet);
-		out.flush();
+		try {
+			buffer.writeTo(rdpsock, 0, 11);
+		} finally {
+			PacketPool.release(buffer);
+		}
 	}
 
 	/**
-	 * Send a packet to the server, wrapped in ISO PDU
+	 * Send a packet to the server, wrapped in ISO PDU. The packet is returned
+	 * to the PacketPool afterwards and must not be used again by the caller.
 	 * 
 	 * @param buffer
 	 *            Packet containing data to send to server
@@ -184,13 +191,51 @@ public abstract class ISO {
 	 */
 	public void send(RdpPacket_Localised buffer) throws RdesktopException,
 			IOException {
-		if (rdpsock == null || out == null)
+		try {
+			sendPacket(buffer);
+		} finally {
+			PacketPool.release(buffer);
+		}
+	}
+
+	/**
+	 * Send a fast-path PDU to the server as it stands, without an ISO header.
+	 * The packet is returned to the PacketPool afterwards.
+	 * 
+	 * @param buffer
+	 *            Packet holding a complete fast-path PDU up to its end mark
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void sendFastPath(RdpPacket_Localised buffer)
+			throws RdesktopException, IOException {
+		try {
+			if (rdpsock == null)
+				return;
+			if (buffer.getEnd() < 0)
+				throw new RdesktopException("No End Mark!");
+
+			if (options.debug_hexdump) {
+				byte[] packet = new byte[buffer.getEnd()];
+				buffer.copyToByteArray(packet, 0, 0, packet.length);
+				System.out.println("ISO Sending fast-path packet:");
+				System.out.println(net.propero.rdp.tools.HexDump.dumpHexString(packet));
+			}
+
+			buffer.writeTo(rdpsock, 0, buffer.getEnd());
+		} finally {
+			PacketPool.release(buffer);
+		}
+	}
+
+	private void sendPacket(RdpPacket_Localised buffer)
+			throws RdesktopException, IOException {
+		if (rdpsock == null)
 			return;
 		if (buffer.getEnd() < 0) {
 			throw new RdesktopException("No End Mark!");
 		} else {
 			int length = buffer.getEnd();
-			byte[] packet = new byte[length];
 			// RdpPacket data = this.getMemory(length+7);
 			buffer.setPosition(0);
 			buffer.set8(PROTOCOL_VERSION); // Version
@@ -200,15 +245,15 @@ public abstract class ISO {
 			buffer.set8(2); // length of header
 			buffer.set8(DATA_TRANSFER);
 			buffer.set8(EOT);
-			buffer.copyToByteArray(packet, 0, 0, buffer.getEnd());
 			
-			if (Options.debug_hexdump) {
+			if (options.debug_hexdump) {
+			    byte[] packet = new byte[length];
+			    buffer.copyToByteArray(packet, 0, 0, length);
 	            System.out.println("ISO Sending packet:");
 	            System.out.println(net.propero.rdp.tools.HexDump.dumpHexString(packet));
 	        }
 			
-			out.write(packet);
-			out.flush();
+			buffer.writeTo(rdpsock, 0, length);
 		}
 	}
 
@@ -234,53 +279,20 @@ public abstract class ISO {
 		return buffer;
 	}
 
-	private static int g_packetno = 0;
+	private int g_packetno = 0;
 	/**
-	 * Receive a specified number of bytes from the server, and store in a
-	 * packet
+	 * Receive a specified number of bytes from the server directly into the
+	 * receive buffer
 	 * 
-	 * @param p
-	 *            Packet to append data to, null results in a new packet being
-	 *            created
+	 * @param offset
+	 *            Offset in the receive buffer at which to store the data
 	 * @param length
 	 *            Length of data to read
-	 * @return Packet containing read data, appended to original data if
-	 *         provided
 	 * @throws IOException
 	 */
-	private RdpPacket_Localised tcp_recv(RdpPacket_Localised p, int length)
-			throws IOException {
+	private void tcp_recv(int offset, int length) throws IOException {
 		logger.debug("ISO.tcp_recv");
-		RdpPacket_Localised buffer = null;
-		byte[] packet = new byte[length];
-
-		in.readFully(packet, 0, length);
-
-		// try{ }
-		// catch(IOException e){ logger.warn("IOException: " + e.getMessage());
-		// return null; }
-		if (Options.debug_hexdump) {
-//		    dump.encode(packet, "RECEIVE" /* System.out */);
-		    System.out.println(String.format("\nISO receive RDP packet # %d", ++g_packetno));
-		    System.out.println(net.propero.rdp.tools.HexDump.dumpHexString(packet));
-		}
-
-		if (p == null) {
-			buffer = new RdpPacket_Localised(length);
-			buffer.copyFromByteArray(packet, 0, 0, packet.length);
-			buffer.markEnd(length);
-			buffer.setStart(buffer.getPosition());
-		} else {
-			buffer = new RdpPacket_Localised((p.getEnd() - p.getStart())
-					+ length);
-			buffer.copyFromPacket(p, p.getStart(), 0, p.getEnd());
-			buffer.copyFromByteArray(packet, 0, p.getEnd(), packet.length);
-			buffer.markEnd(p.size() + packet.length);
-			buffer.setPosition(p.getPosition());
-			buffer.setStart(0);
-		}
-
-		return buffer;
+		rcvbuf.readFrom(rdpsock, offset, length);
 	}
 
 	/**
@@ -302,10 +314,10 @@ public abstract class ISO {
 
 		next_packet: while (true) {
 			logger.debug("next_packet");
-			s = tcp_recv(null, 4);
+			s = this.rcvbuf;
+			s.reset(4);
+			tcp_recv(0, 4);
 			logger.debug("off next_packet");
-			if (s == null)
-				return null;
 
 			version = s.get8();
 			rdpver[0] = version;
@@ -321,12 +333,27 @@ public abstract class ISO {
 				}
 			}
 
-			s = tcp_recv(s, length - 4);
-			if (s == null)
-				return null;
+			if (length < 4 || length > s.capacity()) {
+				throw new RdesktopException("Bad packet length: " + length);
+			}
+
+			// reset() only rewinds the position, the header bytes are kept
+			int header = s.getPosition();
+			s.reset(length);
+			tcp_recv(4, length - 4);
+			s.markEnd(length);
+			s.setPosition(header);
+
+			if (options.debug_hexdump) {
+			    byte[] packet = new byte[length];
+			    s.copyToByteArray(packet, 0, 0, length);
+			    System.out.println(String.format("\nISO receive RDP packet # %d", ++g_packetno));
+			    System.out.println(net.propero.rdp.tools.HexDump.dumpHexString(packet));
+			}
+
 			if ((version & 3) == 0) {
 				logger.debug("Processing rdp5 packet");
-				Common.rdp.rdp5_process(s, (version & 0x80) != 0);
+				context.rdp.rdp5_process(s, version);
 				continue next_packet;
 			} else
 				break;
@@ -358,20 +385,12 @@ public abstract class ISO {
 			return;
 		try {
 			sendMessage(DISCONNECT_REQUEST);
-			if (in != null)
-				in.close();
-			if (out != null)
-				out.close();
 			if (rdpsock != null)
 				rdpsock.close();
 		} catch (IOException e) {
-			in = null;
-			out = null;
 			rdpsock = null;
 			return;
 		}
-		in = null;
-		out = null;
 		rdpsock = null;
 	}
 
@@ -382,14 +401,13 @@ public abstract class ISO {
 	 */
 	void send_connection_request() throws IOException {
 
-		String uname = Options.username;
+		String uname = options.username;
 //		if (uname.length() > 9)
 //			uname = uname.substring(0, 9);
-		int length = 11 + (Options.username.length() > 0 ? ("Cookie: mstshash="
+		int length = 11 + (options.username.length() > 0 ? ("Cookie: mstshash="
 				.length()
 				+ uname.length() + 2) : 0)/* + 8*/;
-		RdpPacket_Localised buffer = new RdpPacket_Localised(length);
-		byte[] packet = new byte[length];
+		RdpPacket_Localised buffer = PacketPool.acquire(length);
 
 		buffer.set8(PROTOCOL_VERSION); // send Version Info
 		buffer.set8(0); // reserved byte
@@ -400,7 +418,7 @@ public abstract class ISO {
 		buffer.setBigEndian16(0); // source reference should be a reasonable
 									// address we use 0
 		buffer.set8(0); // service class
-		if (Options.username.length() > 0) {
+		if (options.username.length() > 0) {
 			logger.debug("Including username");
 			buffer
 					.out_uint8p("Cookie: mstshash=", "Cookie: mstshash="
@@ -414,7 +432,7 @@ public abstract class ISO {
 		/*
 		 * // Authentication request? buffer.setLittleEndian16(0x01);
 		 * buffer.setLittleEndian16(0x08); // Do we try to use SSL?
-		 * buffer.set8(Options.use_ssl? 0x01 : 0x00);
+		 * buffer.set8(options.use_ssl? 0x01 : 0x00);
 		 * buffer.incrementPosition(3);
 		 */
 //		buffer.set8(0x01);
@@ -422,15 +440,19 @@ public abstract class ISO {
 //		buffer.setLittleEndian16(0x08);
 //		buffer.setLittleEndian32(0x01);
 		
-		buffer.copyToByteArray(packet, 0, 0, packet.length);
-		out.write(packet);
-		out.flush();
-		
-		if (Options.debug_hexdump) {
-//          dump.encode(packet, "SEND"/* System.out */);
-            System.out.println("ISO Sending packet:");
-            System.out.println(net.propero.rdp.tools.HexDump.dumpHexString(packet));
-        }
+		try {
+			buffer.writeTo(rdpsock, 0, length);
+
+			if (options.debug_hexdump) {
+			    byte[] packet = new byte[length];
+			    buffer.copyToByteArray(packet, 0, 0, length);
+//	          dump.encode(packet, "SEND"/* System.out */);
+	            System.out.println("ISO Sending packet:");
+	            System.out.println(net.propero.rdp.tools.HexDump.dumpHexString(packet));
+	        }
+		} finally {
+			PacketPool.release(buffer);
+		}
 		
 	}
 }
@@ -53,19 +53,19 @@ public abstract class Input {
 
 	protected Vector pressedKeys;
 
-	protected static boolean capsLockOn = false;
+	protected boolean capsLockOn = false;
 
-	protected static boolean numLockOn = false;
+	protected boolean numLockOn = false;
 
-	protected static boolean scrollLockOn = false;
+	protected boolean scrollLockOn = false;
 
-	protected static boolean serverAltDown = false;
+	protected boolean serverAltDown = false;
 
-	protected static boolean altDown = false;
+	protected boolean altDown = false;
 
-	protected static boolean ctrlDown = false;
+	protected boolean ctrlDown = false;
 
-	protected static long last_mousemove = 0;
+	protected long last_mousemove = 0;
 
 	// Using this flag value (0x0001) seems to do nothing, and after running
 	// through other possible values, the RIGHT flag does not appear to be
@@ -123,6 +123,10 @@ public abstract class Input {
 
 	protected Rdp rdp = null;
 
+	protected final RdpContext context;
+
+	protected final Options options;
+
 	KeyCode keys = null;
 
 	/**
@@ -139,7 +143,9 @@ public abstract class Input {
 		newKeyMapper = k;
 		canvas = c;
 		rdp = r;
-		if (Options.debug_keyboard)
+		context = c.context;
+		options = context.options;
+		if (options.debug_keyboard)
 			logger.setLevel(Level.DEBUG);
 		addInputListeners();
 		pressedKeys = new Vector();
@@ -156,8 +162,10 @@ public abstract class Input {
 	 *            Path to file containing keymap data
 	 */
 	public Input(RdesktopCanvas c, Rdp r, String keymapFile) {
+		context = c.context;
+		options = context.options;
 		try {
-			newKeyMapper = new KeyCode_FileBased_Localised(keymapFile);
+			newKeyMapper = new KeyCode_FileBased_Localised(keymapFile, options);
 		} catch (KeyMapException kmEx) {
 			System.err.println(kmEx.getMessage());
 			if (!Common.underApplet)
@@ -166,7 +174,7 @@ public abstract class Input {
 
 		canvas = c;
 		rdp = r;
-		if (Options.debug_keyboard)
+		if (options.debug_keyboard)
 			logger.setLevel(Level.DEBUG);
 		addInputListeners();
 		pressedKeys = new Vector();
@@ -600,9 +608,9 @@ public abstract class Input {
 			altDown = pressed;
 			return false;
 		case KeyEvent.VK_CAPS_LOCK:
-			if (pressed && Options.caps_sends_up_and_down)
+			if (pressed && options.caps_sends_up_and_down)
 				capsLockOn = !capsLockOn;
-			if (!Options.caps_sends_up_and_down) {
+			if (!options.caps_sends_up_and_down) {
 				if (pressed)
 					capsLockOn = true;
 				else
@@ -690,7 +698,7 @@ public abstract class Input {
 	 */
 	protected void middleButtonPressed(MouseEvent e) {
 		/*
-		 * if (Options.paste_hack && ctrlDown){ try{ canvas.setBusyCursor();
+		 * if (options.paste_hack && ctrlDown){ try{ canvas.setBusyCursor();
 		 * }catch (RdesktopException ex){ logger.warn(ex.getMessage()); } if
 		 * (capsLockOn){ logger.debug("Turning caps lock off for paste"); //
 		 * turn caps lock off sendScancode(getTime(), RDP_KEYPRESS, 0x3a); //
@@ -714,7 +722,7 @@ public abstract class Input {
 	 *            was released
 	 */
 	protected void middleButtonReleased(MouseEvent e) {
-		/* if (!Options.paste_hack || !ctrlDown) */
+		/* if (!options.paste_hack || !ctrlDown) */
 		rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON3, e.getX(), e
 				.getY());
 	}
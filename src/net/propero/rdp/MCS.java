@@ -82,15 +82,20 @@ public class MCS {
 
 	private VChannels channels;
 
+	private final RdpContext context;
+
 	/**
 	 * Initialise the MCS layer (and lower layers) with provided channels
 	 * 
+	 * @param context
+	 *            Session this layer belongs to
 	 * @param channels
 	 *            Set of available MCS channels
 	 */
-	public MCS(VChannels channels) {
+	public MCS(RdpContext context, VChannels channels) {
+		this.context = context;
 		this.channels = channels;
-		IsoLayer = new ISO_Localised();
+		IsoLayer = new ISO_Localised(context);
 	}
 
 	/**
@@ -174,6 +179,19 @@ public class MCS {
 		send_to_channel(buffer, MCS_GLOBAL_CHANNEL);
 	}
 
+	/**
+	 * Send a fast-path PDU, which bypasses the MCS and ISO headers
+	 * 
+	 * @param buffer
+	 *            Packet holding a complete fast-path PDU
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void send_fastpath(RdpPacket_Localised buffer)
+			throws RdesktopException, IOException {
+		IsoLayer.sendFastPath(buffer);
+	}
+
 	/**
 	 * Send a packet to a specified channel
 	 * 
@@ -478,7 +496,7 @@ public class MCS {
 		parseDomainParams(buffer);
 		length = berParseHeader(buffer, BER_TAG_OCTET_STRING);
 
-		Common.secure.processMcsData(buffer);
+		context.secure.processMcsData(buffer);
 
 		/*
 		 * if (length > data.size()) { logger.warn("MCS Datalength exceeds
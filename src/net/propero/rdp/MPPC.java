@@ -0,0 +1,364 @@
+/* MPPC.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: MPPC bulk decompression (RDP 4 8K and RDP 5 64K history)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * MPPC decompressor, ported from rdesktop's mppc.c. The history buffer is
+ * kept between calls, so one instance must be used for each compressed
+ * stream coming from the server.
+ */
+public class MPPC {
+
+	/* compression type flags, as found in the share data and fast-path headers */
+	public static final int RDP_MPPC_BIG = 0x01;
+
+	public static final int RDP_MPPC_COMPRESSED = 0x20;
+
+	public static final int RDP_MPPC_RESET = 0x40;
+
+	public static final int RDP_MPPC_FLUSH = 0x80;
+
+	public static final int RDP_MPPC_DICT_SIZE = 65536;
+
+	private byte[] hist = new byte[RDP_MPPC_DICT_SIZE];
+
+	private int roff = 0;
+
+	/* length of the data produced by the last call to expand */
+	private int rlen = 0;
+
+	/**
+	 * Decompress data from the current position of a packet. The position is
+	 * advanced past the compressed data, and the decompressed bytes are
+	 * copied into out, which is positioned at 0 with its end marked.
+	 *
+	 * @param data
+	 *            Packet holding compressed data at its current position
+	 * @param clen
+	 *            Length of compressed data
+	 * @param ctype
+	 *            Compression type and flags
+	 * @param out
+	 *            Packet to receive the decompressed data
+	 * @throws RdesktopException
+	 */
+	public void expand(RdpPacket_Localised data, int clen, int ctype,
+			RdpPacket_Localised out) throws RdesktopException {
+		int start = data.getPosition();
+		int old_offset = expand(data.getByteBuffer(), start, clen, ctype);
+		data.setPosition(start + clen);
+
+		out.reset(rlen);
+		if (rlen > 0)
+			out.copyFromByteArray(hist, old_offset, 0, rlen);
+		out.markEnd(rlen);
+	}
+
+	/**
+	 * Decompress a block of data into the history buffer
+	 *
+	 * @param data
+	 *            Buffer holding the compressed data
+	 * @param offset
+	 *            Absolute offset of compressed data within buffer
+	 * @param clen
+	 *            Length of compressed data
+	 * @param ctype
+	 *            Compression type and flags
+	 * @return Offset of the decompressed data within the history buffer, its
+	 *         length is left in rlen
+	 * @throws RdesktopException
+	 */
+	private int expand(ByteBuffer data, int offset, int clen, int ctype)
+			throws RdesktopException {
+		int k, walker_len = 0, walker = 0;
+		int i = offset;
+		int next_offset, match_off = 0;
+		int match_len;
+		int old_offset, match_bits;
+		boolean big = (ctype & RDP_MPPC_BIG) != 0;
+		int mask = big ? 65535 : 8191;
+
+		byte[] dict = this.hist;
+
+		if ((ctype & RDP_MPPC_COMPRESSED) == 0) {
+			rlen = 0;
+			return 0;
+		}
+
+		if ((ctype & RDP_MPPC_RESET) != 0) {
+			this.roff = 0;
+		}
+
+		if ((ctype & RDP_MPPC_FLUSH) != 0) {
+			Arrays.fill(dict, (byte) 0);
+			this.roff = 0;
+		}
+
+		rlen = 0;
+
+		next_offset = this.roff;
+		old_offset = next_offset;
+		if (clen == 0)
+			return old_offset;
+		clen += offset;
+
+		do {
+			if (walker_len == 0) {
+				if (i >= clen)
+					break;
+				walker = (data.get(i++) & 0xff) << 24;
+				walker_len = 8;
+			}
+			if (walker >= 0) {
+				if (walker_len < 8) {
+					if (i >= clen) {
+						if (walker != 0)
+							throw error();
+						break;
+					}
+					walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					walker_len += 8;
+				}
+				if (next_offset >= RDP_MPPC_DICT_SIZE)
+					throw error();
+				dict[next_offset++] = (byte) (walker >>> 24);
+				walker <<= 8;
+				walker_len -= 8;
+				continue;
+			}
+			walker <<= 1;
+			/* fetch next 8-bits */
+			if (--walker_len == 0) {
+				if (i >= clen)
+					throw error();
+				walker = (data.get(i++) & 0xff) << 24;
+				walker_len = 8;
+			}
+			/* literal decoding */
+			if (walker >= 0) {
+				if (walker_len < 8) {
+					if (i >= clen)
+						throw error();
+					walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					walker_len += 8;
+				}
+				if (next_offset >= RDP_MPPC_DICT_SIZE)
+					throw error();
+				dict[next_offset++] = (byte) (walker >>> 24 | 0x80);
+				walker <<= 8;
+				walker_len -= 8;
+				continue;
+			}
+
+			/* decode offset/length pair */
+			walker <<= 1;
+			if (--walker_len < (big ? 3 : 2)) {
+				if (i >= clen)
+					throw error();
+				walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+				walker_len += 8;
+			}
+
+			if (big) {
+				/*
+				 * offset decoding where offset len is:
+				 * -63: 11111 followed by the lower 6 bits of the value
+				 * 64-319: 11110 followed by the lower 8 bits of the value (value - 64)
+				 * 320-2367: 1110 followed by lower 11 bits of the value (value - 320)
+				 * 2368-65535: 110 followed by lower 16 bits of the value (value - 2368)
+				 */
+				switch (walker >>> 29) {
+				case 7: /* - 63 */
+					for (; walker_len < 9; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+					walker <<= 3;
+					match_off = walker >>> 26;
+					walker <<= 6;
+					walker_len -= 9;
+					break;
+
+				case 6: /* 64 - 319 */
+					for (; walker_len < 11; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+					walker <<= 3;
+					match_off = (walker >>> 24) + 64;
+					walker <<= 8;
+					walker_len -= 11;
+					break;
+
+				case 5:
+				case 4: /* 320 - 2367 */
+					for (; walker_len < 13; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+					walker <<= 2;
+					match_off = (walker >>> 21) + 320;
+					walker <<= 11;
+					walker_len -= 13;
+					break;
+
+				default: /* 2368 - 65535 */
+					for (; walker_len < 17; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+					walker <<= 1;
+					match_off = (walker >>> 16) + 2368;
+					walker <<= 16;
+					walker_len -= 17;
+					break;
+				}
+			} else {
+				/*
+				 * offset decoding where offset len is:
+				 * -63: 1111 followed by the lower 6 bits of the value
+				 * 64-319: 1110 followed by the lower 8 bits of the value (value - 64)
+				 * 320-8191: 110 followed by the lower 13 bits of the value (value - 320)
+				 */
+				switch (walker >>> 30) {
+				case 3: /* - 63 */
+					if (walker_len < 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+						walker_len += 8;
+					}
+					walker <<= 2;
+					match_off = walker >>> 26;
+					walker <<= 6;
+					walker_len -= 8;
+					break;
+
+				case 2: /* 64 - 319 */
+					for (; walker_len < 10; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+					walker <<= 2;
+					match_off = (walker >>> 24) + 64;
+					walker <<= 8;
+					walker_len -= 10;
+					break;
+
+				default: /* 320 - 8191 */
+					for (; walker_len < 14; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+					match_off = (walker >> 18) + 320;
+					walker <<= 14;
+					walker_len -= 14;
+					break;
+				}
+			}
+			if (walker_len == 0) {
+				if (i >= clen)
+					throw error();
+				walker = (data.get(i++) & 0xff) << 24;
+				walker_len = 8;
+			}
+
+			/* decode length of match */
+			if (walker >= 0) {
+				/* special case - length of 3 is in bit 0 */
+				match_len = 3;
+				walker <<= 1;
+				walker_len--;
+			} else {
+				/*
+				 * lengths are encoded as:
+				 * 4-7: 10 followed by 2 bits of the value
+				 * 8-15: 110 followed by 3 bits of the value
+				 * 16-31: 1110 followed by 4 bits of the value
+				 * ... and so forth, up to 8191 (8K) or 65535 (64K)
+				 */
+				match_bits = big ? 14 : 11; /* 11 or 14 bits of value at most */
+				while (true) {
+					walker <<= 1;
+					if (--walker_len == 0) {
+						if (i >= clen)
+							throw error();
+						walker = (data.get(i++) & 0xff) << 24;
+						walker_len = 8;
+					}
+					if (walker >= 0)
+						break;
+					if (--match_bits == 0)
+						throw error();
+				}
+				match_len = (big ? 16 : 13) - match_bits;
+				walker <<= 1;
+				if (--walker_len < match_len) {
+					for (; walker_len < match_len; walker_len += 8) {
+						if (i >= clen)
+							throw error();
+						walker |= (data.get(i++) & 0xff) << (24 - walker_len);
+					}
+				}
+
+				match_bits = match_len;
+				match_len = ((walker >>> (32 - match_bits)) & (~(-1 << match_bits)))
+						| (1 << match_bits);
+				walker <<= match_bits;
+				walker_len -= match_bits;
+			}
+			if (next_offset + match_len >= RDP_MPPC_DICT_SIZE)
+				throw error();
+
+			/* source and destination may overlap, copy byte by byte */
+			k = (next_offset - match_off) & mask;
+			do {
+				dict[next_offset++] = dict[k];
+				k = (k + 1) & mask;
+			} while (--match_len != 0);
+		} while (true);
+
+		/* store history offset */
+		this.roff = next_offset;
+
+		rlen = next_offset - old_offset;
+		return old_offset;
+	}
+
+	private static RdesktopException error() {
+		return new RdesktopException("Error while decompressing packet");
+	}
+}
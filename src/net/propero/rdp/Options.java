@@ -7,7 +7,7 @@
  *
  * Copyright (c) 2005 Propero Limited
  *
- * Purpose: Global static storage of user-definable options
+ * Purpose: Storage of user-definable options for a session
  * 
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -31,6 +31,11 @@ package net.propero.rdp;
 
 import java.awt.image.DirectColorModel;
 
+/**
+ * Configuration of a single session. Each connection is given its own
+ * instance, through its RdpContext, so that several sessions with
+ * different settings can run in one JVM.
+ */
 public class Options {
 
 	public static final int DIRECT_BITMAP_DECOMPRESSION = 0;
@@ -39,72 +44,72 @@ public class Options {
 
 	public static final int INTEGER_BITMAP_DECOMPRESSION = 2;
 
-	public static int bitmap_decompression_store = INTEGER_BITMAP_DECOMPRESSION;
+	public int bitmap_decompression_store = INTEGER_BITMAP_DECOMPRESSION;
 
 	// disables bandwidth saving tcp packets
-	public static boolean low_latency = true;
+	public boolean low_latency = true;
 
-	public static int keylayout = 0x409; // UK by default
+	public int keylayout = 0x409; // UK by default
 
-	public static String username = "Administrator"; // -u username
+	public String username = "Administrator"; // -u username
 
-	public static String domain = ""; // -d domain
+	public String domain = ""; // -d domain
 
-	public static String password = ""; // -p password
+	public String password = ""; // -p password
 
-	public static String hostname = ""; // -n hostname
+	public String hostname = ""; // -n hostname
 
-	public static String command = ""; // -s command
+	public String command = ""; // -s command
 
-	public static String directory = ""; // -d directory
+	public String directory = ""; // -d directory
 
-	public static String windowTitle = "properJavaRDP"; // -T windowTitle
+	public String windowTitle = "properJavaRDP"; // -T windowTitle
 
-	public static int width = 1024; // -g widthxheight
+	public int width = 1024; // -g widthxheight
 
-	public static int height = 768; // -g widthxheight
+	public int height = 768; // -g widthxheight
 
-	public static int port = 3389; // -t port
+	public int port = 3389; // -t port
 
-	public static boolean fullscreen = false;
+	public boolean fullscreen = false;
 
-	public static boolean built_in_licence = false;
+	public boolean built_in_licence = false;
 
-	public static boolean load_licence = false;
+	public boolean load_licence = false;
 
-	public static boolean save_licence = false;
+	public boolean save_licence = false;
 
-	public static String licence_path = "./";
+	public String licence_path = "./";
 
-	public static boolean debug_keyboard = false;
+	public boolean debug_keyboard = false;
 
-	public static boolean debug_hexdump = false;
+	public boolean debug_hexdump = false;
 
-	public static boolean enable_menu = true;
+	public boolean enable_menu = true;
 
 	// public static boolean paste_hack = true;
 
-	public static boolean altkey_quiet = false;
+	public boolean altkey_quiet = false;
 
-	public static boolean caps_sends_up_and_down = true;
+	public boolean caps_sends_up_and_down = true;
 
-	public static boolean remap_hash = true;
+	public boolean remap_hash = true;
 
-	public static boolean useLockingKeyState = true;
+	public boolean useLockingKeyState = true;
 
-	public static boolean use_rdp5 = true;
+	public boolean use_rdp5 = true;
 
-	public static int server_bpp = 24; // Bits per pixel
+	public int server_bpp = 24; // Bits per pixel
 
-	public static int Bpp = (server_bpp + 7) / 8; // Bytes per pixel
+	public int Bpp = (server_bpp + 7) / 8; // Bytes per pixel
 
 	// Correction value to ensure only the relevant number of bytes are used for
 	// a pixel
-	public static int bpp_mask = 0xFFFFFF >> 8 * (3 - Bpp);
+	public int bpp_mask = 0xFFFFFF >> 8 * (3 - Bpp);
 
-	public static int imgCount = 0;
+	public int imgCount = 0;
 
-	public static DirectColorModel colour_model = new DirectColorModel(24,
+	public DirectColorModel colour_model = new DirectColorModel(24,
 			0xFF0000, 0x00FF00, 0x0000FF);
 
 	/**
@@ -113,9 +118,9 @@ public class Options {
 	 * @param server_bpp
 	 *            New bpp value
 	 */
-	public static void set_bpp(int server_bpp) {
-		Options.server_bpp = server_bpp;
-		Options.Bpp = (server_bpp + 7) / 8;
+	public void set_bpp(int server_bpp) {
+		this.server_bpp = server_bpp;
+		this.Bpp = (server_bpp + 7) / 8;
 		if (server_bpp == 8)
 			bpp_mask = 0xFF;
 		else
@@ -124,47 +129,73 @@ public class Options {
 		colour_model = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
 	}
 
-	public static int server_rdp_version;
+	public int server_rdp_version;
+
+	public int win_button_size = 0; /* If zero, disable single app mode */
+
+	public boolean bitmap_compression = true;
+
+	public boolean compression = false; // -z bulk (MPPC) compression
+
+	public boolean fastpath_input = true; // if the server offers it
+
+	public int input_coalesce_ms = 10; // mouse move batching, 0 = off
+
+	public int render_queue = 256; // updates queued for drawing, 0 = draw inline
+
+	public int max_fps = 60; // screen repaints per second, 0 = after every update
+
+	public boolean parallel_bitmaps = true; // decode bitmap updates on all cores
+
+	public String bitmap_capture_dir = null; // save compressed tiles for benchmarks
+
+	public int bitmap_cache_mb = 16; // decoded bitmaps kept in memory, 0 = cells only
+
+	public int offscreen_cache_kb = 7680; // offscreen surfaces offered to the server, 0 = none
+
+	public int offscreen_cache_entries = 500; // most offscreen surfaces at once
+
+	public int channel_queue = 64; // channel messages queued per worker, 0 = process inline
 
-	public static int win_button_size = 0; /* If zero, disable single app mode */
+	public int sound_buffer_ms = 150; // audio gathered before a stream plays
 
-	public static boolean bitmap_compression = true;
+	public String sound_file = null; // write audio to this file as raw PCM
 
-	public static boolean persistent_bitmap_caching = false;
+	public boolean persistent_bitmap_caching = false;
 
-	public static boolean bitmap_caching = false;
+	public boolean bitmap_caching = false;
 
-	public static boolean precache_bitmaps = false;
+	public boolean precache_bitmaps = false;
 
-	public static boolean polygon_ellipse_orders = false;
+	public boolean polygon_ellipse_orders = false;
 
-	public static boolean sendmotion = true;
+	public boolean sendmotion = true;
 
-	public static boolean orders = true;
+	public boolean orders = true;
 
-	public static boolean encryption = true;
+	public boolean encryption = true;
 
-	public static boolean packet_encryption = true;
+	public boolean packet_encryption = true;
 
-	public static boolean desktop_save = true;
+	public boolean desktop_save = true;
 
-	public static boolean grab_keyboard = true;
+	public boolean grab_keyboard = true;
 
-	public static boolean hide_decorations = false;
+	public boolean hide_decorations = false;
 
-	public static boolean console_session = false;
+	public boolean console_session = false;
 
-	public static boolean owncolmap;
+	public boolean owncolmap;
 
-	public static boolean use_ssl = false;
+	public boolean use_ssl = false;
 
-	public static boolean map_clipboard = true;
+	public boolean map_clipboard = true;
 
-	public static int rdp5_performanceflags = Rdp.RDP5_NO_CURSOR_SHADOW
+	public int rdp5_performanceflags = Rdp.RDP5_NO_CURSOR_SHADOW
 			| Rdp.RDP5_NO_CURSORSETTINGS | Rdp.RDP5_NO_FULLWINDOWDRAG
 			| Rdp.RDP5_NO_MENUANIMATIONS /*| Rdp.RDP5_NO_THEMING*/
 			| Rdp.RDP5_NO_WALLPAPER;
 
-	public static boolean save_graphics = false;
+	public boolean save_graphics = false;
 
 }
@@ -53,9 +53,19 @@ public class Orders {
 
 	private OrderState os = null;
 
-	private RdesktopCanvas surface = null;
+	/* surface drawn on by orders, the screen or an offscreen surface */
+	private RdesktopSurface surface = null;
 
-	public static Cache cache = null;
+	private RdesktopSurface screen = null;
+
+	/* drawn on in place of an offscreen surface that could not be created */
+	private RdesktopSurface discard = null;
+
+	private Cache cache = null;
+
+	private final RdpContext context;
+
+	private final Options options;
 
 	/* RDP_BMPCACHE2_ORDER */
 	private static final int ID_MASK = 0x0007;
@@ -126,6 +136,19 @@ public class Orders {
 
 	private static final int RDP_ORDER_BMPCACHE2 = 5;
 
+	/* alternate secondary order types */
+	private static final int RDP_ORDER_SWITCH_SURFACE = 0x00;
+
+	private static final int RDP_ORDER_CREATE_OFFSCR_BITMAP = 0x01;
+
+	private static final int RDP_ORDER_FRAME_MARKER = 0x0d;
+
+	private static final int SCREEN_BITMAP_SURFACE = 0xffff;
+
+	private static final int OFFSCR_ID_MASK = 0x7fff;
+
+	private static final int OFFSCR_DELETE_LIST = 0x8000;
+
 	private static final int MIX_TRANSPARENT = 0;
 
 	private static final int MIX_OPAQUE = 1;
@@ -134,13 +157,22 @@ public class Orders {
 
 	private static final int TEXT2_IMPLICIT_X = 0x20;
 
-	public Orders() {
+	/**
+	 * @param context
+	 *            Session whose orders are processed
+	 */
+	public Orders(RdpContext context) {
+		this.context = context;
+		this.options = context.options;
 		os = new OrderState();
 	}
 
 	public void resetOrderState() {
 		this.os.reset();
 		os.setOrderType(RDP_ORDER_PATBLT);
+		surface = screen;
+		if (cache != null)
+			cache.clearOffscreen();
 		return;
 	}
 
@@ -194,6 +226,14 @@ public class Orders {
 
 			order_flags = data.get8();
 
+			if ((order_flags & RDP_ORDER_STANDARD) == 0
+					&& (order_flags & RDP_ORDER_SECONDARY) != 0) {
+				if (!this.processAltSecondaryOrder(data, order_flags >> 2))
+					return;
+				processed++;
+				continue;
+			}
+
 			if ((order_flags & RDP_ORDER_STANDARD) == 0) {
 				throw new OrderException("Order parsing failed!");
 			}
@@ -310,26 +350,126 @@ public class Orders {
 		}
 	}
 
-	private int ROP2_S(int rop3) {
-		return (rop3 & 0x0f);
-	}
-
-	private int ROP2_P(int rop3) {
-		return ((rop3 & 0x3) | ((rop3 & 0x30) >> 2));
-	}
-
 	/**
-	 * Register an RdesktopCanvas with this Orders object. This surface is where
-	 * all drawing orders will be carried out.
+	 * Register an RdesktopSurface with this Orders object. This surface is
+	 * where all drawing orders will be carried out.
 	 * 
 	 * @param surface
 	 *            Surface to register
 	 */
-	public void registerDrawingSurface(RdesktopCanvas surface) {
+	public void registerDrawingSurface(RdesktopSurface surface) {
 		this.surface = surface;
+		this.screen = surface;
 		surface.registerCache(cache);
 	}
 
+	/**
+	 * Set the colour palette of the screen and of every offscreen surface
+	 * 
+	 * @param cm
+	 *            Colour model used by the session
+	 */
+	public void registerPalette(IndexColorModel cm) {
+		screen.registerPalette(cm);
+		if (discard != null)
+			discard.registerPalette(cm);
+		cache.registerOffscreenPalette(cm);
+	}
+
+	/**
+	 * Handle alternate secondary orders, which manage offscreen surfaces.
+	 * These carry no length, so an unknown order ends processing of the
+	 * update.
+	 * 
+	 * @param data
+	 *            Packet containing the order, after its control flags
+	 * @param type
+	 *            Order type, from the control flags
+	 * @return False if the order type is not known
+	 * @throws RdesktopException
+	 */
+	private boolean processAltSecondaryOrder(RdpPacket_Localised data,
+			int type) throws RdesktopException {
+		switch (type) {
+		case RDP_ORDER_SWITCH_SURFACE:
+			logger.debug("SwitchSurface Order");
+			this.processSwitchSurface(data);
+			return true;
+
+		case RDP_ORDER_CREATE_OFFSCR_BITMAP:
+			logger.debug("CreateOffscreenBitmap Order");
+			this.processCreateOffscreenBitmap(data);
+			return true;
+
+		case RDP_ORDER_FRAME_MARKER:
+			data.incrementPosition(4); // frame begin or end
+			return true;
+
+		default:
+			logger.warn("Unimplemented alternate 2ry Order type " + type);
+			return false;
+		}
+	}
+
+	/**
+	 * Create an offscreen surface, first deleting any listed by the server
+	 * 
+	 * @param data
+	 *            Packet containing create offscreen bitmap order
+	 */
+	private void processCreateOffscreenBitmap(RdpPacket_Localised data) {
+		int flags = data.getLittleEndian16();
+		int id = flags & OFFSCR_ID_MASK;
+		int cx = data.getLittleEndian16();
+		int cy = data.getLittleEndian16();
+
+		if ((flags & OFFSCR_DELETE_LIST) != 0) {
+			int count = data.getLittleEndian16();
+			for (int i = 0; i < count; i++) {
+				cache.removeOffscreen(data.getLittleEndian16());
+			}
+		}
+
+		try {
+			cache.putOffscreen(id, screen.createOffscreen(cx, cy));
+		} catch (RdesktopException e) {
+			cache.removeOffscreen(id);
+			logger.warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Direct the following drawing orders to the screen or an offscreen
+	 * surface
+	 * 
+	 * @param data
+	 *            Packet containing switch surface order
+	 */
+	private void processSwitchSurface(RdpPacket_Localised data) {
+		int id = data.getLittleEndian16() & 0xffff;
+
+		if (id == SCREEN_BITMAP_SURFACE) {
+			surface = screen;
+			return;
+		}
+
+		surface = getOffscreen(id);
+		if (surface == null) {
+			logger.warn("Switch to unknown offscreen surface " + id);
+			if (discard == null)
+				discard = screen.createOffscreen(1, 1);
+			surface = discard;
+		}
+	}
+
+	private RdesktopSurface getOffscreen(int id) {
+		try {
+			return cache.getOffscreen(id);
+		} catch (RdesktopException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Handle secondary, or caching, orders
 	 * 
@@ -427,7 +567,7 @@ public class Orders {
 		}
 
 		cache.putBitmap(cache_id, cache_idx, new Bitmap(Bitmap.convertImage(
-				inverted, Bpp), width, height, 0, 0), 0);
+				inverted, bpp), width, height, 0, 0), 0);
 	}
 
 	/**
@@ -497,7 +637,7 @@ public class Orders {
 		 * final_size
 		 */
 
-		if (Options.use_rdp5) {
+		if (options.use_rdp5) {
 
 			/* Begin compressedBitmapData */
 			pad2 = data.getLittleEndian16(); // in_uint16_le(s, pad2); /* pad
@@ -528,11 +668,11 @@ public class Orders {
 			byte[] pixel = Bitmap.decompress(width, height, size, data, Bpp);
 			if (pixel != null)
 				cache.putBitmap(cache_id, cache_idx, new Bitmap(Bitmap
-						.convertImage(pixel, Bpp), width, height, 0, 0), 0);
+						.convertImage(pixel, bpp), width, height, 0, 0), 0);
 			else
 				logger.warn("Failed to decompress bitmap");
 		} else {
-			int[] pixel = Bitmap.decompressInt(width, height, size, data, Bpp);
+			int[] pixel = Bitmap.decompressInt(width, height, size, data, bpp);
 			if (pixel != null)
 				cache.putBitmap(cache_id, cache_idx, new Bitmap(pixel, width,
 						height, 0, 0), 0);
@@ -560,17 +700,19 @@ public class Orders {
 			boolean compressed) throws RdesktopException, IOException {
 		Bitmap bitmap;
 		int y;
-		int cache_id, cache_idx_low, width, height, Bpp;
+		int cache_id, cache_idx_low, width, height, bpp, Bpp;
 		int cache_idx, bufsize;
 		byte[] bmpdata, bitmap_id;
 
 		bitmap_id = new byte[8]; /* prevent compiler warning */
 		cache_id = flags & ID_MASK;
 		Bpp = ((flags & MODE_MASK) >> MODE_SHIFT) - 2;
-		Bpp = Options.Bpp;
+		Bpp = options.Bpp;
+		bpp = options.server_bpp;
 		if ((flags & PERSIST) != 0) {
 			bitmap_id = new byte[8];
 			data.copyToByteArray(bitmap_id, 0, data.getPosition(), 8);
+			data.incrementPosition(8);
 		}
 
 		if ((flags & SQUARE) != 0) {
@@ -602,10 +744,10 @@ public class Orders {
 		if (compressed) {
 			if (Bpp == 1)
 				bmpdataInt = Bitmap.convertImage(Bitmap.decompress(width,
-						height, bufsize, data, Bpp), Bpp);
+						height, bufsize, data, Bpp), bpp);
 			else
 				bmpdataInt = Bitmap.decompressInt(width, height, bufsize, data,
-						Bpp);
+						bpp);
 
 			if (bmpdataInt == null) {
 				logger.debug("Failed to decompress bitmap data");
@@ -631,7 +773,7 @@ public class Orders {
 			// *
 			// Bpp);
 
-			bitmap = new Bitmap(Bitmap.convertImage(bmpdata, Bpp), width,
+			bitmap = new Bitmap(Bitmap.convertImage(bmpdata, bpp), width,
 					height, 0, 0);
 		}
 
@@ -641,8 +783,8 @@ public class Orders {
 			cache.putBitmap(cache_id, cache_idx, bitmap, 0);
 			// cache_put_bitmap(cache_id, cache_idx, bitmap, 0);
 			if ((flags & PERSIST) != 0)
-				PstCache.pstcache_put_bitmap(cache_id, cache_idx, bitmap_id,
-						width, height, width * height * Bpp, bmpdata);
+				context.pstcache.pstcache_put_bitmap(cache_id, cache_idx,
+						bitmap_id, bitmap);
 		} else {
 			logger.debug("process_bmpcache2: ui_create_bitmap failed");
 		}
@@ -711,7 +853,7 @@ public class Orders {
 		if ((present & 0x08) != 0)
 			destblt.setCY(setCoordinate(data, destblt.getCY(), delta));
 		if ((present & 0x10) != 0)
-			destblt.setOpcode(ROP2_S(data.get8()));
+			destblt.setOpcode(data.get8());
 		// if(logger.isInfoEnabled())
 		// logger.info("opcode="+destblt.getOpcode());
 		surface.drawDestBltOrder(destblt);
@@ -767,7 +909,7 @@ public class Orders {
 		if ((present & 0x08) != 0)
 			patblt.setCY(setCoordinate(data, patblt.getCY(), delta));
 		if ((present & 0x10) != 0)
-			patblt.setOpcode(ROP2_P(data.get8()));
+			patblt.setOpcode(data.get8());
 		if ((present & 0x20) != 0)
 			patblt.setBackgroundColor(setColor(data));
 		if ((present & 0x40) != 0)
@@ -801,7 +943,7 @@ public class Orders {
 		if ((present & 0x08) != 0)
 			screenblt.setCY(setCoordinate(data, screenblt.getCY(), delta));
 		if ((present & 0x10) != 0)
-			screenblt.setOpcode(ROP2_S(data.get8()));
+			screenblt.setOpcode(data.get8());
 		if ((present & 0x20) != 0)
 			screenblt.setSrcX(setCoordinate(data, screenblt.getSrcX(), delta));
 		if ((present & 0x40) != 0)
@@ -982,7 +1124,7 @@ public class Orders {
 		if ((present & 0x10) != 0)
 			memblt.setCY(setCoordinate(data, memblt.getCY(), delta));
 		if ((present & 0x20) != 0)
-			memblt.setOpcode(ROP2_S(data.get8()));
+			memblt.setOpcode(data.get8());
 		if ((present & 0x40) != 0)
 			memblt.setSrcX(setCoordinate(data, memblt.getSrcX(), delta));
 		if ((present & 0x80) != 0)
@@ -1024,7 +1166,7 @@ public class Orders {
 		if ((present & 0x10) != 0)
 			triblt.setCY(setCoordinate(data, triblt.getCY(), delta));
 		if ((present & 0x20) != 0)
-			triblt.setOpcode(ROP2_S(data.get8()));
+			triblt.setOpcode(data.get8());
 		if ((present & 0x40) != 0)
 			triblt.setSrcX(setCoordinate(data, triblt.getSrcX(), delta));
 		if ((present & 0x80) != 0)
@@ -1315,10 +1457,10 @@ public class Orders {
 	 * Set current cache
 	 * 
 	 * @param cache
-	 *            Cache object to set as current global cache
+	 *            Cache object to set as current cache
 	 */
 	public void registerCache(Cache cache) {
-		Orders.cache = cache;
+		this.cache = cache;
 	}
 
 	/**
@@ -1374,13 +1516,11 @@ public class Orders {
 	private void drawText(Text2Order text2, int clipcx, int clipcy, int boxcx,
 			int boxcy) throws RdesktopException {
 		byte[] text = text2.getText();
-		DataBlob entry = null;
-		Glyph glyph = null;
-		int offset = 0;
-		int ptext = 0;
 		int length = text2.getLength();
-		int x = text2.getX();
-		int y = text2.getY();
+		int font = text2.getFont();
+		int flags = text2.getFlags();
+		int[] pos = { text2.getX(), text2.getY() };
+		int start = 0; // first entry not yet part of a cached fragment
 
 //		if (boxcx > 1) {
 //			surface.fillRectangle(text2.getBoxLeft(), text2.getBoxTop(), boxcx,
@@ -1390,46 +1530,31 @@ public class Orders {
 //					clipcx, clipcy, text2.getBackgroundColor());
 //		}
 
-		
-//		System.out.println("X: " + text2.getX() + " Y: " + text2.getY() + " Left Clip: " + 
-//		text2.getClipLeft() + " Top Clip: " + text2.getClipTop() + "Right Clip: " + 
-//        text2.getClipRight() + " Bottom Clip: " +
-//		text2.getClipBottom() + " Left Box: " + text2.getBoxLeft() + " TopBox: " + 
-//        text2.getBoxTop() + " Right Box: " + text2.getBoxRight() + "Bottom Box: " + 
-//		text2.getBoxBottom() + " Foreground Color: " +
-//		text2.getForegroundColor() + " Background Color: " +
-//		text2.getBackgroundColor() + " Font: " + text2.getFont() + " Flags: " +
-//		text2.getFlags() + " Mixmode: " + text2.getMixmode() + " Unknown: " +
-//		text2.getUnknown() + " Length: " + text2.getLength());
-		
 		for (int i = 0; i < length;) {
-			switch (text[ptext + i] & 0x000000ff) {
+			switch (text[i] & 0x000000ff) {
 			case (0xff):
+				/* cache the entries since the last fragment */
 				if (i + 2 < length) {
-					byte[] data = new byte[text[ptext + i + 2] & 0x000000ff];
-					System.arraycopy(text, ptext, data, 0,
-							text[ptext + i + 2] & 0x000000ff);
-					DataBlob db = new DataBlob(
-							text[ptext + i + 2] & 0x000000ff, data);
-					cache.putText(text[ptext + i + 1] & 0x000000ff, db);
+					int size = text[i + 2] & 0x000000ff;
+					byte[] data = new byte[size];
+					System.arraycopy(text, start, data, 0, size);
+					cache.putText(text[i + 1] & 0x000000ff, new TextFragment(
+							size, data));
 				} else {
 					throw new RdesktopException();
 				}
-				length -= i + 3;
-				ptext = i + 3;
-				i = 0;
+				i += 3;
+				start = i;
 				break;
 
 			case (0xfe):
-				entry = cache.getText(text[ptext + i + 1] & 0x000000ff);
-				if (entry != null) {
-					if ((entry.getData()[1] == 0)
-							&& ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0)) {
-						if ((text2.getFlags() & 0x04) != 0) {
-							y += text[ptext + i + 2] & 0x000000ff;
-						} else {
-							x += text[ptext + i + 2] & 0x000000ff;
-						}
+				TextFragment entry = cache.getText(text[i + 1] & 0x000000ff);
+				if ((entry.getData()[1] == 0)
+						&& ((flags & TEXT2_IMPLICIT_X) == 0) && (i + 2 < length)) {
+					if ((flags & TEXT2_VERTICAL) != 0) {
+						pos[1] += text[i + 2] & 0x000000ff;
+					} else {
+						pos[0] += text[i + 2] & 0x000000ff;
 					}
 				}
 				if (i + 2 < length) {
@@ -1437,103 +1562,96 @@ public class Orders {
 				} else {
 					i += 2;
 				}
-				length -= i;
-				ptext = i;
-				i = 0;
-				// break;
-
-				byte[] data = entry.getData();
-				for (int j = 0; j < entry.getSize(); j++) {
-				    int character = data[j] & 0x000000ff;
-					glyph = cache.getFont(text2.getFont(), character);
-					if ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0) {
-						offset = data[++j] & 0x000000ff;
-						if ((offset & 0x80) != 0) {
-							if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-								int var = this
-										.twosComplement16((data[j + 1] & 0xff)
-												| ((data[j + 2] & 0xff) << 8));
-								y += var;
-								j += 2;
-							} else {
-								int var = this
-										.twosComplement16((data[j + 1] & 0xff)
-												| ((data[j + 2] & 0xff) << 8));
-								x += var;
-								j += 2;
-							}
-						} else {
-							if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-								y += offset;
-							} else {
-								x += offset;
-							}
-						}
-					}
-					if (glyph != null) {
-					    int xx = x + (short) glyph.getOffset(), yy = y + (short) glyph.getBaseLine();
-//					    System.out.print(String.format("font=%d, character=%d, x=%d,y=%d,x1=%d,y1=%d \n", text2.getFont(), character, x, y, xx, yy));
-						// if((text2.getFlags() & TEXT2_VERTICAL) != 0)
-						// logger.info("Drawing glyph: (" + (x +
-						// (short)glyph.getOffset()) + ", " + (y +
-						// (short)glyph.getBaseLine()) + ")" );
-						surface.drawGlyph(text2.getMixmode(), xx, yy,
-								glyph.getWidth(), glyph.getHeight(), glyph
-										.getFontData(), text2
-										.getBackgroundColor(), text2
-										.getForegroundColor());
-
-						if ((text2.getFlags() & TEXT2_IMPLICIT_X) != 0) {
-							x += glyph.getWidth();
-						}
-					}
-				}
+				start = i;
+
+				this.layoutFragment(entry, font, flags);
+				surface.drawGlyphs(text2.getMixmode(), pos[0], pos[1], entry
+						.getGlyphs(), entry.getX(), entry.getY(), entry
+						.getCount(), text2.getBackgroundColor(), text2
+						.getForegroundColor());
+				pos[0] += entry.getAdvanceX();
+				pos[1] += entry.getAdvanceY();
 				break;
 
 			default:
-				glyph = cache.getFont(text2.getFont(),
-						text[ptext + i] & 0x000000ff);
-				if ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0) {
-					offset = text[ptext + (++i)] & 0x000000ff;
-					if ((offset & 0x80) != 0) {
-						if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-							// logger.info("y +=" + (text[ptext +
-							// (i+1)]&0x000000ff) + " | " + ((text[ptext +
-							// (i+2)]&0x000000ff) << 8));
-							int var = this
-									.twosComplement16((text[ptext + i + 1] & 0x000000ff)
-											| ((text[ptext + i + 2] & 0x000000ff) << 8));
-							y += var;
-							i += 2;
-						} else {
-							int var = this
-									.twosComplement16((text[ptext + i + 1] & 0x000000ff)
-											| ((text[ptext + i + 2] & 0x000000ff) << 8));
-							x += var;
-							i += 2;
-						}
-					} else {
-						if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-							y += offset;
-						} else {
-							x += offset;
-						}
-					}
-				}
-				if (glyph != null) {
-					surface.drawGlyph(text2.getMixmode(), x
-							+ (short) glyph.getOffset(), y
-							+ (short) glyph.getBaseLine(), glyph.getWidth(),
-							glyph.getHeight(), glyph.getFontData(), text2
-									.getBackgroundColor(), text2
-									.getForegroundColor());
-
-					if ((text2.getFlags() & TEXT2_IMPLICIT_X) != 0)
-						x += glyph.getWidth();
-				}
-				i++;
+				Glyph glyph = cache.getFont(font, text[i] & 0x000000ff);
+				i = this.nextGlyph(text, i, flags, pos);
+				surface.drawGlyph(text2.getMixmode(), pos[0]
+						+ (short) glyph.getOffset(), pos[1]
+						+ (short) glyph.getBaseLine(), glyph, text2
+						.getBackgroundColor(), text2.getForegroundColor());
+
+				if ((flags & TEXT2_IMPLICIT_X) != 0)
+					pos[0] += glyph.getWidth();
 				break;
 			}
 		}
 	}
+
+	/**
+	 * Read the glyph entry at i, a character followed, unless glyphs are
+	 * spaced by their width, by its distance from the previous glyph
+	 * 
+	 * @param text
+	 *            Glyph entries
+	 * @param i
+	 *            Index of the entry's character
+	 * @param flags
+	 *            Flags of the text2 order
+	 * @param pos
+	 *            Drawing position, moved by the distance
+	 * @return Index of the next entry
+	 */
+	private int nextGlyph(byte[] text, int i, int flags, int[] pos) {
+		if ((flags & TEXT2_IMPLICIT_X) == 0) {
+			int offset = text[++i] & 0x000000ff;
+			if ((offset & 0x80) != 0) {
+				offset = this.twosComplement16((text[i + 1] & 0x000000ff)
+						| ((text[i + 2] & 0x000000ff) << 8));
+				i += 2;
+			}
+			if ((flags & TEXT2_VERTICAL) != 0) {
+				pos[1] += offset;
+			} else {
+				pos[0] += offset;
+			}
+		}
+		return i + 1;
+	}
+
+	/**
+	 * Work out where each glyph of a cached fragment is drawn, unless this
+	 * was done for the same font and flags and the font has not changed
+	 * since
+	 * 
+	 * @param entry
+	 *            Fragment to lay out
+	 * @param font
+	 *            Font of the text2 order
+	 * @param flags
+	 *            Flags of the text2 order
+	 * @throws RdesktopException
+	 */
+	private void layoutFragment(TextFragment entry, int font, int flags)
+			throws RdesktopException {
+		flags &= TEXT2_IMPLICIT_X | TEXT2_VERTICAL;
+		int generation = cache.getFontGeneration(font);
+		if (entry.isLaidOut(font, flags, generation))
+			return;
+
+		byte[] data = entry.getData();
+		int[] pos = { 0, 0 };
+		entry.startLayout(flags, generation);
+		for (int j = 0; j < entry.getSize();) {
+			Glyph glyph = cache.getFont(font, data[j] & 0x000000ff);
+			j = this.nextGlyph(data, j, flags, pos);
+			entry.addGlyph(glyph, pos[0] + (short) glyph.getOffset(), pos[1]
+					+ (short) glyph.getBaseLine());
+
+			if ((flags & TEXT2_IMPLICIT_X) != 0)
+				pos[0] += glyph.getWidth();
+		}
+		entry.endLayout(font, pos[0], pos[1]);
+	}
+
 }
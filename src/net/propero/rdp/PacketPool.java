@@ -0,0 +1,126 @@
+/* PacketPool.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Size-classed pool of reusable packet buffers
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of packets grouped into power-of-two size classes. Packets are taken
+ * with acquire() and handed back with release(); a released packet must not
+ * be touched again by the caller. Packets larger than the biggest size class
+ * are allocated normally and simply dropped on release.
+ */
+public class PacketPool {
+	static Logger logger = Logger.getLogger(PacketPool.class);
+
+	/* smallest size class is 256 bytes */
+	private static final int MIN_SHIFT = 8;
+
+	/*
+	 * largest size class is 128K, enough for any single PDU and for a 64K
+	 * drive read with its completion header
+	 */
+	private static final int MAX_SHIFT = 17;
+
+	/* idle packets kept per size class */
+	private static final int MAX_IDLE = 16;
+
+	private static final int NUM_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	private static final RdpPacket_Localised[][] idle = new RdpPacket_Localised[NUM_CLASSES][MAX_IDLE];
+
+	private static final int[] num_idle = new int[NUM_CLASSES];
+
+	/**
+	 * Obtain a packet able to hold at least the requested number of bytes.
+	 * The packet is zeroed up to length, positioned at 0 and has no end mark,
+	 * exactly as a newly constructed packet.
+	 *
+	 * @param length
+	 *            Required packet size
+	 * @return Packet of size length
+	 */
+	public static RdpPacket_Localised acquire(int length) {
+		int sizeClass = sizeClass(length);
+		if (sizeClass < 0)
+			return new RdpPacket_Localised(length);
+
+		RdpPacket_Localised packet = null;
+		synchronized (idle[sizeClass]) {
+			if (num_idle[sizeClass] > 0) {
+				packet = idle[sizeClass][--num_idle[sizeClass]];
+				idle[sizeClass][num_idle[sizeClass]] = null;
+			}
+		}
+
+		if (packet == null) {
+			packet = new RdpPacket_Localised(1 << (sizeClass + MIN_SHIFT));
+			packet.sizeClass = sizeClass;
+		}
+		packet.idle = false;
+		packet.recycle(length);
+		return packet;
+	}
+
+	/**
+	 * Return a packet obtained from acquire() to the pool. Packets that were
+	 * not allocated by the pool, and null, are ignored.
+	 *
+	 * @param packet
+	 *            Packet no longer in use
+	 */
+	public static void release(RdpPacket_Localised packet) {
+		if (packet == null || packet.sizeClass < 0)
+			return;
+
+		int sizeClass = packet.sizeClass;
+		synchronized (idle[sizeClass]) {
+			if (packet.idle) {
+				logger.warn("Packet released twice");
+				return;
+			}
+			packet.idle = true;
+			if (num_idle[sizeClass] < MAX_IDLE)
+				idle[sizeClass][num_idle[sizeClass]++] = packet;
+		}
+	}
+
+	/**
+	 * Find the size class holding packets of the given length
+	 *
+	 * @param length
+	 *            Required packet size
+	 * @return Index of size class, or -1 if the length is too large to pool
+	 */
+	private static int sizeClass(int length) {
+		int sizeClass = 0;
+		while ((1 << (sizeClass + MIN_SHIFT)) < length) {
+			if (++sizeClass >= NUM_CLASSES)
+				return -1;
+		}
+		return sizeClass;
+	}
+}
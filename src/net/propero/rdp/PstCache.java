@@ -31,142 +31,206 @@
 package net.propero.rdp;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Persistent bitmap cache. Each persistent bitmap cache is a file of
+ * BMPCACHE2_NUM_PSTCELLS fixed size cells, mapped into memory, so that a
+ * cell is read or updated in place without seeking or rewriting the file.
+ * A cell is a header, holding the server's key for the bitmap, its size
+ * and the stamp of its last use, followed by the bitmap's decoded pixels:
+ * one byte each at 8bpp, where they are palette indices, and three bytes
+ * of RGB otherwise.
+ */
 public class PstCache {
 
 	protected static Logger logger = Logger.getLogger(Rdp.class);
 
 	public static final int MAX_CELL_SIZE = 0x1000; /* pixels */
 
-	protected static boolean IS_PERSISTENT(int id) {
-		return (id < 8 && g_pstcache_fd[id] != null);
+	/* cell header: bitmap key (8 bytes), width, height (1 byte each),
+	 * length of pixel data (2 bytes), stamp (4 bytes), little-endian */
+	private static final int CELLHEADER_SIZE = 16;
+
+	private static final int CELL_WIDTH = 8;
+
+	private static final int CELL_HEIGHT = 9;
+
+	private static final int CELL_LENGTH = 10;
+
+	private static final int CELL_STAMP = 12;
+
+	protected boolean IS_PERSISTENT(int id) {
+		return (id < 8 && g_pstcache_map[id] != null);
 	}
 
-	static int g_stamp;
+	int g_stamp;
 
-	static File[] g_pstcache_fd = new File[8];
+	private RandomAccessFile[] g_pstcache_fd = new RandomAccessFile[8];
 
-	static int g_pstcache_Bpp;
+	private FileLock[] g_pstcache_lock = new FileLock[8];
 
-	static boolean g_pstcache_enumerated = false;
+	private MappedByteBuffer[] g_pstcache_map = new MappedByteBuffer[8];
 
-	/* Update usage info for a bitmap */
-	protected static void touchBitmap(int cache_id, int cache_idx, int stamp) {
-		logger.info("PstCache.touchBitmap");
-		FileOutputStream fd;
+	/* bytes stored per pixel */
+	int g_pstcache_Bpp;
 
-		if (!IS_PERSISTENT(cache_id) || cache_idx >= Rdp.BMPCACHE2_NUM_PSTCELLS)
-			return;
+	boolean g_pstcache_enumerated = false;
 
-		try {
-			fd = new FileOutputStream(g_pstcache_fd[cache_id]);
+	private final RdpContext context;
 
-			fd.write(toBigEndian32(stamp), 12 + cache_idx
-					* (g_pstcache_Bpp * MAX_CELL_SIZE + CELLHEADER.size()), 4);
-			// rd_lseek_file(fd, 12 + cache_idx * (g_pstcache_Bpp *
-			// MAX_CELL_SIZE + sizeof(CELLHEADER))); // this seems to do nothing
-			// (return 0) in rdesktop
-			// rd_write_file(fd, &stamp, sizeof(stamp)); // same with this
-			// one???
+	private final Options options;
 
-		} catch (IOException e) {
-			return;
-		}
+	/**
+	 * Create the persistent bitmap cache of a session
+	 * 
+	 * @param context
+	 *            Session whose bitmap cache is backed by this one
+	 */
+	public PstCache(RdpContext context) {
+		this.context = context;
+		this.options = context.options;
 	}
 
-	private static byte[] toBigEndian32(int value) {
-		byte[] out = new byte[4];
-		out[0] = (byte) (value & 0xFF);
-		out[1] = (byte) (value & 0xFF00);
-		out[2] = (byte) (value & 0xFF0000);
-		out[3] = (byte) (value & 0xFF000000);
-		return out;
+	private int cellSize() {
+		return CELLHEADER_SIZE + g_pstcache_Bpp * MAX_CELL_SIZE;
 	}
 
-	/* Load a bitmap from the persistent cache */
-	static boolean pstcache_load_bitmap(int cache_id, int cache_idx)
-			throws IOException, RdesktopException {
-		logger.info("PstCache.pstcache_load_bitmap");
-		byte[] celldata = null;
-		FileInputStream fd;
-		// CELLHEADER cellhdr;
-		Bitmap bitmap;
-		byte[] cellHead = null;
-
-		if (!Options.persistent_bitmap_caching)
-			return false;
+	/* Offset of a cell in the cache file, or -1 if the cell is not stored */
+	private int cellOffset(int cache_id, int cache_idx) {
+		if (!IS_PERSISTENT(cache_id) || cache_idx < 0
+				|| cache_idx >= Rdp.BMPCACHE2_NUM_PSTCELLS)
+			return -1;
+		return cache_idx * cellSize();
+	}
 
-		if (!IS_PERSISTENT(cache_id) || cache_idx >= Rdp.BMPCACHE2_NUM_PSTCELLS)
-			return false;
+	/* Update usage info for a bitmap */
+	protected synchronized void touchBitmap(int cache_id, int cache_idx,
+			int stamp) {
+		int offset = cellOffset(cache_id, cache_idx);
+		if (offset < 0)
+			return;
 
-		fd = new FileInputStream(g_pstcache_fd[cache_id]);
-		int offset = cache_idx
-				* (g_pstcache_Bpp * MAX_CELL_SIZE + CELLHEADER.size());
-		fd.read(cellHead, offset, CELLHEADER.size());
-		CELLHEADER c = new CELLHEADER(cellHead);
-		// rd_lseek_file(fd, cache_idx * (g_pstcache_Bpp * MAX_CELL_SIZE +
-		// sizeof(CELLHEADER)));
-		// rd_read_file(fd, &cellhdr, sizeof(CELLHEADER));
-		// celldata = (uint8 *) xmalloc(cellhdr.length);
-		// rd_read_file(fd, celldata, cellhdr.length);
-		celldata = new byte[c.length];
-		fd.read(celldata);
-		logger.debug("Loading bitmap from disk (" + cache_id + ":" + cache_idx
-				+ ")\n");
-
-		bitmap = new Bitmap(celldata, c.width, c.height, 0, 0, Options.Bpp);
-		// bitmap = ui_create_bitmap(cellhdr.width, cellhdr.height, celldata);
-		Orders.cache.putBitmap(cache_id, cache_idx, bitmap, c.stamp);
-
-		// xfree(celldata);
-		return true;
+		MappedByteBuffer map = g_pstcache_map[cache_id];
+		if ((map.get(offset + CELL_WIDTH) & 0xff) != 0)
+			map.putInt(offset + CELL_STAMP, stamp);
 	}
 
-	/* Store a bitmap in the persistent cache */
-	static boolean pstcache_put_bitmap(int cache_id, int cache_idx,
-			byte[] bitmap_id, int width, int height, int length, byte[] data)
-			throws IOException {
-		logger.info("PstCache.pstcache_put_bitmap");
-		FileOutputStream fd;
-		CELLHEADER cellhdr = new CELLHEADER();
+	/**
+	 * Load a bitmap from the persistent cache
+	 * 
+	 * @param cache_id
+	 *            Bitmap cache holding the bitmap
+	 * @param cache_idx
+	 *            Cell of the bitmap
+	 * @return Bitmap, with its usage set to the stamp stored with it, or null
+	 *         if the cell is empty or the cache is not persistent
+	 */
+	synchronized Bitmap pstcache_load_bitmap(int cache_id, int cache_idx) {
+		int offset = cellOffset(cache_id, cache_idx);
+		if (offset < 0)
+			return null;
+
+		MappedByteBuffer map = g_pstcache_map[cache_id];
+		int width = map.get(offset + CELL_WIDTH) & 0xff;
+		int height = map.get(offset + CELL_HEIGHT) & 0xff;
+		int length = map.getShort(offset + CELL_LENGTH) & 0xffff;
+		if (width == 0 || height == 0
+				|| length != width * height * g_pstcache_Bpp)
+			return null;
+
+		logger.debug("Loading bitmap from disk (" + cache_id + ":"
+				+ cache_idx + ")");
+		int[] pixels = new int[width * height];
+		int p = offset + CELLHEADER_SIZE;
+		if (g_pstcache_Bpp == 1) {
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = map.get(p++) & 0xff;
+		} else {
+			for (int i = 0; i < pixels.length; i++, p += 3)
+				pixels[i] = ((map.get(p) & 0xff) << 16)
+						| ((map.get(p + 1) & 0xff) << 8)
+						| (map.get(p + 2) & 0xff);
+		}
+
+		Bitmap bitmap = new Bitmap(pixels, width, height, 0, 0);
+		bitmap.usage = map.getInt(offset + CELL_STAMP);
+		return bitmap;
+	}
 
-		if (!IS_PERSISTENT(cache_id) || cache_idx >= Rdp.BMPCACHE2_NUM_PSTCELLS)
+	/**
+	 * Store a bitmap in the persistent cache
+	 * 
+	 * @param cache_id
+	 *            Bitmap cache holding the bitmap
+	 * @param cache_idx
+	 *            Cell of the bitmap
+	 * @param bitmap_id
+	 *            Server's 8 byte key for the bitmap
+	 * @param bitmap
+	 *            Decoded bitmap
+	 * @return True if the bitmap was stored
+	 */
+	synchronized boolean pstcache_put_bitmap(int cache_id, int cache_idx,
+			byte[] bitmap_id, Bitmap bitmap) {
+		int offset = cellOffset(cache_id, cache_idx);
+		int width = bitmap.getWidth(), height = bitmap.getHeight();
+		if (offset < 0 || width * height > MAX_CELL_SIZE || width > 0xff
+				|| height > 0xff)
 			return false;
 
-		cellhdr.bitmap_id = bitmap_id;
-		// memcpy(cellhdr.bitmap_id, bitmap_id, 8/* sizeof(BITMAP_ID) */);
-
-		cellhdr.width = width;
-		cellhdr.height = height;
-		cellhdr.length = length;
-		cellhdr.stamp = 0;
-
-		fd = new FileOutputStream(g_pstcache_fd[cache_id]);
-		int offset = cache_idx
-				* (Options.Bpp * MAX_CELL_SIZE + CELLHEADER.size());
-		fd.write(cellhdr.toBytes(), offset, CELLHEADER.size());
-		fd.write(data);
-		// rd_lseek_file(fd, cache_idx * (g_pstcache_Bpp * MAX_CELL_SIZE +
-		// sizeof(CELLHEADER)));
-		// rd_write_file(fd, &cellhdr, sizeof(CELLHEADER));
-		// rd_write_file(fd, data, length);
+		MappedByteBuffer map = g_pstcache_map[cache_id];
+		int[] pixels = bitmap.getBitmapData();
+		int p = offset + CELLHEADER_SIZE;
+		if (g_pstcache_Bpp == 1) {
+			for (int i = 0; i < width * height; i++)
+				map.put(p++, (byte) pixels[i]);
+		} else {
+			for (int i = 0; i < width * height; i++, p += 3) {
+				map.put(p, (byte) (pixels[i] >> 16));
+				map.put(p + 1, (byte) (pixels[i] >> 8));
+				map.put(p + 2, (byte) pixels[i]);
+			}
+		}
+
+		for (int i = 0; i < 8; i++)
+			map.put(offset + i, bitmap_id[i]);
+		map.put(offset + CELL_WIDTH, (byte) width);
+		map.put(offset + CELL_HEIGHT, (byte) height);
+		map.putShort(offset + CELL_LENGTH,
+				(short) (width * height * g_pstcache_Bpp));
+		map.putInt(offset + CELL_STAMP, bitmap.usage);
 		return true;
 	}
 
-	/* list the bitmaps from the persistent cache file */
-	static int pstcache_enumerate(int cache_id, int[] idlist)
-			throws IOException, RdesktopException {
-		logger.info("PstCache.pstcache_enumerate");
-		FileInputStream fd;
-		int n, c = 0;
-		CELLHEADER cellhdr = null;
-
-		if (!(Options.bitmap_caching && Options.persistent_bitmap_caching && IS_PERSISTENT(cache_id)))
+	/**
+	 * List the keys of the bitmaps in the persistent cache file, from the
+	 * first cell up to the first empty one. The server disconnects if the
+	 * keys are sent more than once, so this only lists them on the first call
+	 * for each connection.
+	 * 
+	 * @param cache_id
+	 *            Bitmap cache to enumerate
+	 * @param idlist
+	 *            Receives 8 bytes of key for each cell listed, and must hold
+	 *            8 * BMPCACHE2_NUM_PSTCELLS bytes
+	 * @return Number of cells listed
+	 */
+	synchronized int pstcache_enumerate(int cache_id, byte[] idlist)
+			throws RdesktopException {
+		int n;
+
+		if (!(options.bitmap_caching && options.persistent_bitmap_caching && IS_PERSISTENT(cache_id)))
 			return 0;
 
 		/*
@@ -177,65 +241,89 @@ public class PstCache {
 			return 0;
 
 		logger.debug("pstcache enumeration... ");
+		MappedByteBuffer map = g_pstcache_map[cache_id];
 		for (n = 0; n < Rdp.BMPCACHE2_NUM_PSTCELLS; n++) {
-			fd = new FileInputStream(g_pstcache_fd[cache_id]);
-
-			byte[] cellhead_data = new byte[CELLHEADER.size()];
-			if (fd.read(cellhead_data, n
-					* (g_pstcache_Bpp * MAX_CELL_SIZE + CELLHEADER.size()),
-					CELLHEADER.size()) <= 0)
+			int offset = n * cellSize();
+			boolean used = false;
+			for (int i = 0; i < 8; i++) {
+				idlist[n * 8 + i] = map.get(offset + i);
+				used |= idlist[n * 8 + i] != 0;
+			}
+			if (!used)
 				break;
 
-			cellhdr = new CELLHEADER(cellhead_data);
+			int stamp = map.getInt(offset + CELL_STAMP);
+			if (stamp != 0 && stamp - g_stamp > 0)
+				g_stamp = stamp;
+		}
 
-			int result = 0;
-			for (int i = 0; i < cellhdr.bitmap_id.length; i++) {
-				result += cellhdr.bitmap_id[i];
-			}
+		logger.info(n + " bitmaps in persistent cache");
+		g_pstcache_enumerated = true;
+		return n;
+	}
 
-			if (result != 0) {
-				for (int i = 0; i < 8; i++) {
-					idlist[(n * 8) + i] = cellhdr.bitmap_id[i];
-				}
-
-				if (cellhdr.stamp != 0) {
-					/*
-					 * Pre-caching is not possible with 8bpp because a colourmap
-					 * is needed to load them
-					 */
-					if (Options.precache_bitmaps && (Options.server_bpp > 8)) {
-						if (pstcache_load_bitmap(cache_id, n))
-							c++;
-					}
-
-					g_stamp = Math.max(g_stamp, cellhdr.stamp);
-				}
-			} else {
-				break;
+	/**
+	 * Load the most recently used of the listed bitmaps into memory, as many
+	 * as the bitmap cache keeps there. 8bpp bitmaps are stored as palette
+	 * indices, as they are held in memory, so they are loaded as well.
+	 * 
+	 * @param cache_id
+	 *            Bitmap cache to fill
+	 * @param count
+	 *            Number of cells listed by pstcache_enumerate
+	 * @return Number of bitmaps loaded
+	 */
+	synchronized int pstcache_precache(int cache_id, int count)
+			throws RdesktopException {
+		if (!IS_PERSISTENT(cache_id))
+			return 0;
+
+		/* used cells, ordered by stamp; stamps wrap, so compare differences */
+		MappedByteBuffer map = g_pstcache_map[cache_id];
+		Integer[] cells = new Integer[count];
+		final int[] stamps = new int[count];
+		int used = 0;
+		for (int n = 0; n < count; n++) {
+			stamps[n] = map.getInt(n * cellSize() + CELL_STAMP);
+			if (stamps[n] != 0)
+				cells[used++] = Integer.valueOf(n);
+		}
+		Arrays.sort(cells, 0, used, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int d = stamps[a.intValue()] - stamps[b.intValue()];
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+
+		/* oldest first, so the cache's LRU order follows the stamps */
+		int c = 0;
+		int first = Math.max(0, used
+				- context.cache.getMaxBitmapsInMemory(cache_id));
+		for (int i = first; i < used; i++) {
+			int n = cells[i].intValue();
+			Bitmap bitmap = pstcache_load_bitmap(cache_id, n);
+			if (bitmap != null) {
+				context.cache.putBitmap(cache_id, n, bitmap, bitmap.usage);
+				c++;
 			}
 		}
 
-		logger.info(n + " bitmaps in persistent cache, " + c
-				+ " bitmaps loaded in memory\n");
-		g_pstcache_enumerated = true;
-		return n;
+		logger.info(c + " bitmaps loaded in memory from persistent cache");
+		return c;
 	}
 
 	/* initialise the persistent bitmap cache */
-	static boolean pstcache_init(int cache_id) {
-		// int fd;
+	synchronized boolean pstcache_init(int cache_id) {
 		String filename;
 
-		if (g_pstcache_enumerated)
+		if (IS_PERSISTENT(cache_id))
 			return true;
 
-		g_pstcache_fd[cache_id] = null;
-
-		if (!(Options.bitmap_caching && Options.persistent_bitmap_caching))
+		if (!(options.bitmap_caching && options.persistent_bitmap_caching))
 			return false;
 
-		g_pstcache_Bpp = Options.Bpp;
-		filename = "./cache/pstcache_" + cache_id + "_" + g_pstcache_Bpp;
+		g_pstcache_Bpp = options.server_bpp == 8 ? 1 : 3;
+		filename = "./cache/pstcache_" + cache_id + "_" + options.Bpp;
 		logger.debug("persistent bitmap cache file: " + filename);
 
 		File cacheDir = new File("./cache/");
@@ -244,61 +332,63 @@ public class PstCache {
 			return false;
 		}
 
-		File f = new File(filename);
-
+		RandomAccessFile fd = null;
 		try {
-			if (!f.exists() && !f.createNewFile()) {
-				logger.warn("Could not create cache file");
+			fd = new RandomAccessFile(filename, "rw");
+			FileChannel channel = fd.getChannel();
+			FileLock lock = null;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+			}
+			if (lock == null) {
+				logger.warn("Persistent bitmap caching is disabled. (The file is already in use)");
+				fd.close();
 				return false;
 			}
+
+			/* the file grows to its full size here, sparsely where the
+			 * filesystem allows */
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE,
+					0, (long) Rdp.BMPCACHE2_NUM_PSTCELLS * cellSize());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			g_pstcache_fd[cache_id] = fd;
+			g_pstcache_lock[cache_id] = lock;
+			g_pstcache_map[cache_id] = map;
 		} catch (IOException e) {
+			logger.warn("Could not open persistent cache file " + filename
+					+ ": " + e.getMessage());
+			try {
+				if (fd != null)
+					fd.close();
+			} catch (IOException e2) {
+			}
 			return false;
 		}
-
-		/*
-		 * if (!rd_lock_file(fd, 0, 0)) { logger.warn("Persistent bitmap caching
-		 * is disabled. (The file is already in use)\n"); rd_close_file(fd);
-		 * return false; }
-		 */
-
-		g_pstcache_fd[cache_id] = f;
 		return true;
 	}
 
-}
-
-/* Header for an entry in the persistent bitmap cache file */
-class CELLHEADER {
-	byte[] bitmap_id = new byte[8]; // int8 *
-
-	int width, height; // int8
-
-	int length; // int16
-
-	int stamp; // int32
-
-	static int size() {
-		return 8 * 8 + 8 * 2 + 16 + 32;
-	}
-
-	public CELLHEADER() {
-
-	}
-
-	public CELLHEADER(byte[] data) {
-		for (int i = 0; i < bitmap_id.length; i++)
-			bitmap_id[i] = data[i];
-
-		width = data[bitmap_id.length];
-		height = data[bitmap_id.length + 1];
-		length = (data[bitmap_id.length + 2] >> 8) + data[bitmap_id.length + 3];
-		stamp = (data[bitmap_id.length + 6] >> 24)
-				+ (data[bitmap_id.length + 6] >> 16)
-				+ (data[bitmap_id.length + 6] >> 8)
-				+ data[bitmap_id.length + 7];
-	}
-
-	public byte[] toBytes() {
-		return null;
+	/**
+	 * Write the persistent caches out and close them. They are reopened,
+	 * and enumerated again, on the next connection.
+	 */
+	synchronized void pstcache_close() {
+		for (int id = 0; id < g_pstcache_map.length; id++) {
+			if (g_pstcache_map[id] == null)
+				continue;
+			g_pstcache_map[id].force();
+			g_pstcache_map[id] = null;
+			try {
+				g_pstcache_lock[id].release();
+				g_pstcache_fd[id].close();
+			} catch (IOException e) {
+				logger.warn("Error closing persistent cache: "
+						+ e.getMessage());
+			}
+			g_pstcache_lock[id] = null;
+			g_pstcache_fd[id] = null;
+		}
+		g_pstcache_enumerated = false;
 	}
 }
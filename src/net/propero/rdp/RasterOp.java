@@ -30,70 +30,68 @@
 // Created on 01-Jul-2003
 package net.propero.rdp;
 
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
 import org.apache.log4j.Logger;
 
+/**
+ * Applies raster operations to a WrappedImage by working on the int array
+ * backing its raster, one line at a time. Every ternary (ROP3) operation is
+ * supported: the common ones have their own loops, and the rest are
+ * evaluated from the bits of the operation code. Binary (ROP2) operations
+ * are the ROP3 operations that ignore the pattern.
+ * 
+ * When the image has a colour map, operations act on palette indices, as
+ * the server expects: each line is translated to indices, operated on and
+ * translated back.
+ */
 public class RasterOp {
 	static Logger logger = Logger.getLogger(RdesktopCanvas.class);
 
-	private void ropInvert(WrappedImage biDst, int[] dest, int width, int x,
-			int y, int cx, int cy, int Bpp) {
-		int mask = Options.bpp_mask;
-		int pdest = (y * width + x);
-		for (int i = 0; i < cy; i++) {
-			for (int j = 0; j < cx; j++) {
-				if (biDst != null) {
-					int c = biDst.getRGB(x + j, y + i);
-					biDst.setRGB(x + j, y + i, ~c & mask);
-				} else
-					dest[pdest] = (~dest[pdest]) & mask;
-				pdest++;
-			}
-			pdest += (width - cx);
-		}
-	}
+	private final Options options;
 
-	private void ropClear(WrappedImage biDst, int width, int x, int y, int cx,
-			int cy, int Bpp) {
+	/* colour map the palette tables below were built from */
+	private IndexColorModel palette_cm = null;
 
-		for (int i = x; i < x + cx; i++) {
-			for (int j = y; j < y + cy; j++)
-				biDst.setRGB(i, j, 0);
-		}
-	}
+	/* RGB value of each palette index */
+	private final int[] palette = new int[256];
 
-	private void ropSet(WrappedImage biDst, int width, int x, int y, int cx,
-			int cy, int Bpp) {
+	/* open addressed table from RGB value back to the first index using it */
+	private static final int REVERSE_SIZE = 1024;
 
-		int mask = Options.bpp_mask;
+	private final int[] reverse_rgb = new int[REVERSE_SIZE];
 
-		for (int i = x; i < x + cx; i++) {
-			for (int j = y; j < y + cy; j++)
-				biDst.setRGB(i, j, mask);
-		}
+	private final int[] reverse_index = new int[REVERSE_SIZE];
 
-	}
+	/* line buffers for destination and source values, grown as needed */
+	private int[] dst_line = new int[0];
 
-	private void ropCopy(WrappedImage biDst, int dstwidth, int x, int y,
-			int cx, int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
+	private int[] src_line = new int[0];
 
-		if (src == null) { // special case - copy to self
-			biDst.getGraphics()
-					.copyArea(srcx, srcy, cx, cy, x - srcx, y - srcy);
-		} else {
-			biDst.setRGB(x, y, cx, cy, src, 0, cx);
-		}
+	/* pattern used by operations that ignore it */
+	private static final int[] NO_PATTERN = new int[64];
+
+	/**
+	 * @param options
+	 *            Session options, giving the colour depth of the surface
+	 */
+	public RasterOp(Options options) {
+		this.options = options;
 	}
 
 	/**
-	 * Perform an operation on a rectangular area of a WrappedImage, using an
-	 * integer array of colour values as source if necessary
+	 * Perform a binary raster operation on a rectangular area of a
+	 * WrappedImage, using an integer array of colour values as source if
+	 * necessary
 	 * 
 	 * @param opcode
-	 *            Code defining operation to perform
+	 *            ROP2 code defining operation to perform
 	 * @param biDst
 	 *            Destination image for operation
 	 * @param dstwidth
-	 *            Width of destination image
+	 *            Width of destination image (the raster's own line stride is
+	 *            used)
 	 * @param x
 	 *            X-offset of destination area within destination image
 	 * @param y
@@ -103,7 +101,8 @@ public class RasterOp {
 	 * @param cy
 	 *            Height of destination area
 	 * @param src
-	 *            Source data, represented as an array of integer pixel values
+	 *            Source data, represented as an array of integer pixel
+	 *            values, or null to use the destination image itself
 	 * @param srcwidth
 	 *            Width of source data
 	 * @param srcx
@@ -113,82 +112,159 @@ public class RasterOp {
 	 */
 	public void do_array(int opcode, WrappedImage biDst, int dstwidth, int x,
 			int y, int cx, int cy, int[] src, int srcwidth, int srcx, int srcy) {
-		int Bpp = Options.Bpp;
-		// int[] dst = null;
-		// System.out.println("do_array: opcode = 0x" +
-		// Integer.toHexString(opcode) );
-		switch (opcode) {
-		case 0x0:
-			ropClear(biDst, dstwidth, x, y, cx, cy, Bpp);
-			break;
-		case 0x1:
-			ropNor(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0x2:
-			ropAndInverted(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx,
-					srcy, Bpp);
-			break;
-		case 0x3: // CopyInverted
-			ropInvert(biDst, src, srcwidth, srcx, srcy, cx, cy, Bpp);
-			ropCopy(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0x4: // AndReverse
-			ropInvert(biDst, null, dstwidth, x, y, cx, cy, Bpp);
-			ropAnd(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0x5:
-			ropInvert(biDst, null, dstwidth, x, y, cx, cy, Bpp);
-			break;
-		case 0x6:
-			ropXor(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0x7:
-			ropNand(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0x8:
-			ropAnd(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0x9:
-			ropEquiv(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0xa: // Noop
-			break;
-		case 0xb:
-			ropOrInverted(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx,
-					srcy, Bpp);
-			break;
-		case 0xc:
-			ropCopy(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy,
-					Bpp);
-			break;
-		case 0xd: // OrReverse
-			ropInvert(biDst, null, dstwidth, x, y, cx, cy, Bpp);
-			ropOr(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy, Bpp);
-			break;
-		case 0xe:
-			ropOr(biDst, dstwidth, x, y, cx, cy, src, srcwidth, srcx, srcy, Bpp);
-			break;
-		case 0xf:
-			ropSet(biDst, dstwidth, x, y, cx, cy, Bpp);
-			break;
-		default:
-			logger.warn("do_array unsupported opcode: " + opcode);
-			// rop_array(opcode,dst,dstwidth,x,y,cx,cy,src,srcwidth,srcx,srcy);
+		if (src == null) {
+			src = biDst.getData();
+			srcwidth = biDst.getStride();
+		}
+		do_rop3(rop2to3(opcode), biDst, x, y, cx, cy, src, srcwidth, srcx,
+				srcy, null);
+	}
+
+	/**
+	 * Perform a ternary raster operation on a rectangular area of a
+	 * WrappedImage. The area must lie within the image.
+	 * 
+	 * @param rop3
+	 *            ROP3 code defining operation to perform
+	 * @param biDst
+	 *            Destination image for operation
+	 * @param x
+	 *            X-offset of destination area within destination image
+	 * @param y
+	 *            Y-offset of destination area within destination image
+	 * @param cx
+	 *            Width of destination area
+	 * @param cy
+	 *            Height of destination area
+	 * @param src
+	 *            Source pixel values, or the array returned by
+	 *            biDst.getData() for a blit from one part of the image to
+	 *            another; may be null if the operation does not use a source
+	 * @param srcwidth
+	 *            Width of a line of source data
+	 * @param srcx
+	 *            X-offset of source area within source data
+	 * @param srcy
+	 *            Y-offset of source area within source data
+	 * @param pattern
+	 *            8x8 brush colours, line by line, with the first entry
+	 *            falling at (x, y); may be null if the operation does not use
+	 *            a pattern
+	 */
+	public void do_rop3(int rop3, WrappedImage biDst, int x, int y, int cx,
+			int cy, int[] src, int srcwidth, int srcx, int srcy, int[] pattern) {
+		rop3_rect(rop3, biDst, x, y, cx, cy, src, srcwidth, srcx, srcy, pattern,
+				false);
+	}
+
+	/**
+	 * Perform a ternary raster operation with another image as the source,
+	 * such as an offscreen surface. Both areas must lie within their images,
+	 * which must share a palette, if they have one.
+	 * 
+	 * @param rop3
+	 *            ROP3 code defining operation to perform
+	 * @param biDst
+	 *            Destination image for operation
+	 * @param x
+	 *            X-offset of destination area within destination image
+	 * @param y
+	 *            Y-offset of destination area within destination image
+	 * @param cx
+	 *            Width of destination area
+	 * @param cy
+	 *            Height of destination area
+	 * @param biSrc
+	 *            Source image, which may be biDst
+	 * @param srcx
+	 *            X-offset of source area within source image
+	 * @param srcy
+	 *            Y-offset of source area within source image
+	 */
+	public void do_rop3(int rop3, WrappedImage biDst, int x, int y, int cx,
+			int cy, WrappedImage biSrc, int srcx, int srcy) {
+		int[] src = biSrc.getData();
+		if (src == null) {
+			logger.warn("Raster operation from an image without an int raster");
+			return;
+		}
+		rop3_rect(rop3, biDst, x, y, cx, cy, src, biSrc.getStride(), srcx, srcy,
+				null, true);
+	}
+
+	/* src_is_image is true when the source holds the colours of an image
+	 * rather than bitmap data, which in palette mode are indices */
+	private void rop3_rect(int rop3, WrappedImage biDst, int x, int y, int cx,
+			int cy, int[] src, int srcwidth, int srcx, int srcy,
+			int[] pattern, boolean src_is_image) {
+		rop3 &= 0xff;
+		if (cx <= 0 || cy <= 0 || rop3 == 0xaa)
+			return;
+
+		int[] pixels = biDst.getData();
+		if (pixels == null) {
+			logger.warn("Raster operation on an image without an int raster");
+			return;
+		}
+		int stride = biDst.getStride();
+		int mask = options.bpp_mask;
+		IndexColorModel cm = biDst.cm;
+		if (cm != null && cm != palette_cm)
+			loadPalette(cm);
+
+		if (!usesSource(rop3))
+			src = null;
+		if (pattern == null || !usesPattern(rop3))
+			pattern = NO_PATTERN;
+		boolean self = src == pixels;
+		boolean copy = self || (src != null && src_is_image && cm != null);
+		if (cm != null || self) {
+			if (dst_line.length < cx) {
+				dst_line = new int[cx];
+				src_line = new int[cx];
+			}
+		}
+
+		/* when copying downwards within the image, go from the bottom up so
+		 * that no source line is overwritten before it is read */
+		int first = 0, last = cy, step = 1;
+		if (self && srcy < y) {
+			first = cy - 1;
+			last = -1;
+			step = -1;
+		}
+
+		for (int row = first; row != last; row += step) {
+			int dp = (y + row) * stride + x;
+			int[] s = src;
+			int sp = (srcy + row) * srcwidth + srcx;
+			if (copy) {
+				/* take a copy, as the line may overlap the destination, and
+				 * in palette mode convert the colours to indices */
+				System.arraycopy(src, sp, src_line, 0, cx);
+				if (cm != null)
+					toIndices(src_line, 0, src_line, cx);
+				s = src_line;
+				sp = 0;
+			}
+			int pp = (row & 7) * 8;
+
+			if (cm == null) {
+				rop_line(rop3, pixels, dp, s, sp, pattern, pp, cx, mask);
+			} else {
+				toIndices(pixels, dp, dst_line, cx);
+				rop_line(rop3, dst_line, 0, s, sp, pattern, pp, cx, 0xff);
+				for (int i = 0; i < cx; i++)
+					pixels[dp + i] = palette[dst_line[i] & 0xff];
+			}
 		}
 	}
 
 	/**
-	 * Perform an operation on a single pixel in a WrappedImage
+	 * Perform a binary raster operation on a single pixel in a WrappedImage
 	 * 
 	 * @param opcode
-	 *            Opcode defining operation to perform
+	 *            ROP2 code defining operation to perform
 	 * @param dst
 	 *            Image on which to perform the operation
 	 * @param x
@@ -199,183 +275,280 @@ public class RasterOp {
 	 *            Colour to use in operation (unused for some operations)
 	 */
 	public void do_pixel(int opcode, WrappedImage dst, int x, int y, int color) {
-		int mask = Options.bpp_mask;
-
 		if (dst == null)
 			return;
 
-		int c = dst.getRGB(x, y);
-
-		switch (opcode) {
-		case 0x0:
-			dst.setRGB(x, y, 0);
-			break;
-		case 0x1:
-			dst.setRGB(x, y, (~(c | color)) & mask);
-			break;
-		case 0x2:
-			dst.setRGB(x, y, c & ((~color) & mask));
-			break;
-		case 0x3:
-			dst.setRGB(x, y, (~color) & mask);
-			break;
-		case 0x4:
-			dst.setRGB(x, y, (~c & color) * mask);
-			break;
-		case 0x5:
-			dst.setRGB(x, y, (~c) & mask);
-			break;
-		case 0x6:
-			dst.setRGB(x, y, c ^ ((color) & mask));
-			break;
-		case 0x7:
-			dst.setRGB(x, y, (~c & color) & mask);
-			break;
-		case 0x8:
-			dst.setRGB(x, y, c & (color & mask));
-			break;
-		case 0x9:
-			dst.setRGB(x, y, c ^ (~color & mask));
-			break;
-		case 0xa: /* Noop */
-			break;
-		case 0xb:
-			dst.setRGB(x, y, c | (~color & mask));
-			break;
-		case 0xc:
-			dst.setRGB(x, y, color);
-			break;
-		case 0xd:
-			dst.setRGB(x, y, (~c | color) & mask);
-			break;
-		case 0xe:
-			dst.setRGB(x, y, c | (color & mask));
-			break;
-		case 0xf:
-			dst.setRGB(x, y, mask);
-			break;
-		default:
-			logger.warn("do_byte unsupported opcode: " + opcode);
+		int[] pixels = dst.getData();
+		if (pixels == null)
+			return;
+		int p = y * dst.getStride() + x;
+		int mask = options.bpp_mask;
+		IndexColorModel cm = dst.cm;
+		if (cm == null) {
+			pixels[p] = rop3(rop2to3(opcode), 0, color, pixels[p]) & mask;
+		} else {
+			if (cm != palette_cm)
+				loadPalette(cm);
+			int d = toIndex(pixels[p] & 0xffffff);
+			pixels[p] = palette[rop3(rop2to3(opcode), 0, color, d) & 0xff];
 		}
 	}
 
-	private void ropNor(WrappedImage biDst, int dstwidth, int x, int y, int cx,
-			int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0x1
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
+	/**
+	 * @param rop2
+	 *            ROP2 code, from 0 to 15
+	 * @return Equivalent ROP3 code, which ignores the pattern
+	 */
+	public static int rop2to3(int rop2) {
+		return ((rop2 & 0xf) << 4) | (rop2 & 0xf);
+	}
 
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				biDst.setRGB(x + cx, y + cy,
-						(~(biDst.getRGB(x + cx, y + cy) | src[psrc])) & mask);
-			}
-			psrc += (srcwidth - cx);
-		}
+	/**
+	 * @return True if the result of the ROP3 operation depends on the source
+	 */
+	public static boolean usesSource(int rop3) {
+		return ((rop3 >> 2) & 0x33) != (rop3 & 0x33);
 	}
 
-	private void ropAndInverted(WrappedImage biDst, int dstwidth, int x, int y,
-			int cx, int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0x2
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + cx, y + cy);
-				biDst.setRGB(x + cx, y + cy, c & ((~src[psrc]) & mask));
-				psrc++;
-			}
-			psrc += (srcwidth - cx);
-		}
+	/**
+	 * @return True if the result of the ROP3 operation depends on the pattern
+	 */
+	public static boolean usesPattern(int rop3) {
+		return ((rop3 >> 4) & 0x0f) != (rop3 & 0x0f);
 	}
 
-	private void ropXor(WrappedImage biDst, int dstwidth, int x, int y, int cx,
-			int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0x6
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + col, y + row);
-				biDst.setRGB(x + col, y + row, c ^ ((src[psrc]) & mask));
-				psrc++;
-			}
-			psrc += (srcwidth - cx);
-		}
+	/**
+	 * Evaluate a ROP3 operation bitwise. Bit (p << 2 | s << 1 | d) of the
+	 * code gives the result for each combination of pattern, source and
+	 * destination bits.
+	 * 
+	 * @param rop3
+	 *            ROP3 code
+	 * @param p
+	 *            Pattern value
+	 * @param s
+	 *            Source value
+	 * @param d
+	 *            Destination value
+	 * @return Result, not masked to the colour depth
+	 */
+	public static int rop3(int rop3, int p, int s, int d) {
+		int r = 0;
+		if ((rop3 & 0x01) != 0)
+			r |= ~p & ~s & ~d;
+		if ((rop3 & 0x02) != 0)
+			r |= ~p & ~s & d;
+		if ((rop3 & 0x04) != 0)
+			r |= ~p & s & ~d;
+		if ((rop3 & 0x08) != 0)
+			r |= ~p & s & d;
+		if ((rop3 & 0x10) != 0)
+			r |= p & ~s & ~d;
+		if ((rop3 & 0x20) != 0)
+			r |= p & ~s & d;
+		if ((rop3 & 0x40) != 0)
+			r |= p & s & ~d;
+		if ((rop3 & 0x80) != 0)
+			r |= p & s & d;
+		return r;
 	}
 
-	private void ropNand(WrappedImage biDst, int dstwidth, int x, int y,
-			int cx, int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0x7
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + col, y + row);
-				biDst.setRGB(x + col, y + row, (~(c & src[psrc])) & mask);
-				psrc++;
+	/**
+	 * Apply an operation along one line. The operations servers send most
+	 * often have a loop each; the rest go through rop3().
+	 */
+	private static void rop_line(int rop3, int[] d, int dp, int[] s, int sp,
+			int[] pat, int pp, int n, int mask) {
+		int i;
+		switch (rop3) {
+		case 0x00: // BLACKNESS
+			Arrays.fill(d, dp, dp + n, 0);
+			break;
+		case 0xff: // WHITENESS
+			Arrays.fill(d, dp, dp + n, mask);
+			break;
+		case 0x55: // DSTINVERT, Dn
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~d[dp + i] & mask;
+			break;
+		case 0xcc: // SRCCOPY, S
+			System.arraycopy(s, sp, d, dp, n);
+			break;
+		case 0x33: // NOTSRCCOPY, Sn
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~s[sp + i] & mask;
+			break;
+		case 0x66: // SRCINVERT, DSx
+			for (i = 0; i < n; i++)
+				d[dp + i] = (d[dp + i] ^ s[sp + i]) & mask;
+			break;
+		case 0x88: // SRCAND, DSa
+			for (i = 0; i < n; i++)
+				d[dp + i] &= s[sp + i];
+			break;
+		case 0xee: // SRCPAINT, DSo
+			for (i = 0; i < n; i++)
+				d[dp + i] = (d[dp + i] | s[sp + i]) & mask;
+			break;
+		case 0x44: // SRCERASE, SDna
+			for (i = 0; i < n; i++)
+				d[dp + i] = s[sp + i] & ~d[dp + i] & mask;
+			break;
+		case 0x22: // DSna
+			for (i = 0; i < n; i++)
+				d[dp + i] &= ~s[sp + i];
+			break;
+		case 0x11: // NOTSRCERASE, DSon
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~(d[dp + i] | s[sp + i]) & mask;
+			break;
+		case 0xbb: // MERGEPAINT, DSno
+			for (i = 0; i < n; i++)
+				d[dp + i] = (d[dp + i] | ~s[sp + i]) & mask;
+			break;
+		case 0x77: // DSan
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~(d[dp + i] & s[sp + i]) & mask;
+			break;
+		case 0xdd: // SDno
+			for (i = 0; i < n; i++)
+				d[dp + i] = (s[sp + i] | ~d[dp + i]) & mask;
+			break;
+		case 0x99: // DSxn
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~(d[dp + i] ^ s[sp + i]) & mask;
+			break;
+		case 0xf0: // PATCOPY, P
+			for (i = 0; i < n; i++)
+				d[dp + i] = pat[pp + (i & 7)];
+			break;
+		case 0x0f: // Pn
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~pat[pp + (i & 7)] & mask;
+			break;
+		case 0x5a: // PATINVERT, DPx
+			for (i = 0; i < n; i++)
+				d[dp + i] = (d[dp + i] ^ pat[pp + (i & 7)]) & mask;
+			break;
+		case 0xa0: // DPa
+			for (i = 0; i < n; i++)
+				d[dp + i] &= pat[pp + (i & 7)];
+			break;
+		case 0xfa: // DPo
+			for (i = 0; i < n; i++)
+				d[dp + i] = (d[dp + i] | pat[pp + (i & 7)]) & mask;
+			break;
+		case 0xc0: // MERGECOPY, PSa
+			for (i = 0; i < n; i++)
+				d[dp + i] = s[sp + i] & pat[pp + (i & 7)] & mask;
+			break;
+		case 0xfb: // PATPAINT, DPSnoo
+			for (i = 0; i < n; i++)
+				d[dp + i] = (d[dp + i] | pat[pp + (i & 7)] | ~s[sp + i])
+						& mask;
+			break;
+		case 0x69: // PDSxxn
+			for (i = 0; i < n; i++)
+				d[dp + i] = ~(pat[pp + (i & 7)] ^ d[dp + i] ^ s[sp + i])
+						& mask;
+			break;
+		case 0x96: // PDSxx
+			for (i = 0; i < n; i++)
+				d[dp + i] = (pat[pp + (i & 7)] ^ d[dp + i] ^ s[sp + i])
+						& mask;
+			break;
+		case 0xb8: // PSDPxax
+			for (i = 0; i < n; i++) {
+				int p = pat[pp + (i & 7)];
+				d[dp + i] = (((d[dp + i] ^ p) & s[sp + i]) ^ p) & mask;
+			}
+			break;
+		case 0xe2: // DSPDxax
+			for (i = 0; i < n; i++) {
+				int v = d[dp + i];
+				d[dp + i] = (((pat[pp + (i & 7)] ^ v) & s[sp + i]) ^ v) & mask;
 			}
-			psrc += (srcwidth - cx);
+			break;
+		default:
+			rop_generic(rop3, d, dp, s, sp, pat, pp, n, mask);
 		}
 	}
 
-	private void ropAnd(WrappedImage biDst, int dstwidth, int x, int y, int cx,
-			int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0x8
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + col, y + row);
-				biDst.setRGB(x + col, y + row, c & ((src[psrc]) & mask));
-				psrc++;
+	/**
+	 * Apply any operation along one line, without branching per pixel. Each
+	 * pair of code bits selects between two constants by the destination,
+	 * those results are selected between by the source, and those by the
+	 * pattern.
+	 */
+	private static void rop_generic(int rop3, int[] d, int dp, int[] s,
+			int sp, int[] pat, int pp, int n, int mask) {
+		int m0 = -(rop3 & 1), m2 = -((rop3 >> 2) & 1);
+		int m4 = -((rop3 >> 4) & 1), m6 = -((rop3 >> 6) & 1);
+		int x0 = m0 ^ -((rop3 >> 1) & 1), x2 = m2 ^ -((rop3 >> 3) & 1);
+		int x4 = m4 ^ -((rop3 >> 5) & 1), x6 = m6 ^ -((rop3 >> 7) & 1);
+		if (s == null) {
+			/* source bits are all clear */
+			for (int i = 0; i < n; i++) {
+				int v = d[dp + i];
+				int p0 = m0 ^ (v & x0), p1 = m4 ^ (v & x4);
+				d[dp + i] = (p0 ^ (pat[pp + (i & 7)] & (p0 ^ p1))) & mask;
 			}
-			psrc += (srcwidth - cx);
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			int v = d[dp + i];
+			int sv = s[sp + i];
+			int ps0 = m0 ^ (v & x0), ps1 = m2 ^ (v & x2);
+			int ps2 = m4 ^ (v & x4), ps3 = m6 ^ (v & x6);
+			int p0 = ps0 ^ (sv & (ps0 ^ ps1));
+			int p1 = ps2 ^ (sv & (ps2 ^ ps3));
+			d[dp + i] = (p0 ^ (pat[pp + (i & 7)] & (p0 ^ p1))) & mask;
 		}
 	}
 
-	private void ropEquiv(WrappedImage biDst, int dstwidth, int x, int y,
-			int cx, int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0x9
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + col, y + row);
-				biDst.setRGB(x + col, y + row, c ^ ((~src[psrc]) & mask));
-				psrc++;
+	/**
+	 * Build the tables for translating between RGB values and indices of a
+	 * colour map
+	 */
+	private void loadPalette(IndexColorModel cm) {
+		Arrays.fill(palette, 0);
+		Arrays.fill(reverse_index, -1);
+		int size = Math.min(cm.getMapSize(), palette.length);
+		for (int i = 0; i < size; i++) {
+			int rgb = cm.getRGB(i) & 0xffffff;
+			palette[i] = rgb;
+			int h = hash(rgb);
+			while (reverse_index[h] >= 0 && reverse_rgb[h] != rgb)
+				h = (h + 1) & (REVERSE_SIZE - 1);
+			if (reverse_index[h] < 0) {
+				reverse_rgb[h] = rgb;
+				reverse_index[h] = i;
 			}
-			psrc += (srcwidth - cx);
 		}
+		palette_cm = cm;
 	}
 
-	private void ropOrInverted(WrappedImage biDst, int dstwidth, int x, int y,
-			int cx, int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0xb
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + col, y + row);
-				biDst.setRGB(x + col, y + row, c | ((~src[psrc]) & mask));
-				psrc++;
-			}
-			psrc += (srcwidth - cx);
-		}
+	private static int hash(int rgb) {
+		return (rgb * 0x9e3779b1 >>> 22) & (REVERSE_SIZE - 1);
 	}
 
-	private void ropOr(WrappedImage biDst, int dstwidth, int x, int y, int cx,
-			int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
-		// opcode 0xe
-		int mask = Options.bpp_mask;
-		int psrc = (srcy * srcwidth + srcx);
-		for (int row = 0; row < cy; row++) {
-			for (int col = 0; col < cx; col++) {
-				int c = biDst.getRGB(x + col, y + row);
-				biDst.setRGB(x + col, y + row, c | (src[psrc] & mask));
-				psrc++;
-			}
-			psrc += (srcwidth - cx);
+	/**
+	 * @return Palette index of an RGB value, or of the nearest palette
+	 *         colour if the value is not in the palette
+	 */
+	private int toIndex(int rgb) {
+		int h = hash(rgb);
+		while (reverse_index[h] >= 0) {
+			if (reverse_rgb[h] == rgb)
+				return reverse_index[h];
+			h = (h + 1) & (REVERSE_SIZE - 1);
 		}
+		int[] vals = { (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff };
+		return palette_cm.getDataElement(vals, 0) & 0xff;
+	}
+
+	private void toIndices(int[] rgb, int offset, int[] out, int n) {
+		for (int i = 0; i < n; i++)
+			out[i] = toIndex(rgb[offset + i] & 0xffffff);
 	}
 }
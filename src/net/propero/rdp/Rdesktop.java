@@ -202,12 +202,6 @@ public class Rdesktop {
 
 	static boolean keep_running;
 
-	static boolean loggedon;
-	
-	static int gReconnectLogonid = 0;
-
-	static boolean readytosend;
-
 	static boolean showTools;
 
 	static final String keyMapPath = "keymaps/";
@@ -244,6 +238,7 @@ public class Rdesktop {
 		System.err.println("	-T TITLE					window title");
 		System.err.println("	-u USERNAME					user name");
 		System.err.println("	-o BPP						bits-per-pixel for display");
+		System.err.println("	-z 							enable RDP compression");
 		System.err
 				.println("    -r path                     path to load licence from (requests and saves licence from server if not found)");
 		System.err
@@ -260,6 +255,28 @@ public class Rdesktop {
 		System.err
 				.println("	--no_encryption				disable encryption from client to server");
 		System.err.println("	--use_rdp4					use RDP version 4");
+		System.err
+				.println("	--no_fastpath_input			always send input as slow-path PDUs");
+		System.err
+				.println("	--input_coalesce=MS			merge mouse moves within MS milliseconds (default 10, 0 disables)");
+		System.err
+				.println("	--render_queue=N			updates buffered for the render thread (default 256, 0 draws on the network thread)");
+		System.err
+				.println("	--max_fps=N					repaint the screen at most N times a second (default 60, 0 after every update)");
+		System.err
+				.println("	--bitmap_cache_mb=N			keep at most N MB of cached bitmaps in memory (default 16, 0 no limit)");
+		System.err
+				.println("	--offscreen_cache_kb=N		let the server keep N KB of offscreen surfaces (default 7680, 0 disables)");
+		System.err
+				.println("	--channel_queue=N			virtual channel messages buffered per worker (default 64, 0 processes them on the network thread)");
+		System.err
+				.println("	--sound_buffer_ms=N			buffer N ms of audio before playing a stream (default 150)");
+		System.err
+				.println("	--sound_file=FILE			write audio to FILE as raw PCM instead of playing it");
+		System.err
+				.println("	--no_parallel_bitmaps		decode bitmap updates on a single thread");
+		System.err
+				.println("	--capture_bitmaps=DIR		save compressed bitmap tiles to DIR for the benchmarks");
 		// System.err.println(" --enable_menu enable menu bar");
 		System.err
 				.println("	--log4j_config=FILE			use FILE for log4j configuration");
@@ -278,8 +295,6 @@ public class Rdesktop {
 
 		// Ensure that static variables are properly initialised
 		keep_running = true;
-		loggedon = false;
-		readytosend = false;
 		showTools = false;
 		mapFile = "en-us";
 		keyMapLocation = "";
@@ -290,7 +305,10 @@ public class Rdesktop {
 
 		// Attempt to run a native RDP Client
 
-		RDPClientChooser Chooser = new RDPClientChooser();
+		Options options = new Options();
+		RdpContext context = new RdpContext(options);
+
+		RDPClientChooser Chooser = new RDPClientChooser(options);
 
 		if (Chooser.RunNativeRDPClient(args)) {
 			if (!Common.underApplet)
@@ -307,7 +325,7 @@ public class Rdesktop {
 		int c;
 		String arg;
 		StringBuffer sb = new StringBuffer();
-		LongOpt[] alo = new LongOpt[15];
+		LongOpt[] alo = new LongOpt[26];
 		alo[0] = new LongOpt("debug_key", LongOpt.NO_ARGUMENT, null, 0);
 		alo[1] = new LongOpt("debug_hex", LongOpt.NO_ARGUMENT, null, 0);
 		alo[2] = new LongOpt("no_paste_hack", LongOpt.NO_ARGUMENT, null, 0);
@@ -324,11 +342,29 @@ public class Rdesktop {
 		alo[13] = new LongOpt("save_licence", LongOpt.NO_ARGUMENT, null, 0);
 		alo[14] = new LongOpt("persistent_caching", LongOpt.NO_ARGUMENT, null,
 				0);
+		alo[15] = new LongOpt("no_fastpath_input", LongOpt.NO_ARGUMENT, null, 0);
+		alo[16] = new LongOpt("input_coalesce", LongOpt.REQUIRED_ARGUMENT, sb,
+				0);
+		alo[17] = new LongOpt("render_queue", LongOpt.REQUIRED_ARGUMENT, sb, 0);
+		alo[18] = new LongOpt("no_parallel_bitmaps", LongOpt.NO_ARGUMENT, null,
+				0);
+		alo[19] = new LongOpt("capture_bitmaps", LongOpt.REQUIRED_ARGUMENT, sb,
+				0);
+		alo[20] = new LongOpt("max_fps", LongOpt.REQUIRED_ARGUMENT, sb, 0);
+		alo[21] = new LongOpt("bitmap_cache_mb", LongOpt.REQUIRED_ARGUMENT,
+				sb, 0);
+		alo[22] = new LongOpt("offscreen_cache_kb", LongOpt.REQUIRED_ARGUMENT,
+				sb, 0);
+		alo[23] = new LongOpt("channel_queue", LongOpt.REQUIRED_ARGUMENT, sb,
+				0);
+		alo[24] = new LongOpt("sound_buffer_ms", LongOpt.REQUIRED_ARGUMENT, sb,
+				0);
+		alo[25] = new LongOpt("sound_file", LongOpt.REQUIRED_ARGUMENT, sb, 0);
 
 		String progname = "properJavaRDP";
 
 		Getopt g = new Getopt("properJavaRDP", args,
-				"bc:d:f::g:k:l:m:n:p:s:t:T:u:o:r:", alo);
+				"bc:d:f::g:k:l:m:n:p:s:t:T:u:o:r:z", alo);
 
 		ClipChannel clipChannel = new ClipChannel();
 		SoundChannel soundChannel = new SoundChannel();
@@ -346,10 +382,10 @@ public class Rdesktop {
 			case 0:
 				switch (g.getLongind()) {
 				case 0:
-					Options.debug_keyboard = true;
+					options.debug_keyboard = true;
 					break;
 				case 1:
-					Options.debug_hexdump = true;
+					options.debug_hexdump = true;
 					break;
 				case 2:
 					break;
@@ -362,36 +398,118 @@ public class Rdesktop {
 					showTools = true;
 					break;
 				case 5:
-					Options.altkey_quiet = true;
+					options.altkey_quiet = true;
 					break;
 				case 6:
-					Options.remap_hash = false;
+					options.remap_hash = false;
 					break;
 				case 7:
-					Options.packet_encryption = false;
+					options.packet_encryption = false;
 					break;
 				case 8:
-					Options.use_rdp5 = false;
-					// Options.server_bpp = 8;
-					Options.set_bpp(8);
+					options.use_rdp5 = false;
+					// options.server_bpp = 8;
+					options.set_bpp(8);
 					break;
 				case 9:
-					Options.use_ssl = true;
+					options.use_ssl = true;
 					break;
 				case 10:
-					Options.enable_menu = true;
+					options.enable_menu = true;
 					break;
 				case 11:
-					Options.console_session = true;
+					options.console_session = true;
 					break;
 				case 12:
-					Options.load_licence = true;
+					options.load_licence = true;
 					break;
 				case 13:
-					Options.save_licence = true;
+					options.save_licence = true;
 					break;
 				case 14:
-					Options.persistent_bitmap_caching = true;
+					options.persistent_bitmap_caching = true;
+					break;
+				case 15:
+					options.fastpath_input = false;
+					break;
+				case 16:
+					arg = g.getOptarg();
+					try {
+						options.input_coalesce_ms = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid input coalescing window: " + arg);
+						usage();
+					}
+					break;
+				case 17:
+					arg = g.getOptarg();
+					try {
+						options.render_queue = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid render queue size: " + arg);
+						usage();
+					}
+					break;
+				case 18:
+					options.parallel_bitmaps = false;
+					break;
+				case 19:
+					options.bitmap_capture_dir = g.getOptarg();
+					break;
+				case 20:
+					arg = g.getOptarg();
+					try {
+						options.max_fps = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid frame rate: " + arg);
+						usage();
+					}
+					break;
+				case 21:
+					arg = g.getOptarg();
+					try {
+						options.bitmap_cache_mb = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid bitmap cache size: " + arg);
+						usage();
+					}
+					break;
+				case 22:
+					arg = g.getOptarg();
+					try {
+						options.offscreen_cache_kb = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid offscreen cache size: " + arg);
+						usage();
+					}
+					break;
+				case 23:
+					arg = g.getOptarg();
+					try {
+						options.channel_queue = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid channel queue size: " + arg);
+						usage();
+					}
+					break;
+				case 24:
+					arg = g.getOptarg();
+					try {
+						options.sound_buffer_ms = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						System.err.println(progname
+								+ ": Invalid sound buffer size: " + arg);
+						usage();
+					}
+					break;
+				case 25:
+					options.sound_file = g.getOptarg();
 					break;
 				default:
 					usage();
@@ -399,27 +517,27 @@ public class Rdesktop {
 				break;
 
 			case 'o':
-				Options.set_bpp(Integer.parseInt(g.getOptarg()));
+				options.set_bpp(Integer.parseInt(g.getOptarg()));
 				break;
 			case 'b':
-				Options.low_latency = false;
+				options.low_latency = false;
 				break;
 			case 'm':
 				mapFile = g.getOptarg();
 				break;
 			case 'c':
-				Options.directory = g.getOptarg();
+				options.directory = g.getOptarg();
 				break;
 			case 'd':
-				Options.domain = g.getOptarg();
+				options.domain = g.getOptarg();
 				break;
 			case 'f':
 				Dimension screen_size = Toolkit.getDefaultToolkit()
 						.getScreenSize();
 				// ensure width a multiple of 4
-				Options.width = screen_size.width & ~3;
-				Options.height = screen_size.height;
-				Options.fullscreen = true;
+				options.width = screen_size.width & ~3;
+				options.height = screen_size.height;
+				options.fullscreen = true;
 				arg = g.getOptarg();
 				if (arg != null) {
 					if (arg.charAt(0) == 'l')
@@ -438,13 +556,13 @@ public class Rdesktop {
 					System.err.println(progname + ": Invalid geometry: " + arg);
 					usage();
 				}
-				Options.width = Integer.parseInt(arg.substring(0, cut)) & ~3;
-				Options.height = Integer.parseInt(arg.substring(cut + 1));
+				options.width = Integer.parseInt(arg.substring(0, cut)) & ~3;
+				options.height = Integer.parseInt(arg.substring(cut + 1));
 				break;
 			case 'k':
 				arg = g.getOptarg();
-				// Options.keylayout = KeyLayout.strToCode(arg);
-				if (Options.keylayout == -1) {
+				// options.keylayout = KeyLayout.strToCode(arg);
+				if (options.keylayout == -1) {
 					System.err.println(progname + ": Invalid key layout: "
 							+ arg);
 					usage();
@@ -480,22 +598,22 @@ public class Rdesktop {
 				}
 				break;
 			case 'n':
-				Options.hostname = g.getOptarg();
+				options.hostname = g.getOptarg();
 				break;
 			case 'p':
-				Options.password = g.getOptarg();
+				options.password = g.getOptarg();
 				logonflags |= Rdp.RDP_LOGON_AUTO;
 				break;
 			case 's':
-				Options.command = g.getOptarg();
+				options.command = g.getOptarg();
 				break;
 			case 'u':
-				Options.username = g.getOptarg();
+				options.username = g.getOptarg();
 				break;
 			case 't':
 				arg = g.getOptarg();
 				try {
-					Options.port = Integer.parseInt(arg);
+					options.port = Integer.parseInt(arg);
 				} catch (NumberFormatException nex) {
 					System.err.println(progname + ": Invalid port number: "
 							+ arg);
@@ -503,10 +621,13 @@ public class Rdesktop {
 				}
 				break;
 			case 'T':
-				Options.windowTitle = g.getOptarg().replace('_', ' ');
+				options.windowTitle = g.getOptarg().replace('_', ' ');
 				break;
 			case 'r':
-				Options.licence_path = g.getOptarg();
+				options.licence_path = g.getOptarg();
+				break;
+			case 'z':
+				options.compression = true;
 				break;
 
 			case '?':
@@ -518,7 +639,7 @@ public class Rdesktop {
 		}
 
 		if (fKdeHack) {
-			Options.height -= 46;
+			options.height -= 46;
 		}
 
 		String server = null;
@@ -529,7 +650,7 @@ public class Rdesktop {
 				server = args[args.length - 1];
 			} else {
 				server = args[args.length - 1].substring(0, colonat);
-				Options.port = Integer.parseInt(args[args.length - 1]
+				options.port = Integer.parseInt(args[args.length - 1]
 						.substring(colonat + 1));
 			}
 		} else {
@@ -537,12 +658,12 @@ public class Rdesktop {
 			usage();
 		}
 
-		VChannels channels = new VChannels();
+		VChannels channels = new VChannels(context);
 
 		// Initialise all RDP5 channels
-		if (Options.use_rdp5) {
+		if (options.use_rdp5) {
 			// TODO: implement all relevant channels
-			if (Options.map_clipboard) {
+			if (options.map_clipboard) {
 			    channels.register(clipChannel);
 			}
 			channels.register(soundChannel);
@@ -563,7 +684,7 @@ public class Rdesktop {
 		String osvers = System.getProperty("os.version");
 
 		if (os.equals("Windows 2000") || os.equals("Windows XP"))
-			Options.built_in_licence = true;
+			options.built_in_licence = true;
 
 		logger.info("Operating System is " + os + " version " + osvers);
 
@@ -575,11 +696,10 @@ public class Rdesktop {
 			Constants.OS = Constants.MAC;
 
 		if (Constants.OS == Constants.MAC)
-			Options.caps_sends_up_and_down = false;
+			options.caps_sends_up_and_down = false;
 
 		Rdp5 RdpLayer = null;
-		Common.rdp = RdpLayer;
-		RdesktopFrame window = new RdesktopFrame_Localised();
+		RdesktopFrame window = new RdesktopFrame_Localised(context);
 		window.setClip(clipChannel);
 
 		// Configure a keyboard layout
@@ -591,14 +711,15 @@ public class Rdesktop {
 			// logger.info("istr = " + istr);
 			if (istr == null) {
 				logger.debug("Loading keymap from filename");
-				keyMap = new KeyCode_FileBased_Localised(keyMapPath + mapFile);
+				keyMap = new KeyCode_FileBased_Localised(keyMapPath + mapFile,
+						options);
 			} else {
 				logger.debug("Loading keymap from InputStream");
-				keyMap = new KeyCode_FileBased_Localised(istr);
+				keyMap = new KeyCode_FileBased_Localised(istr, options);
 			}
 			if (istr != null)
 				istr.close();
-			Options.keylayout = keyMap.getMapCode();
+			options.keylayout = keyMap.getMapCode();
 		} catch (Exception kmEx) {
 			String[] msg = { (kmEx.getClass() + ": " + kmEx.getMessage()) };
 			window.showErrorDialog(msg);
@@ -616,27 +737,27 @@ public class Rdesktop {
 		logger.debug("keep_running = " + keep_running);
 		while (keep_running) {
 			logger.debug("Initialising RDP layer...");
-			RdpLayer = new Rdp5(channels);
-			Common.rdp = RdpLayer;
+			RdpLayer = new Rdp5(context, channels);
+			context.rdp = RdpLayer;
 			logger.debug("Registering drawing surface...");
 			RdpLayer.registerDrawingSurface(window);
 			logger.debug("Registering comms layer...");
 			window.registerCommLayer(RdpLayer);
-			loggedon = false;
-			readytosend = false;
-			logger.info("Connecting to " + server + ":" + Options.port
+			context.loggedon = false;
+			context.readytosend = false;
+			logger.info("Connecting to " + server + ":" + options.port
 			            + " ...");
 
 			if (server.equalsIgnoreCase("localhost"))
 				server = "127.0.0.1";
 
 			if (RdpLayer != null) {
-				// Attempt to connect to server on port Options.port
+				// Attempt to connect to server on port options.port
 				try {
-					RdpLayer.connect(Options.username, InetAddress
-							.getByName(server), logonflags, Options.domain,
-							Options.password, Options.command,
-							Options.directory);
+					RdpLayer.connect(options.username, InetAddress
+							.getByName(server), logonflags, options.domain,
+							options.password, options.command,
+							options.directory);
 
 					// Remove to get rid of sendEvent tool
 					if (showTools) {
@@ -652,8 +773,8 @@ public class Rdesktop {
 						 * encrypted login packet but unencrypted transfer of
 						 * other packets
 						 */
-						if (!Options.packet_encryption)
-							Options.encryption = false;
+						if (!options.packet_encryption)
+							options.encryption = false;
 
 						logger.info("Connection successful");
 						// now show window after licence negotiation
@@ -686,7 +807,7 @@ public class Rdesktop {
 						}
 
 						keep_running = false; // exited main loop
-						if (!readytosend) {
+						if (!context.readytosend) {
 							// maybe the licence server was having a comms
 							// problem, retry?
 							String msg1 = "The terminal server disconnected before licence negotiation completed.";
@@ -724,7 +845,7 @@ public class Rdesktop {
 
 					e.printStackTrace(System.err);
 
-					if (!readytosend) {
+					if (!context.readytosend) {
 						// maybe the licence server was having a comms
 						// problem, retry?
 						String msg[] = {
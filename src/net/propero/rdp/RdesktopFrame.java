@@ -67,6 +67,10 @@ public abstract class RdesktopFrame extends Frame {
 
 	public RdpMenu menu = null;
 
+	public final RdpContext context;
+
+	protected final Options options;
+
 	/**
 	 * Register the clipboard channel
 	 * 
@@ -118,7 +122,7 @@ public abstract class RdesktopFrame extends Frame {
 //		if (menu == null)
 //			menu = new RdpMenu(this);
 //
-//		if (!menuVisible && Options.enable_menu)
+//		if (!menuVisible && options.enable_menu)
 //			this.setMenuBar(menu);
 //		canvas.repaint();
 //		menuVisible = true;
@@ -128,7 +132,7 @@ public abstract class RdesktopFrame extends Frame {
 	 * Hide the menu bar
 	 */
 	public void hideMenu() {
-		if (menuVisible && Options.enable_menu)
+		if (menuVisible && options.enable_menu)
 			this.setMenuBar(null);
 		// canvas.setSize(this.WIDTH, this.HEIGHT);
 		canvas.repaint();
@@ -147,29 +151,34 @@ public abstract class RdesktopFrame extends Frame {
 	}
 
 	/**
-	 * Create a new RdesktopFrame. Size defined by Options.width and
-	 * Options.height Creates RdesktopCanvas occupying entire frame
+	 * Create a new RdesktopFrame. Size defined by options.width and
+	 * options.height Creates RdesktopCanvas occupying entire frame
+	 * 
+	 * @param context
+	 *            Session displayed in this frame
 	 */
-	public RdesktopFrame() {
+	public RdesktopFrame(RdpContext context) {
 		super();
+		this.context = context;
+		this.options = context.options;
 		//check java version to support JRE1.6 
 		String java_version = System.getProperty("java.specification.version"); 
 		if(java_version.compareTo("1.6")==0){ 
-		this.setSize(Options.width+6,Options.height+30); 
+		this.setSize(options.width+6,options.height+30); 
 		} 
 
-		Common.frame = this;
-		this.canvas = new RdesktopCanvas_Localised(Options.width,
-				Options.height);
+		context.frame = this;
+		this.canvas = new RdesktopCanvas_Localised(context, options.width,
+				options.height);
 		add(this.canvas);
-		setTitle(Options.windowTitle);
+		setTitle(options.windowTitle);
 
 		if (Constants.OS == Constants.WINDOWS)
 			setResizable(false);
 		// Windows has to setResizable(false) before pack,
 		// else draws on the frame
 
-		if (Options.fullscreen) {
+		if (options.fullscreen) {
 			goFullScreen();
 			pack();
 			setLocation(0, 0);
@@ -227,7 +236,7 @@ public abstract class RdesktopFrame extends Frame {
 		public void focusGained(FocusEvent arg0) {
 			if (Constants.OS == Constants.WINDOWS) {
 				// canvas.repaint();
-				canvas.repaint(0, 0, Options.width, Options.height);
+				canvas.repaint(0, 0, options.width, options.height);
 			}
 			// gained focus..need to check state of locking keys
 			canvas.gainedFocus();
@@ -255,7 +264,7 @@ public abstract class RdesktopFrame extends Frame {
 		public void windowDeiconified(WindowEvent e) {
 			if (Constants.OS == Constants.WINDOWS) {
 				// canvas.repaint();
-				canvas.repaint(0, 0, Options.width, Options.height);
+				canvas.repaint(0, 0, options.width, options.height);
 			}
 			canvas.gainedFocus();
 		}
@@ -263,7 +272,7 @@ public abstract class RdesktopFrame extends Frame {
 		public void windowActivated(WindowEvent e) {
 			if (Constants.OS == Constants.WINDOWS) {
 				// canvas.repaint();
-				canvas.repaint(0, 0, Options.width, Options.height);
+				canvas.repaint(0, 0, options.width, options.height);
 			}
 			// gained focus..need to check state of locking keys
 			canvas.gainedFocus();
@@ -272,7 +281,7 @@ public abstract class RdesktopFrame extends Frame {
 		public void windowGainedFocus(WindowEvent e) {
 			if (Constants.OS == Constants.WINDOWS) {
 				// canvas.repaint();
-				canvas.repaint(0, 0, Options.width, Options.height);
+				canvas.repaint(0, 0, options.width, options.height);
 			}
 			// gained focus..need to check state of locking keys
 			canvas.gainedFocus();
@@ -281,7 +290,7 @@ public abstract class RdesktopFrame extends Frame {
 
 	class RdesktopComponentAdapter extends ComponentAdapter {
 		public void componentMoved(ComponentEvent e) {
-			canvas.repaint(0, 0, Options.width, Options.height);
+			canvas.repaint(0, 0, options.width, options.height);
 		}
 	}
 
@@ -0,0 +1,1390 @@
+/* RdesktopSurface.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Backstore for a session, and the drawing operations performed
+ *          on it by orders and bitmap updates
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.List;
+
+import net.propero.rdp.orders.BoundsOrder;
+import net.propero.rdp.orders.Brush;
+import net.propero.rdp.orders.DestBltOrder;
+import net.propero.rdp.orders.LineOrder;
+import net.propero.rdp.orders.MemBltOrder;
+import net.propero.rdp.orders.PatBltOrder;
+import net.propero.rdp.orders.PolyLineOrder;
+import net.propero.rdp.orders.RectangleOrder;
+import net.propero.rdp.orders.ScreenBltOrder;
+import net.propero.rdp.orders.TriBltOrder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The screen of a session as an int[] framebuffer, with the operations used
+ * to draw orders and bitmap updates onto it. A surface is not an AWT
+ * component and needs no display or peer, so it can be registered with the
+ * Rdp layer on its own to decode a session headlessly, reading the screen
+ * back through getFramebuffer(). RdesktopCanvas wraps a surface for display,
+ * overriding repaint() to copy each changed area to the screen.
+ */
+public class RdesktopSurface {
+	static Logger logger = Logger.getLogger(RdesktopSurface.class);
+
+	public static final int ROP2_COPY = 0xc;
+
+	private static final int ROP3_PATCOPY = 0xf0;
+
+	/* memblt cache id whose cache index is an offscreen surface id */
+	private static final int BITMAPCACHE_SCREEN_ID = 0xff;
+
+	private static final int MIX_TRANSPARENT = 0;
+
+	private static final int MIX_OPAQUE = 1;
+
+	private static final int TEXT2_VERTICAL = 0x04;
+
+	private static final int TEXT2_IMPLICIT_X = 0x20;
+
+	private RasterOp rop = null;
+
+	WrappedImage backstore;
+
+	/* areas drawn since the last flush */
+	protected final DirtyRegion damage;
+
+	protected IndexColorModel colormap = null;
+
+	private Cache cache = null;
+
+	/* reused work array for drawing to images without an int raster */
+	private int[] scratch = null;
+
+	/* colours of the current brush, for RasterOp.do_rop3() */
+	private final int[] brush_pattern = new int[64];
+
+	protected final Options options;
+
+	protected final int width;
+
+	protected final int height;
+
+	// Clip region
+	private int top = 0;
+
+	private int left = 0;
+
+	private int right = 0;
+
+	private int bottom = 0;
+
+	/**
+	 * Create a surface of the specified size, with every pixel black
+	 * 
+	 * @param options
+	 *            Options of the session drawn on this surface
+	 * @param width
+	 *            Width of surface in pixels
+	 * @param height
+	 *            Height of surface in pixels
+	 */
+	public RdesktopSurface(Options options, int width, int height) {
+		this.options = options;
+		rop = new RasterOp(options);
+		this.width = width;
+		this.height = height;
+		this.right = width - 1;
+		this.bottom = height - 1;
+
+		backstore = new WrappedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		damage = new DirtyRegion(width, height);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the pixels of this surface, for reading the screen without going
+	 * through AWT. Each value is 0xRRGGBB, whatever the colour depth of the
+	 * session, and lines are getStride() values apart.
+	 * 
+	 * @return Array backing the surface, updated in place by drawing
+	 */
+	public int[] getFramebuffer() {
+		return backstore.getData();
+	}
+
+	/**
+	 * @return Distance in the framebuffer between the starts of two lines
+	 */
+	public int getStride() {
+		return backstore.getStride();
+	}
+
+	/**
+	 * Called with the area changed by each drawing operation. The area is
+	 * only recorded; it is shown when the update is complete and flush() is
+	 * called.
+	 * 
+	 * @param x
+	 *            x coordinate of changed area
+	 * @param y
+	 *            y coordinate of changed area
+	 * @param cx
+	 *            Width of changed area
+	 * @param cy
+	 *            Height of changed area
+	 */
+	public void repaint(int x, int y, int cx, int cy) {
+		damage.add(x, y, cx, cy);
+	}
+
+	/**
+	 * Called by the Rdp layer once it has drawn a complete update, or a run
+	 * of updates. Does nothing here, as a headless surface has no display:
+	 * the damage is kept until collected with takeDamage().
+	 */
+	public void flush() {
+	}
+
+	/**
+	 * Collect the areas changed since the last call, for example to encode
+	 * only those parts of the framebuffer when recording a session
+	 * 
+	 * @return Rectangles covering the changed areas
+	 */
+	public List<Rectangle> takeDamage() {
+		return damage.take();
+	}
+
+	/**
+	 * Register a colour palette with this surface
+	 * 
+	 * @param cm
+	 *            Colour model to be used with this surface
+	 */
+	public void registerPalette(IndexColorModel cm) {
+		this.colormap = cm;
+
+		backstore.setIndexColorModel(cm);
+	}
+
+	/**
+	 * Set cache for this session
+	 * 
+	 * @param cache
+	 *            Cache to be used in this session
+	 */
+	public void registerCache(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Create an offscreen surface, using the same cache and palette as this
+	 * one. It has no display of its own: it is shown by copying parts of it
+	 * with memory blits.
+	 * 
+	 * @param width
+	 *            Width of surface in pixels
+	 * @param height
+	 *            Height of surface in pixels
+	 * @return New surface, with every pixel black
+	 */
+	public RdesktopSurface createOffscreen(int width, int height) {
+		RdesktopSurface offscreen = new RdesktopSurface(options, width, height);
+		offscreen.registerCache(cache);
+		if (colormap != null)
+			offscreen.registerPalette(colormap);
+		return offscreen;
+	}
+
+	/**
+	 * Display a compressed bitmap direct to the backstore NOTE: Currently not
+	 * functioning correctly, see Bitmap.decompressImgDirect Does not call
+	 * repaint. Image is drawn to canvas on next update
+	 * 
+	 * @param x
+	 *            x coordinate within backstore for drawing of bitmap
+	 * @param y
+	 *            y coordinate within backstore for drawing of bitmap
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param size
+	 *            Size (bytes) of compressed bitmap data
+	 * @param data
+	 *            Packet containing compressed bitmap data at current read
+	 *            position
+	 * @param bpp
+	 *            Bits-per-pixel for bitmap
+	 * @param cm
+	 *            Colour model currently in use, if any
+	 * @throws RdesktopException
+	 */
+	public void displayCompressed(int x, int y, int width, int height,
+			int size, RdpPacket_Localised data, int bpp, IndexColorModel cm)
+			throws RdesktopException {
+		backstore = Bitmap.decompressImgDirect(width, height, size, data, bpp,
+				cm, x, y, backstore);
+	}
+
+	/**
+	 * Draw an image object to the backstore, does not call repaint. Image is
+	 * drawn to canvas on next update.
+	 * 
+	 * @param img
+	 *            Image to draw to backstore
+	 * @param x
+	 *            x coordinate for drawing location
+	 * @param y
+	 *            y coordinate for drawing location
+	 * @throws RdesktopException
+	 */
+	public void displayImage(Image img, int x, int y) {
+
+		Graphics g = backstore.getGraphics();
+		g.drawImage(img, x, y, null);
+		/* ********* Useful test for identifying image boundaries ************ */
+		// g.setColor(Color.RED);
+		// g.drawRect(x,y,data.getWidth(null),data.getHeight(null));
+		g.dispose();
+
+	}
+
+	/**
+	 * Draw an image (from an integer array of colour data) to the backstore,
+	 * does not call repaint. Image is drawn to canvas on next update.
+	 * 
+	 * @param data
+	 *            Integer array of pixel colour information
+	 * @param w
+	 *            Width of image
+	 * @param h
+	 *            Height of image
+	 * @param x
+	 *            x coordinate for drawing location
+	 * @param y
+	 *            y coordinate for drawing location
+	 * @param cx
+	 *            Width of drawn image (clips, does not scale)
+	 * @param cy
+	 *            Height of drawn image (clips, does not scale)
+	 * @throws RdesktopException
+	 */
+	public void displayImage(int[] data, int w, int h, int x, int y, int cx,
+			int cy) {
+		int[] pixels = backstore.cm == null ? backstore.getData() : null;
+		if (pixels == null) {
+			backstore.setRGB(x, y, cx, cy, data, 0, w);
+			return;
+		}
+
+		/* clip to the backstore, then copy straight into its raster */
+		int offset = 0;
+		if (x < 0) {
+			cx += x;
+			offset -= x;
+			x = 0;
+		}
+		if (y < 0) {
+			cy += y;
+			offset -= y * w;
+			y = 0;
+		}
+		if (x + cx > backstore.getWidth())
+			cx = backstore.getWidth() - x;
+		if (y + cy > backstore.getHeight())
+			cy = backstore.getHeight() - y;
+		if (cx <= 0 || cy <= 0)
+			return;
+
+		int stride = backstore.getStride();
+		for (int row = 0; row < cy; row++) {
+			int src = offset + row * w;
+			int dst = (y + row) * stride + x;
+			for (int i = 0; i < cx; i++)
+				pixels[dst + i] = data[src + i] & 0xffffff;
+		}
+
+		/* ********* Useful test for identifying image boundaries ************ */
+		// Graphics g = backstore.getGraphics();
+		// g.drawImage(data,x,y,null);
+		// g.setColor(Color.RED);
+		// g.drawRect(x,y,cx,cy);
+		// g.dispose();
+	}
+
+	/**
+	 * Decompress an interleaved RLE bitmap into the backstore, does not call
+	 * repaint. When the bitmap lies wholly on screen and is not cropped, it
+	 * is decoded straight into the backstore's raster with no intermediate
+	 * array; otherwise it is decoded to an array and drawn clipped.
+	 * 
+	 * @param x
+	 *            x coordinate for drawing location
+	 * @param y
+	 *            y coordinate for drawing location
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param cx
+	 *            Width of drawn image (clips, does not scale)
+	 * @param cy
+	 *            Height of drawn image (clips, does not scale)
+	 * @param compressed
+	 *            Compressed bitmap data
+	 * @param size
+	 *            Size of compressed data in bytes
+	 * @param bpp
+	 *            Bits per-pixel for bitmap
+	 * @throws RdesktopException
+	 */
+	public void displayCompressedInt(int x, int y, int width, int height,
+			int cx, int cy, byte[] compressed, int size, int bpp)
+			throws RdesktopException {
+		int[] pixels = backstore.cm == null ? backstore.getData() : null;
+		if (pixels != null && x >= 0 && y >= 0 && cx == width && cy == height
+				&& x + width <= backstore.getWidth()
+				&& y + height <= backstore.getHeight()) {
+			int stride = backstore.getStride();
+			Bitmap.decompressInt(width, height, compressed, size, bpp,
+					pixels, y * stride + x, stride);
+		} else {
+			int[] pixel = Bitmap.decompressInt(width, height, compressed,
+					size, bpp);
+			displayImage(pixel, width, height, x, y, cx, cy);
+		}
+	}
+
+	/**
+	 * Retrieve an image from the backstore, as integer pixel information
+	 * 
+	 * @param x
+	 *            x coordinate of image to retrieve
+	 * @param y
+	 *            y coordinage of image to retrieve
+	 * @param cx
+	 *            width of image to retrieve
+	 * @param cy
+	 *            height of image to retrieve
+	 * @return Requested area of backstore, as an array of integer pixel colours
+	 */
+	public int[] getImage(int x, int y, int cx, int cy) {
+
+		int[] data = new int[cx * cy];
+
+		data = backstore.getRGB(x, y, cx, cy, null, // no existing image data to
+				// add to
+				0, // retrieving as complete image, no offset needed
+				cx);
+
+		return data;
+	}
+
+	/**
+	 * Draw an image (from an integer array of colour data) to the backstore,
+	 * also calls repaint to draw image to canvas
+	 * 
+	 * @param x
+	 *            x coordinate at which to draw image
+	 * @param y
+	 *            y coordinate at which to draw image
+	 * @param cx
+	 *            Width of drawn image (clips, does not scale)
+	 * @param cy
+	 *            Height of drawn image (clips, does not scale)
+	 * @param data
+	 *            Image to draw, represented as an array of integer pixel
+	 *            colours
+	 */
+	public void putImage(int x, int y, int cx, int cy, int[] data) {
+
+		backstore.setRGBNoConversion(x, y, cx, cy, data, 0, // drawing entire
+				// image, no
+				// offset needed
+				cx);
+
+		this.repaint(x, y, cx, cy);
+	}
+
+	/**
+	 * Reset clipping boundaries for surface
+	 */
+	public void resetClip() {
+		this.top = 0;
+		this.left = 0;
+		this.right = this.width - 1; // changed
+		this.bottom = this.height - 1; // changed
+	}
+
+	/**
+	 * Set clipping boundaries for surface, based on a bounds order
+	 * 
+	 * @param bounds
+	 *            Order defining new boundaries
+	 */
+	public void setClip(BoundsOrder bounds) {
+		// kept within the surface, as fills write to the raster unchecked
+		this.top = Math.max(bounds.getTop(), 0);
+		this.left = Math.max(bounds.getLeft(), 0);
+		this.right = Math.min(bounds.getRight(), this.width - 1);
+		this.bottom = Math.min(bounds.getBottom(), this.height - 1);
+	}
+
+	/**
+	 * Draw a filled rectangle to the screen
+	 * 
+	 * @param x
+	 *            x coordinate (left) of rectangle
+	 * @param y
+	 *            y coordinate (top) of rectangle
+	 * @param cx
+	 *            Width of rectangle
+	 * @param cy
+	 *            Height of rectangle
+	 * @param color
+	 *            Colour of rectangle
+	 */
+	public void fillRectangle(int x, int y, int cx, int cy, int color) {
+		// clip here instead
+		if (x > this.right || y > this.bottom)
+			return; // off screen
+
+		int Bpp = options.Bpp;
+
+		// convert to 24-bit colour
+		color = Bitmap.convertTo24(color, options.server_bpp);
+
+		// correction for 24-bit colour
+		if (Bpp == 3)
+			color = ((color & 0xFF) << 16) | (color & 0xFF00)
+					| ((color & 0xFF0000) >> 16);
+
+		// Perform standard clipping checks, x-axis
+		int clipright = x + cx - 1;
+		if (clipright > this.right)
+			clipright = this.right;
+		if (x < this.left)
+			x = this.left;
+		cx = clipright - x + 1;
+
+		// Perform standard clipping checks, y-axis
+		int clipbottom = y + cy - 1;
+		if (clipbottom > this.bottom)
+			clipbottom = this.bottom;
+		if (y < this.top)
+			y = this.top;
+		cy = clipbottom - y + 1;
+
+		if (cx <= 0 || cy <= 0)
+			return;
+
+		// write the colour straight into the backstore, a row at a time
+		fill(x, y, cx, cy, backstore.checkColor(color));
+
+		// if(logger.isInfoEnabled()) logger.info("rect
+		// \t(\t"+x+",\t"+y+"),(\t"+(x+cx-1)+",\t"+(y+cy-1)+")");
+		this.repaint(x, y, cx, cy); // seems to be faster than Graphics.fillRect
+		// according to JProbe
+	}
+
+	/**
+	 * Draw a line to the screen
+	 * 
+	 * @param x1
+	 *            x coordinate of start point of line
+	 * @param y1
+	 *            y coordinate of start point of line
+	 * @param x2
+	 *            x coordinate of end point of line
+	 * @param y2
+	 *            y coordinate of end point of line
+	 * @param color
+	 *            colour of line
+	 * @param opcode
+	 *            Operation code defining operation to perform on pixels within
+	 *            the line
+	 */
+	public void drawLine(int x1, int y1, int x2, int y2, int color, int opcode) {
+		// convert to 24-bit colour
+		color = Bitmap.convertTo24(color, options.server_bpp);
+
+		if (x1 == x2 || y1 == y2) {
+			drawLineVerticalHorizontal(x1, y1, x2, y2, color, opcode);
+			return;
+		}
+
+		int deltax = Math.abs(x2 - x1); // The difference between the x's
+		int deltay = Math.abs(y2 - y1); // The difference between the y's
+		int x = x1; // Start x off at the first pixel
+		int y = y1; // Start y off at the first pixel
+		int xinc1, xinc2, yinc1, yinc2;
+		int num, den, numadd, numpixels;
+
+		if (x2 >= x1) { // The x-values are increasing
+			xinc1 = 1;
+			xinc2 = 1;
+		} else { // The x-values are decreasing
+			xinc1 = -1;
+			xinc2 = -1;
+		}
+
+		if (y2 >= y1) { // The y-values are increasing
+			yinc1 = 1;
+			yinc2 = 1;
+		} else { // The y-values are decreasing
+			yinc1 = -1;
+			yinc2 = -1;
+		}
+
+		if (deltax >= deltay) { // There is at least one x-value for every
+			// y-value
+			xinc1 = 0; // Don't change the x when numerator >= denominator
+			yinc2 = 0; // Don't change the y for every iteration
+			den = deltax;
+			num = deltax / 2;
+			numadd = deltay;
+			numpixels = deltax; // There are more x-values than y-values
+		} else { // There is at least one y-value for every x-value
+			xinc2 = 0; // Don't change the x for every iteration
+			yinc1 = 0; // Don't change the y when numerator >= denominator
+			den = deltay;
+			num = deltay / 2;
+			numadd = deltax;
+			numpixels = deltay; // There are more y-values than x-values
+		}
+
+		for (int curpixel = 0; curpixel <= numpixels; curpixel++) {
+			setPixel(opcode, x, y, color); // Draw the current pixel
+			num += numadd; // Increase the numerator by the top of the fraction
+			if (num >= den) { // Check if numerator >= denominator
+				num -= den; // Calculate the new numerator value
+				x += xinc1; // Change the x as appropriate
+				y += yinc1; // Change the y as appropriate
+			}
+			x += xinc2; // Change the x as appropriate
+			y += yinc2; // Change the y as appropriate
+		}
+
+		int x_min = x1 < x2 ? x1 : x2;
+		int x_max = x1 > x2 ? x1 : x2;
+		int y_min = y1 < y2 ? y1 : y2;
+		int y_max = y1 > y2 ? y1 : y2;
+
+		this.repaint(x_min, y_min, x_max - x_min + 1, y_max - y_min + 1);
+	}
+
+	/**
+	 * Helper function for drawLine, draws a horizontal or vertical line using a
+	 * much faster method than used for diagonal lines
+	 * 
+	 * @param x1
+	 *            x coordinate of start point of line
+	 * @param y1
+	 *            y coordinate of start point of line
+	 * @param x2
+	 *            x coordinate of end point of line
+	 * @param y2
+	 *            y coordinate of end point of line
+	 * @param color
+	 *            colour of line
+	 * @param opcode
+	 *            Operation code defining operation to perform on pixels within
+	 *            the line
+	 */
+	public void drawLineVerticalHorizontal(int x1, int y1, int x2, int y2,
+			int color, int opcode) {
+		int pbackstore;
+		int i;
+		// only vertical or horizontal lines
+		if (y1 == y2) { // HORIZONTAL
+			if (y1 >= this.top && y1 <= this.bottom) { // visible
+				if (x2 > x1) { // x inc, y1=y2
+					if (x1 < this.left)
+						x1 = this.left;
+					if (x2 > this.right)
+						x2 = this.right;
+					pbackstore = y1 * this.width + x1;
+					for (i = 0; i < x2 - x1; i++) {
+						rop.do_pixel(opcode, backstore, x1 + i, y1, color);
+						pbackstore++;
+					}
+					repaint(x1, y1, x2 - x1 + 1, 1);
+				} else { // x dec, y1=y2
+					if (x2 < this.left)
+						x2 = this.left;
+					if (x1 > this.right)
+						x1 = this.right;
+					pbackstore = y1 * this.width + x1;
+					for (i = 0; i < x1 - x2; i++) {
+						rop.do_pixel(opcode, backstore, x2 + i, y1, color);
+						pbackstore--;
+					}
+					repaint(x2, y1, x1 - x2 + 1, 1);
+				}
+			}
+		} else { // x1==x2 VERTICAL
+			if (x1 >= this.left && x1 <= this.right) { // visible
+				if (y2 > y1) { // x1=x2, y inc
+					if (y1 < this.top)
+						y1 = this.top;
+					if (y2 > this.bottom)
+						y2 = this.bottom;
+					pbackstore = y1 * this.width + x1;
+					for (i = 0; i < y2 - y1; i++) {
+						rop.do_pixel(opcode, backstore, x1, y1 + i, color);
+						pbackstore += this.width;
+					}
+					repaint(x1, y1, 1, y2 - y1 + 1);
+				} else { // x1=x2, y dec
+					if (y2 < this.top)
+						y2 = this.top;
+					if (y1 > this.bottom)
+						y1 = this.bottom;
+					pbackstore = y1 * this.width + x1;
+					for (i = 0; i < y1 - y2; i++) {
+						rop.do_pixel(opcode, backstore, x1, y2 + i, color);
+						pbackstore -= this.width;
+					}
+					repaint(x1, y2, 1, y1 - y2 + 1);
+				}
+			}
+		}
+		// if(logger.isInfoEnabled()) logger.info("line
+		// \t(\t"+x1+",\t"+y1+"),(\t"+x2+",\t"+y2+")");
+	}
+
+	/**
+	 * Draw a line to the screen
+	 * 
+	 * @param line
+	 *            LineOrder describing line to be drawn
+	 */
+	public void drawLineOrder(LineOrder line) {
+		int x1 = line.getStartX();
+		int y1 = line.getStartY();
+		int x2 = line.getEndX();
+		int y2 = line.getEndY();
+
+		int fgcolor = line.getPen().getColor();
+
+		int opcode = line.getOpcode() - 1;
+		drawLine(x1, y1, x2, y2, fgcolor, opcode);
+	}
+
+	/**
+	 * Perform a dest blt
+	 * 
+	 * @param destblt
+	 *            DestBltOrder describing the blit to be performed
+	 */
+	public void drawDestBltOrder(DestBltOrder destblt) {
+		int x = destblt.getX();
+		int y = destblt.getY();
+
+		if (x > this.right || y > this.bottom)
+			return; // off screen
+
+		int cx = destblt.getCX();
+		int cy = destblt.getCY();
+
+		int clipright = x + cx - 1;
+		if (clipright > this.right)
+			clipright = this.right;
+		if (x < this.left)
+			x = this.left;
+		cx = clipright - x + 1;
+
+		int clipbottom = y + cy - 1;
+		if (clipbottom > this.bottom)
+			clipbottom = this.bottom;
+		if (y < this.top)
+			y = this.top;
+		cy = clipbottom - y + 1;
+
+		rop.do_rop3(destblt.getOpcode(), backstore, x, y, cx, cy, null, 0, 0,
+				0, null);
+		this.repaint(x, y, cx, cy);
+
+	}
+
+	/**
+	 * Perform a screen blit
+	 * 
+	 * @param screenblt
+	 *            ScreenBltOrder describing the blit to be performed
+	 */
+	public void drawScreenBltOrder(ScreenBltOrder screenblt) {
+		int x = screenblt.getX();
+		int y = screenblt.getY();
+
+		if (x > this.right || y > this.bottom)
+			return; // off screen
+
+		int cx = screenblt.getCX();
+		int cy = screenblt.getCY();
+		int srcx = screenblt.getSrcX();
+		int srcy = screenblt.getSrcY();
+
+		int clipright = x + cx - 1;
+		if (clipright > this.right)
+			clipright = this.right;
+		if (x < this.left)
+			x = this.left;
+		cx = clipright - x + 1;
+
+		int clipbottom = y + cy - 1;
+		if (clipbottom > this.bottom)
+			clipbottom = this.bottom;
+		if (y < this.top)
+			y = this.top;
+		cy = clipbottom - y + 1;
+
+		srcx += x - screenblt.getX();
+		srcy += y - screenblt.getY();
+
+		// source must lie on the surface too
+		if (srcx < 0) {
+			x -= srcx;
+			cx += srcx;
+			srcx = 0;
+		}
+		if (srcy < 0) {
+			y -= srcy;
+			cy += srcy;
+			srcy = 0;
+		}
+		cx = Math.min(cx, this.width - srcx);
+		cy = Math.min(cy, this.height - srcy);
+
+		rop.do_rop3(screenblt.getOpcode(), backstore, x, y, cx, cy, backstore
+				.getData(), backstore.getStride(), srcx, srcy, null);
+		this.repaint(x, y, cx, cy);
+
+	}
+
+	/**
+	 * Perform a memory blit
+	 * 
+	 * @param memblt
+	 *            MemBltOrder describing the blit to be performed
+	 */
+	public void drawMemBltOrder(MemBltOrder memblt) {
+		int x = memblt.getX();
+		int y = memblt.getY();
+
+		if (x > this.right || y > this.bottom)
+			return; // off screen
+
+		int cx = memblt.getCX();
+		int cy = memblt.getCY();
+		int srcx = memblt.getSrcX();
+		int srcy = memblt.getSrcY();
+
+		// Perform standard clipping checks, x-axis
+		int clipright = x + cx - 1;
+		if (clipright > this.right)
+			clipright = this.right;
+		if (x < this.left)
+			x = this.left;
+		cx = clipright - x + 1;
+
+		// Perform standard clipping checks, y-axis
+		int clipbottom = y + cy - 1;
+		if (clipbottom > this.bottom)
+			clipbottom = this.bottom;
+		if (y < this.top)
+			y = this.top;
+		cy = clipbottom - y + 1;
+
+		srcx += x - memblt.getX();
+		srcy += y - memblt.getY();
+
+		if (logger.isInfoEnabled())
+			logger.info("MEMBLT x=" + x + " y=" + y + " cx=" + cx + " cy=" + cy
+					+ " srcx=" + srcx + " srcy=" + srcy + " opcode="
+					+ memblt.getOpcode());
+		try {
+			if (memblt.getCacheID() == BITMAPCACHE_SCREEN_ID) {
+				RdesktopSurface src = cache.getOffscreen(memblt.getCacheIDX());
+				cx = Math.min(cx, src.width - srcx);
+				cy = Math.min(cy, src.height - srcy);
+				rop.do_rop3(memblt.getOpcode(), backstore, x, y, cx, cy,
+						src.backstore, srcx, srcy);
+				this.repaint(x, y, cx, cy);
+				return;
+			}
+
+			Bitmap bitmap = cache.getBitmap(memblt.getCacheID(), memblt
+					.getCacheIDX());
+			// IndexColorModel cm = cache.get_colourmap(memblt.getColorTable());
+			// should use the colormap, but requires high color backstore...
+			cx = Math.min(cx, bitmap.getWidth() - srcx);
+			cy = Math.min(cy, bitmap.getHeight() - srcy);
+			rop.do_rop3(memblt.getOpcode(), backstore, x, y, cx, cy, bitmap
+					.getBitmapData(), bitmap.getWidth(), srcx, srcy, null);
+
+			this.repaint(x, y, cx, cy);
+		} catch (RdesktopException e) {
+		}
+	}
+
+	/**
+	 * Draw a pattern to the screen (pattern blit)
+	 * 
+	 * @param opcode
+	 *            ROP3 code defining operation to be performed
+	 * @param x
+	 *            x coordinate for left of blit area
+	 * @param y
+	 *            y coordinate for top of blit area
+	 * @param cx
+	 *            Width of blit area
+	 * @param cy
+	 *            Height of blit area
+	 * @param fgcolor
+	 *            Foreground colour for pattern
+	 * @param bgcolor
+	 *            Background colour for pattern
+	 * @param brush
+	 *            Brush object defining pattern to be drawn
+	 */
+	public void patBltOrder(int opcode, int x, int y, int cx, int cy,
+			int fgcolor, int bgcolor, Brush brush) {
+
+		// convert to 24-bit colour
+		fgcolor = Bitmap.convertTo24(fgcolor, options.server_bpp);
+		bgcolor = Bitmap.convertTo24(bgcolor, options.server_bpp);
+
+		// Perform standard clipping checks, x-axis
+		int clipright = x + cx - 1;
+		if (clipright > this.right)
+			clipright = this.right;
+		if (x < this.left)
+			x = this.left;
+		cx = clipright - x + 1;
+
+		// Perform standard clipping checks, y-axis
+		int clipbottom = y + cy - 1;
+		if (clipbottom > this.bottom)
+			clipbottom = this.bottom;
+		if (y < this.top)
+			y = this.top;
+		cy = clipbottom - y + 1;
+
+		if (cx <= 0 || cy <= 0)
+			return;
+
+		switch (brush.getStyle()) {
+		case 0: // solid
+			if (opcode == ROP3_PATCOPY)
+				fill(x, y, cx, cy, backstore.checkColor(fgcolor));
+			else
+				rop.do_rop3(opcode, backstore, x, y, cx, cy, null, 0, 0, 0,
+						brushPattern(brush, fgcolor, bgcolor));
+			this.repaint(x, y, cx, cy);
+
+			break;
+
+		case 2: // hatch
+			System.out.println("hatch");
+			break;
+
+		case 3: // pattern
+			int brushx = brush.getXOrigin();
+			int brushy = brush.getYOrigin();
+			byte[] pattern = brush.getPattern();
+			byte[] ipattern = pattern;
+
+			/*
+			 * // not sure if this inversion is needed byte[] ipattern = new
+			 * byte[8]; for(i=0;i<ipattern.length;i++) {
+			 * ipattern[ipattern.length-1-i] = pattern[i]; }
+			 */
+
+			if (opcode == ROP3_PATCOPY)
+				fillPattern(x, y, cx, cy, backstore.checkColor(fgcolor),
+						backstore.checkColor(bgcolor), ipattern, brushx,
+						brushy);
+			else
+				rop.do_rop3(opcode, backstore, x, y, cx, cy, null, 0, 0, 0,
+						brushPattern(brush, fgcolor, bgcolor));
+			this.repaint(x, y, cx, cy);
+			break;
+		default:
+			logger.warn("Unsupported brush style " + brush.getStyle());
+		}
+	}
+
+	/**
+	 * Fill an area of the backstore with a single colour. The area must
+	 * already be clipped to the surface.
+	 * 
+	 * @param color
+	 *            Colour as 0xRRGGBB, already converted from the colour map
+	 */
+	private void fill(int x, int y, int cx, int cy, int color) {
+		int[] pixels = backstore.getData();
+		if (pixels == null) {
+			Graphics g = backstore.getGraphics();
+			g.setColor(new java.awt.Color(color));
+			g.fillRect(x, y, cx, cy);
+			g.dispose();
+			return;
+		}
+
+		color &= 0xffffff;
+		int stride = backstore.getStride();
+		int p = y * stride + x;
+		for (int row = 0; row < cy; row++, p += stride)
+			Arrays.fill(pixels, p, p + cx, color);
+	}
+
+	/**
+	 * Fill an area of the backstore with an 8x8 two colour pattern. The first
+	 * eight pixels of each line are drawn from the pattern and then copied
+	 * along the line in doubling runs; from the ninth line on, each line is a
+	 * copy of the line eight above it. The area must already be clipped to
+	 * the surface.
+	 * 
+	 * @param fgcolor
+	 *            Colour for clear pattern bits, as 0xRRGGBB
+	 * @param bgcolor
+	 *            Colour for set pattern bits, as 0xRRGGBB
+	 * @param pattern
+	 *            Eight bytes of pattern, one per line
+	 * @param brushx
+	 *            Horizontal offset of the pattern
+	 * @param brushy
+	 *            Vertical offset of the pattern
+	 */
+	private void fillPattern(int x, int y, int cx, int cy, int fgcolor,
+			int bgcolor, byte[] pattern, int brushx, int brushy) {
+		int[] pixels = backstore.getData();
+		if (pixels == null) {
+			int[] src = scratch(cx * cy);
+			for (int i = 0, p = 0; i < cy; i++) {
+				for (int j = 0; j < cx; j++)
+					src[p++] = (pattern[(i + brushy) % 8] & (0x01 << ((j + brushx) % 8))) == 0 ? fgcolor
+							: bgcolor;
+			}
+			backstore.setRGBNoConversion(x, y, cx, cy, src, 0, cx);
+			return;
+		}
+
+		fgcolor &= 0xffffff;
+		bgcolor &= 0xffffff;
+		int stride = backstore.getStride();
+		int start = Math.min(cx, 8);
+		int p = y * stride + x;
+		for (int i = 0; i < cy; i++, p += stride) {
+			if (i >= 8) {
+				System.arraycopy(pixels, p - 8 * stride, pixels, p, cx);
+				continue;
+			}
+			int bits = pattern[(i + brushy) % 8];
+			for (int j = 0; j < start; j++)
+				pixels[p + j] = (bits & (0x01 << ((j + brushx) % 8))) == 0 ? fgcolor
+						: bgcolor;
+			for (int done = start; done < cx; done <<= 1)
+				System.arraycopy(pixels, p, pixels, p + done, Math.min(done,
+						cx - done));
+		}
+	}
+
+	/**
+	 * Expand a brush into the 8x8 array of colours taken by
+	 * RasterOp.do_rop3(), aligned to the top left of the area drawn
+	 * 
+	 * @param brush
+	 *            Solid or pattern brush
+	 * @param fgcolor
+	 *            Colour of solid brushes and clear pattern bits
+	 * @param bgcolor
+	 *            Colour of set pattern bits
+	 * @return Brush colours, overwritten by the next call
+	 */
+	private int[] brushPattern(Brush brush, int fgcolor, int bgcolor) {
+		if (brush.getStyle() != 3) {
+			Arrays.fill(brush_pattern, fgcolor);
+			return brush_pattern;
+		}
+
+		int brushx = brush.getXOrigin();
+		int brushy = brush.getYOrigin();
+		byte[] pattern = brush.getPattern();
+		for (int i = 0; i < 8; i++) {
+			int bits = pattern[(i + brushy) % 8];
+			for (int j = 0; j < 8; j++)
+				brush_pattern[i * 8 + j] = (bits & (0x01 << ((j + brushx) % 8))) == 0 ? fgcolor
+						: bgcolor;
+		}
+		return brush_pattern;
+	}
+
+	/**
+	 * Get a work array of at least the given size, kept between calls so that
+	 * drawing does not allocate for every order
+	 */
+	private int[] scratch(int size) {
+		if (scratch == null || scratch.length < size)
+			scratch = new int[size];
+		return scratch;
+	}
+
+	/**
+	 * Perform a pattern blit on the screen
+	 * 
+	 * @param patblt
+	 *            PatBltOrder describing the blit to be performed
+	 */
+	public void drawPatBltOrder(PatBltOrder patblt) {
+		Brush brush = patblt.getBrush();
+		int x = patblt.getX();
+		int y = patblt.getY();
+
+		if (x > this.right || y > this.bottom)
+			return; // off screen
+
+		int cx = patblt.getCX();
+		int cy = patblt.getCY();
+		int fgcolor = patblt.getForegroundColor();
+		int bgcolor = patblt.getBackgroundColor();
+		int opcode = patblt.getOpcode();
+
+		patBltOrder(opcode, x, y, cx, cy, fgcolor, bgcolor, brush);
+	}
+
+	/**
+	 * Perform a tri blit on the screen
+	 * 
+	 * @param triblt
+	 *            TriBltOrder describing the blit
+	 */
+	public void drawTriBltOrder(TriBltOrder triblt) {
+		int x = triblt.getX();
+		int y = triblt.getY();
+
+		if (x > this.right || y > this.bottom)
+			return; // off screen
+
+		int cx = triblt.getCX();
+		int cy = triblt.getCY();
+		int srcx = triblt.getSrcX();
+		int srcy = triblt.getSrcY();
+		int fgcolor = triblt.getForegroundColor();
+		int bgcolor = triblt.getBackgroundColor();
+		Brush brush = triblt.getBrush();
+
+		// convert to 24-bit colour
+		fgcolor = Bitmap.convertTo24(fgcolor, options.server_bpp);
+		bgcolor = Bitmap.convertTo24(bgcolor, options.server_bpp);
+
+		// Perform standard clipping checks, x-axis
+		int clipright = x + cx - 1;
+		if (clipright > this.right)
+			clipright = this.right;
+		if (x < this.left)
+			x = this.left;
+		cx = clipright - x + 1;
+
+		// Perform standard clipping checks, y-axis
+		int clipbottom = y + cy - 1;
+		if (clipbottom > this.bottom)
+			clipbottom = this.bottom;
+		if (y < this.top)
+			y = this.top;
+		cy = clipbottom - y + 1;
+
+		srcx += x - triblt.getX();
+		srcy += y - triblt.getY();
+
+		try {
+			Bitmap bitmap = cache.getBitmap(triblt.getCacheID(), triblt
+					.getCacheIDX());
+			cx = Math.min(cx, bitmap.getWidth() - srcx);
+			cy = Math.min(cy, bitmap.getHeight() - srcy);
+			// any ROP3 code, with pattern, source and destination in one pass
+			rop.do_rop3(triblt.getOpcode(), backstore, x, y, cx, cy, bitmap
+					.getBitmapData(), bitmap.getWidth(), srcx, srcy,
+					brushPattern(brush, fgcolor, bgcolor));
+			this.repaint(x, y, cx, cy);
+		} catch (RdesktopException e) {
+		}
+	}
+
+	/**
+	 * Parse a delta co-ordinate in polyline order form
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	static int parse_delta(byte[] buffer, int[] offset) {
+		int value = buffer[offset[0]++] & 0xff;
+		int two_byte = value & 0x80;
+
+		if ((value & 0x40) != 0) /* sign bit */
+			value |= ~0x3f;
+		else
+			value &= 0x3f;
+
+		if (two_byte != 0)
+			value = (value << 8) | (buffer[offset[0]++] & 0xff);
+
+		return value;
+	}
+
+	/**
+	 * Draw a multi-point set of lines to the screen
+	 * 
+	 * @param polyline
+	 *            PolyLineOrder describing the set of lines to draw
+	 */
+	public void drawPolyLineOrder(PolyLineOrder polyline) {
+		int x = polyline.getX();
+		int y = polyline.getY();
+		int fgcolor = polyline.getForegroundColor();
+		int datasize = polyline.getDataSize();
+		byte[] databytes = polyline.getData();
+		int lines = polyline.getLines();
+
+		// convert to 24-bit colour
+		fgcolor = Bitmap.convertTo24(fgcolor, options.server_bpp);
+
+		// hack - data as single element byte array so can pass by ref to
+		// parse_delta
+		// see http://www.rgagnon.com/javadetails/java-0035.html
+
+		int[] data = new int[1];
+		data[0] = ((lines - 1) / 4) + 1;
+		int flags = 0;
+		int index = 0;
+
+		int opcode = polyline.getOpcode() - 1;
+
+		for (int line = 0; (line < lines) && (data[0] < datasize); line++) {
+			int xfrom = x;
+			int yfrom = y;
+
+			if (line % 4 == 0)
+				flags = databytes[index++];
+
+			if ((flags & 0xc0) == 0)
+				flags |= 0xc0; /* none = both */
+
+			if ((flags & 0x40) != 0)
+				x += parse_delta(databytes, data);
+
+			if ((flags & 0x80) != 0)
+				y += parse_delta(databytes, data);
+			// logger.info("polyline
+			// "+line+","+xfrom+","+yfrom+","+x+","+y+","+fgcolor+","+opcode);
+
+			drawLine(xfrom, yfrom, x, y, fgcolor, opcode);
+			flags <<= 2;
+		}
+	}
+
+	/**
+	 * Draw a rectangle to the screen
+	 * 
+	 * @param rect
+	 *            RectangleOrder defining the rectangle to be drawn
+	 */
+	public void drawRectangleOrder(RectangleOrder rect) {
+		// if(logger.isInfoEnabled()) logger.info("RectangleOrder!");
+		fillRectangle(rect.getX(), rect.getY(), rect.getCX(), rect.getCY(),
+				rect.getColor());
+	}
+
+	/**
+	 * Perform an operation on a pixel in the backstore
+	 * 
+	 * @param opcode
+	 *            ID of operation to perform
+	 * @param x
+	 *            x coordinate of pixel
+	 * @param y
+	 *            y coordinate of pixel
+	 * @param color
+	 *            Colour value to be used in operation
+	 */
+	public void setPixel(int opcode, int x, int y, int color) {
+		int Bpp = options.Bpp;
+
+		// correction for 24-bit colour
+		if (Bpp == 3)
+			color = ((color & 0xFF) << 16) | (color & 0xFF00)
+					| ((color & 0xFF0000) >> 16);
+
+		if ((x < this.left) || (x > this.right) || (y < this.top)
+				|| (y > this.bottom)) { // Clip
+		} else {
+			rop.do_pixel(opcode, backstore, x, y, color);
+		}
+	}
+
+	/**
+	 * Draw a single glyph to the screen
+	 * 
+	 * @param mixmode
+	 *            0 for transparent background, specified colour for background
+	 *            otherwide
+	 * @param x
+	 *            x coordinate on screen at which to draw glyph
+	 * @param y
+	 *            y coordinate on screen at which to draw glyph
+	 * @param glyph
+	 *            Glyph to draw
+	 * @param bgcolor
+	 *            Background colour for glyph pattern
+	 * @param fgcolor
+	 *            Foreground colour for glyph pattern
+	 */
+	public void drawGlyph(int mixmode, int x, int y, Glyph glyph, int bgcolor,
+			int fgcolor) {
+		if (putGlyph(mixmode, x, y, glyph, textColor(bgcolor),
+				textColor(fgcolor)))
+			this.repaint(x, y, glyph.getWidth(), glyph.getHeight());
+	}
+
+	/**
+	 * Draw a run of glyphs to the screen, such as a cached text fragment
+	 * 
+	 * @param mixmode
+	 *            0 for transparent background, specified colour for background
+	 *            otherwide
+	 * @param x
+	 *            x coordinate on screen from which glyphs are placed
+	 * @param y
+	 *            y coordinate on screen from which glyphs are placed
+	 * @param glyphs
+	 *            Glyphs to draw
+	 * @param xs
+	 *            x coordinate of each glyph, relative to x
+	 * @param ys
+	 *            y coordinate of each glyph, relative to y
+	 * @param count
+	 *            Number of glyphs to draw
+	 * @param bgcolor
+	 *            Background colour for glyph pattern
+	 * @param fgcolor
+	 *            Foreground colour for glyph pattern
+	 */
+	public void drawGlyphs(int mixmode, int x, int y, Glyph[] glyphs,
+			int[] xs, int[] ys, int count, int bgcolor, int fgcolor) {
+		bgcolor = textColor(bgcolor);
+		fgcolor = textColor(fgcolor);
+
+		/* the glyphs are usually on one line, so mark the area they span */
+		int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE;
+		int x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			int gx = x + xs[i], gy = y + ys[i];
+			if (!putGlyph(mixmode, gx, gy, glyphs[i], bgcolor, fgcolor))
+				continue;
+			x1 = Math.min(x1, gx);
+			y1 = Math.min(y1, gy);
+			x2 = Math.max(x2, gx + glyphs[i].getWidth());
+			y2 = Math.max(y2, gy + glyphs[i].getHeight());
+		}
+		if (x1 < x2)
+			this.repaint(x1, y1, x2 - x1, y2 - y1);
+	}
+
+	/* Convert a text colour sent by the server to a backstore pixel */
+	private int textColor(int color) {
+		// convert to 24-bit colour
+		color = Bitmap.convertTo24(color, options.server_bpp);
+
+		// correction for 24-bit colour
+		if (options.Bpp == 3)
+			color = ((color & 0xFF) << 16) | (color & 0xFF00)
+					| ((color & 0xFF0000) >> 16);
+		return backstore.checkColor(color) & 0xffffff;
+	}
+
+	/*
+	 * Draw a glyph, clipped, a row at a time. In transparent mode each run of
+	 * set pixels is filled with the foreground; in opaque mode every pixel is
+	 * written, choosing the colour with the glyph's mask rather than a
+	 * branch. Returns false if the glyph is clipped away; the caller marks
+	 * the area drawn.
+	 */
+	private boolean putGlyph(int mixmode, int x, int y, Glyph glyph,
+			int bgcolor, int fgcolor) {
+		int x1 = Math.max(x, this.left);
+		int y1 = Math.max(y, this.top);
+		int x2 = Math.min(x + glyph.getWidth(), this.right + 1);
+		int y2 = Math.min(y + glyph.getHeight(), this.bottom + 1);
+		if (x1 >= x2 || y1 >= y2)
+			return false;
+
+		int[] pixels = backstore.getData();
+		if (pixels == null)
+			return false;
+		int stride = backstore.getStride();
+
+		if (mixmode != MIX_TRANSPARENT) {
+			byte[] mask = glyph.getMask();
+			int width = glyph.getWidth();
+			int diff = fgcolor ^ bgcolor;
+			for (int row = y1; row < y2; row++) {
+				int p = row * stride + x1;
+				int m = (row - y) * width + (x1 - x);
+				for (int i = x1; i < x2; i++)
+					pixels[p++] = bgcolor ^ (mask[m++] & diff);
+			}
+			return true;
+		}
+
+		int[] runs = glyph.getRuns();
+		int[] rows = glyph.getRows();
+		for (int row = y1; row < y2; row++) {
+			int line = row * stride;
+			int end = rows[row - y + 1];
+			for (int i = rows[row - y]; i < end; i += 2) {
+				int stop = line + Math.min(x + runs[i + 1], x2);
+				for (int p = line + Math.max(x + runs[i], x1); p < stop; p++)
+					pixels[p] = fgcolor;
+			}
+		}
+		return true;
+	}
+
+}
@@ -34,11 +34,17 @@ import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.image.IndexColorModel;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.NoRouteToHostException;
 import java.net.UnknownHostException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import net.propero.rdp.crypto.CryptoException;
 import net.propero.rdp.rdp5.VChannels;
@@ -72,8 +78,12 @@ public class Rdp {
 
 	public static final int RDP_LOGON_AUTO = 0x8;
 
+	public static final int RDP_LOGON_COMPRESSION = 0x80;
+
 	public static final int RDP_LOGON_BLOB = 0x100;
 
+	public static final int RDP_LOGON_COMPRESSION2 = 0x200;
+
 	// PDU Types
 	private static final int RDP_PDU_DEMAND_ACTIVE = 1;
 
@@ -100,6 +110,8 @@ public class Rdp {
 
 	private static final int RDP_DATA_PDU_FONT2 = 39;
 
+	private static final int RDP_DATA_PDU_BMPCACHE_PERSISTENT_LIST = 43;
+
 	private static final int RDP_DATA_PDU_DISCONNECT = 47;
 
 	// Control PDU types
@@ -134,6 +146,15 @@ public class Rdp {
 	// System Pointer Types
 	private static final int RDP_NULL_POINTER = 0;
 
+	/* surface command types */
+	private static final int CMDTYPE_SET_SURFACE_BITS = 0x0001;
+
+	private static final int CMDTYPE_FRAME_MARKER = 0x0004;
+
+	private static final int CMDTYPE_STREAM_SURFACE_BITS = 0x0006;
+
+	private static final int RDP_CODEC_ID_NONE = 0;
+
 	private static final int RDP_DEFAULT_POINTER = 0x7F00;
 
 	// Input Devices
@@ -147,6 +168,26 @@ public class Rdp {
 
 	private static final int RDP_INPUT_MOUSE = 0x8001;
 
+	private static final int KBD_FLAG_EXT = 0x0100;
+
+	private static final int KBD_FLAG_UP = 0x8000;
+
+	private static final int MOUSE_FLAG_MOVE = 0x0800;
+
+	/* fast-path input event codes and flags */
+	private static final int FASTPATH_INPUT_EVENT_SCANCODE = 0x0;
+
+	private static final int FASTPATH_INPUT_EVENT_MOUSE = 0x1;
+
+	private static final int FASTPATH_INPUT_EVENT_SYNC = 0x3;
+
+	private static final int FASTPATH_INPUT_KBDFLAGS_RELEASE = 0x01;
+
+	private static final int FASTPATH_INPUT_KBDFLAGS_EXTENDED = 0x02;
+
+	/* most events a fast-path header can count, also used as the batch size */
+	private static final int MAX_INPUT_EVENTS = 15;
+
 	/* RDP capabilities */
 	private static final int RDP_CAPSET_GENERAL = 1;
 
@@ -198,12 +239,35 @@ public class Rdp {
 
 	private static final int RDP_CAPLEN_UNKNOWN = 0x9C;
 
+	private static final int RDP_CAPSET_INPUT = 13;
+
+	private static final int INPUT_FLAG_FASTPATH_INPUT = 0x0008;
+
+	private static final int INPUT_FLAG_FASTPATH_INPUT2 = 0x0020;
+
 	private static final int RDP_CAPSET_BMPCACHE2 = 19;
 
 	private static final int RDP_CAPLEN_BMPCACHE2 = 0x28;
 
 	private static final int BMPCACHE2_FLAG_PERSIST = (1 << 31);
 
+	private static final int RDP_CAPSET_BMPCACHE_HOSTSUPPORT = 18;
+
+	private static final int RDP_CAPSET_OFFSCREEN = 17;
+
+	private static final int RDP_CAPLEN_OFFSCREEN = 0x0C;
+
+	/* cache version of a host that accepts persistent key lists */
+	private static final int BMPCACHE_REV2 = 1;
+
+	/* flags of the persistent key list PDU */
+	private static final int PERSIST_FIRST_PDU = 0x01;
+
+	private static final int PERSIST_LAST_PDU = 0x02;
+
+	/* most keys sent in one persistent key list PDU */
+	private static final int PERSIST_MAX_KEYS = 169;
+
 	/* RDP bitmap cache (version 2) constants */
 	public static final int BMPCACHE2_C0_CELLS = 0x78;
 
@@ -233,9 +297,16 @@ public class Rdp {
 
 	protected Secure SecureLayer = null;
 
+	protected final RdpContext context;
+
+	protected final Options options;
+
 	private RdesktopFrame frame = null;
 
-	private RdesktopCanvas surface = null;
+	private RdesktopSurface surface = null;
+
+	/* displays the surface, or null when running headless */
+	private RdesktopCanvas canvas = null;
 
 	protected Orders orders = null;
 
@@ -243,12 +314,48 @@ public class Rdp {
 
 	private int next_packet = 0;
 
+	/* true if the server's input capabilities accept fast-path input */
+	private boolean server_fastpath_input = false;
+
+	/* true if the server accepts the keys of the persistent bitmap cache */
+	private boolean server_bmpcache_persistent = false;
+
+	/* pending input events, five ints each: time, type, flags, param1, param2 */
+	private final int[] input_events = new int[MAX_INPUT_EVENTS * 5];
+
+	private int input_count = 0;
+
+	private final Object input_lock = new Object();
+
+	private Timer input_timer = null;
+
+	private boolean input_flush_pending = false;
+
 	private int rdp_shareid = 0;
 
 	private boolean connected = false;
 
 	private RdpPacket_Localised stream = null;
 
+	/* number of bitmaps saved to options.bitmap_capture_dir */
+	private int captured_bitmaps = 0;
+
+	/* decodes the rectangles of bitmap updates in parallel, made on first use */
+	private static ForkJoinPool bitmap_pool = null;
+
+	/* hands updates to the rendering thread, null when drawing inline */
+	protected UpdateQueue updates = null;
+
+	/* virtual channels of the connection, whose workers stop with it */
+	protected final VChannels channels;
+
+	/* bulk decompressor for PDUs on the global channel */
+	protected MPPC mppc = new MPPC();
+
+	/* holds the output of mppc, reused for every compressed PDU */
+	protected RdpPacket_Localised mppc_stream = new RdpPacket_Localised(
+			MPPC.RDP_MPPC_DICT_SIZE);
+
 	/*
 	 * private final byte[] canned_caps = { (byte)0x01, (byte)0x00, (byte)0x00,
 	 * (byte)0x00, (byte)0x09, (byte)0x04, (byte)0x00, (byte)0x00, (byte)0x04,
@@ -320,14 +427,14 @@ public class Rdp {
 	 * @param data
 	 *            Packet containing capability set data at current read position
 	 */
-	static void processGeneralCaps(RdpPacket_Localised data) {
+	void processGeneralCaps(RdpPacket_Localised data) {
 		int pad2octetsB; /* rdp5 flags? */
 
 		data.incrementPosition(10); // in_uint8s(s, 10);
 		pad2octetsB = data.getLittleEndian16(); // in_uint16_le(s, pad2octetsB);
 
 		if (pad2octetsB != 0)
-			Options.use_rdp5 = false;
+			options.use_rdp5 = false;
 	}
 
 	/**
@@ -336,7 +443,7 @@ public class Rdp {
 	 * @param data
 	 *            Packet containing capability set data at current read position
 	 */
-	static void processBitmapCaps(RdpPacket_Localised data) {
+	void processBitmapCaps(RdpPacket_Localised data) {
 		int width, height, bpp;
 
 		bpp = data.getLittleEndian16(); // in_uint16_le(s, bpp);
@@ -352,16 +459,16 @@ public class Rdp {
 		 * The server may limit bpp and change the size of the desktop (for
 		 * example when shadowing another session).
 		 */
-		if (Options.server_bpp != bpp) {
-			logger.warn("colour depth changed from " + Options.server_bpp
+		if (options.server_bpp != bpp) {
+			logger.warn("colour depth changed from " + options.server_bpp
 					+ " to " + bpp);
-			Options.server_bpp = bpp;
+			options.set_bpp(bpp);
 		}
-		if (Options.width != width || Options.height != height) {
-			logger.warn("screen size changed from " + Options.width + "x"
-					+ Options.height + " to " + width + "x" + height);
-			Options.width = width;
-			Options.height = height;
+		if (options.width != width || options.height != height) {
+			logger.warn("screen size changed from " + options.width + "x"
+					+ options.height + " to " + width + "x" + height);
+			options.width = width;
+			options.height = height;
 			// ui_resize_window(); TODO: implement resize thingy
 		}
 	}
@@ -378,6 +485,8 @@ public class Rdp {
 		int ncapsets, capset_type, capset_length;
 
 		start = data.getPosition();
+		server_fastpath_input = false;
+		server_bmpcache_persistent = false;
 
 		ncapsets = data.getLittleEndian16(); // in_uint16_le(s, ncapsets);
 		data.incrementPosition(2); // in_uint8s(s, 2); /* pad */
@@ -401,6 +510,15 @@ public class Rdp {
 			case RDP_CAPSET_BITMAP:
 				processBitmapCaps(data);
 				break;
+
+			case RDP_CAPSET_INPUT:
+				int flags = data.getLittleEndian16();
+				server_fastpath_input = (flags & (INPUT_FLAG_FASTPATH_INPUT | INPUT_FLAG_FASTPATH_INPUT2)) != 0;
+				break;
+
+			case RDP_CAPSET_BMPCACHE_HOSTSUPPORT:
+				server_bmpcache_persistent = data.get8() == BMPCACHE_REV2;
+				break;
 			}
 
 			data.setPosition(next);
@@ -425,7 +543,7 @@ public class Rdp {
 	                logger.warn("Unsupported version of Auto-Reconnect packet\n");
 	                return;
 	            }
-	            Rdesktop.gReconnectLogonid = data.getLittleEndian32();
+	            context.reconnect_logonid = data.getLittleEndian32();
 	            data.incrementPosition(16);
 	            //...
 	        }
@@ -447,14 +565,21 @@ public class Rdp {
 	/**
 	 * Initialise RDP comms layer, and register virtual channels
 	 * 
+	 * @param context
+	 *            Session this layer belongs to
 	 * @param channels
 	 *            Virtual channels to be used in connection
 	 */
-	public Rdp(VChannels channels) {
-		this.SecureLayer = new Secure(channels);
-		Common.secure = SecureLayer;
-		this.orders = new Orders();
-		this.cache = new Cache();
+	public Rdp(RdpContext context, VChannels channels) {
+		this.context = context;
+		this.options = context.options;
+		this.channels = channels;
+		this.SecureLayer = new Secure(context, channels);
+		context.secure = SecureLayer;
+		this.orders = new Orders(context);
+		context.pstcache = new PstCache(context);
+		this.cache = new Cache(options, context.pstcache);
+		context.cache = cache;
 		orders.registerCache(cache);
 	}
 
@@ -492,28 +617,30 @@ public class Rdp {
 	private void sendData(RdpPacket_Localised data, int data_pdu_type)
 			throws RdesktopException, IOException, CryptoException {
 
-		CommunicationMonitor.lock(this);
-
-		int length;
-
-		data.setPosition(data.getHeader(RdpPacket.RDP_HEADER));
-		length = data.getEnd() - data.getPosition();
-
-		data.setLittleEndian16(length);
-		data.setLittleEndian16(RDP_PDU_DATA | 0x10);
-		data.setLittleEndian16(SecureLayer.getUserID() + 1001);
-
-		data.setLittleEndian32(this.rdp_shareid);
-		data.set8(0); // pad
-		data.set8(1); // stream id
-		data.setLittleEndian16(length - 14);
-		data.set8(data_pdu_type);
-		data.set8(0); // compression type
-		data.setLittleEndian16(0); // compression length
-
-		SecureLayer.send(data, Constants.encryption ? Secure.SEC_ENCRYPT : 0);
-
-		CommunicationMonitor.unlock(this);
+		context.monitor.lock(this);
+		try {
+			int length;
+
+			data.setPosition(data.getHeader(RdpPacket.RDP_HEADER));
+			length = data.getEnd() - data.getPosition();
+
+			data.setLittleEndian16(length);
+			data.setLittleEndian16(RDP_PDU_DATA | 0x10);
+			data.setLittleEndian16(SecureLayer.getUserID() + 1001);
+
+			data.setLittleEndian32(this.rdp_shareid);
+			data.set8(0); // pad
+			data.set8(1); // stream id
+			data.setLittleEndian16(length - 14);
+			data.set8(data_pdu_type);
+			data.set8(0); // compression type
+			data.setLittleEndian16(0); // compression length
+
+			SecureLayer.send(data, Constants.encryption ? Secure.SEC_ENCRYPT
+					: 0);
+		} finally {
+			context.monitor.unlock(this);
+		}
 	}
 
 	/**
@@ -552,7 +679,7 @@ public class Rdp {
 			stream.incrementPosition(2);//user id
 		}
 		
-		if (Options.debug_hexdump) {
+		if (options.debug_hexdump) {
 		    byte[] packet = new byte[length];
 		    stream.copyToByteArray(packet, 0, next_packet, length);
             System.out.println(String.format("\nreceive RDP packet"));
@@ -600,7 +727,7 @@ public class Rdp {
 		catch (ConnectException e) {
 			throw new ConnectionException(
 					"Connection refused when trying to connect to " + server
-							+ " on port " + Options.port);
+							+ " on port " + options.port);
 		}
 		// Handle a timeout on connecting
 		catch (NoRouteToHostException e) {
@@ -626,6 +753,14 @@ public class Rdp {
 	 */
 	public void disconnect() {
 		this.connected = false;
+		cache.saveState();
+		context.pstcache.pstcache_close();
+		synchronized (input_lock) {
+			if (input_timer != null) {
+				input_timer.cancel();
+				input_timer = null;
+			}
+		}
 		SecureLayer.disconnect();
 	}
 
@@ -660,6 +795,25 @@ public class Rdp {
 			throws IOException, RdesktopException, OrderException,
 			CryptoException {
 		int[] type = new int[1];
+
+		if (options.render_queue > 0)
+			updates = new UpdateQueue(this, options.render_queue,
+					options.max_fps);
+		try {
+			mainLoop(deactivated, ext_disc_reason, type);
+		} finally {
+			if (updates != null) {
+				updates.shutdown();
+				updates = null;
+			}
+			channels.shutdown();
+		}
+	}
+
+	/* Receive and dispatch PDUs until the session ends */
+	private void mainLoop(boolean[] deactivated, int[] ext_disc_reason,
+			int[] type) throws IOException, RdesktopException,
+			OrderException, CryptoException {
 		boolean disc = false; /* True when a disconnect PDU was received */
 		boolean cont = true;
 
@@ -673,11 +827,14 @@ public class Rdp {
 			} catch (EOFException e) {
 				return;
 			}
-System.out.println("dataType=" + type[0]);
+
 			switch (type[0]) {
 
 			case (Rdp.RDP_PDU_DEMAND_ACTIVE):
 				logger.debug("Rdp.RDP_PDU_DEMAND_ACTIVE");
+				// the order state is reset, so wait for the renderer first
+				if (updates != null)
+					updates.drain();
 				// get this after licence negotiation, just before the 1st
 				// order...
 				NDC.push("processDemandActive");
@@ -685,8 +842,9 @@ System.out.println("dataType=" + type[0]);
 				// can use this to trigger things that have to be done before
 				// 1st order
 				logger.debug("ready to send (got past licence negotiation)");
-				Rdesktop.readytosend = true;
-				frame.triggerReadyToSend();
+				context.readytosend = true;
+				if (frame != null)
+					frame.triggerReadyToSend();
 				NDC.pop();
 				deactivated[0] = false;
 				break;
@@ -754,9 +912,15 @@ System.out.println("dataType=" + type[0]);
 		int commandlen = 2 * command.length();
 		int dirlen = 2 * directory.length();
 
+		if (options.compression) {
+			flags |= RDP_LOGON_COMPRESSION;
+			if (options.use_rdp5)
+				flags |= RDP_LOGON_COMPRESSION2; // 64K history
+		}
+
 		RdpPacket_Localised data;
 
-		if (!Options.use_rdp5 || 1 == Options.server_rdp_version) {
+		if (!options.use_rdp5 || 1 == options.server_rdp_version) {
 			logger.debug("Sending RDP4-style Logon packet");
 
 			data = SecureLayer.init(sec_flags, 18 + domainlen + userlen
@@ -891,14 +1055,12 @@ System.out.println("dataType=" + type[0]);
 			data.setLittleEndian32(0); // out_uint32(s, 0);
 			data.setLittleEndian32(0xffffffc4); // out_uint32_le(s, 0xffffffc4);
 			data.setLittleEndian32(0); // out_uint32_le(s, 0xfffffffe);
-			data.setLittleEndian32(Options.rdp5_performanceflags); // out_uint32_le(s,
+			data.setLittleEndian32(options.rdp5_performanceflags); // out_uint32_le(s,
 			// 0x0f);
 			data.setLittleEndian32(0); // out_uint32(s, 0);
 		}
 
 		data.markEnd();
-		byte[] buffer = new byte[data.getEnd()];
-		data.copyToByteArray(buffer, 0, 0, data.getEnd());
 		SecureLayer.send(data, sec_flags);
 	}
 
@@ -917,8 +1079,13 @@ System.out.println("dataType=" + type[0]);
 			throws RdesktopException, IOException, CryptoException,
 			OrderException {
 		int type[] = new int[1];
+		int len_src_descriptor, len_combined_caps;
 
 		this.rdp_shareid = data.getLittleEndian32();
+		len_src_descriptor = data.getLittleEndian16();
+		len_combined_caps = data.getLittleEndian16();
+		data.incrementPosition(len_src_descriptor);
+		this.processServerCaps(data, len_combined_caps);
 
 		this.sendConfirmActive();
 
@@ -931,6 +1098,7 @@ System.out.println("dataType=" + type[0]);
 		this.receive(type); // Receive RDP_CTL_GRANT_CONTROL
 
 		this.sendInput(0, RDP_INPUT_SYNCHRONIZE, 0, 0, 0);
+		this.sendPersistentKeyList();
 		this.sendFonts(1);
 		this.sendFonts(2);
 
@@ -962,14 +1130,23 @@ System.out.println("dataType=" + type[0]);
 		ctype = data.get8(); // compression type
 		clen = data.getLittleEndian16(); // compression length
 		clen -= 18;
-		
-		System.out.println("data_pdu_type=" + data_type);
+
+		int end = next_packet;
+		if ((ctype & MPPC.RDP_MPPC_COMPRESSED) != 0) {
+			if (len > MPPC.RDP_MPPC_DICT_SIZE) {
+				throw new RdesktopException(
+						"Decompressed packet size exceeds max");
+			}
+			mppc.expand(data, clen, ctype, mppc_stream);
+			data = mppc_stream;
+			end = data.getEnd();
+		}
 
 		switch (data_type) {
 
 		case (Rdp.RDP_DATA_PDU_UPDATE):
 			logger.debug("Rdp.RDP_DATA_PDU_UPDATE");
-			this.processUpdate(data);
+			this.queueUpdate(UpdateQueue.SLOW_PATH_UPDATE, 0, data, end);
 			break;
 
 		case RDP_DATA_PDU_CONTROL:
@@ -982,7 +1159,7 @@ System.out.println("dataType=" + type[0]);
 
 		case (Rdp.RDP_DATA_PDU_POINTER):
 			logger.debug("Received pointer PDU");
-			this.processPointer(data);
+			this.queueUpdate(UpdateQueue.SLOW_PATH_POINTER, 0, data, end);
 			break;
 		case (Rdp.RDP_DATA_PDU_BELL):
 			logger.debug("Received bell PDU");
@@ -991,7 +1168,7 @@ System.out.println("dataType=" + type[0]);
 			break;
 		case (Rdp.RDP_DATA_PDU_LOGON):
 			logger.debug("User logged on");
-			Rdesktop.loggedon = true;
+			context.loggedon = true;
 			processPduLogon(data);
 			break;
 		case RDP_DATA_PDU_DISCONNECT:
@@ -1010,8 +1187,71 @@ System.out.println("dataType=" + type[0]);
 		return false;
 	}
 
-	private void processUpdate(RdpPacket_Localised data) throws OrderException,
-			RdesktopException {
+	/**
+	 * Draw an update now, or pass it to the rendering thread if one is
+	 * running
+	 * 
+	 * @param kind
+	 *            Kind of update, as defined in UpdateQueue
+	 * @param code
+	 *            Fast-path update code
+	 * @param data
+	 *            Packet positioned at the start of the update
+	 * @param end
+	 *            Offset of the end of the update within data
+	 * @throws RdesktopException
+	 * @throws OrderException
+	 */
+	protected void queueUpdate(int kind, int code, RdpPacket_Localised data,
+			int end) throws RdesktopException, OrderException {
+		if (updates != null)
+			updates.put(kind, code, data, end);
+		else {
+			renderUpdate(kind, code, data, end);
+			flushUpdates();
+		}
+	}
+
+	/**
+	 * Show everything drawn so far. Called after each update, or by the
+	 * rendering thread once it has caught up or a frame has passed, so the
+	 * damage from a run of updates is repainted together.
+	 */
+	protected void flushUpdates() {
+		if (surface != null)
+			surface.flush();
+	}
+
+	/**
+	 * Draw an update, on the rendering thread if one is running
+	 * 
+	 * @param kind
+	 *            Kind of update, as defined in UpdateQueue
+	 * @param code
+	 *            Fast-path update code
+	 * @param data
+	 *            Packet positioned at the start of the update
+	 * @param end
+	 *            Offset of the end of the update within data
+	 * @throws RdesktopException
+	 * @throws OrderException
+	 */
+	protected void renderUpdate(int kind, int code, RdpPacket_Localised data,
+			int end) throws RdesktopException, OrderException {
+		switch (kind) {
+		case UpdateQueue.SLOW_PATH_UPDATE:
+			processUpdate(data, end);
+			break;
+		case UpdateQueue.SLOW_PATH_POINTER:
+			processPointer(data);
+			break;
+		default:
+			logger.warn("Unknown update kind " + kind);
+		}
+	}
+
+	private void processUpdate(RdpPacket_Localised data, int end)
+			throws OrderException, RdesktopException {
 		int update_type = 0;
 
 		update_type = data.getLittleEndian16();
@@ -1022,7 +1262,7 @@ System.out.println("dataType=" + type[0]);
 			data.incrementPosition(2); // pad
 			int n_orders = data.getLittleEndian16();
 			data.incrementPosition(2); // pad
-			this.orders.processOrders(data, next_packet, n_orders);
+			this.orders.processOrders(data, end, n_orders);
 			break;
 		case (Rdp.RDP_UPDATE_BITMAP):
 			this.processBitmapUpdates(data);
@@ -1039,7 +1279,7 @@ System.out.println("dataType=" + type[0]);
 
 	private void sendConfirmActive() throws RdesktopException, IOException,
     		CryptoException {
-        int sec_flags = Options.encryption ? (RDP5_FLAG | Secure.SEC_ENCRYPT)
+        int sec_flags = options.encryption ? (RDP5_FLAG | Secure.SEC_ENCRYPT)
                 : RDP5_FLAG;
         
     	int caplen = RDP_CAPLEN_GENERAL + RDP_CAPLEN_BITMAP + RDP_CAPLEN_ORDER
@@ -1052,7 +1292,14 @@ System.out.println("dataType=" + type[0]);
     	// Purpose
     	// unknown
     	
-    	if (Options.use_rdp5) {
+    	int numcaps = 0xd;
+    	boolean offscreen = options.use_rdp5 && options.offscreen_cache_kb > 0;
+    	if (offscreen) {
+    		caplen += RDP_CAPLEN_OFFSCREEN;
+    		numcaps++;
+    	}
+
+    	if (options.use_rdp5) {
             caplen += RDP_CAPLEN_BMPCACHE2;
             caplen += RDP_CAPLEN_NEWPOINTER;
         } else {
@@ -1068,7 +1315,7 @@ System.out.println("dataType=" + type[0]);
     
     	data.setLittleEndian16(2 + 14 + caplen + RDP_SOURCE.length);
     	data.setLittleEndian16((RDP_PDU_CONFIRM_ACTIVE | 0x10));
-    	data.setLittleEndian16(Common.mcs.getUserID() /* McsUserID() */+ 1001);
+    	data.setLittleEndian16(context.mcs.getUserID() /* McsUserID() */+ 1001);
     
     	data.setLittleEndian32(this.rdp_shareid);
     	data.setLittleEndian16(0x3ea); // user id
@@ -1078,7 +1325,7 @@ System.out.println("dataType=" + type[0]);
     	data.copyFromByteArray(RDP_SOURCE, 0, data.getPosition(),
     			RDP_SOURCE.length);
     	data.incrementPosition(RDP_SOURCE.length);
-    	data.setLittleEndian16(0xd); // num_caps
+    	data.setLittleEndian16(numcaps); // num_caps
     	data.incrementPosition(2); // pad
     
     	this.sendGeneralCaps(data);
@@ -1086,7 +1333,7 @@ System.out.println("dataType=" + type[0]);
     	this.sendBitmapCaps(data);
     	this.sendOrderCaps(data);
     
-    	if (Options.use_rdp5) {
+    	if (options.use_rdp5) {
     		logger.info("Persistent caching enabled");
     		this.sendBitmapcache2Caps(data);
     		this.sendNewPointerCaps(data);
@@ -1099,6 +1346,8 @@ System.out.println("dataType=" + type[0]);
     	this.sendActivateCaps(data);
     	this.sendControlCaps(data);
     	this.sendShareCaps(data);
+    	if (offscreen)
+    		this.sendOffscreenCaps(data);
     	// this.sendUnknownCaps(data);
     
     	this.sendUnknownCaps(data, 0x0d, 0x58, caps_0x0d); // rdp_out_unknown_caps(s,
@@ -1119,7 +1368,7 @@ System.out.println("dataType=" + type[0]);
     	data.markEnd();
     	logger.debug("confirm active");
     	// this.send(data, RDP_PDU_CONFIRM_ACTIVE);
-    	Common.secure.send(data, sec_flags);
+    	SecureLayer.send(data, sec_flags);
     }
 
 	private void sendGeneralCaps(RdpPacket_Localised data) {
@@ -1132,8 +1381,8 @@ System.out.println("dataType=" + type[0]);
 		data.setLittleEndian16(0x200); /* Protocol version */
 		data.setLittleEndian16(0);//pad
 		data.setLittleEndian16(0); /* Compression types */
-		data.setLittleEndian16(Options.use_rdp5 ? 0x40d : 0);
-		// data.setLittleEndian16(Options.use_rdp5 ? 0x1d04 : 0); // this seems
+		data.setLittleEndian16(options.use_rdp5 ? 0x40d : 0);
+		// data.setLittleEndian16(options.use_rdp5 ? 0x1d04 : 0); // this seems
 		/*
 		 * Pad, according to T.128. 0x40d seems to trigger the server to start
 		 * sending RDP5 packets. However, the value is 0x1d04 with W2KTSK and
@@ -1151,7 +1400,7 @@ System.out.println("dataType=" + type[0]);
 		data.setLittleEndian16(RDP_CAPSET_BITMAP);
 		data.setLittleEndian16(RDP_CAPLEN_BITMAP);
 
-		data.setLittleEndian16(Options.server_bpp); /* Preferred BPP */
+		data.setLittleEndian16(options.server_bpp); /* Preferred BPP */
 		data.setLittleEndian16(1); /* Receive 1 BPP */
 		data.setLittleEndian16(1); /* Receive 4 BPP */
 		data.setLittleEndian16(1); /* Receive 8 BPP */
@@ -1159,7 +1408,7 @@ System.out.println("dataType=" + type[0]);
 		data.setLittleEndian16(600); /* Desktop height */
 		data.setLittleEndian16(0); /* Pad */
 		data.setLittleEndian16(1); /* Allow resize */
-		data.setLittleEndian16(Options.bitmap_compression ? 1 : 0); /*
+		data.setLittleEndian16(options.bitmap_compression ? 1 : 0); /*
 																	 * Support
 																	 * compression
 																	 */
@@ -1174,7 +1423,7 @@ System.out.println("dataType=" + type[0]);
 		order_caps[0] = 1;    /* dest blt */
 	    order_caps[1] = 1;  /* pat blt */
 	    order_caps[2] = 1;  /* screen blt */
-	    order_caps[3] = (byte) (Options.bitmap_caching ? 1 : 0);   /* memblt */
+	    order_caps[3] = (byte) (options.bitmap_caching ? 1 : 0);   /* memblt */
 	    order_caps[4] = 0;  /* triblt */
 	    order_caps[8] = 1;  /* line */
 	    order_caps[9] = 1;  /* line */
@@ -1182,11 +1431,11 @@ System.out.println("dataType=" + type[0]);
 	    order_caps[11] = (byte) (Constants.desktop_save ? 1 : 0);  /* desksave */
 	    order_caps[13] = 1; /* memblt */
 	    order_caps[14] = 1; /* triblt */
-	    order_caps[20] = (byte) (Options.polygon_ellipse_orders ? 1 : 0);    /* polygon */
-	    order_caps[21] = (byte) (Options.polygon_ellipse_orders ? 1 : 0);    /* polygon2 */
+	    order_caps[20] = (byte) (options.polygon_ellipse_orders ? 1 : 0);    /* polygon */
+	    order_caps[21] = (byte) (options.polygon_ellipse_orders ? 1 : 0);    /* polygon2 */
 	    order_caps[22] = 1; /* polyline */
-	    order_caps[25] = (byte) (Options.polygon_ellipse_orders ? 1 : 0);    /* ellipse */
-	    order_caps[26] = (byte) (Options.polygon_ellipse_orders ? 1 : 0);    /* ellipse2 */
+	    order_caps[25] = (byte) (options.polygon_ellipse_orders ? 1 : 0);    /* ellipse */
+	    order_caps[26] = (byte) (options.polygon_ellipse_orders ? 1 : 0);    /* ellipse2 */
 	    order_caps[27] = 1; /* text2 */
 	    
 		data.setLittleEndian16(RDP_CAPSET_ORDER);
@@ -1227,6 +1476,10 @@ System.out.println("dataType=" + type[0]);
 		data.setLittleEndian16(0x400); /* max cell size */
 		data.setLittleEndian16(0x106); /* entries */
 		data.setLittleEndian16(0x1000); /* max cell size */
+
+		cache.setBitmapCells(0, 0x258, 0x258);
+		cache.setBitmapCells(1, 0x12c, 0x12c);
+		cache.setBitmapCells(2, 0x106, 0x106);
 	}
 
 	/* Output bitmap cache v2 capability set */
@@ -1236,7 +1489,7 @@ System.out.println("dataType=" + type[0]);
 		data.setLittleEndian16(RDP_CAPLEN_BMPCACHE2); // out_uint16_le(s,
 		// RDP_CAPLEN_BMPCACHE2);
 
-		data.setLittleEndian16(Options.persistent_bitmap_caching ? 2 : 0); /* version */
+		data.setLittleEndian16(options.persistent_bitmap_caching ? 2 : 0); /* version */
 
 		data.setBigEndian16(3); /* number of caches in this set */
 
@@ -1250,13 +1503,19 @@ System.out.println("dataType=" + type[0]);
 		// (BMPCACHE2_NUM_PSTCELLS | BMPCACHE2_FLAG_PERSIST) :
 		// BMPCACHE2_C2_CELLS);
 
-		if (PstCache.pstcache_init(2)) {
+		cache.setBitmapCells(0, BMPCACHE2_C0_CELLS, BMPCACHE2_C0_CELLS);
+		cache.setBitmapCells(1, BMPCACHE2_C1_CELLS, BMPCACHE2_C1_CELLS);
+		if (context.pstcache.pstcache_init(2)) {
 			logger.info("Persistent cache initialized");
 			data.setLittleEndian32(BMPCACHE2_NUM_PSTCELLS
 					| BMPCACHE2_FLAG_PERSIST);
+			// only the most recent cells are kept in memory
+			cache.setBitmapCells(2, BMPCACHE2_NUM_PSTCELLS,
+					BMPCACHE2_C2_CELLS);
 		} else {
 			logger.info("Persistent cache not initialized");
 			data.setLittleEndian32(BMPCACHE2_C2_CELLS);
+			cache.setBitmapCells(2, BMPCACHE2_C2_CELLS, BMPCACHE2_C2_CELLS);
 		}
 		data.incrementPosition(20); // out_uint8s(s, 20); /* other bitmap caches
 		// not used */
@@ -1311,6 +1570,17 @@ System.out.println("dataType=" + type[0]);
         data.setLittleEndian16(20); /* Cache size for new pointers */
 	}
 
+	private void sendOffscreenCaps(RdpPacket_Localised data) {
+
+		data.setLittleEndian16(RDP_CAPSET_OFFSCREEN);
+		data.setLittleEndian16(RDP_CAPLEN_OFFSCREEN);
+
+		data.setLittleEndian32(1); /* offscreen surfaces supported */
+		/* size in KB and number of surfaces, within the protocol's limits */
+		data.setLittleEndian16(Math.min(options.offscreen_cache_kb, 7680));
+		data.setLittleEndian16(Math.min(options.offscreen_cache_entries, 500));
+	}
+
 	private void sendShareCaps(RdpPacket_Localised data) {
 
 		data.setLittleEndian16(RDP_CAPSET_SHARE);
@@ -1357,43 +1627,226 @@ System.out.println("dataType=" + type[0]);
 		this.sendData(data, RDP_DATA_PDU_CONTROL);
 	}
 
+	/**
+	 * Queue an input event for the server. Mouse moves are held back for
+	 * options.input_coalesce_ms, and a move following another pending move
+	 * replaces it. Any other event is sent at once, together with whatever
+	 * is already queued.
+	 * 
+	 * @param time
+	 *            Event time
+	 * @param message_type
+	 *            Input message type, RDP_INPUT_*
+	 * @param device_flags
+	 *            Keyboard or mouse flags
+	 * @param param1
+	 *            Scancode, or x coordinate of mouse
+	 * @param param2
+	 *            y coordinate of mouse
+	 */
 	public void sendInput(int time, int message_type, int device_flags,
 			int param1, int param2) {
-		RdpPacket_Localised data = null;
+		boolean move = message_type == RDP_INPUT_MOUSE
+				&& device_flags == MOUSE_FLAG_MOVE;
+
+		synchronized (input_lock) {
+			int i = (input_count - 1) * 5;
+			if (move && input_count > 0 && input_events[i + 1] == RDP_INPUT_MOUSE
+					&& input_events[i + 2] == MOUSE_FLAG_MOVE) {
+				input_events[i] = time;
+				input_events[i + 3] = param1;
+				input_events[i + 4] = param2;
+				return;
+			}
+
+			if (input_count == MAX_INPUT_EVENTS)
+				flushInput();
+
+			i = input_count++ * 5;
+			input_events[i] = time;
+			input_events[i + 1] = message_type;
+			input_events[i + 2] = device_flags;
+			input_events[i + 3] = param1;
+			input_events[i + 4] = param2;
+
+			if (move && options.input_coalesce_ms > 0) {
+				if (!input_flush_pending) {
+					if (input_timer == null)
+						input_timer = new Timer(true);
+					input_timer.schedule(new TimerTask() {
+						public void run() {
+							synchronized (input_lock) {
+								if (input_flush_pending)
+									flushInput();
+							}
+						}
+					}, options.input_coalesce_ms);
+					input_flush_pending = true;
+				}
+				return;
+			}
+
+			flushInput();
+		}
+	}
+
+	/* Send all queued input events in one PDU, caller must hold input_lock */
+	private void flushInput() {
+		input_flush_pending = false;
+		if (input_count == 0)
+			return;
+
 		try {
-			data = this.initData(16);
-		} catch (RdesktopException e) {
-			Rdesktop.error(e, this, frame, false);
+			if (options.fastpath_input && server_fastpath_input
+					&& canSendFastPath())
+				sendFastPathInput();
+			else
+				sendSlowPathInput();
+		} catch (RdesktopException r) {
+			if (isConnected())
+				Rdesktop.error(r, this, frame, true);
+			context.exit();
+		} catch (CryptoException c) {
+			if (isConnected())
+				Rdesktop.error(c, this, frame, true);
+			context.exit();
+		} catch (IOException i) {
+			if (isConnected())
+				Rdesktop.error(i, this, frame, true);
+			context.exit();
+		} finally {
+			input_count = 0;
 		}
+	}
+
+	/* Check that every queued event has a fast-path encoding */
+	private boolean canSendFastPath() {
+		for (int i = 0; i < input_count; i++) {
+			int type = input_events[i * 5 + 1];
+			if (type != RDP_INPUT_SCANCODE && type != RDP_INPUT_MOUSE
+					&& type != RDP_INPUT_SYNCHRONIZE)
+				return false;
+		}
+		return true;
+	}
+
+	private void sendSlowPathInput() throws RdesktopException, IOException,
+			CryptoException {
+		RdpPacket_Localised data = this.initData(4 + input_count * 12);
 
-		data.setLittleEndian16(1); /* number of events */
+		data.setLittleEndian16(input_count); /* number of events */
 		data.setLittleEndian16(0); /* pad */
 
-		data.setLittleEndian32(time);
-		data.setLittleEndian16(message_type);
-		data.setLittleEndian16(device_flags);
-		data.setLittleEndian16(param1);
-		data.setLittleEndian16(param2);
+		for (int i = 0; i < input_count * 5; i += 5) {
+			data.setLittleEndian32(input_events[i]);
+			data.setLittleEndian16(input_events[i + 1]);
+			data.setLittleEndian16(input_events[i + 2]);
+			data.setLittleEndian16(input_events[i + 3]);
+			data.setLittleEndian16(input_events[i + 4]);
+		}
+
+		data.markEnd();
+		this.sendData(data, RDP_DATA_PDU_INPUT);
+	}
+
+	private void sendFastPathInput() throws RdesktopException, IOException,
+			CryptoException {
+		RdpPacket_Localised data = SecureLayer.init_fastpath(input_count * 7);
+
+		for (int i = 0; i < input_count * 5; i += 5) {
+			int flags = input_events[i + 2];
+			switch (input_events[i + 1]) {
+			case RDP_INPUT_SCANCODE:
+				int kbdflags = 0;
+				if ((flags & KBD_FLAG_UP) != 0)
+					kbdflags |= FASTPATH_INPUT_KBDFLAGS_RELEASE;
+				if ((flags & KBD_FLAG_EXT) != 0)
+					kbdflags |= FASTPATH_INPUT_KBDFLAGS_EXTENDED;
+				data.set8((FASTPATH_INPUT_EVENT_SCANCODE << 5) | kbdflags);
+				data.set8(input_events[i + 3]);
+				break;
+			case RDP_INPUT_MOUSE:
+				data.set8(FASTPATH_INPUT_EVENT_MOUSE << 5);
+				data.setLittleEndian16(flags);
+				data.setLittleEndian16(input_events[i + 3]);
+				data.setLittleEndian16(input_events[i + 4]);
+				break;
+			case RDP_INPUT_SYNCHRONIZE:
+				data.set8((FASTPATH_INPUT_EVENT_SYNC << 5)
+						| (input_events[i + 3] & 0x1f));
+				break;
+			}
+		}
 
 		data.markEnd();
-		// logger.info("input");
-		// if(logger.isInfoEnabled()) logger.info(data);
 
+		context.monitor.lock(this);
 		try {
-			this.sendData(data, RDP_DATA_PDU_INPUT);
-		} catch (RdesktopException r) {
-			if (Common.rdp.isConnected())
-				Rdesktop.error(r, Common.rdp, Common.frame, true);
-			Common.exit();
-		} catch (CryptoException c) {
-			if (Common.rdp.isConnected())
-				Rdesktop.error(c, Common.rdp, Common.frame, true);
-			Common.exit();
-		} catch (IOException i) {
-			if (Common.rdp.isConnected())
-				Rdesktop.error(i, Common.rdp, Common.frame, true);
-			Common.exit();
+			SecureLayer.send_fastpath(data, input_count);
+		} finally {
+			context.monitor.unlock(this);
+		}
+	}
+
+	/**
+	 * Send the keys of the bitmaps held in the persistent cache, so that the
+	 * server can refer to them instead of sending them again. The keys are
+	 * only sent once per connection, and only to servers that advertise
+	 * support for them; those bitmaps are then loaded into memory.
+	 * 
+	 * @throws RdesktopException
+	 * @throws IOException
+	 * @throws CryptoException
+	 */
+	private void sendPersistentKeyList() throws RdesktopException,
+			IOException, CryptoException {
+		if (!context.pstcache.IS_PERSISTENT(2))
+			return;
+		if (!server_bmpcache_persistent) {
+			logger.info("Server does not accept persistent bitmap cache keys");
+			return;
+		}
+
+		byte[] keylist = new byte[8 * BMPCACHE2_NUM_PSTCELLS];
+		int num_keys = context.pstcache.pstcache_enumerate(2, keylist);
+		if (num_keys == 0)
+			return;
+
+		int offset = 0;
+		while (offset < num_keys) {
+			int count = Math.min(num_keys - offset, PERSIST_MAX_KEYS);
+			int flags = 0;
+			if (offset == 0)
+				flags |= PERSIST_FIRST_PDU;
+			if (offset + count == num_keys)
+				flags |= PERSIST_LAST_PDU;
+
+			RdpPacket_Localised data = this.initData(24 + count * 8);
+
+			/* entries in this PDU, then in the whole list, for caches 0 - 4 */
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(count);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(num_keys);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(0);
+			data.setLittleEndian32(flags);
+
+			data.copyFromByteArray(keylist, offset * 8, data.getPosition(),
+					count * 8);
+			data.incrementPosition(count * 8);
+
+			data.markEnd();
+			this.sendData(data, RDP_DATA_PDU_BMPCACHE_PERSISTENT_LIST);
+			offset += count;
 		}
+		logger.debug("sent " + num_keys + " persistent bitmap cache keys");
+
+		context.pstcache.pstcache_precache(2, num_keys);
 	}
 
 	private void sendFonts(int seq) throws RdesktopException, IOException,
@@ -1425,8 +1878,8 @@ System.out.println("dataType=" + type[0]);
 			x = data.getLittleEndian16();
 			y = data.getLittleEndian16();
 
-			if (data.getPosition() <= data.getEnd()) {
-				surface.movePointer(x, y);
+			if (data.getPosition() <= data.getEnd() && canvas != null) {
+				canvas.movePointer(x, y);
 			}
 			break;
 
@@ -1460,7 +1913,8 @@ System.out.println("dataType=" + type[0]);
 		switch (system_pointer_type) {
 		case RDP_NULL_POINTER:
 			logger.debug("RDP_NULL_POINTER");
-			surface.setCursor(null);
+			if (canvas != null)
+				canvas.setCursor(null);
 			break;
 
 		default:
@@ -1486,6 +1940,12 @@ System.out.println("dataType=" + type[0]);
 
 		n_updates = data.getLittleEndian16();
 
+		if (options.parallel_bitmaps && n_updates > 1
+				&& options.bitmap_decompression_store == Options.INTEGER_BITMAP_DECOMPRESSION) {
+			processBitmapUpdatesParallel(data, n_updates);
+			return;
+		}
+
 		for (int i = 0; i < n_updates; i++) {
 
 			left = data.getLittleEndian16();
@@ -1512,10 +1972,10 @@ System.out.println("dataType=" + type[0]);
 				maxY = bottom;
 
 			/* Server may limit bpp - this is how we find out */
-			if (Options.server_bpp != bitsperpixel) {
+			if (options.server_bpp != bitsperpixel) {
 				logger.warn("Server limited colour depth to " + bitsperpixel
 						+ " bits");
-				Options.set_bpp(bitsperpixel);
+				options.set_bpp(bitsperpixel);
 			}
 
 			if (compression == 0) {
@@ -1528,8 +1988,8 @@ System.out.println("dataType=" + type[0]);
 					data.incrementPosition(width * Bpp);
 				}
 
-				surface.displayImage(Bitmap.convertImage(pixel, Bpp), width,
-						height, left, top, cx, cy);
+				surface.displayImage(Bitmap.convertImage(pixel, bitsperpixel),
+						width, height, left, top, cx, cy);
 				continue;
 			}
 
@@ -1544,39 +2004,250 @@ System.out.println("dataType=" + type[0]);
 				data.incrementPosition(4); // line size, final size
 
 			}
+			if (options.bitmap_capture_dir != null)
+				captureBitmap(data, width, height, bitsperpixel, size);
 			if (Bpp == 1) {
 				pixel = Bitmap.decompress(width, height, size, data, Bpp);
 				if (pixel != null)
-					surface.displayImage(Bitmap.convertImage(pixel, Bpp),
-							width, height, left, top, cx, cy);
+					surface.displayImage(Bitmap.convertImage(pixel,
+							bitsperpixel), width, height, left, top, cx, cy);
 				else
 					logger.warn("Could not decompress bitmap");
 			} else {
 
-				if (Options.bitmap_decompression_store == Options.INTEGER_BITMAP_DECOMPRESSION) {
-					int[] pixeli = Bitmap.decompressInt(width, height, size,
-							data, Bpp);
-					if (pixeli != null)
-						surface.displayImage(pixeli, width, height, left, top,
-								cx, cy);
-					else
-						logger.warn("Could not decompress bitmap");
-				} else if (Options.bitmap_decompression_store == Options.BUFFEREDIMAGE_BITMAP_DECOMPRESSION) {
+				if (options.bitmap_decompression_store == Options.INTEGER_BITMAP_DECOMPRESSION) {
+					byte[] compressed = new byte[size];
+					data.copyToByteArray(compressed, 0, data.getPosition(), size);
+					data.incrementPosition(size);
+					surface.displayCompressedInt(left, top, width, height, cx,
+							cy, compressed, size, bitsperpixel);
+				} else if (options.bitmap_decompression_store == Options.BUFFEREDIMAGE_BITMAP_DECOMPRESSION) {
 					Image pix = Bitmap.decompressImg(width, height, size, data,
-							Bpp, null);
+							bitsperpixel, null);
 					if (pix != null)
 						surface.displayImage(pix, left, top);
 					else
 						logger.warn("Could not decompress bitmap");
 				} else {
 					surface.displayCompressed(left, top, width, height, size,
-							data, Bpp, null);
+							data, bitsperpixel, null);
+				}
+			}
+		}
+		surface.repaint(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/**
+	 * One rectangle of a bitmap update, sliced out of the packet so that it
+	 * can be decoded away from the thread that parsed it
+	 */
+	private static class BitmapTile extends RecursiveAction {
+		private static final long serialVersionUID = -8404443128145615247L;
+
+		int left, top, cx, cy, width, height, bpp, Bpp, size;
+
+		boolean compressed;
+
+		/* decode straight into the backstore, as no other tile overlaps */
+		RdesktopSurface direct;
+
+		byte[] data;
+
+		int[] pixel;
+
+		RdesktopException error;
+
+		boolean overlaps(BitmapTile t) {
+			return left < t.left + t.cx && t.left < left + cx
+					&& top < t.top + t.cy && t.top < top + cy;
+		}
+
+		protected void compute() {
+			try {
+				if (direct != null) {
+					direct.displayCompressedInt(left, top, width, height, cx,
+							cy, data, size, bpp);
+				} else if (!compressed) {
+					/* uncompressed bitmaps are stored bottom-up */
+					int scanline = width * Bpp;
+					byte[] flipped = new byte[height * scanline];
+					for (int y = 0; y < height; y++)
+						System.arraycopy(data, y * scanline, flipped,
+								(height - y - 1) * scanline, scanline);
+					pixel = Bitmap.convertImage(flipped, bpp);
+				} else if (Bpp == 1) {
+					byte[] raw = Bitmap.decompress(width, height, data, size,
+							Bpp);
+					if (raw != null)
+						pixel = Bitmap.convertImage(raw, bpp);
+				} else {
+					pixel = Bitmap.decompressInt(width, height, data, size, bpp);
+				}
+			} catch (RdesktopException e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Decode the rectangles of a bitmap update on the bitmap pool. Each
+	 * rectangle is blitted in packet order as soon as it and all those before
+	 * it are ready, then a single repaint covers the whole update. Compressed
+	 * rectangles that overlap no other are decoded straight into the
+	 * backstore instead.
+	 * 
+	 * @param data
+	 *            Packet positioned after the update count
+	 * @param n_updates
+	 *            Number of rectangles in the update
+	 * @throws RdesktopException
+	 */
+	private void processBitmapUpdatesParallel(RdpPacket_Localised data,
+			int n_updates) throws RdesktopException {
+		BitmapTile[] tiles = new BitmapTile[n_updates];
+		int right, bottom, bitsperpixel, compression, buffersize;
+		int minX, minY, maxX, maxY;
+
+		maxX = maxY = 0;
+		minX = surface.getWidth();
+		minY = surface.getHeight();
+
+		synchronized (Rdp.class) {
+			if (bitmap_pool == null)
+				bitmap_pool = new ForkJoinPool();
+		}
+
+		for (int i = 0; i < n_updates; i++) {
+			BitmapTile tile = new BitmapTile();
+			tile.left = data.getLittleEndian16();
+			tile.top = data.getLittleEndian16();
+			right = data.getLittleEndian16();
+			bottom = data.getLittleEndian16();
+			tile.width = data.getLittleEndian16();
+			tile.height = data.getLittleEndian16();
+			bitsperpixel = data.getLittleEndian16();
+			tile.bpp = bitsperpixel;
+			tile.Bpp = (bitsperpixel + 7) / 8;
+			compression = data.getLittleEndian16();
+			buffersize = data.getLittleEndian16();
+
+			tile.cx = right - tile.left + 1;
+			tile.cy = bottom - tile.top + 1;
+
+			if (minX > tile.left)
+				minX = tile.left;
+			if (minY > tile.top)
+				minY = tile.top;
+			if (maxX < right)
+				maxX = right;
+			if (maxY < bottom)
+				maxY = bottom;
+
+			/* Server may limit bpp - this is how we find out */
+			if (options.server_bpp != bitsperpixel) {
+				logger.warn("Server limited colour depth to " + bitsperpixel
+						+ " bits");
+				options.set_bpp(bitsperpixel);
+			}
+
+			if (compression == 0) {
+				tile.size = tile.width * tile.height * tile.Bpp;
+			} else {
+				tile.compressed = true;
+				if ((compression & 0x400) != 0) {
+					tile.size = buffersize;
+				} else {
+					data.incrementPosition(2); // pad
+					tile.size = data.getLittleEndian16();
+					data.incrementPosition(4); // line size, final size
 				}
 			}
+
+			if (data.getPosition() + tile.size > data.getEnd())
+				throw new RdesktopException("Bitmap data overruns packet");
+			if (tile.compressed && options.bitmap_capture_dir != null)
+				captureBitmap(data, tile.width, tile.height, bitsperpixel,
+						tile.size);
+			tile.data = new byte[tile.size];
+			data.copyToByteArray(tile.data, 0, data.getPosition(), tile.size);
+			data.incrementPosition(tile.size);
+
+			tiles[i] = tile;
+		}
+
+		for (int i = 0; i < n_updates; i++) {
+			BitmapTile tile = tiles[i];
+			if (tile.compressed && tile.Bpp > 1) {
+				/* independent tiles may be written in any order */
+				boolean overlap = false;
+				for (int j = 0; j < n_updates && !overlap; j++)
+					overlap = j != i && tile.overlaps(tiles[j]);
+				if (!overlap)
+					tile.direct = surface;
+			}
+			bitmap_pool.execute(tile);
+		}
+
+		for (int i = 0; i < n_updates; i++) {
+			BitmapTile tile = tiles[i];
+			tile.join();
+			if (tile.error != null)
+				throw tile.error;
+			if (tile.direct != null)
+				continue;
+			if (tile.pixel != null)
+				surface.displayImage(tile.pixel, tile.width, tile.height,
+						tile.left, tile.top, tile.cx, tile.cy);
+			else
+				logger.warn("Could not decompress bitmap");
 		}
 		surface.repaint(minX, minY, maxX - minX + 1, maxY - minY + 1);
 	}
 
+	/**
+	 * Save a compressed bitmap to options.bitmap_capture_dir, to build up a
+	 * corpus of real tiles for the decoder benchmarks. Each file holds the
+	 * width, height and bits per pixel as little-endian 16 bit values,
+	 * followed by the compressed data.
+	 * 
+	 * @param data
+	 *            Packet positioned at the compressed data
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param bpp
+	 *            Bits per pixel of bitmap
+	 * @param size
+	 *            Size of compressed data in bytes
+	 */
+	private void captureBitmap(RdpPacket_Localised data, int width,
+			int height, int bpp, int size) {
+		byte[] tile = new byte[6 + size];
+		tile[0] = (byte) width;
+		tile[1] = (byte) (width >> 8);
+		tile[2] = (byte) height;
+		tile[3] = (byte) (height >> 8);
+		tile[4] = (byte) bpp;
+		tile[5] = (byte) (bpp >> 8);
+		data.copyToByteArray(tile, 6, data.getPosition(), size);
+
+		File file = new File(options.bitmap_capture_dir, bpp + "-"
+				+ (captured_bitmaps++) + ".rle");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(tile);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not capture bitmap to " + file + ": "
+					+ e.getMessage());
+			options.bitmap_capture_dir = null;
+		}
+	}
+
 	protected void processPalette(RdpPacket_Localised data) {
 		int n_colors = 0;
 		IndexColorModel cm = null;
@@ -1603,12 +2274,29 @@ System.out.println("dataType=" + type[0]);
 			j += 3;
 		}
 		cm = new IndexColorModel(8, n_colors, red, green, blue);
-		surface.registerPalette(cm);
+		orders.registerPalette(cm);
 	}
 
+	/**
+	 * Draw this session in a window
+	 * 
+	 * @param fr
+	 *            Frame whose canvas displays the session
+	 */
 	public void registerDrawingSurface(RdesktopFrame fr) {
 		this.frame = fr;
-		RdesktopCanvas ds = fr.getCanvas();
+		this.canvas = fr.getCanvas();
+		registerDrawingSurface(canvas.surface);
+	}
+
+	/**
+	 * Draw this session onto a surface with no window, for headless use.
+	 * Pointer updates are parsed but ignored.
+	 * 
+	 * @param ds
+	 *            Surface to receive all drawing
+	 */
+	public void registerDrawingSurface(RdesktopSurface ds) {
 		this.surface = ds;
 		orders.registerDrawingSurface(ds);
 	}
@@ -1618,14 +2306,13 @@ System.out.println("dataType=" + type[0]);
 			throws RdesktopException {
 		// FIXME: We should probably set another cursor here,
 		// like the X window system base cursor or something.
-		surface.setCursor(cache.getCursor(0));
+		if (canvas != null)
+			canvas.setCursor(cache.getCursor(0));
 	}
 	
 	protected void process_colour_pointer_common(RdpPacket_Localised data, int bpp) throws RdesktopException {
 	    logger.debug("Rdp.RDP_POINTER_COLOR");
         int x = 0, y = 0, width = 0, height = 0, cache_idx = 0, masklen = 0, datalen = 0;
-        byte[] mask = null, pixel = null;
-        Cursor cursor = null;
 
         cache_idx = data.getLittleEndian16();
         x = data.getLittleEndian16();
@@ -1634,15 +2321,29 @@ System.out.println("dataType=" + type[0]);
         height = data.getLittleEndian16();
         masklen = data.getLittleEndian16();
         datalen = data.getLittleEndian16();
+        set_colour_pointer(data, cache_idx, x, y, width, height, masklen, datalen, bpp);
+	}
+
+	/* Read the xor and and masks of a colour pointer, then create, cache and set it */
+	private void set_colour_pointer(RdpPacket_Localised data, int cache_idx,
+			int x, int y, int width, int height, int masklen, int datalen,
+			int bpp) throws RdesktopException {
+        byte[] mask = null, pixel = null;
+        Cursor cursor = null;
+
+        if (data.getPosition() + datalen + masklen > data.getEnd())
+        	throw new RdesktopException("Pointer data overruns packet");
         mask = new byte[masklen];
         pixel = new byte[datalen];
         data.copyToByteArray(pixel, 0, data.getPosition(), datalen);
         data.incrementPosition(datalen);
         data.copyToByteArray(mask, 0, data.getPosition(), masklen);
         data.incrementPosition(masklen);
-        cursor = surface.createCursor(cache_idx, x, y, width, height, mask, pixel, bpp);
+        if (canvas == null)
+        	return;
+        cursor = canvas.createCursor(cache_idx, x, y, width, height, mask, pixel, bpp);
         // logger.info("Creating and setting cursor " + cache_idx);
-        surface.setCursor(cursor);
+        canvas.setCursor(cursor);
         cache.putCursor(cache_idx, cursor);
 	}
 
@@ -1656,12 +2357,136 @@ System.out.println("dataType=" + type[0]);
 		logger.debug("Rdp.RDP_POINTER_CACHED");
 		int cache_idx = data.getLittleEndian16();
 		// logger.info("Setting cursor "+cache_idx);
-		surface.setCursor(cache.getCursor(cache_idx));
+		if (canvas != null)
+			canvas.setCursor(cache.getCursor(cache_idx));
 	}
 	
 	protected void  process_new_pointer_pdu(RdpPacket_Localised data) throws RdesktopException {
 	    int xor_bpp = data.getLittleEndian16();
 	    process_colour_pointer_common(data, xor_bpp);
 	}
+
+	/* Process a large pointer PDU, as used for pointers bigger than 96x96 */
+	protected void process_large_pointer_pdu(RdpPacket_Localised data)
+			throws RdesktopException {
+		int xor_bpp = data.getLittleEndian16();
+		int cache_idx = data.getLittleEndian16();
+		int x = data.getLittleEndian16();
+		int y = data.getLittleEndian16();
+		int width = data.getLittleEndian16();
+		int height = data.getLittleEndian16();
+		int masklen = data.getLittleEndian32();
+		int datalen = data.getLittleEndian32();
+		set_colour_pointer(data, cache_idx, x, y, width, height, masklen,
+				datalen, xor_bpp);
+	}
+
+	/* Process a pointer position PDU */
+	protected void process_pointer_position_pdu(RdpPacket_Localised data) {
+		int x = data.getLittleEndian16();
+		int y = data.getLittleEndian16();
+		if (canvas != null)
+			canvas.movePointer(x, y);
+	}
+
+	/**
+	 * Process a block of surface commands. Only uncompressed surface bits are
+	 * drawn, as no bitmap codecs are advertised to the server.
+	 * 
+	 * @param data
+	 *            Packet positioned at the first command
+	 * @param end
+	 *            Offset of the end of the commands within data
+	 * @throws RdesktopException
+	 */
+	protected void process_surface_commands(RdpPacket_Localised data, int end)
+			throws RdesktopException {
+		int type, left, top, right, bottom, bpp, codec, width, height, length;
+		int next;
+
+		while (data.getPosition() + 2 <= end) {
+			type = data.getLittleEndian16();
+			switch (type) {
+			case CMDTYPE_SET_SURFACE_BITS:
+			case CMDTYPE_STREAM_SURFACE_BITS:
+				left = data.getLittleEndian16();
+				top = data.getLittleEndian16();
+				right = data.getLittleEndian16();
+				bottom = data.getLittleEndian16();
+				bpp = data.get8();
+				data.incrementPosition(2); // flags, reserved
+				codec = data.get8();
+				width = data.getLittleEndian16();
+				height = data.getLittleEndian16();
+				length = data.getLittleEndian32();
+				next = data.getPosition() + length;
+				if (length < 0 || next > end)
+					throw new RdesktopException("Surface bits overrun packet");
+
+				if (codec == RDP_CODEC_ID_NONE) {
+					draw_surface_bits(data, left, top, right - left,
+							bottom - top, width, height, bpp, length);
+				} else {
+					logger.warn("Unsupported surface bits codec " + codec);
+				}
+				data.setPosition(next);
+				break;
+
+			case CMDTYPE_FRAME_MARKER:
+				data.incrementPosition(6); // frame action, frame id
+				break;
+
+			default:
+				logger.warn("Unimplemented surface command " + type);
+				data.setPosition(end);
+				break;
+			}
+		}
+	}
+
+	/* Draw uncompressed, bottom-up surface bits onto the backstore */
+	private void draw_surface_bits(RdpPacket_Localised data, int left,
+			int top, int cx, int cy, int width, int height, int bpp,
+			int length) {
+		int Bpp = (bpp + 7) / 8;
+		int[] pixel;
+
+		if ((long) width * height * Bpp > length) {
+			logger.warn("Surface bits of " + width + "x" + height + "x" + bpp
+					+ " need more than the " + length + " bytes sent");
+			return;
+		}
+
+		if (cx > width)
+			cx = width;
+		if (cy > height)
+			cy = height;
+		if (cx <= 0 || cy <= 0)
+			return;
+
+		if (bpp == 32) {
+			pixel = new int[width * height];
+			int p = data.getPosition();
+			for (int y = height - 1; y >= 0; y--) {
+				for (int x = 0; x < width; x++) {
+					pixel[y * width + x] = data.getLittleEndian32(p) & 0xffffff;
+					p += 4;
+				}
+			}
+		} else if (bpp == options.server_bpp) {
+			byte[] raw = new byte[width * height * Bpp];
+			for (int y = 0; y < height; y++) {
+				data.copyToByteArray(raw, (height - y - 1) * (width * Bpp),
+						data.getPosition() + y * width * Bpp, width * Bpp);
+			}
+			pixel = Bitmap.convertImage(raw, bpp);
+		} else {
+			logger.warn("Unsupported surface bits depth " + bpp);
+			return;
+		}
+
+		surface.displayImage(pixel, width, height, left, top, cx, cy);
+		surface.repaint(left, top, cx, cy);
+	}
 }
 
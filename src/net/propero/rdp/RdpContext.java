@@ -0,0 +1,81 @@
+/* RdpContext.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: State belonging to a single RDP session
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import net.propero.rdp.rdp5.Rdp5;
+
+/**
+ * Holds the configuration, network layers, caches and window of one
+ * session. A context is created before connecting and handed to each layer
+ * and UI component as it is constructed, so that any number of sessions may
+ * share a JVM. The layers fill in their own fields as they are created.
+ */
+public class RdpContext {
+
+	/* configuration, fixed before connecting apart from values negotiated
+	 * with the server such as the colour depth */
+	public final Options options;
+
+	/* serialises sends from the input and virtual channel threads */
+	public final CommunicationMonitor monitor = new CommunicationMonitor();
+
+	public Rdp5 rdp;
+
+	public Secure secure;
+
+	public MCS mcs;
+
+	public RdesktopFrame frame;
+
+	public Cache cache;
+
+	public PstCache pstcache;
+
+	/* set once licensing has finished and input may be sent */
+	public volatile boolean readytosend = false;
+
+	public volatile boolean loggedon = false;
+
+	/* logon id given by the server, for auto-reconnection */
+	public int reconnect_logonid = 0;
+
+	/**
+	 * Create a context for a new session
+	 *
+	 * @param options
+	 *            Configuration for this session, not shared with any other
+	 */
+	public RdpContext(Options options) {
+		this.options = options;
+	}
+
+	/**
+	 * Disconnect this session and close its window
+	 */
+	public void exit() {
+		Rdesktop.exit(0, rdp, frame, true);
+	}
+}
@@ -51,7 +51,11 @@ public class Secure {
 
 	static Logger logger = Logger.getLogger(Secure.class);
 
-	private Licence licence = new Licence(this);
+	private final RdpContext context;
+
+	private final Options options;
+
+	private Licence licence = null;
 
 	/* constants for the secure layer */
 	public static final int SEC_ENCRYPT = 0x0008;
@@ -104,8 +108,18 @@ public class Secure {
 	private static final int SEC_CC_REDIRECT_VERSION_5 = 0x04;
 	private static final int SEC_CC_REDIRECT_VERSION_6 = 0x05;
 
+	/* fast-path input header: action and event count, then the length */
+	private static final int FASTPATH_INPUT_HEADER_SIZE = 3;
+
+	private static final int FASTPATH_INPUT_ENCRYPTED = 0x80;
+
+	/* encryption method selected by the server for FIPS 140-1 compliance */
+	public static final int SEC_ENCRYPTION_FIPS = 0x10;
+
 	private MCS McsLayer = null;
 
+	private int encryption_method = 0;
+
 	// private String hostname=null;
 	// private String username=null;
 	boolean licenceIssued = false;
@@ -171,13 +185,18 @@ public class Secure {
 	/**
 	 * Initialise Secure layer of communications
 	 * 
+	 * @param context
+	 *            Session this layer belongs to
 	 * @param channels
 	 *            Virtual channels for this connection
 	 */
-	public Secure(VChannels channels) {
+	public Secure(RdpContext context, VChannels channels) {
+		this.context = context;
+		this.options = context.options;
 		this.channels = channels;
-		McsLayer = new MCS(channels);
-		Common.mcs = McsLayer;
+		licence = new Licence(this, options);
+		McsLayer = new MCS(context, channels);
+		context.mcs = McsLayer;
 		rc4_dec = new RC4();
 		rc4_enc = new RC4();
 		rc4_update = new RC4();
@@ -219,12 +238,12 @@ public class Secure {
 	public void connect(InetAddress host, int port)
 			throws UnknownHostException, IOException, RdesktopException,
 			SocketException, CryptoException, OrderException {
-		if (Options.hostname == "") {
+		if (options.hostname == "") {
 			InetAddress localhost = InetAddress.getLocalHost();
 			String name = localhost.getHostName();
 			StringTokenizer tok = new StringTokenizer(name, ".");
-			Options.hostname = tok.nextToken();
-			Options.hostname.trim();
+			options.hostname = tok.nextToken();
+			options.hostname.trim();
 		}
 
 		RdpPacket_Localised mcs_data = this.sendMcsData();
@@ -248,7 +267,7 @@ public class Secure {
 	 */
 	public void connect(InetAddress host) throws IOException,
 			RdesktopException, OrderException, CryptoException {
-		this.connect(host, Options.port);
+		this.connect(host, options.port);
 	}
 
 	/**
@@ -268,7 +287,7 @@ public class Secure {
 
 		RdpPacket_Localised buffer = new RdpPacket_Localised(512);
 
-		int hostlen = 2 * (Options.hostname == null ? 0 : Options.hostname
+		int hostlen = 2 * (options.hostname == null ? 0 : options.hostname
 				.length());
 
 		if (hostlen > 30) {
@@ -277,7 +296,7 @@ public class Secure {
 
 		int length = 162 + 76 + 12 + 4;
 
-		if (Options.use_rdp5 && (channels.num_channels() > 0))
+		if (options.use_rdp5 && (channels.num_channels() > 0))
 			length += channels.num_channels() * 12 + 8;
 
 		buffer.setBigEndian16(5); /* unknown */
@@ -299,13 +318,13 @@ public class Secure {
 		// Client information
 		buffer.setLittleEndian16(SEC_TAG_CLI_INFO);
 		buffer.setLittleEndian16(216); // length
-		buffer.setLittleEndian16(Options.use_rdp5 ? 4 : 1);
+		buffer.setLittleEndian16(options.use_rdp5 ? 4 : 1);
 		buffer.setLittleEndian16(8);
-		buffer.setLittleEndian16(Options.width);
-		buffer.setLittleEndian16(Options.height);
+		buffer.setLittleEndian16(options.width);
+		buffer.setLittleEndian16(options.height);
 		buffer.setLittleEndian16(0xca01);
 		buffer.setLittleEndian16(0xaa03);
-		buffer.setLittleEndian32(Options.keylayout);
+		buffer.setLittleEndian32(options.keylayout);
 		buffer.setLittleEndian32(2600); // or 0ece
 		// // client
 		// build? we
@@ -314,7 +333,7 @@ public class Secure {
 		// :-)
 
 		/* Unicode name of client, padded to 32 bytes */
-		buffer.outUnicodeString(Options.hostname, hostlen);
+		buffer.outUnicodeString(options.hostname, hostlen);
 		buffer.incrementPosition(30 - hostlen);
 
 		buffer.setLittleEndian32(4);
@@ -326,7 +345,7 @@ public class Secure {
 		buffer.setLittleEndian16(1);
 
 		buffer.setLittleEndian32(0); // out_uint32(s, 0);
-		buffer.set8(Options.server_bpp); // out_uint8(s, g_server_bpp);
+		buffer.set8(options.server_bpp); // out_uint8(s, g_server_bpp);
 		buffer.setLittleEndian16(0x0700); // out_uint16_le(s, 0x0700);
 		buffer.set8(0); // out_uint8(s, 0);
 		buffer.setLittleEndian32(1); // out_uint32_le(s, 1);
@@ -339,7 +358,7 @@ public class Secure {
 		int cluster_flags = 0;
 		cluster_flags |= SEC_CC_REDIRECTION_SUPPORTED;
 	    cluster_flags |= (SEC_CC_REDIRECT_VERSION_3 << 2);
-	    if(Options.console_session) {
+	    if(options.console_session) {
 	        cluster_flags |= SEC_CC_REDIRECT_SESSIONID_FIELD_VALID;
 	    }
 		buffer.setLittleEndian32(cluster_flags); // out_uint32_le(s,
@@ -348,10 +367,10 @@ public class Secure {
 		// Client encryption settings //
 		buffer.setLittleEndian16(SEC_TAG_CLI_CRYPT);
 		buffer.setLittleEndian16(12); // length
-		buffer.setLittleEndian32(Options.encryption ? 0x3 : 0);
+		buffer.setLittleEndian32(options.encryption ? 0x3 : 0);
 		buffer.setLittleEndian32(0); // unknown
 
-		if (Options.use_rdp5 && (channels.num_channels() > 0)) {
+		if (options.use_rdp5 && (channels.num_channels() > 0)) {
 			logger.debug(("num_channels is " + channels.num_channels()));
 			buffer.setLittleEndian16(SEC_TAG_CLI_CHANNELS); // out_uint16_le(s,
 			// SEC_TAG_CLI_CHANNELS);
@@ -434,11 +453,11 @@ public class Secure {
 	 *            Packet to read
 	 */
 	private void processSrvInfo(RdpPacket_Localised mcs_data) {
-		Options.server_rdp_version = mcs_data.getLittleEndian16(); // in_uint16_le(s,
+		options.server_rdp_version = mcs_data.getLittleEndian16(); // in_uint16_le(s,
 		// g_server_rdp_version);
-		logger.debug(("Server RDP version is " + Options.server_rdp_version));
-		if (1 == Options.server_rdp_version)
-			Options.use_rdp5 = false;
+		logger.debug(("Server RDP version is " + options.server_rdp_version));
+		if (1 == options.server_rdp_version)
+			options.use_rdp5 = false;
 	}
 
 	public void establishKey() throws RdesktopException, IOException,
@@ -541,6 +560,69 @@ public class Secure {
 		return buffer;
 	}
 
+	/**
+	 * Intialise a packet for a fast-path input PDU, leaving room for the
+	 * fast-path header and, if encrypting, the signature
+	 * 
+	 * @param length
+	 *            Length of the input events
+	 * @return Packet positioned at the first event
+	 */
+	public RdpPacket_Localised init_fastpath(int length) {
+		int headerlength = FASTPATH_INPUT_HEADER_SIZE
+				+ (Constants.encryption ? 8 : 0);
+		RdpPacket_Localised buffer = PacketPool.acquire(length + headerlength);
+		buffer.setPosition(headerlength);
+		return buffer;
+	}
+
+	/**
+	 * Fill in the header of a fast-path input PDU obtained from init_fastpath,
+	 * encrypt it if required and send it
+	 * 
+	 * @param sec_data
+	 *            Packet holding the input events up to its end mark
+	 * @param numEvents
+	 *            Number of events in the packet, at most 15
+	 * @throws RdesktopException
+	 * @throws IOException
+	 * @throws CryptoException
+	 */
+	public void send_fastpath(RdpPacket_Localised sec_data, int numEvents)
+			throws RdesktopException, IOException, CryptoException {
+		// packets must reach the wire in the order they were encrypted
+		context.monitor.lock(this);
+		try {
+			send_fastpath0(sec_data, numEvents);
+		} finally {
+			context.monitor.unlock(this);
+		}
+	}
+
+	private void send_fastpath0(RdpPacket_Localised sec_data, int numEvents)
+			throws RdesktopException, IOException, CryptoException {
+		int headerlength = FASTPATH_INPUT_HEADER_SIZE;
+		int end = sec_data.getEnd();
+
+		sec_data.setPosition(0);
+		sec_data.set8((numEvents << 2)
+				| (Constants.encryption ? FASTPATH_INPUT_ENCRYPTED : 0));
+		sec_data.setBigEndian16(0x8000 | end);
+
+		if (Constants.encryption) {
+			headerlength += 8;
+			int datalength = end - headerlength;
+			byte[] data = new byte[datalength];
+			sec_data.copyToByteArray(data, 0, headerlength, datalength);
+			byte[] signature = this.sign(this.sec_sign_key, 8, this.keylength,
+					data, datalength);
+			sec_data.copyFromByteArray(signature, 0, FASTPATH_INPUT_HEADER_SIZE, 8);
+			this.encrypt(sec_data, headerlength, datalength);
+		}
+
+		McsLayer.send_fastpath(sec_data);
+	}
+
 	/**
 	 * Send secure data on the global channel
 	 * 
@@ -572,6 +654,18 @@ public class Secure {
 	 */
 	public void send_to_channel(RdpPacket_Localised sec_data, int flags,
 			int channel) throws RdesktopException, IOException, CryptoException {
+		// packets must reach the wire in the order they were encrypted, and
+		// channel workers send alongside the input and receive threads
+		context.monitor.lock(this);
+		try {
+			send_to_channel0(sec_data, flags, channel);
+		} finally {
+			context.monitor.unlock(this);
+		}
+	}
+
+	private void send_to_channel0(RdpPacket_Localised sec_data, int flags,
+			int channel) throws RdesktopException, IOException, CryptoException {
 		int datalength = 0;
 		byte[] signature = null;
 		byte[] data;
@@ -583,7 +677,7 @@ public class Secure {
 			sec_data.setLittleEndian32(flags);
 		}
 		
-		if (Options.debug_hexdump) {
+		if (options.debug_hexdump) {
             int length = sec_data.getEnd() - sec_data.getPosition();
             byte[] packet = new byte[length];
             sec_data.copyToByteArray(packet, 0, sec_data.getPosition(), sec_data.getEnd() - sec_data.getPosition());
@@ -687,6 +781,33 @@ public class Secure {
         }
 	}
 
+	/**
+	 * Encrypt a region of a packet in place using RC4 algorithm
+	 * 
+	 * @param data
+	 *            Packet holding the data to encrypt
+	 * @param offset
+	 *            Offset into packet of first byte to encrypt
+	 * @param length
+	 *            Number of bytes to encrypt
+	 * @throws CryptoException
+	 */
+	public void encrypt(RdpPacket_Localised data, int offset, int length)
+			throws CryptoException {
+	    synchronized (rc4_enc_lock) {
+	        if (this.enc_count == 4096) {
+	            sec_encrypt_key = this.update(this.sec_encrypt_key,
+	                    this.sec_encrypt_update_key);
+	            byte[] key = new byte[this.keylength];
+	            System.arraycopy(this.sec_encrypt_key, 0, key, 0, this.keylength);
+	            this.rc4_enc.engineInitEncrypt(key);
+	            this.enc_count = 0;
+	        }
+	        this.rc4_enc.crypt(data.getByteBuffer(), offset, length);
+	        this.enc_count++;
+        }
+	}
+
 	/**
 	 * Encrypt provided data using the RC4 algorithm
 	 * 
@@ -772,6 +893,43 @@ public class Secure {
         }
 	}
 
+	/**
+	 * Check whether the server selected FIPS encryption, in which case
+	 * encrypted PDUs carry an extra FIPS information header
+	 * 
+	 * @return True if FIPS encryption is in use
+	 */
+	public boolean isFips() {
+		return this.encryption_method == SEC_ENCRYPTION_FIPS;
+	}
+
+	/**
+	 * Decrypt a region of a packet in place using RC4 algorithm
+	 * 
+	 * @param data
+	 *            Packet holding the data to decrypt
+	 * @param offset
+	 *            Offset into packet of first byte to decrypt
+	 * @param length
+	 *            Number of bytes to decrypt
+	 * @throws CryptoException
+	 */
+	public void decrypt(RdpPacket_Localised data, int offset, int length)
+			throws CryptoException {
+	    synchronized (rc4_dec_lock) {
+	        if (this.dec_count == 4096) {
+	            sec_decrypt_key = this.update(this.sec_decrypt_key,
+	                    this.sec_decrypt_update_key);
+	            byte[] key = new byte[this.keylength];
+	            System.arraycopy(this.sec_decrypt_key, 0, key, 0, this.keylength);
+	            this.rc4_dec.engineInitDecrypt(key);
+	            this.dec_count = 0;
+	        }
+	        this.rc4_dec.crypt(data.getByteBuffer(), offset, length);
+	        this.dec_count++;
+        }
+	}
+
 	/**
 	 * Read encryption information from a Secure layer PDU, obtaining and
 	 * storing level of encryption and any keys received
@@ -790,6 +948,7 @@ public class Secure {
 		int rc4_key_size = 0;
 
 		rc4_key_size = data.getLittleEndian32(); // 1 = 40-Bit 2 = 128 Bit
+		this.encryption_method = rc4_key_size;
 		encryption_level = data.getLittleEndian32(); // 1 = low, 2 = medium,
 		// 3 = high
 		if (encryption_level == 0) { // no encryption
@@ -1184,16 +1343,8 @@ public class Secure {
 				}
 				if ((sec_flags & SEC_ENCRYPT) != 0) {
 					buffer.incrementPosition(8); // signature
-					byte[] data = new byte[buffer.size() - buffer.getPosition()];
-					buffer.copyToByteArray(data, 0, buffer.getPosition(),
-							data.length);
-					byte[] packet = this.decrypt(data);
-
-					buffer.copyFromByteArray(packet, 0, buffer.getPosition(),
-							packet.length);
-
-					// buffer.setStart(buffer.getPosition());
-					// return buffer;
+					this.decrypt(buffer, buffer.getPosition(), buffer.size()
+							- buffer.getPosition());
 				}
 			}
 
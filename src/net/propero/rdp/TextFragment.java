@@ -0,0 +1,161 @@
+/* TextFragment.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: A run of glyphs cached by a text2 order, with its layout
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+/**
+ * The glyph entries of a text2 order that the server asked to be cached, so
+ * that later orders can repeat them by id. Besides the raw entries, a
+ * fragment keeps the glyphs they resolve to and where each is drawn,
+ * relative to the point where the fragment starts. The layout depends on
+ * the font and flags of the order and on the glyphs in the font cache, so
+ * it is recorded with those and rebuilt when any of them differ.
+ */
+public class TextFragment extends DataBlob {
+
+	private int font = -1;
+
+	private int flags = 0;
+
+	private int generation = 0;
+
+	private Glyph[] glyphs = new Glyph[0];
+
+	private int[] xs = new int[0];
+
+	private int[] ys = new int[0];
+
+	private int count = 0;
+
+	private int advance_x = 0;
+
+	private int advance_y = 0;
+
+	/**
+	 * @param size
+	 *            Size of data
+	 * @param data
+	 *            Glyph entries of the fragment
+	 */
+	public TextFragment(int size, byte[] data) {
+		super(size, data);
+	}
+
+	/**
+	 * @param font
+	 *            Font of the order drawing the fragment
+	 * @param flags
+	 *            Layout flags of the order
+	 * @param generation
+	 *            Current generation of the font in the cache
+	 * @return True if the layout was made for these values
+	 */
+	boolean isLaidOut(int font, int flags, int generation) {
+		return this.font == font && this.flags == flags
+				&& this.generation == generation;
+	}
+
+	/**
+	 * Forget the layout and start a new one, which is not used until
+	 * endLayout() is called
+	 *
+	 * @param flags
+	 *            Layout flags of the order
+	 * @param generation
+	 *            Current generation of the font in the cache
+	 */
+	void startLayout(int flags, int generation) {
+		this.font = -1;
+		this.flags = flags;
+		this.generation = generation;
+		this.count = 0;
+		this.advance_x = 0;
+		this.advance_y = 0;
+		if (glyphs.length < getSize()) {
+			glyphs = new Glyph[getSize()];
+			xs = new int[getSize()];
+			ys = new int[getSize()];
+		}
+	}
+
+	/**
+	 * Add a glyph to the layout
+	 *
+	 * @param glyph
+	 *            Glyph to draw
+	 * @param x
+	 *            x coordinate of the glyph's top left corner, relative to
+	 *            the start of the fragment
+	 * @param y
+	 *            y coordinate of the glyph's top left corner, relative to
+	 *            the start of the fragment
+	 */
+	void addGlyph(Glyph glyph, int x, int y) {
+		glyphs[count] = glyph;
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+	}
+
+	/**
+	 * Complete the layout
+	 *
+	 * @param font
+	 *            Font of the order drawing the fragment
+	 * @param advance_x
+	 *            Distance the fragment moves the drawing position across
+	 * @param advance_y
+	 *            Distance the fragment moves the drawing position down
+	 */
+	void endLayout(int font, int advance_x, int advance_y) {
+		this.font = font;
+		this.advance_x = advance_x;
+		this.advance_y = advance_y;
+	}
+
+	Glyph[] getGlyphs() {
+		return glyphs;
+	}
+
+	int[] getX() {
+		return xs;
+	}
+
+	int[] getY() {
+		return ys;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	int getAdvanceX() {
+		return advance_x;
+	}
+
+	int getAdvanceY() {
+		return advance_y;
+	}
+}
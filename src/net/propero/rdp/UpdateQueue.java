@@ -0,0 +1,291 @@
+/* UpdateQueue.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Bounded hand-off of screen updates from the network thread
+ *          to a rendering thread
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Carries decoded updates from the network thread to a rendering thread, so
+ * that socket reads carry on while orders are being drawn. Each update is
+ * copied into a pooled packet, as the receive buffers are reused for the
+ * next PDU. The queue is bounded: when the rendering thread falls behind,
+ * put() blocks the network thread, which in turn lets TCP flow control slow
+ * the server down.
+ */
+public class UpdateQueue implements Runnable {
+	static Logger logger = Logger.getLogger(UpdateQueue.class);
+
+	/* update kinds, interpreted by Rdp.renderUpdate */
+	public static final int SLOW_PATH_UPDATE = 0;
+
+	public static final int SLOW_PATH_POINTER = 1;
+
+	public static final int FAST_PATH_UPDATE = 2;
+
+	/* interval at which a blocked producer checks the renderer is alive */
+	private static final long POLL_MS = 100;
+
+	private static class Update {
+		int kind;
+
+		int code;
+
+		RdpPacket_Localised data;
+
+		int end;
+
+		/* set for a drain marker, notified once it is reached */
+		boolean barrier;
+	}
+
+	private static final Update STOP = new Update();
+
+	private final Rdp rdp;
+
+	private final BlockingQueue<Update> queue;
+
+	private final Thread thread;
+
+	private volatile boolean running = true;
+
+	/* longest time damage waits for the queue to empty, 0 for no wait */
+	private final long frame_ms;
+
+	private long last_flush = 0;
+
+	/* first exception thrown while rendering, passed back to the producer */
+	private volatile Exception failure = null;
+
+	/* statistics */
+	private volatile int max_depth = 0;
+
+	private volatile long queued = 0;
+
+	private volatile long stalls = 0;
+
+	/**
+	 * Create a queue and start its rendering thread
+	 *
+	 * @param rdp
+	 *            RDP layer whose renderUpdate method draws each update
+	 * @param capacity
+	 *            Maximum number of updates waiting to be drawn
+	 * @param max_fps
+	 *            Number of times a second damage is shown while the queue
+	 *            is never empty, 0 to show it after every update
+	 */
+	public UpdateQueue(Rdp rdp, int capacity, int max_fps) {
+		this.rdp = rdp;
+		this.frame_ms = max_fps > 0 ? 1000 / max_fps : 0;
+		this.queue = new ArrayBlockingQueue<Update>(capacity);
+		this.thread = new Thread(this, "RDP_Render_Thread");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue an update for drawing, blocking while the queue is full. The
+	 * bytes from the current position of data up to end are copied, so the
+	 * packet may be reused as soon as this returns.
+	 *
+	 * @param kind
+	 *            Kind of update, one of SLOW_PATH_UPDATE, SLOW_PATH_POINTER
+	 *            or FAST_PATH_UPDATE
+	 * @param code
+	 *            Fast-path update code, unused for slow-path updates
+	 * @param data
+	 *            Packet positioned at the start of the update
+	 * @param end
+	 *            Offset of the end of the update within data
+	 * @throws RdesktopException
+	 *             if the rendering thread has failed
+	 */
+	public void put(int kind, int code, RdpPacket_Localised data, int end)
+			throws RdesktopException {
+		// stop at once if the renderer has died, rather than copying
+		// updates that will never be drawn
+		checkFailure();
+
+		int length = end - data.getPosition();
+		Update update = new Update();
+		update.kind = kind;
+		update.code = code;
+		update.data = PacketPool.acquire(length);
+		update.data.copyFromPacket(data, data.getPosition(), 0, length);
+		update.data.markEnd(length);
+		update.end = length;
+		data.setPosition(end);
+
+		try {
+			enqueue(update);
+		} catch (RdesktopException e) {
+			PacketPool.release(update.data);
+			throw e;
+		}
+		queued++;
+
+		int depth = queue.size();
+		if (depth > max_depth)
+			max_depth = depth;
+	}
+
+	/**
+	 * Wait until every update queued so far has been drawn. Used before the
+	 * network thread touches state shared with the renderer, such as the
+	 * order state on reactivation.
+	 *
+	 * @throws RdesktopException
+	 *             if the rendering thread has failed
+	 */
+	public void drain() throws RdesktopException {
+		Update barrier = new Update();
+		barrier.barrier = true;
+		synchronized (barrier) {
+			enqueue(barrier);
+			while (barrier.barrier) {
+				checkFailure();
+				try {
+					barrier.wait(POLL_MS);
+				} catch (InterruptedException e) {
+					throw new RdesktopException("Interrupted draining updates");
+				}
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stop the rendering thread, discarding any updates not yet drawn
+	 */
+	public void shutdown() {
+		running = false;
+		discard();
+		queue.offer(STOP);
+		thread.interrupt();
+		logger.info("Render queue: " + queued + " updates, max depth "
+				+ max_depth + ", " + stalls + " stalls");
+	}
+
+	/**
+	 * @return Number of updates waiting to be drawn
+	 */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Largest number of updates that have been waiting at once
+	 */
+	public int getMaxDepth() {
+		return max_depth;
+	}
+
+	/**
+	 * @return Number of times the network thread blocked on a full queue
+	 */
+	public long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * @return Total number of updates queued
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	public void run() {
+		while (running) {
+			Update update;
+			try {
+				update = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (update == STOP)
+				break;
+
+			if (update.barrier) {
+				synchronized (update) {
+					update.barrier = false;
+					update.notifyAll();
+				}
+				continue;
+			}
+
+			try {
+				rdp.renderUpdate(update.kind, update.code, update.data,
+						update.end);
+				// show the damage once caught up, and once a frame while
+				// behind so the screen still repaints under sustained load
+				long now = System.currentTimeMillis();
+				if (queue.isEmpty() || now - last_flush >= frame_ms) {
+					last_flush = now;
+					rdp.flushUpdates();
+				}
+			} catch (Exception e) {
+				logger.warn("Rendering failed: " + e.getMessage());
+				failure = e;
+				running = false;
+			} finally {
+				PacketPool.release(update.data);
+			}
+		}
+		discard();
+	}
+
+	/* drop the updates left in the queue, returning their packets */
+	private void discard() {
+		Update update;
+		while ((update = queue.poll()) != null)
+			PacketPool.release(update.data);
+	}
+
+	private void enqueue(Update update) throws RdesktopException {
+		try {
+			if (queue.offer(update))
+				return;
+			stalls++;
+			while (!queue.offer(update, POLL_MS, TimeUnit.MILLISECONDS))
+				checkFailure();
+		} catch (InterruptedException e) {
+			throw new RdesktopException("Interrupted queueing update");
+		}
+	}
+
+	private void checkFailure() throws RdesktopException {
+		if (failure != null)
+			throw new RdesktopException("Rendering failed: "
+					+ failure.getMessage());
+		if (!running)
+			throw new RdesktopException("Render queue stopped");
+	}
+}
@@ -33,7 +33,9 @@ package net.propero.rdp;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 
 import org.apache.log4j.Logger;
 
@@ -44,6 +46,9 @@ public class WrappedImage {
 
 	BufferedImage bi = null;
 
+	/* backing array of the raster, fetched on first use */
+	private int[] pixels = null;
+
 	public WrappedImage(int arg0, int arg1, int arg2) {
 		bi = new BufferedImage(arg0, arg1, arg2);
 	}
@@ -67,6 +72,28 @@ public class WrappedImage {
 		return bi;
 	}
 
+	/**
+	 * Get the array backing the image raster, for code writing pixels
+	 * directly. Values are 0xRRGGBB, with no colour model conversion.
+	 * 
+	 * @return Pixel array, or null if the image is not stored as ints
+	 */
+	public int[] getData() {
+		if (pixels == null && bi.getRaster().getDataBuffer() instanceof DataBufferInt)
+			pixels = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+		return pixels;
+	}
+
+	/**
+	 * @return Distance in the pixel array between the starts of two lines
+	 */
+	public int getStride() {
+		if (bi.getSampleModel() instanceof SinglePixelPackedSampleModel)
+			return ((SinglePixelPackedSampleModel) bi.getSampleModel())
+					.getScanlineStride();
+		return bi.getWidth();
+	}
+
 	public Graphics getGraphics() {
 		return bi.getGraphics();
 	}
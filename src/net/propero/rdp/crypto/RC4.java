@@ -1,5 +1,7 @@
 package net.propero.rdp.crypto;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class implements the RC4 (TM) stream cipher.
  * <p>
@@ -312,4 +314,35 @@ public final class RC4 { // must be final for security reasons
 			int out_offset) {
 		engineUpdate(in, in_offset, length, out, out_offset);
 	}
+
+	/**
+	 * Encrypt or decrypt a region of a buffer in place. The buffer's position
+	 * and limit are not changed.
+	 * 
+	 * @param buf
+	 *            the buffer holding the data.
+	 * @param offset
+	 *            absolute offset of the first byte to process.
+	 * @param length
+	 *            number of bytes to process.
+	 */
+	public final void crypt(ByteBuffer buf, int offset, int length) {
+		if (length < 0)
+			throw new IllegalArgumentException("length < 0");
+
+		int xorIndex, t;
+		int end = offset + length;
+
+		for (int i = offset; i < end; i++) {
+			x = (x + 1) & 0xFF;
+			y = (sBox[x] + y) & 0xFF;
+
+			t = sBox[x];
+			sBox[x] = sBox[y];
+			sBox[y] = t;
+
+			xorIndex = (sBox[x] + sBox[y]) & 0xFF;
+			buf.put(i, (byte) (buf.get(i) ^ sBox[xorIndex]));
+		}
+	}
 }
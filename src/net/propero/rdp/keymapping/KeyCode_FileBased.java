@@ -78,11 +78,15 @@ public abstract class KeyCode_FileBased {
 
 	Vector keyMap = new Vector();
 
+	protected final Options options;
+
 	private void updateCapsLock(KeyEvent e) {
 
 	}
 
-	public KeyCode_FileBased(InputStream fstream) throws KeyMapException {
+	public KeyCode_FileBased(InputStream fstream, Options options)
+			throws KeyMapException {
+		this.options = options;
 		readMapFile(fstream);
 	}
 
@@ -92,8 +96,12 @@ public abstract class KeyCode_FileBased {
 	 * 
 	 * @param keyMapFile
 	 *            File containing keymap data
+	 * @param options
+	 *            Options of the session using this keymap
 	 */
-	public KeyCode_FileBased(String keyMapFile) throws KeyMapException {
+	public KeyCode_FileBased(String keyMapFile, Options options)
+			throws KeyMapException {
+		this.options = options;
 		// logger.info("String called keycode reader");
 
 		FileInputStream fstream;
@@ -296,7 +304,7 @@ public abstract class KeyCode_FileBased {
 				changes += ((char) 0x1d) + down;
 		}
 
-		if (Options.altkey_quiet) {
+		if (options.altkey_quiet) {
 
 			if (state[ALT][BEFORE] != state[ALT][AFTER]) {
 				if (state[ALT][BEFORE])
@@ -459,7 +467,8 @@ public abstract class KeyCode_FileBased {
 			if ((e.getID() == KeyEvent.KEY_PRESSED)) {
 				applies = current.appliesToPressed(e);
 			} else if ((!lastEventMatched) && (e.getID() == KeyEvent.KEY_TYPED)) {
-				applies = current.appliesToTyped(e, capsLockDown);
+				applies = current.appliesToTyped(e, capsLockDown,
+						options.remap_hash);
 			} else
 				applies = false;
 
@@ -506,7 +515,7 @@ public abstract class KeyCode_FileBased {
 
 		if (e.getID() == KeyEvent.KEY_RELEASED) {
 			keysCurrentlyDown.remove(new Integer(e.getKeyCode()));
-			if ((!Options.caps_sends_up_and_down)
+			if ((!options.caps_sends_up_and_down)
 					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
 				logger.debug("Turning CAPSLOCK off - key release");
 				capsLockDown = false;
@@ -520,7 +529,7 @@ public abstract class KeyCode_FileBased {
 				lastEventMatched = true;
 			else
 				lastEventMatched = false;
-			if ((Options.caps_sends_up_and_down)
+			if ((options.caps_sends_up_and_down)
 					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
 				logger.debug("Toggling CAPSLOCK");
 				capsLockDown = !capsLockDown;
@@ -561,7 +570,7 @@ public abstract class KeyCode_FileBased {
 		String type = "";
 
 		if (e.getID() == KeyEvent.KEY_RELEASED) {
-			if ((!Options.caps_sends_up_and_down)
+			if ((!options.caps_sends_up_and_down)
 					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
 				logger.debug("Sending CAPSLOCK toggle");
 				codes = "" + ((char) 0x3a) + ((char) DOWN) + ((char) 0x3a)
@@ -571,7 +580,7 @@ public abstract class KeyCode_FileBased {
 				codes = ((char) d.getScancode()) + type + codes;
 			}
 		} else {
-			if ((!Options.caps_sends_up_and_down)
+			if ((!options.caps_sends_up_and_down)
 					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
 				logger.debug("Sending CAPSLOCK toggle");
 				codes += "" + ((char) 0x3a) + ((char) DOWN) + ((char) 0x3a)
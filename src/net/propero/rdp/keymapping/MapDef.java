@@ -35,7 +35,6 @@ import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
 import net.propero.rdp.Constants;
-import net.propero.rdp.Options;
 
 public class MapDef {
 
@@ -227,11 +226,12 @@ public class MapDef {
 		return ((characterDef) && (this.keyChar == e.getKeyChar()));
 	}
 
-	protected boolean appliesToTyped(KeyEvent e, boolean capslock) {
+	protected boolean appliesToTyped(KeyEvent e, boolean capslock,
+			boolean remap_hash) {
 
 		if (Constants.OS == Constants.MAC) {
 			// Remap the hash key to 
-			if (Options.remap_hash && (e.getKeyChar() == '')) {
+			if (remap_hash && (e.getKeyChar() == '')) {
 				return ((characterDef) && (this.keyChar == '#'));
 			}
 
@@ -34,8 +34,6 @@ import java.awt.Menu;
 import java.awt.MenuBar;
 import java.awt.MenuItem;
 
-import net.propero.rdp.Common;
-import net.propero.rdp.Options;
 import net.propero.rdp.RdesktopFrame;
 
 public class RdpMenu extends MenuBar {
@@ -68,7 +66,7 @@ public class RdpMenu extends MenuBar {
 		m = new Menu("Display");
 		MenuItem mi = null;
 
-		if (!Options.fullscreen) {
+		if (!parent.context.options.fullscreen) {
 			mi = new MenuItem("Fullscreen Mode");
 			mi.disable();
 		} else
@@ -95,7 +93,7 @@ public class RdpMenu extends MenuBar {
 			((MenuItem) event.target).setLabel("Turn Scroll-Lock On");
 
 		if (arg == "Exit")
-			Common.exit();
+			parent.context.exit();
 
 		if (arg == "Fullscreen Mode") {
 			parent.goFullScreen();
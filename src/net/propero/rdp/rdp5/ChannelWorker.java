@@ -0,0 +1,206 @@
+/* ChannelWorker.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Runs a virtual channel's message processing on threads of its
+ *          own, fed through a bounded queue
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.rdp5;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.propero.rdp.PacketPool;
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket_Localised;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Carries the messages of one virtual channel from the network thread to
+ * the threads that process them, so that slow file or clipboard work does
+ * not hold up screen updates. With one thread, messages are processed one
+ * at a time in the order they arrived; with more, several are processed at
+ * once. The queue is bounded: when the channel falls behind, put() blocks
+ * the network thread rather than buffering without limit.
+ */
+public class ChannelWorker implements Runnable {
+	static Logger logger = Logger.getLogger(ChannelWorker.class);
+
+	/* interval at which a blocked producer checks the workers are alive */
+	private static final long POLL_MS = 100;
+
+	private static final RdpPacket_Localised STOP = new RdpPacket_Localised(0);
+
+	private final VChannel channel;
+
+	private final BlockingQueue<RdpPacket_Localised> queue;
+
+	private final Thread[] threads;
+
+	private volatile boolean running = true;
+
+	/* first exception thrown while processing, passed back to the producer */
+	private volatile Exception failure = null;
+
+	/* statistics */
+	private volatile int max_depth = 0;
+
+	private volatile long queued = 0;
+
+	private volatile long stalls = 0;
+
+	/**
+	 * Create a queue for a channel and start its threads
+	 *
+	 * @param channel
+	 *            Channel whose process method handles each message
+	 * @param threads
+	 *            Number of threads processing messages, 1 to keep them in
+	 *            order
+	 * @param capacity
+	 *            Maximum number of messages waiting to be processed
+	 */
+	public ChannelWorker(VChannel channel, int threads, int capacity) {
+		this.channel = channel;
+		this.queue = new ArrayBlockingQueue<RdpPacket_Localised>(capacity);
+		this.threads = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			String name = "RDP_" + channel.name() + "_Thread";
+			if (threads > 1)
+				name += "_" + i;
+			this.threads[i] = new Thread(this, name);
+			this.threads[i].setDaemon(true);
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Queue a message for processing, blocking while the queue is full. The
+	 * packet must hold the message from its current position up to its end
+	 * mark, and now belongs to the worker, which returns it to the
+	 * PacketPool once processed.
+	 *
+	 * @param data
+	 *            Complete message for the channel
+	 * @throws RdesktopException
+	 *             if a worker thread has failed
+	 */
+	public void put(RdpPacket_Localised data) throws RdesktopException {
+		try {
+			checkFailure();
+			if (!queue.offer(data)) {
+				stalls++;
+				while (!queue.offer(data, POLL_MS, TimeUnit.MILLISECONDS))
+					checkFailure();
+			}
+		} catch (InterruptedException e) {
+			PacketPool.release(data);
+			throw new RdesktopException("Interrupted queueing "
+					+ channel.name() + " data");
+		} catch (RdesktopException e) {
+			PacketPool.release(data);
+			throw e;
+		}
+		queued++;
+
+		int depth = queue.size();
+		if (depth > max_depth)
+			max_depth = depth;
+	}
+
+	/**
+	 * Stop the worker threads, discarding any messages not yet processed
+	 */
+	public void shutdown() {
+		running = false;
+		queue.clear();
+		for (int i = 0; i < threads.length; i++) {
+			queue.offer(STOP);
+			threads[i].interrupt();
+		}
+		logger.info(channel.name() + " queue: " + queued
+				+ " messages, max depth " + max_depth + ", " + stalls
+				+ " stalls");
+	}
+
+	/**
+	 * @return Number of messages waiting to be processed
+	 */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Largest number of messages that have been waiting at once
+	 */
+	public int getMaxDepth() {
+		return max_depth;
+	}
+
+	/**
+	 * @return Number of times the network thread blocked on a full queue
+	 */
+	public long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * @return Total number of messages queued
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	public void run() {
+		while (running) {
+			RdpPacket_Localised data;
+			try {
+				data = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (data == STOP)
+				break;
+
+			try {
+				channel.process(data);
+			} catch (Exception e) {
+				logger.warn(channel.name() + " processing failed: "
+						+ e.getMessage());
+				failure = e;
+				running = false;
+			} finally {
+				PacketPool.release(data);
+			}
+		}
+	}
+
+	private void checkFailure() throws RdesktopException {
+		if (failure != null)
+			throw new RdesktopException(channel.name()
+					+ " processing failed: " + failure.getMessage());
+		if (!running)
+			throw new RdesktopException(channel.name() + " queue stopped");
+	}
+}
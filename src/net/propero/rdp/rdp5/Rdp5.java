@@ -30,119 +30,239 @@
 
 package net.propero.rdp.rdp5;
 
+import net.propero.rdp.MPPC;
 import net.propero.rdp.OrderException;
+import net.propero.rdp.PacketPool;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.Rdp;
+import net.propero.rdp.RdpContext;
 import net.propero.rdp.RdpPacket_Localised;
+import net.propero.rdp.UpdateQueue;
 import net.propero.rdp.crypto.CryptoException;
 
 public class Rdp5 extends Rdp {
 
-	private VChannels channels;
+	/* fast-path output header flags, held in the top bits of the first byte */
+	private static final int FASTPATH_OUTPUT_SECURE_CHECKSUM = 0x40;
+
+	private static final int FASTPATH_OUTPUT_ENCRYPTED = 0x80;
+
+	/* fast-path update header: code, fragmentation and compression fields */
+	private static final int FASTPATH_UPDATE_CODE_MASK = 0x0f;
+
+	private static final int FASTPATH_FRAGMENT_SHIFT = 4;
+
+	private static final int FASTPATH_OUTPUT_COMPRESSION_USED = 0x80;
+
+	private static final int FASTPATH_FRAGMENT_SINGLE = 0;
+
+	private static final int FASTPATH_FRAGMENT_LAST = 1;
+
+	private static final int FASTPATH_FRAGMENT_FIRST = 2;
+
+	private static final int FASTPATH_FRAGMENT_NEXT = 3;
+
+	/* fast-path update codes */
+	private static final int FASTPATH_UPDATETYPE_ORDERS = 0;
+
+	private static final int FASTPATH_UPDATETYPE_BITMAP = 1;
+
+	private static final int FASTPATH_UPDATETYPE_PALETTE = 2;
+
+	private static final int FASTPATH_UPDATETYPE_SYNCHRONIZE = 3;
+
+	private static final int FASTPATH_UPDATETYPE_SURFCMDS = 4;
+
+	private static final int FASTPATH_UPDATETYPE_PTR_NULL = 5;
+
+	private static final int FASTPATH_UPDATETYPE_PTR_DEFAULT = 6;
+
+	private static final int FASTPATH_UPDATETYPE_PTR_POSITION = 8;
+
+	private static final int FASTPATH_UPDATETYPE_COLOR = 9;
+
+	private static final int FASTPATH_UPDATETYPE_CACHED = 10;
+
+	private static final int FASTPATH_UPDATETYPE_POINTER = 11;
+
+	private static final int FASTPATH_UPDATETYPE_LARGE_POINTER = 12;
+
+	/* reassembly buffer for fragmented updates, grown on demand */
+	private RdpPacket_Localised fragment = null;
+
+	private int fragment_length = 0;
+
+	private int fragment_code = -1;
 
 	/**
 	 * Initialise the RDP5 communications layer, with specified virtual channels
 	 * 
+	 * @param context
+	 *            Session this layer belongs to
 	 * @param channels
 	 *            Virtual channels for RDP layer
 	 */
-	public Rdp5(VChannels channels) {
-		super(channels);
-		this.channels = channels;
+	public Rdp5(RdpContext context, VChannels channels) {
+		super(context, channels);
 	}
 
-//	/**
-//	 * Process an RDP5 packet
-//	 * 
-//	 * @param s
-//	 *            Packet to be processed
-//	 * @param e
-//	 *            True if packet is encrypted
-//	 * @throws RdesktopException
-//	 * @throws OrderException
-//	 * @throws CryptoException
-//	 */
-//	public void rdp5_process(RdpPacket_Localised s, boolean e)
-//			throws RdesktopException, OrderException, CryptoException {
-//		rdp5_process(s, e, false);
-//	}
-
 	/**
-	 * Process an RDP5 packet
+	 * Process a fast-path output PDU in place, straight from the ISO frame
 	 * 
 	 * @param s
-	 *            Packet to be processed
-	 * @param encryption
-	 *            True if packet is encrypted
-	 * @param shortform
-	 *            True if packet is of the "short" form
+	 *            Packet to be processed, positioned after the length field
+	 * @param flags
+	 *            First byte of the fast-path header, holding the encryption
+	 *            and secure checksum flags
 	 * @throws RdesktopException
 	 * @throws OrderException
 	 * @throws CryptoException
 	 */
-	public void rdp5_process(RdpPacket_Localised s, boolean encryption) throws RdesktopException, OrderException,
-			CryptoException {
-		logger.debug("Processing RDP 5 order");
-
-		int length, count;
-		int type;
-		int next;
-
-		byte[] packet = null;
-		if (encryption) {
-			s.incrementPosition(8); /* signature */
-			byte[] data = new byte[s.size() - s.getPosition()];
-			s.copyToByteArray(data, 0, s.getPosition(), data.length);
-			packet = SecureLayer.decrypt(data);
+	public void rdp5_process(RdpPacket_Localised s, int flags)
+			throws RdesktopException, OrderException, CryptoException {
+		if ((flags & FASTPATH_OUTPUT_ENCRYPTED) != 0) {
+			if (SecureLayer.isFips()) {
+				throw new RdesktopException(
+						"FIPS encrypted fast-path output is not supported");
+			}
+			/*
+			 * the signature is a plain or salted (secure checksum) MAC, and
+			 * is not verified either way
+			 */
+			s.incrementPosition(8);
+			SecureLayer.decrypt(s, s.getPosition(), s.getEnd()
+					- s.getPosition());
+		} else if ((flags & FASTPATH_OUTPUT_SECURE_CHECKSUM) != 0) {
+			logger.warn("Secure checksum flag set on unencrypted PDU");
 		}
 
-		// printf("RDP5 data:\n");
-		// hexdump(s->p, s->end - s->p);
-		RdpPacket_Localised bf = new RdpPacket_Localised(packet.length);
-		bf.copyFromByteArray(packet, 0, 0, packet.length);
-		bf.incrementPosition(packet.length);
-		bf.markEnd();
-		bf.setPosition(0);
-
-		while (bf.getPosition() < bf.getEnd()) {
-			type = bf.get8();
-			length = bf.getLittleEndian16();
-			/* next_packet = */next = bf.getPosition() + length;
-			logger.debug("RDP5: type = " + type);
-			switch (type) {
-			case 0: /* orders */
-				count = bf.getLittleEndian16();
-				orders.processOrders(bf, next, count);
-				break;
-			case 1: /* bitmap update (???) */
-			    bf.incrementPosition(2); /* part length */
-				processBitmapUpdates(bf);
-				break;
-			case 2: /* palette */
-			    bf.incrementPosition(2);
-				processPalette(bf);
-				break;
-			case 3: /* probably an palette with offset 3. Weird */
-				break;
-			case 5:
-				process_null_system_pointer_pdu(bf);
-				break;
-			case 6: // default pointer
-				break;
-			case 9:
-				process_colour_pointer_pdu(bf);
-				break;
-			case 10:
-				process_cached_pointer_pdu(bf);
-				break;
-			case 11:
-			    process_new_pointer_pdu(bf);
-                break;
-			default:
-				logger.warn("Unimplemented RDP5 opcode " + type);
+		process_updates(s);
+	}
+
+	private void process_updates(RdpPacket_Localised s)
+			throws RdesktopException, OrderException {
+		int header, code, fragmentation, ctype, length;
+		int next, end;
+		RdpPacket_Localised bf;
+
+		while (s.getPosition() < s.getEnd()) {
+			header = s.get8();
+			code = header & FASTPATH_UPDATE_CODE_MASK;
+			fragmentation = (header >> FASTPATH_FRAGMENT_SHIFT) & 3;
+			if ((header & FASTPATH_OUTPUT_COMPRESSION_USED) != 0)
+				ctype = s.get8();
+			else
+				ctype = 0;
+			length = s.getLittleEndian16();
+			next = s.getPosition() + length;
+			if (next > s.getEnd())
+				throw new RdesktopException("Fast-path update overruns packet");
+
+			if ((ctype & MPPC.RDP_MPPC_COMPRESSED) != 0) {
+				mppc.expand(s, length, ctype, mppc_stream);
+				bf = mppc_stream;
+				end = bf.getEnd();
+			} else {
+				bf = s;
+				end = next;
 			}
 
-			bf.setPosition(next);
+			if (fragmentation == FASTPATH_FRAGMENT_SINGLE) {
+				queueUpdate(UpdateQueue.FAST_PATH_UPDATE, code, bf, end);
+			} else {
+				if (fragmentation == FASTPATH_FRAGMENT_FIRST) {
+					fragment_length = 0;
+					fragment_code = code;
+				} else if (fragment_code != code) {
+					throw new RdesktopException("Unexpected fast-path fragment");
+				}
+				append_fragment(bf, end);
+				if (fragmentation == FASTPATH_FRAGMENT_LAST) {
+					fragment.setPosition(0);
+					fragment.markEnd(fragment_length);
+					fragment_code = -1;
+					queueUpdate(UpdateQueue.FAST_PATH_UPDATE, code, fragment,
+							fragment_length);
+				}
+			}
+
+			s.setPosition(next);
+		}
+	}
+
+	/* Add the rest of an update fragment to the reassembly buffer */
+	private void append_fragment(RdpPacket_Localised bf, int end) {
+		int length = end - bf.getPosition();
+		int needed = fragment_length + length;
+
+		if (fragment == null || fragment.capacity() < needed) {
+			int size = fragment == null ? needed : Math.max(needed, 2 * fragment.capacity());
+			RdpPacket_Localised larger = PacketPool.acquire(size);
+			if (fragment != null) {
+				larger.copyFromPacket(fragment, 0, 0, fragment_length);
+				PacketPool.release(fragment);
+			}
+			fragment = larger;
+		}
+		fragment.copyFromPacket(bf, bf.getPosition(), fragment_length, length);
+		fragment_length = needed;
+	}
+
+	protected void renderUpdate(int kind, int code, RdpPacket_Localised data,
+			int end) throws RdesktopException, OrderException {
+		if (kind == UpdateQueue.FAST_PATH_UPDATE)
+			process_update(code, data, end);
+		else
+			super.renderUpdate(kind, code, data, end);
+	}
+
+	/* Dispatch a single, complete fast-path update */
+	private void process_update(int code, RdpPacket_Localised bf, int end)
+			throws RdesktopException, OrderException {
+		int count;
+
+		if (logger.isDebugEnabled())
+			logger.debug("RDP5: type = " + code);
+		switch (code) {
+		case FASTPATH_UPDATETYPE_ORDERS:
+			count = bf.getLittleEndian16();
+			orders.processOrders(bf, end, count);
+			break;
+		case FASTPATH_UPDATETYPE_BITMAP:
+			bf.incrementPosition(2); /* update type */
+			processBitmapUpdates(bf);
+			break;
+		case FASTPATH_UPDATETYPE_PALETTE:
+			bf.incrementPosition(2); /* update type */
+			processPalette(bf);
+			break;
+		case FASTPATH_UPDATETYPE_SYNCHRONIZE:
+			break;
+		case FASTPATH_UPDATETYPE_SURFCMDS:
+			process_surface_commands(bf, end);
+			break;
+		case FASTPATH_UPDATETYPE_PTR_NULL:
+			process_null_system_pointer_pdu(bf);
+			break;
+		case FASTPATH_UPDATETYPE_PTR_DEFAULT:
+			break;
+		case FASTPATH_UPDATETYPE_PTR_POSITION:
+			process_pointer_position_pdu(bf);
+			break;
+		case FASTPATH_UPDATETYPE_COLOR:
+			process_colour_pointer_pdu(bf);
+			break;
+		case FASTPATH_UPDATETYPE_CACHED:
+			process_cached_pointer_pdu(bf);
+			break;
+		case FASTPATH_UPDATETYPE_POINTER:
+			process_new_pointer_pdu(bf);
+			break;
+		case FASTPATH_UPDATETYPE_LARGE_POINTER:
+			process_large_pointer_pdu(bf);
+			break;
+		default:
+			logger.warn("Unimplemented RDP5 opcode " + code);
 		}
 	}
 
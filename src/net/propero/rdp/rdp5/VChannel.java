@@ -31,11 +31,10 @@ package net.propero.rdp.rdp5;
 
 import java.io.IOException;
 
-import net.propero.rdp.Common;
 import net.propero.rdp.Constants;
 import net.propero.rdp.Input;
-import net.propero.rdp.Options;
 import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpContext;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.RdpPacket_Localised;
 import net.propero.rdp.Secure;
@@ -47,8 +46,18 @@ public abstract class VChannel {
 
 	protected static Logger logger = Logger.getLogger(Input.class);
 
+	/* threads on which process() may be called, see threading() */
+	public static final int THREAD_INLINE = 0;
+
+	public static final int THREAD_SERIAL = 1;
+
+	public static final int THREAD_POOL = 2;
+
 	private int mcs_id = 0;
 
+	/* session this channel belongs to, set when it is registered */
+	protected RdpContext context = null;
+
 	/**
 	 * Provide the name of this channel
 	 * 
@@ -79,6 +88,27 @@ public abstract class VChannel {
 	public abstract void process(RdpPacket data) throws RdesktopException,
 			IOException, CryptoException;
 
+	/**
+	 * Choose where process() is called. THREAD_INLINE calls it on the network
+	 * thread, and suits channels doing little work per message.
+	 * THREAD_SERIAL calls it on a thread of the channel's own, one message at
+	 * a time in the order they arrived. THREAD_POOL calls it on poolSize()
+	 * threads at once, so process() must be thread-safe and its replies may
+	 * go out in any order.
+	 * 
+	 * @return THREAD_INLINE, THREAD_SERIAL or THREAD_POOL
+	 */
+	public int threading() {
+		return THREAD_INLINE;
+	}
+
+	/**
+	 * @return Number of threads processing messages for THREAD_POOL
+	 */
+	public int poolSize() {
+		return 4;
+	}
+
 	public int mcs_id() {
 		return mcs_id;
 	}
@@ -104,7 +134,8 @@ public abstract class VChannel {
 	public RdpPacket_Localised init(int length) throws RdesktopException {
 		RdpPacket_Localised s;
 
-		s = Common.secure.init(Options.encryption ? Secure.SEC_ENCRYPT : 0,
+		s = context.secure.init(
+				context.options.encryption ? Secure.SEC_ENCRYPT : 0,
 				length + 8);
 		s.setHeader(RdpPacket.CHANNEL_HEADER);
 		s.incrementPosition(8);
@@ -123,9 +154,22 @@ public abstract class VChannel {
 	 */
 	public void send_packet(RdpPacket_Localised data) throws RdesktopException,
 			IOException, CryptoException {
-		if (Common.secure == null)
+		if (context == null || context.secure == null)
 			return;
-		int length = data.size();
+		// the chunks of a message must not be interleaved with those of
+		// another message sent on this channel by a different thread
+		context.monitor.lock(this);
+		try {
+			send_chunks(data);
+		} finally {
+			context.monitor.unlock(this);
+		}
+	}
+
+	private void send_chunks(RdpPacket_Localised data)
+			throws RdesktopException, IOException, CryptoException {
+		// up to the end mark if there is one
+		int length = data.getEnd() >= 0 ? data.getEnd() : data.size();
 
 		int data_offset = 0;
 		int packets_sent = 0;
@@ -137,7 +181,7 @@ public abstract class VChannel {
 			int thisLength = Math.min(VChannels.CHANNEL_CHUNK_LENGTH, length
 					- data_offset);
 
-			RdpPacket_Localised s = Common.secure.init(
+			RdpPacket_Localised s = context.secure.init(
 			        (Constants.encryption) ? Secure.SEC_ENCRYPT : 0,
 					8 + thisLength);
 			s.setLittleEndian32(length);
@@ -156,8 +200,8 @@ public abstract class VChannel {
 
 			data_offset += thisLength;
 
-			if (Common.secure != null)
-				Common.secure.send_to_channel(s,
+			if (context.secure != null)
+				context.secure.send_to_channel(s,
 				        (Constants.encryption) ? Secure.SEC_ENCRYPT : 0, this
 								.mcs_id());
 			packets_sent++;
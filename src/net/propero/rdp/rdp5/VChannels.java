@@ -30,11 +30,12 @@
 package net.propero.rdp.rdp5;
 
 import java.io.IOException;
-import java.lang.reflect.Array;
 
 import net.propero.rdp.Input;
 import net.propero.rdp.MCS;
-import net.propero.rdp.Options;
+import net.propero.rdp.MPPC;
+import net.propero.rdp.RdpContext;
+import net.propero.rdp.PacketPool;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket_Localised;
 import net.propero.rdp.crypto.CryptoException;
@@ -54,6 +55,8 @@ public class VChannels {
 
 	public static final int WAVE_FORMAT_MULAW = 7;
 
+	public static final int WAVE_FORMAT_IMA_ADPCM = 0x11;
+
 	/* Virtual channel options */
 	public static final int CHANNEL_OPTION_INITIALIZED = 0x80000000;
 
@@ -76,12 +79,20 @@ public class VChannels {
 
 	public static final int CHANNEL_CHUNK_LENGTH = 1600;
 
+	/* longest message reassembled, longer ones are dropped */
+	public static final int MAX_MESSAGE_LENGTH = 32 * 1024 * 1024;
+
+	/* reassembly buffers start this size, and grow as chunks arrive */
+	private static final int FRAGMENT_INITIAL_LENGTH = 64 * 1024;
+
 	public static final int CHANNEL_FLAG_FIRST = 0x01;
 
 	public static final int CHANNEL_FLAG_LAST = 0x02;
 
 	public static final int CHANNEL_FLAG_SHOW_PROTOCOL = 0x10;
 
+	public static final int CHANNEL_FLAG_COMPRESSED = 0x00200000;
+
 	private VChannel channels[] = new VChannel[MAX_CHANNELS];
 
 	private int num_channels;
@@ -90,7 +101,26 @@ public class VChannels {
 		return num_channels;
 	}
 
-	private byte[] fragment_buffer = null;
+	/*
+	 * reassembly buffer for each channel, the total length given in the
+	 * first chunk, and how much of the buffer has been filled
+	 */
+	private RdpPacket_Localised[] fragments = new RdpPacket_Localised[MAX_CHANNELS];
+
+	private int[] fragment_length = new int[MAX_CHANNELS];
+
+	private int[] fragment_filled = new int[MAX_CHANNELS];
+
+	/* the rest of a dropped message is skipped up to its last chunk */
+	private boolean[] skipping = new boolean[MAX_CHANNELS];
+
+	/* threads processing each channel's messages, started on first use */
+	private ChannelWorker[] workers = new ChannelWorker[MAX_CHANNELS];
+
+	/* bulk decompressor for channel data, separate from the global channel */
+	private MPPC mppc = null;
+
+	private RdpPacket_Localised mppc_stream = null;
 
 	/**
 	 * Obtain the MCS ID for a specific numbered channel
@@ -103,10 +133,16 @@ public class VChannels {
 		return MCS.MCS_GLOBAL_CHANNEL + 1 + c;
 	}
 
+	private final RdpContext context;
+
 	/**
 	 * Initialise the maximum number of Virtual Channels
+	 * 
+	 * @param context
+	 *            Session carrying these channels
 	 */
-	public VChannels() {
+	public VChannels(RdpContext context) {
+		this.context = context;
 		channels = new VChannel[MAX_CHANNELS];
 	}
 
@@ -145,6 +181,11 @@ public class VChannels {
 	 * Remove all registered virtual channels
 	 */
 	public void clear() {
+		shutdown();
+		for (int i = 0; i < MAX_CHANNELS; i++) {
+			dropFragment(i);
+			skipping[i] = false;
+		}
 		channels = new VChannel[MAX_CHANNELS];
 		num_channels = 0;
 	}
@@ -158,7 +199,7 @@ public class VChannels {
 	 * @throws RdesktopException
 	 */
 	public boolean register(VChannel v) throws RdesktopException {
-		if (!Options.use_rdp5) {
+		if (!context.options.use_rdp5) {
 			return false;
 		}
 
@@ -167,6 +208,7 @@ public class VChannels {
 					"Channel table full. Could not register channel.");
 
 		channels[num_channels] = v;
+		v.context = context;
 		v.set_mcs_id(MCS.MCS_GLOBAL_CHANNEL + 1 + num_channels);
 		num_channels++;
 
@@ -205,71 +247,186 @@ public class VChannels {
 		length = data.getLittleEndian32();
 		flags = data.getLittleEndian32();
 
+		if ((flags & CHANNEL_FLAG_COMPRESSED) != 0) {
+			if (mppc == null) {
+				mppc = new MPPC();
+				mppc_stream = new RdpPacket_Localised(MPPC.RDP_MPPC_DICT_SIZE);
+			}
+			// the upper flag bits carry the same compression type and flags
+			// as a share data header
+			mppc.expand(data, data.getEnd() - data.getPosition(),
+					(flags >> 16) & 0xff, mppc_stream);
+			data = mppc_stream;
+		}
+
 		if (((flags & CHANNEL_FLAG_FIRST) != 0)
 				&& ((flags & CHANNEL_FLAG_LAST) != 0)) {
 			// single fragment - pass straight up
-			channel.process(data);
+			dispatch(i, data, false);
 		} else {
-			// append to the defragmentation buffer
-			byte[] content = new byte[data.getEnd() - data.getPosition()];
-			data
-					.copyToByteArray(content, 0, data.getPosition(),
-							content.length);
-			fragment_buffer = append(fragment_buffer, content);
+			if ((flags & CHANNEL_FLAG_FIRST) != 0) {
+				if (fragments[i] != null) {
+					logger.warn("Channel " + mcsChannel
+							+ " started a new message before the last ended");
+					dropFragment(i);
+				}
+				skipping[i] = false;
+				if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+					logger.warn("Channel " + mcsChannel + " message of "
+							+ (length & 0xffffffffL) + " bytes dropped");
+					skipMessage(i, flags);
+					return;
+				}
+				// the length is only the server's word, so the buffer
+				// grows with the data actually received
+				fragments[i] = PacketPool.acquire(Math.min(length,
+						FRAGMENT_INITIAL_LENGTH));
+				fragment_length[i] = length;
+				fragment_filled[i] = 0;
+			}
+
+			RdpPacket_Localised fullpacket = fragments[i];
+			if (fullpacket == null) {
+				if (!skipping[i])
+					logger.warn("Channel " + mcsChannel
+							+ " continued a message that was never started");
+				if ((flags & CHANNEL_FLAG_LAST) != 0)
+					skipping[i] = false;
+				return;
+			}
+
+			// copy the chunk into place in the reassembly buffer
+			int chunk = data.getEnd() - data.getPosition();
+			int filled = fragment_filled[i];
+			if (chunk > fragment_length[i] - filled) {
+				logger.warn("Channel " + mcsChannel
+						+ " message overran its length of "
+						+ fragment_length[i] + " bytes");
+				skipMessage(i, flags);
+				return;
+			}
+			if (chunk > fullpacket.size() - filled) {
+				RdpPacket_Localised grown = PacketPool.acquire(Math.min(
+						fragment_length[i], Math.max(filled + chunk,
+								2 * fullpacket.size())));
+				if (filled > 0)
+					grown.copyFromPacket(fullpacket, 0, 0, filled);
+				PacketPool.release(fullpacket);
+				fragments[i] = fullpacket = grown;
+			}
+			fullpacket.copyFromPacket(data, data.getPosition(), filled, chunk);
+			fragment_filled[i] = filled + chunk;
 
 			if ((flags & CHANNEL_FLAG_LAST) != 0) {
-				RdpPacket_Localised fullpacket = new RdpPacket_Localised(
-						fragment_buffer.length);
-				fullpacket.copyFromByteArray(fragment_buffer, 0, 0,
-						fragment_buffer.length);
+				fragments[i] = null;
+				fullpacket.setPosition(0);
+				fullpacket.markEnd(fragment_filled[i]);
 				// process the entire reconstructed packet
-				channel.process(fullpacket);
-				fragment_buffer = null;
+				dispatch(i, fullpacket, true);
+			}
+		}
+	}
+
+	/**
+	 * Pass a complete message to its channel, on the thread the channel asks
+	 * for
+	 * 
+	 * @param c
+	 *            Channel number
+	 * @param data
+	 *            Message, from its current position up to its end mark
+	 * @param owned
+	 *            True if data came from the PacketPool and is no longer
+	 *            needed by the caller, false if it must be copied before
+	 *            being handed to another thread
+	 * @throws RdesktopException
+	 * @throws IOException
+	 * @throws CryptoException
+	 */
+	private void dispatch(int c, RdpPacket_Localised data, boolean owned)
+			throws RdesktopException, IOException, CryptoException {
+		VChannel channel = channels[c];
+		int threading = channel.threading();
+
+		if (threading == VChannel.THREAD_INLINE
+				|| context.options.channel_queue <= 0) {
+			try {
+				channel.process(data);
+			} finally {
+				if (owned)
+					PacketPool.release(data);
 			}
+			return;
+		}
+
+		if (workers[c] == null) {
+			workers[c] = new ChannelWorker(channel,
+					threading == VChannel.THREAD_POOL ? Math.max(1, channel
+							.poolSize()) : 1, context.options.channel_queue);
+		}
 
+		if (!owned) {
+			// the receive buffers are reused for the next PDU
+			int length = data.getEnd() - data.getPosition();
+			RdpPacket_Localised copy = PacketPool.acquire(length);
+			copy.copyFromPacket(data, data.getPosition(), 0, length);
+			copy.markEnd(length);
+			data = copy;
 		}
+		workers[c].put(data);
 	}
 
 	/**
-	 * Increase the size of an array
+	 * Retrieve the worker processing messages for a numbered channel
 	 * 
-	 * @param a
-	 *            Array to expand
-	 * @param amount
-	 *            Number of elements to add to the array
-	 * @return Expanded array
+	 * @param c
+	 *            Channel number
+	 * @return Worker for the channel, or null if its messages are processed
+	 *         on the network thread or none have arrived yet
 	 */
-	static Object arrayExpand(Object a, int amount) {
-		Class cl = a.getClass();
-		if (!cl.isArray())
+	public ChannelWorker worker(int c) {
+		if (c < num_channels)
+			return workers[c];
+		else
 			return null;
-		int length = Array.getLength(a);
-		int newLength = length + amount; // 50% more
+	}
 
-		Class componentType = a.getClass().getComponentType();
-		Object newArray = Array.newInstance(componentType, newLength);
-		System.arraycopy(a, 0, newArray, 0, length);
-		return newArray;
+	/**
+	 * Stop all channel workers, discarding messages they have not processed.
+	 * Workers are started again when the next messages arrive.
+	 */
+	public void shutdown() {
+		for (int i = 0; i < MAX_CHANNELS; i++) {
+			if (workers[i] != null) {
+				workers[i].shutdown();
+				workers[i] = null;
+			}
+		}
 	}
 
 	/**
-	 * Concatenate two byte arrays
+	 * Discard a partly reassembled message
 	 * 
-	 * @param target
-	 *            Contains initial bytes in output
-	 * @param source
-	 *            Appended to target array
-	 * @return Concatenation of arrays, target+source
+	 * @param c
+	 *            Channel number
 	 */
-	static byte[] append(byte[] target, byte[] source) {
-		if (target == null || target.length <= 0)
-			return source;
-		else if (source == null || source.length <= 0)
-			return target;
-		else {
-			byte[] out = (byte[]) arrayExpand(target, source.length);
-			System.arraycopy(source, 0, out, target.length, source.length);
-			return out;
-		}
+	private void dropFragment(int c) {
+		PacketPool.release(fragments[c]);
+		fragments[c] = null;
+		fragment_length[c] = 0;
+		fragment_filled[c] = 0;
+	}
+
+	/**
+	 * Discard a message, along with any chunks of it still to come
+	 * 
+	 * @param c
+	 *            Channel number
+	 * @param flags
+	 *            Flags of the chunk that caused the message to be dropped
+	 */
+	private void skipMessage(int c, int flags) {
+		dropFragment(c);
+		skipping[c] = (flags & CHANNEL_FLAG_LAST) == 0;
 	}
 }
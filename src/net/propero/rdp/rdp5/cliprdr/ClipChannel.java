@@ -40,10 +40,8 @@ import java.io.IOException;
 import java.util.Iterator;
 
 import net.propero.rdp.Common;
-import net.propero.rdp.CommunicationMonitor;
 import net.propero.rdp.Constants;
 import net.propero.rdp.Input;
-import net.propero.rdp.Options;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.RdpPacket_Localised;
@@ -110,6 +108,11 @@ public class ClipChannel extends VChannel implements ClipInterface,
 		return "cliprdr";
 	}
 
+	public int threading() {
+		// converting large clipboard images must not hold up screen updates
+		return THREAD_SERIAL;
+	}
+
 	public int flags() {
 		return VChannels.CHANNEL_OPTION_INITIALIZED
 				| VChannels.CHANNEL_OPTION_ENCRYPT_RDP
@@ -266,7 +269,7 @@ public class ClipChannel extends VChannel implements ClipInterface,
 	void request_clipboard_data(int formatcode) throws RdesktopException,
 			IOException, CryptoException {
 
-		RdpPacket_Localised s = Common.secure.init(
+		RdpPacket_Localised s = context.secure.init(
 				Constants.encryption ? Secure.SEC_ENCRYPT : 0, 24);
 		s.setLittleEndian32(16); // length
 
@@ -282,45 +285,46 @@ public class ClipChannel extends VChannel implements ClipInterface,
 		s.setLittleEndian32(0); // Unknown. Garbage pad?
 		s.markEnd();
 
-		Common.secure.send_to_channel(s,
+		context.secure.send_to_channel(s,
 				Constants.encryption ? Secure.SEC_ENCRYPT : 0, this.mcs_id());
 	}
 
 	public void send_data(byte[] data, int length) {
-		CommunicationMonitor.lock(this);
-
-		RdpPacket_Localised all = new RdpPacket_Localised(12 + length);
-
-		all.setLittleEndian16(CLIPRDR_DATA_RESPONSE);
-		all.setLittleEndian16(CLIPRDR_RESPONSE);
-		all.setLittleEndian32(length + 4); // don't know why, but we need to
-		// add between 1 and 4 to the
-		// length,
-		// otherwise the server cliprdr thread hangs
-		all.copyFromByteArray(data, 0, all.getPosition(), length);
-		all.incrementPosition(length);
-		all.setLittleEndian32(0);
-
+		context.monitor.lock(this);
 		try {
-			this.send_packet(all);
-		} catch (RdesktopException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			if (!Common.underApplet)
-				System.exit(-1);
-		} catch (IOException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			if (!Common.underApplet)
-				System.exit(-1);
-		} catch (CryptoException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			if (!Common.underApplet)
-				System.exit(-1);
-		}
+			RdpPacket_Localised all = new RdpPacket_Localised(12 + length);
+
+			all.setLittleEndian16(CLIPRDR_DATA_RESPONSE);
+			all.setLittleEndian16(CLIPRDR_RESPONSE);
+			all.setLittleEndian32(length + 4); // don't know why, but we need to
+			// add between 1 and 4 to the
+			// length,
+			// otherwise the server cliprdr thread hangs
+			all.copyFromByteArray(data, 0, all.getPosition(), length);
+			all.incrementPosition(length);
+			all.setLittleEndian32(0);
 
-		CommunicationMonitor.unlock(this);
+			try {
+				this.send_packet(all);
+			} catch (RdesktopException e) {
+				System.err.println(e.getMessage());
+				e.printStackTrace();
+				if (!Common.underApplet)
+					System.exit(-1);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				e.printStackTrace();
+				if (!Common.underApplet)
+					System.exit(-1);
+			} catch (CryptoException e) {
+				System.err.println(e.getMessage());
+				e.printStackTrace();
+				if (!Common.underApplet)
+					System.exit(-1);
+			}
+		} finally {
+			context.monitor.unlock(this);
+		}
 	}
 
 	/*
@@ -329,7 +333,7 @@ public class ClipChannel extends VChannel implements ClipInterface,
 	public void focusGained(FocusEvent arg0) {
 		// synchronise the clipboard types here, so the server knows what's
 		// available
-		if (Options.use_rdp5) {
+		if (context != null && context.options.use_rdp5) {
 			try {
 				send_format_announce();
 			} catch (RdesktopException e) {
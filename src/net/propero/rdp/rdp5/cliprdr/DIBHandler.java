@@ -35,6 +35,7 @@ import java.awt.MediaTracker;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.image.ImageObserver;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
 import net.propero.rdp.Common;
@@ -66,8 +67,14 @@ public class DIBHandler extends TypeHandler implements ImageObserver {
 
 	public void handleData(RdpPacket data, int length, ClipInterface c) {
 		// System.out.println("DIBHandler.handleData");
-		BMPToImageThread t = new BMPToImageThread(data, length, c);
-		t.start();
+		// the clipboard channel has a thread of its own, so the bitmap is
+		// converted here rather than on yet another thread
+		byte[] content = new byte[length];
+		if (length > 0)
+			data.copyToByteArray(content, 0, data.getPosition(), length);
+		Image img = ClipBMP.loadbitmap(new ByteArrayInputStream(content));
+		ImageSelection imageSelection = new ImageSelection(img);
+		c.copyToClipboard(imageSelection);
 	}
 
 	public void send_data(Transferable in, ClipInterface c) {
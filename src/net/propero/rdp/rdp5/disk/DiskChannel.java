@@ -5,7 +5,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 
-import net.propero.rdp.CommunicationMonitor;
+import net.propero.rdp.PacketPool;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.RdpPacket_Localised;
@@ -47,6 +47,12 @@ public class DiskChannel extends VChannel implements DiskConst {
         return versionMinor != 0x0C;
     }
 
+    @Override
+    public int threading() {
+        // file i/o must not hold up screen updates
+        return THREAD_SERIAL;
+    }
+
     @Override
     public int flags() {
         return VChannels.CHANNEL_OPTION_INITIALIZED /*| VChannels.CHANNEL_OPTION_ENCRYPT_RDP*/
@@ -305,55 +311,99 @@ public class DiskChannel extends VChannel implements DiskConst {
             irp.completionId = completionId;
             irp.data = data;
             
-            byte[] buffer = null;
-            
-            int ioStatus = 0;
+            int ioStatus;
             
             try {
                 ioStatus = device.process(data, irp);
-                if(ioStatus != RD_STATUS_PENDING) {
-                    irp.out.flush();
-                    irp.bout.flush();
-                    buffer = irp.bout.toByteArray();
-                } else {
-                    buffer = empty_buffer;
-                }
             } catch (IOException e) {
                 e.printStackTrace();
-                buffer = empty_buffer;
+                irp.bout.reset();
+                ioStatus = RD_STATUS_UNSUCCESS;
             }
             
+            // pending IRPs are completed later, by the device
             if(ioStatus != RD_STATUS_PENDING) {
-                //device i/o response header
-                RdpPacket_Localised s = new RdpPacket_Localised(16 + (ioStatus == RD_STATUS_CANCELLED ? 4 : buffer.length));
-                s.setLittleEndian16(RDPDR_CTYP_CORE);// PAKID_CORE_DEVICE_REPLY?
-                s.setLittleEndian16(PAKID_CORE_DEVICE_IOCOMPLETION);
-                s.setLittleEndian32(deviceId);
-                s.setLittleEndian32(completionId);
-                s.setLittleEndian32(ioStatus);
-                if(ioStatus == RD_STATUS_CANCELLED) {
-                    s.setLittleEndian32(0);
-                } else {
-                    if(buffer.length > 0) {
-                        s.copyFromByteArray(buffer, 0, s.getPosition(), buffer.length);
-                    }
-                }
-                
-                s.markEnd();
-                try {
-                    this.send_packet(s);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                rdpdr_complete_irp(irp, ioStatus);
             }
-            
+        }
+    }
+    
+    /**
+     * Send the completion of an IRP. Devices call this from their own
+     * threads for IRPs they left pending.
+     * 
+     * @param irp
+     *            IRP processed, with its output in reply or out
+     * @param ioStatus
+     *            Status to report
+     */
+    void rdpdr_complete_irp(IRP irp, int ioStatus) {
+        if(irp.reply != null) {
+            rdpdr_send_completion(irp, ioStatus);
+            return;
+        }
+        
+        byte[] buffer;
+        try {
+            irp.out.flush();
+            irp.bout.flush();
+            buffer = irp.bout.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            buffer = empty_buffer;
+        }
+        
+        //device i/o response header
+        RdpPacket_Localised s = new RdpPacket_Localised(16 + (ioStatus == RD_STATUS_CANCELLED ? 4 : buffer.length));
+        s.setLittleEndian16(RDPDR_CTYP_CORE);// PAKID_CORE_DEVICE_REPLY?
+        s.setLittleEndian16(PAKID_CORE_DEVICE_IOCOMPLETION);
+        s.setLittleEndian32(irp.deviceId);
+        s.setLittleEndian32(irp.completionId);
+        s.setLittleEndian32(ioStatus);
+        if(ioStatus == RD_STATUS_CANCELLED) {
+            s.setLittleEndian32(0);
+        } else {
+            if(buffer.length > 0) {
+                s.copyFromByteArray(buffer, 0, s.getPosition(), buffer.length);
+            }
+        }
+        
+        s.markEnd();
+        try {
+            this.send_packet(s);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Send a completion packet the device has already filled in, apart from
+     * the header
+     */
+    private void rdpdr_send_completion(IRP irp, int ioStatus) {
+        RdpPacket_Localised s = irp.reply;
+        irp.reply = null;
+        s.setLittleEndian16(0, RDPDR_CTYP_CORE);
+        s.setLittleEndian16(2, PAKID_CORE_DEVICE_IOCOMPLETION);
+        s.setLittleEndian32(4, irp.deviceId);
+        s.setLittleEndian32(8, irp.completionId);
+        s.setLittleEndian32(12, ioStatus);
+        try {
+            this.send_packet(s);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            PacketPool.release(s);
         }
     }
     
     public void send_packet(RdpPacket_Localised s) throws RdesktopException, IOException, CryptoException {
-        CommunicationMonitor.lock(this);
-        super.send_packet(s);
-        CommunicationMonitor.unlock(this);
+        context.monitor.lock(this);
+        try {
+            super.send_packet(s);
+        } finally {
+            context.monitor.unlock(this);
+        }
 
 //        int size = s.size();
 //        boolean mark = false;
@@ -26,6 +26,7 @@ public interface DiskConst {
     static final int RD_STATUS_DIRECTORY_NOT_EMPTY   =   0xc0000101;
 
     static final int RDPDR_CTYP_CORE = 0x4472;
+    static final int RDPDR_IOCOMPLETION_HEADER_SIZE = 16;
     static final int RDPDR_CTYP_PRN = 0x5052;
     
     static final int PAKID_CORE_SERVER_ANNOUNCE = 0x496E;
@@ -5,14 +5,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.propero.rdp.PacketPool;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.RdpPacket_Localised;
 import net.propero.rdp.rdp5.VChannel;
@@ -23,25 +35,51 @@ public class DiskDevice implements Device, DiskConst {
     String diskName;
     String basePath;
     
-    VChannel channel;
+    DiskChannel channel;
     
-    private int id_sequence = 1;
+    /* threads running IRPs, at most one at a time for each file */
+    private static final int WORKERS = 4;
     
-    private BlockingQueue<IRP> irps;
+    /* IRPs taken from the channel and not yet completed */
+    private static final int MAX_QUEUED = 64;
     
-    private boolean running = true;
+    /* reads in flight, each holds a completion of up to 64K until it is sent */
+    private static final int MAX_READS = 8;
+    
+    private final AtomicInteger id_sequence = new AtomicInteger(1);
     
     private Map<Integer, DriveFile> files;
     
+    private final ThreadPoolExecutor pool;
+    
+    private final Semaphore queued = new Semaphore(MAX_QUEUED);
+    
+    private final Semaphore reads = new Semaphore(MAX_READS);
+    
+    /* IRPs waiting to run, by file; guarded by itself */
+    private final Map<Integer, FileQueue> queues = new HashMap<Integer, FileQueue>();
+    
+    /* change notifications left pending, by file; guarded by itself */
+    private final Map<Integer, List<IRP>> pending = new HashMap<Integer, List<IRP>>();
+    
     public DiskDevice(String diskName, String basePath) {
         super();
         this.diskName = diskName;
         this.basePath = basePath;
         
-        files = new HashMap<Integer, DiskDevice.DriveFile>();
-        irps = new LinkedBlockingQueue<IRP>();
-        Thread t = new Thread(new ProcessThread(), "DiskDevice_Thread_" + this.hashCode());
-        t.start();
+        files = new ConcurrentHashMap<Integer, DiskDevice.DriveFile>();
+        pool = new ThreadPoolExecutor(WORKERS, WORKERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int count = 0;
+                    
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DiskDevice_Thread_" + DiskDevice.this.diskName + "_" + (count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
     }
 
     @Override
@@ -56,7 +94,7 @@ public class DiskDevice implements Device, DiskConst {
     
     @Override
     public void setChannel(VChannel channel) {
-        this.channel = channel;
+        this.channel = (DiskChannel) channel;
     }
 
     @Override
@@ -69,16 +107,139 @@ public class DiskDevice implements Device, DiskConst {
 //            System.out.println();
 //        }
         
-        switch(irp.majorFunction) {
-        case IRP_MJ_READ:
-        case IRP_MJ_WRITE:
-            if(irps.offer(irp)) {
-                return RD_STATUS_PENDING;
-            } else {
-                return RD_STATUS_CANCELLED;
+        if(irp.majorFunction == IRP_MJ_DIRECTORY_CONTROL
+                && irp.minorFunction == IRP_MN_NOTIFY_CHANGE_DIRECTORY) {
+            // nothing to wait for, a notification stays pending until its
+            // directory is closed rather than holding up a worker
+            int status = process0(data, irp);
+            if(status == RD_STATUS_PENDING) {
+                synchronized(pending) {
+                    List<IRP> list = pending.get(irp.fileId);
+                    if(list == null) {
+                        list = new ArrayList<IRP>();
+                        pending.put(irp.fileId, list);
+                    }
+                    list.add(irp);
+                }
+            }
+            return status;
+        }
+        
+        // everything else runs on the pool, in order for each file; a full
+        // pool holds up the channel rather than buffering without limit
+        if(irp.majorFunction == IRP_MJ_READ) {
+            reads.acquireUninterruptibly();
+        }
+        queued.acquireUninterruptibly();
+        
+        // the channel releases its packet once this returns, the worker
+        // needs its own copy of the request body
+        irp.data = copyRemaining(data);
+        
+        if(irp.majorFunction == IRP_MJ_CREATE) {
+            // the file has no id yet, so nothing to keep in order with
+            final IRP create = irp;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(create);
+                }
+            });
+        } else {
+            synchronized(queues) {
+                FileQueue q = queues.get(irp.fileId);
+                if(q == null) {
+                    q = new FileQueue(irp.fileId);
+                    queues.put(irp.fileId, q);
+                    q.irps.add(irp);
+                    pool.execute(q);
+                } else {
+                    q.irps.add(irp);
+                }
+            }
+        }
+        return RD_STATUS_PENDING;
+    }
+    
+    private static RdpPacket copyRemaining(RdpPacket data) {
+        int end = data.getEnd() >= 0 ? data.getEnd() : data.size();
+        int length = Math.max(0, end - data.getPosition());
+        RdpPacket_Localised copy = PacketPool.acquire(length);
+        if(length > 0) {
+            copy.copyFromPacket((RdpPacket_Localised) data, data.getPosition(), 0, length);
+        }
+        copy.markEnd(length);
+        return copy;
+    }
+    
+    /**
+     * IRPs for one file, run one at a time in the order they arrived. The
+     * queue goes back on the pool after each IRP, so a busy file does not
+     * keep a worker from the others.
+     */
+    private class FileQueue implements Runnable {
+        final int fileId;
+        final LinkedList<IRP> irps = new LinkedList<IRP>();
+        
+        FileQueue(int fileId) {
+            this.fileId = fileId;
+        }
+        
+        @Override
+        public void run() {
+            IRP irp;
+            synchronized(queues) {
+                irp = irps.removeFirst();
+            }
+            execute(irp);
+            synchronized(queues) {
+                if(irps.isEmpty()) {
+                    queues.remove(fileId);
+                } else {
+                    pool.execute(this);
+                }
+            }
+        }
+    }
+    
+    private void execute(IRP irp) {
+        int ioStatus;
+        try {
+            ioStatus = process0(irp.data, irp);
+        } catch (Exception e) {
+            e.printStackTrace();
+            irp.bout.reset();
+            if(irp.reply != null) {
+                PacketPool.release(irp.reply);
+                irp.reply = null;
+            }
+            ioStatus = RD_STATUS_UNSUCCESS;
+        } finally {
+            PacketPool.release((RdpPacket_Localised) irp.data);
+            irp.data = null;
+        }
+        
+        if(irp.majorFunction == IRP_MJ_CLOSE) {
+            cancelPending(irp.fileId);
+        }
+        channel.rdpdr_complete_irp(irp, ioStatus);
+        
+        queued.release();
+        if(irp.majorFunction == IRP_MJ_READ) {
+            reads.release();
+        }
+    }
+    
+    /* the server expects notifications on a file to complete when it closes */
+    private void cancelPending(int fileId) {
+        List<IRP> list;
+        synchronized(pending) {
+            list = pending.remove(fileId);
+        }
+        if(list != null) {
+            for(IRP irp : list) {
+                channel.rdpdr_complete_irp(irp, RD_STATUS_CANCELLED);
             }
-        default:
-            return process0(data, irp);
         }
     }
     
@@ -153,7 +314,7 @@ public class DiskDevice implements Device, DiskConst {
                 fileName = fileName.substring(0, fileName.length() - 1);
             }
         }
-        fileId = id_sequence++;
+        fileId = id_sequence.getAndIncrement();
         DriveFile df = drive_file_new(basePath, fileName, fileId, desiredAccess, createDisposition, createOptions);
         if(df == null) {
             fileId = 0;
@@ -196,7 +357,7 @@ public class DiskDevice implements Device, DiskConst {
             return RD_STATUS_UNSUCCESS;
         }
         
-        df.closeRaf();
+        df.closeChannel();
         
         if(df.delete_pending) {
             df.file.delete();
@@ -218,32 +379,46 @@ public class DiskDevice implements Device, DiskConst {
             return RD_STATUS_UNSUCCESS;
         }
         int length = data.getLittleEndian32();
-        long offset = ((long)data.getLittleEndian32()) + (((long)data.getLittleEndian32()) << 32);
-        
-        long fileLength = df.file.length();
-        if((offset + length) > fileLength) {
-            length = (int) (fileLength - offset);
-        }
+        long offset = (data.getLittleEndian32() & 0xffffffffL) + (((long)data.getLittleEndian32()) << 32);
         
+        RdpPacket_Localised s = null;
         try {
-            RandomAccessFile raf = df.getRAF(false);
-            raf.seek(offset);
-            byte[] bf = new byte[length];
-            raf.readFully(bf);
-            writeIntLe(out, length);
-            out.write(bf);
+            FileChannel fc = df.getChannel(false);
+            long fileLength = fc.size();
+            if((offset + length) > fileLength) {
+                length = (int) Math.max(0, fileLength - offset);
+            }
+            
+            // read straight into the completion packet, after its header
+            // and the Length field
+            s = PacketPool.acquire(RDPDR_IOCOMPLETION_HEADER_SIZE + 4 + length);
+            ByteBuffer dst = s.getByteBuffer().duplicate();
+            dst.limit(RDPDR_IOCOMPLETION_HEADER_SIZE + 4 + length);
+            dst.position(RDPDR_IOCOMPLETION_HEADER_SIZE + 4);
+            int read = 0;
+            while(read < length) {
+                int n = fc.read(dst, offset + read);
+                if(n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            s.setLittleEndian32(RDPDR_IOCOMPLETION_HEADER_SIZE, read);
+            s.markEnd(RDPDR_IOCOMPLETION_HEADER_SIZE + 4 + read);
         } catch (Exception e) {
+            PacketPool.release(s);
             out.writeInt(0);
             return RD_STATUS_UNSUCCESS;
         }
         
+        irp.reply = s;
         return RD_STATUS_SUCCESS;
     }
     
     private int drive_process_irp_write(RdpPacket data, IRP irp) throws IOException {
         DataOutputStream out = irp.out;
         int length = data.getLittleEndian32();
-        long offset = ((long)data.getLittleEndian32()) + (((long)data.getLittleEndian32()) << 32);
+        long offset = (data.getLittleEndian32() & 0xffffffffL) + (((long)data.getLittleEndian32()) << 32);
         data.incrementPosition(20);
         
         DriveFile df = files.get(irp.fileId);
@@ -253,20 +428,26 @@ public class DiskDevice implements Device, DiskConst {
             return RD_STATUS_INVALID_HANDLE;
         }
         try {
-            RandomAccessFile raf = df.getRAF(true);
-            raf.seek(offset);
-            byte[] bf = new byte[length];
-            data.copyToByteArray(bf, 0, data.getPosition(), length);
-            raf.write(bf);
-//            for(int l = 0; l < length; l++) {
-//                raf.write(data.get8());
-//            }
+            FileChannel fc = df.getChannel(true);
+            // write straight from the request packet
+            ByteBuffer src = ((RdpPacket_Localised) data).getByteBuffer().duplicate();
+            src.limit(data.getPosition() + length);
+            src.position(data.getPosition());
+            int written = 0;
+            while(src.hasRemaining()) {
+                written += fc.write(src, offset + written);
+            }
             writeIntLe(out, length);
             out.write(0);
         } catch (FileNotFoundException e) {
             out.writeInt(0);
             out.write(0);
             return RD_STATUS_UNSUCCESS;
+        } catch (NonWritableChannelException e) {
+            // opened read-only, the file could not be opened for writing
+            out.writeInt(0);
+            out.write(0);
+            return RD_STATUS_ACCESS_DENIED;
         }
         
         
@@ -524,7 +705,7 @@ public class DiskDevice implements Device, DiskConst {
         int result = RD_STATUS_PENDING;
         
         DriveFile df = files.get(irp.fileId);
-        if(!df.file.exists() || !df.file.isDirectory()) {
+        if(df == null || !df.file.exists() || !df.file.isDirectory()) {
             result = RD_STATUS_ACCESS_DENIED;
         }
         
@@ -774,55 +955,6 @@ public class DiskDevice implements Device, DiskConst {
         return df;
     }
     
-    private class ProcessThread implements Runnable {
-        @Override
-        public void run() {
-            try {
-                while(running) {
-                    IRP irp = irps.take();
-                    if(irp != null) {
-                        callProcess0(irp);
-                    }
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-    
-    private void callProcess0(IRP irp) {
-        int ioStatus = 0;
-        byte[] buffer = null;
-        try {
-            ioStatus = process0(irp.data, irp);
-            irp.out.flush();
-            irp.bout.flush();
-            buffer = irp.bout.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if(ioStatus != RD_STATUS_PENDING) {
-            //device i/o response header
-            RdpPacket_Localised s = new RdpPacket_Localised(16 + buffer.length);
-            s.setLittleEndian16(RDPDR_CTYP_CORE);// PAKID_CORE_DEVICE_REPLY?
-            s.setLittleEndian16(PAKID_CORE_DEVICE_IOCOMPLETION);
-            s.setLittleEndian32(irp.deviceId);
-            s.setLittleEndian32(irp.completionId);
-            s.setLittleEndian32(ioStatus);
-            
-            if(buffer.length > 0) {
-                s.copyFromByteArray(buffer, 0, s.getPosition(), buffer.length);
-            }
-            
-            s.markEnd();
-            try {
-                this.channel.send_packet(s);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
-    
     private boolean drive_file_init(DriveFile df, int desiredAccess, int createDisposition, int createOptions) throws IOException {
         if(df.file.exists()) {
             df.isDir = df.file.isDirectory();
@@ -915,27 +1047,37 @@ public class DiskDevice implements Device, DiskConst {
         String pattern;
         int desiredAccess;
         boolean delete_pending;
-        RandomAccessFile raf = null;
-        synchronized RandomAccessFile getRAF(boolean write) throws IOException {
-            if(raf == null) {
-                raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = null;
+        synchronized FileChannel getChannel(boolean write) throws IOException {
+            if(channel == null) {
+                RandomAccessFile raf;
+                try {
+                    raf = new RandomAccessFile(file, "rw");
+                } catch (FileNotFoundException e) {
+                    // read-only files can still be read
+                    if(write) {
+                        throw e;
+                    }
+                    raf = new RandomAccessFile(file, "r");
+                }
+                channel = raf.getChannel();
                 if (write && ((desiredAccess & GENERIC_ALL) != 0
                         || (desiredAccess & GENERIC_WRITE) != 0
                         || (desiredAccess & FILE_WRITE_DATA) != 0
                         || (desiredAccess & FILE_APPEND_DATA) != 0)) {
-                    raf.setLength(0);//clean
+                    channel.truncate(0);//clean
                 }
             }
-            return raf;
+            return channel;
         }
-        synchronized void closeRaf() {
-            if(raf != null) {
+        synchronized void closeChannel() {
+            if(channel != null) {
                 try {
-                    raf.close();
+                    channel.close();
                 } catch (IOException e) {
                 }
             }
-            raf = null;
+            channel = null;
         }
     }
     
@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 
 import net.propero.rdp.RdpPacket;
+import net.propero.rdp.RdpPacket_Localised;
 
 public class IRP {
 
@@ -18,6 +19,10 @@ public class IRP {
     
     public RdpPacket data;
     
+    // completion packet built by the device, with RDPDR_IOCOMPLETION_HEADER_SIZE
+    // bytes free at the start for the header; out is not used when set
+    public RdpPacket_Localised reply;
+    
     public int deviceId;
     
     public int completionId;
@@ -0,0 +1,151 @@
+package net.propero.rdp.rdp5.snd;
+
+/**
+ * Decoder for IMA (DVI) ADPCM audio as carried in WAV blocks, producing
+ * 16 bit little-endian PCM.
+ */
+public class ImaAdpcm {
+
+    private static final int[] INDEX_TABLE = { -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8 };
+
+    private static final int[] STEP_TABLE = { 7, 8, 9, 10, 11, 12, 13, 14,
+            16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66,
+            73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253,
+            279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876,
+            963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499,
+            2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132,
+            7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500,
+            20350, 22385, 24623, 27086, 29794, 32767 };
+
+    /**
+     * Number of bytes of PCM that decode() produces
+     *
+     * @param length
+     *            Number of bytes of ADPCM
+     * @param channels
+     *            Number of channels
+     * @param blockAlign
+     *            Size of an ADPCM block, as given by the format
+     * @return Size of the decoded PCM
+     */
+    public static int decodedSize(int length, int channels, int blockAlign) {
+        int size = 0;
+        while (length > 0) {
+            int block = Math.min(length, blockAlign);
+            size += samplesInBlock(block, channels) * channels * 2;
+            length -= block;
+        }
+        return size;
+    }
+
+    private static int samplesInBlock(int block, int channels) {
+        int header = 4 * channels;
+        if (block < header)
+            return 0;
+        // data comes in groups of 4 bytes, 8 samples, for each channel
+        return 1 + (block - header) / header * 8;
+    }
+
+    /**
+     * Decode a run of ADPCM blocks. The last block may be short.
+     *
+     * @param in
+     *            ADPCM data
+     * @param offset
+     *            Offset of the first block in in
+     * @param length
+     *            Number of bytes of ADPCM
+     * @param channels
+     *            Number of channels, 1 or 2
+     * @param blockAlign
+     *            Size of an ADPCM block, as given by the format
+     * @return Interleaved 16 bit little-endian PCM
+     */
+    public static byte[] decode(byte[] in, int offset, int length,
+            int channels, int blockAlign) {
+        byte[] out = new byte[decodedSize(length, channels, blockAlign)];
+        int[] predictor = new int[channels];
+        int[] index = new int[channels];
+        int end = offset + length;
+        int o = 0;
+
+        while (offset < end) {
+            int block = Math.min(end - offset, blockAlign);
+            int samples = samplesInBlock(block, channels);
+            if (samples == 0)
+                break;
+            int frame = channels * 2;
+
+            for (int c = 0; c < channels; c++) {
+                int p = offset + 4 * c;
+                predictor[c] = (short) ((in[p] & 0xff) | (in[p + 1] << 8));
+                index[c] = Math.min(Math.max(in[p + 2] & 0xff, 0), 88);
+                put16(out, o + 2 * c, predictor[c]);
+            }
+
+            int p = offset + 4 * channels;
+            for (int group = 0; group < (samples - 1) / 8; group++) {
+                for (int c = 0; c < channels; c++) {
+                    // 8 samples of this channel, low nibble first
+                    int q = o + frame + group * 8 * frame + 2 * c;
+                    for (int i = 0; i < 4; i++) {
+                        int b = in[p++] & 0xff;
+                        int pred = predictor[c], idx = index[c];
+
+                        pred = step(pred, idx, b & 0x0f);
+                        idx = nextIndex(idx, b & 0x0f);
+                        put16(out, q, pred);
+                        q += frame;
+
+                        pred = step(pred, idx, b >> 4);
+                        idx = nextIndex(idx, b >> 4);
+                        put16(out, q, pred);
+                        q += frame;
+
+                        predictor[c] = pred;
+                        index[c] = idx;
+                    }
+                }
+            }
+
+            o += samples * frame;
+            offset += block;
+        }
+        return out;
+    }
+
+    private static int step(int predictor, int index, int nibble) {
+        int step = STEP_TABLE[index];
+        int diff = step >> 3;
+        if ((nibble & 4) != 0)
+            diff += step;
+        if ((nibble & 2) != 0)
+            diff += step >> 1;
+        if ((nibble & 1) != 0)
+            diff += step >> 2;
+        if ((nibble & 8) != 0)
+            predictor -= diff;
+        else
+            predictor += diff;
+        if (predictor > 32767)
+            return 32767;
+        if (predictor < -32768)
+            return -32768;
+        return predictor;
+    }
+
+    private static int nextIndex(int index, int nibble) {
+        index += INDEX_TABLE[nibble];
+        if (index < 0)
+            return 0;
+        if (index > 88)
+            return 88;
+        return index;
+    }
+
+    private static void put16(byte[] out, int offset, int sample) {
+        out[offset] = (byte) sample;
+        out[offset + 1] = (byte) (sample >> 8);
+    }
+}
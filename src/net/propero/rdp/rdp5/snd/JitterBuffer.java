@@ -0,0 +1,304 @@
+package net.propero.rdp.rdp5.snd;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds decoded audio blocks until they are played, so that blocks arriving
+ * unevenly from the network still play back evenly. Playback of a stream
+ * starts once a given depth of audio is buffered, or once the first block
+ * has waited that long, and starts over in the same way whenever the sink
+ * runs dry. Blocks are played on a thread of the buffer's own, and the
+ * listener is told as each one is handed to the sink.
+ */
+public class JitterBuffer implements Runnable {
+
+    static Logger logger = Logger.getLogger(JitterBuffer.class);
+
+    /**
+     * A block of PCM audio and what is needed to confirm it
+     */
+    static class Block {
+        /* wave timestamp and block number sent by the server */
+        int timestamp;
+
+        int blockNo;
+
+        /* local time the block arrived, in milliseconds */
+        long arrived;
+
+        int sampleRate;
+
+        int channels;
+
+        int bits;
+
+        /* null for the end of a stream */
+        byte[] pcm;
+
+        int duration() {
+            if (pcm == null)
+                return 0;
+            return (int) (pcm.length * 1000L / (sampleRate * channels
+                    * (bits / 8)));
+        }
+    }
+
+    /**
+     * Told as each block is handed to the sink
+     */
+    interface Listener {
+        /**
+         * @param block
+         *            Block played
+         * @param delay
+         *            Milliseconds from the block's arrival until the sink
+         *            should have finished playing it
+         */
+        void played(Block block, long delay);
+    }
+
+    private final SoundSink sink;
+
+    private final Listener listener;
+
+    private final int depth_ms;
+
+    private final LinkedList<Block> blocks = new LinkedList<Block>();
+
+    private int buffered_ms = 0;
+
+    /* waiting for the buffer to fill before playing */
+    private boolean priming = true;
+
+    /* a stream is playing, and running dry counts as an underrun */
+    private boolean active = false;
+
+    /* local time at which the sink will have played everything written */
+    private long play_end = 0;
+
+    private Thread thread = null;
+
+    private volatile boolean running = true;
+
+    /* format the sink is open for, bits is 0 when closed */
+    private int open_rate = 0;
+
+    private int open_channels = 0;
+
+    private int open_bits = 0;
+
+    /* statistics */
+    private volatile long played = 0;
+
+    private volatile long underruns = 0;
+
+    private volatile long last_latency = 0;
+
+    private volatile long max_latency = 0;
+
+    private long total_latency = 0;
+
+    /**
+     * @param sink
+     *            Destination of the audio
+     * @param listener
+     *            Told as blocks are played
+     * @param depth_ms
+     *            Milliseconds of audio to gather before playing a stream
+     */
+    JitterBuffer(SoundSink sink, Listener listener, int depth_ms) {
+        this.sink = sink;
+        this.listener = listener;
+        this.depth_ms = Math.max(0, depth_ms);
+    }
+
+    /**
+     * Add a block to be played after those already buffered
+     *
+     * @param block
+     *            Block of audio
+     */
+    synchronized void put(Block block) {
+        if (!running)
+            return;
+        if (thread == null) {
+            thread = new Thread(this, "RDP_Sound_Thread");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        blocks.add(block);
+        buffered_ms += block.duration();
+        notifyAll();
+    }
+
+    /**
+     * Mark the end of the current stream. Buffered blocks are still played,
+     * then the sink is closed.
+     */
+    synchronized void close() {
+        if (thread == null)
+            return;
+        blocks.add(new Block());
+        notifyAll();
+    }
+
+    /**
+     * Stop playing and discard any buffered audio
+     */
+    void shutdown() {
+        synchronized (this) {
+            running = false;
+            blocks.clear();
+            buffered_ms = 0;
+            if (thread != null)
+                thread.interrupt();
+            notifyAll();
+        }
+        sink.close();
+    }
+
+    /**
+     * @return Milliseconds of audio waiting to be played
+     */
+    public synchronized int getBuffered() {
+        return buffered_ms;
+    }
+
+    /**
+     * @return Number of blocks played
+     */
+    public long getPlayed() {
+        return played;
+    }
+
+    /**
+     * @return Number of times the sink ran dry in the middle of a stream
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * @return Milliseconds the last block played spent in the buffer
+     */
+    public long getLatency() {
+        return last_latency;
+    }
+
+    /**
+     * @return Longest time a block has spent in the buffer, in milliseconds
+     */
+    public long getMaxLatency() {
+        return max_latency;
+    }
+
+    public void run() {
+        while (running) {
+            Block block;
+            try {
+                block = take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (block == null)
+                break;
+
+            if (block.pcm == null) {
+                endStream();
+                continue;
+            }
+
+            try {
+                play(block);
+            } catch (IOException e) {
+                logger.warn("Sound playback failed: " + e.getMessage());
+                closeSink();
+            }
+
+            long now = System.currentTimeMillis();
+            play_end = Math.max(now, play_end) + block.duration();
+            listener.played(block, play_end - block.arrived);
+        }
+    }
+
+    /* wait for the next block to play, null once shut down */
+    private synchronized Block take() throws InterruptedException {
+        while (running) {
+            long now = System.currentTimeMillis();
+            if (blocks.isEmpty()) {
+                wait();
+                continue;
+            }
+
+            Block head = blocks.getFirst();
+            if (active && !priming && now > play_end) {
+                // the sink ran dry before this block arrived
+                underruns++;
+                priming = true;
+            }
+            // no need to wait once the end of the stream has arrived
+            if (priming && blocks.getLast().pcm != null) {
+                long waited = now - head.arrived;
+                if (buffered_ms < depth_ms && waited < depth_ms) {
+                    wait(depth_ms - waited);
+                    continue;
+                }
+            }
+            priming = false;
+            blocks.removeFirst();
+            buffered_ms -= head.duration();
+            return head;
+        }
+        return null;
+    }
+
+    private void play(Block block) throws IOException {
+        long now = System.currentTimeMillis();
+        if (block.sampleRate != open_rate || block.channels != open_channels
+                || block.bits != open_bits) {
+            if (open_bits != 0)
+                sink.drain();
+            open_bits = 0;
+            sink.open(block.sampleRate, block.channels, block.bits);
+            open_rate = block.sampleRate;
+            open_channels = block.channels;
+            open_bits = block.bits;
+        }
+
+        long latency = now - block.arrived;
+        last_latency = latency;
+        if (latency > max_latency)
+            max_latency = latency;
+        total_latency += latency;
+        played++;
+        synchronized (this) {
+            active = true;
+        }
+
+        sink.write(block.pcm, 0, block.pcm.length);
+    }
+
+    private void endStream() {
+        if (open_bits != 0)
+            sink.drain();
+        closeSink();
+        synchronized (this) {
+            active = false;
+            priming = true;
+        }
+        if (played > 0)
+            logger.info("Sound: " + played + " blocks, latency "
+                    + (total_latency / played) + " ms average, "
+                    + max_latency + " ms max, " + underruns + " underruns");
+    }
+
+    private void closeSink() {
+        sink.close();
+        open_rate = 0;
+        open_channels = 0;
+        open_bits = 0;
+    }
+}
@@ -0,0 +1,110 @@
+package net.propero.rdp.rdp5.snd;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.FloatControl;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Plays audio on the default output line of javax.sound.sampled
+ */
+public class LineSink implements SoundSink {
+
+    static Logger logger = Logger.getLogger(LineSink.class);
+
+    private SourceDataLine line = null;
+
+    /* last volume set by the server, 0 to 0xffff */
+    private int volume = 0xffff;
+
+    private static AudioFormat format(int sampleRate, int channels, int bits) {
+        // 8 bit wave data is unsigned, 16 bit signed
+        return new AudioFormat(sampleRate, bits, channels, bits > 8, false);
+    }
+
+    @Override
+    public boolean supports(int sampleRate, int channels, int bits) {
+        try {
+            return AudioSystem.isLineSupported(new DataLine.Info(
+                    SourceDataLine.class, format(sampleRate, channels, bits)));
+        } catch (Exception e) {
+            // no sound system, e.g. on a headless machine
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void open(int sampleRate, int channels, int bits)
+            throws IOException {
+        close();
+        try {
+            line = AudioSystem.getSourceDataLine(format(sampleRate, channels,
+                    bits));
+            line.open();
+        } catch (LineUnavailableException e) {
+            line = null;
+            throw new IOException("Audio line unavailable: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            line = null;
+            throw new IOException("Audio format not supported: "
+                    + e.getMessage());
+        }
+        applyVolume();
+        line.start();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        SourceDataLine line;
+        synchronized (this) {
+            line = this.line;
+        }
+        if (line == null)
+            throw new IOException("Audio line not open");
+        // blocks while the line's buffer is full
+        line.write(data, offset, length);
+    }
+
+    @Override
+    public void drain() {
+        SourceDataLine line;
+        synchronized (this) {
+            line = this.line;
+        }
+        if (line != null)
+            line.drain();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (line != null) {
+            line.stop();
+            line.close();
+            line = null;
+        }
+    }
+
+    @Override
+    public synchronized void setVolume(int left, int right) {
+        volume = (left + right) / 2;
+        if (line != null)
+            applyVolume();
+    }
+
+    private void applyVolume() {
+        if (!line.isControlSupported(FloatControl.Type.MASTER_GAIN))
+            return;
+        FloatControl gain = (FloatControl) line
+                .getControl(FloatControl.Type.MASTER_GAIN);
+        float db = volume > 0 ? (float) (20 * Math.log10(volume / 65535.0))
+                : gain.getMinimum();
+        gain.setValue(Math.max(gain.getMinimum(), Math.min(db, gain
+                .getMaximum())));
+    }
+}
@@ -0,0 +1,62 @@
+package net.propero.rdp.rdp5.snd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the decoded audio to a stream as raw PCM, for machines without a
+ * sound device and for testing. Writes do not block, so blocks are
+ * confirmed as soon as they leave the jitter buffer.
+ */
+public class PcmSink implements SoundSink {
+
+    static Logger logger = Logger.getLogger(PcmSink.class);
+
+    private final OutputStream out;
+
+    /**
+     * @param out
+     *            Stream receiving the PCM of every format played, in turn
+     */
+    public PcmSink(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public boolean supports(int sampleRate, int channels, int bits) {
+        return bits == 8 || bits == 16;
+    }
+
+    @Override
+    public void open(int sampleRate, int channels, int bits)
+            throws IOException {
+        logger.info("Writing " + sampleRate + " Hz, " + channels + " ch, "
+                + bits + " bit PCM");
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+    }
+
+    @Override
+    public void drain() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            logger.warn("Failed to flush PCM: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        drain();
+    }
+
+    @Override
+    public void setVolume(int left, int right) {
+        // samples are written as the server sent them
+    }
+}
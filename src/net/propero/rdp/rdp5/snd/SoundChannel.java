@@ -1,14 +1,98 @@
 package net.propero.rdp.rdp5.snd;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
+import net.propero.rdp.RdpPacket_Localised;
 import net.propero.rdp.crypto.CryptoException;
 import net.propero.rdp.rdp5.VChannel;
 import net.propero.rdp.rdp5.VChannels;
 
-public class SoundChannel extends VChannel {
+import org.apache.log4j.Logger;
+
+/**
+ * Audio output redirection (rdpsnd). The server offers a list of formats,
+ * the client replies with those it can play, and the server then sends
+ * blocks of audio in those formats. Each block is decoded to PCM and played
+ * through a JitterBuffer, and is confirmed once played, which is how the
+ * server paces the stream.
+ */
+public class SoundChannel extends VChannel implements JitterBuffer.Listener {
+
+    static Logger logger = Logger.getLogger(SoundChannel.class);
+
+    /* PDU types */
+    public static final int SNDC_CLOSE = 0x01;
+
+    public static final int SNDC_WAVE = 0x02;
+
+    public static final int SNDC_SETVOLUME = 0x03;
+
+    public static final int SNDC_SETPITCH = 0x04;
+
+    public static final int SNDC_WAVECONFIRM = 0x05;
+
+    public static final int SNDC_TRAINING = 0x06;
+
+    public static final int SNDC_FORMATS = 0x07;
+
+    public static final int SNDC_CRYPTKEY = 0x08;
+
+    public static final int SNDC_QUALITYMODE = 0x0C;
+
+    public static final int SNDC_WAVE2 = 0x0D;
+
+    /* client capability flags */
+    public static final int TSSNDCAPS_ALIVE = 0x00000001;
+
+    public static final int TSSNDCAPS_VOLUME = 0x00000002;
+
+    /* version 8 and later servers send Wave2 PDUs */
+    public static final int RDPSND_VERSION = 8;
+
+    public static final int DYNAMIC_QUALITY = 0x0000;
+
+    /* sink given by the caller, or chosen from the options when needed */
+    private SoundSink sink = null;
+
+    private JitterBuffer buffer = null;
+
+    /* formats accepted, the server refers to them by their index here */
+    private List<WaveFormat> formats = new ArrayList<WaveFormat>();
+
+    private int server_version = 0;
+
+    /* a Wave Info PDU has arrived and its Wave PDU is next */
+    private boolean awaiting_wave = false;
+
+    private int wave_timestamp;
+
+    private int wave_format;
+
+    private int wave_block;
+
+    private long wave_arrived;
+
+    /* first four bytes of audio, carried in the Wave Info PDU */
+    private byte[] wave_start = new byte[4];
+
+    public SoundChannel() {
+        super();
+    }
+
+    /**
+     * @param sink
+     *            Destination of the audio, instead of the one given by the
+     *            options
+     */
+    public SoundChannel(SoundSink sink) {
+        super();
+        this.sink = sink;
+    }
 
     @Override
     public String name() {
@@ -20,11 +104,259 @@ public class SoundChannel extends VChannel {
         return VChannels.CHANNEL_OPTION_INITIALIZED | VChannels.CHANNEL_OPTION_ENCRYPT_RDP;
     }
 
+    @Override
+    public int threading() {
+        // decoding must not hold up screen updates
+        return THREAD_SERIAL;
+    }
+
     @Override
     public void process(RdpPacket data) throws RdesktopException, IOException,
             CryptoException {
-        // do nothing
+        if (awaiting_wave) {
+            awaiting_wave = false;
+            rdpsnd_process_wave(data);
+            return;
+        }
+
+        int type = data.get8();
+        data.incrementPosition(1); // bPad
+        int bodySize = data.getLittleEndian16() & 0xffff;
+
+        switch (type) {
+        case SNDC_FORMATS:
+            rdpsnd_process_formats(data);
+            break;
+        case SNDC_TRAINING:
+            rdpsnd_process_training(data);
+            break;
+        case SNDC_WAVE:
+            rdpsnd_process_wave_info(data);
+            break;
+        case SNDC_WAVE2:
+            rdpsnd_process_wave2(data);
+            break;
+        case SNDC_CLOSE:
+            if (buffer != null)
+                buffer.close();
+            break;
+        case SNDC_SETVOLUME:
+            int volume = data.getLittleEndian32();
+            sink().setVolume(volume & 0xffff, volume >>> 16);
+            break;
+        case SNDC_SETPITCH:
+        case SNDC_CRYPTKEY:
+            break;
+        default:
+            logger.warn("Unhandled rdpsnd PDU type 0x"
+                    + Integer.toHexString(type) + ", " + bodySize + " bytes");
+        }
+    }
+
+    /**
+     * @return Jitter buffer playing the audio, null before the formats have
+     *         been agreed
+     */
+    public JitterBuffer getBuffer() {
+        return buffer;
+    }
+
+    private SoundSink sink() {
+        if (sink != null)
+            return sink;
+        if (context != null && context.options.sound_file != null) {
+            try {
+                sink = new PcmSink(new FileOutputStream(
+                        context.options.sound_file));
+                return sink;
+            } catch (IOException e) {
+                logger.warn("Cannot write sound to "
+                        + context.options.sound_file + ": " + e.getMessage());
+            }
+        }
+        sink = new LineSink();
+        return sink;
+    }
+
+    /* bits per sample of a format once decoded, 0 if it cannot be decoded */
+    private static int decodedBits(WaveFormat f) {
+        if (f.channels < 1 || f.channels > 2 || f.samplesPerSec <= 0)
+            return 0;
+        switch (f.formatTag) {
+        case VChannels.WAVE_FORMAT_PCM:
+            if (f.bitsPerSample == 8 || f.bitsPerSample == 16)
+                return f.bitsPerSample;
+            return 0;
+        case VChannels.WAVE_FORMAT_IMA_ADPCM:
+            if (f.bitsPerSample == 4 && f.blockAlign > 4 * f.channels)
+                return 16;
+            return 0;
+        default:
+            return 0;
+        }
+    }
+
+    private void rdpsnd_process_formats(RdpPacket data) {
+        data.incrementPosition(4); // dwFlags
+        data.incrementPosition(4); // dwVolume
+        data.incrementPosition(4); // dwPitch
+        data.incrementPosition(2); // wDGramPort
+        int numFormats = data.getLittleEndian16() & 0xffff;
+        data.incrementPosition(1); // cLastBlockConfirmed
+        server_version = data.getLittleEndian16() & 0xffff;
+        data.incrementPosition(1); // bPad
+
+        if (buffer != null)
+            buffer.shutdown();
+        awaiting_wave = false;
+        formats.clear();
+
+        SoundSink sink = sink();
+        for (int i = 0; i < numFormats; i++) {
+            WaveFormat f = WaveFormat.read(data);
+            int bits = decodedBits(f);
+            if (bits != 0 && sink.supports(f.samplesPerSec, f.channels, bits))
+                formats.add(f);
+        }
+        logger.info("Server offered " + numFormats + " sound formats, "
+                + formats.size() + " usable");
+
+        int depth = context != null ? context.options.sound_buffer_ms : 0;
+        buffer = new JitterBuffer(sink, this, depth);
+
+        rdpsnd_send_formats();
+        if (server_version >= 6)
+            rdpsnd_send_quality_mode();
+    }
+
+    private RdpPacket_Localised rdpsnd_init(int type, int size) {
+        RdpPacket_Localised s = new RdpPacket_Localised(4 + size);
+        s.set8(type);
+        s.set8(0); // bPad
+        s.setLittleEndian16(size);
+        return s;
+    }
+
+    private void rdpsnd_send(RdpPacket_Localised s) {
+        s.markEnd();
+        try {
+            this.send_packet(s);
+        } catch (Exception e) {
+            logger.warn("Failed to send rdpsnd PDU: " + e.getMessage());
+        }
+    }
+
+    private void rdpsnd_send_formats() {
+        int size = 20;
+        for (int i = 0; i < formats.size(); i++)
+            size += formats.get(i).size();
+
+        RdpPacket_Localised s = rdpsnd_init(SNDC_FORMATS, size);
+        s.setLittleEndian32(TSSNDCAPS_ALIVE | TSSNDCAPS_VOLUME);
+        s.setLittleEndian32(0xffffffff); // dwVolume, full on both channels
+        s.setLittleEndian32(0); // dwPitch
+        s.setBigEndian16(0); // wDGramPort, no UDP
+        s.setLittleEndian16(formats.size());
+        s.set8(0); // cLastBlockConfirmed
+        s.setLittleEndian16(RDPSND_VERSION);
+        s.set8(0); // bPad
+        for (int i = 0; i < formats.size(); i++)
+            formats.get(i).write(s);
+        rdpsnd_send(s);
+    }
+
+    private void rdpsnd_send_quality_mode() {
+        RdpPacket_Localised s = rdpsnd_init(SNDC_QUALITYMODE, 4);
+        s.setLittleEndian16(DYNAMIC_QUALITY);
+        s.setLittleEndian16(0); // Reserved
+        rdpsnd_send(s);
+    }
+
+    private void rdpsnd_process_training(RdpPacket data) {
+        int timestamp = data.getLittleEndian16() & 0xffff;
+        int packSize = data.getLittleEndian16() & 0xffff;
+
+        RdpPacket_Localised s = rdpsnd_init(SNDC_TRAINING, 4);
+        s.setLittleEndian16(timestamp);
+        s.setLittleEndian16(packSize);
+        rdpsnd_send(s);
+    }
+
+    private void rdpsnd_process_wave_info(RdpPacket data) {
+        wave_arrived = System.currentTimeMillis();
+        wave_timestamp = data.getLittleEndian16() & 0xffff;
+        wave_format = data.getLittleEndian16() & 0xffff;
+        wave_block = data.get8();
+        data.incrementPosition(3); // bPad
+        data.copyToByteArray(wave_start, 0, data.getPosition(), 4);
+        awaiting_wave = true;
+    }
+
+    private void rdpsnd_process_wave(RdpPacket data) {
+        // the first four bytes are padding, in place of those sent with
+        // the Wave Info PDU
+        int length = data.getEnd() - data.getPosition();
+        byte[] audio = new byte[Math.max(length, 4)];
+        System.arraycopy(wave_start, 0, audio, 0, 4);
+        if (length > 4)
+            data.copyToByteArray(audio, 4, data.getPosition() + 4, length - 4);
+        rdpsnd_queue_wave(wave_timestamp, wave_format, wave_block,
+                wave_arrived, audio);
+    }
+
+    private void rdpsnd_process_wave2(RdpPacket data) {
+        long arrived = System.currentTimeMillis();
+        int timestamp = data.getLittleEndian16() & 0xffff;
+        int format = data.getLittleEndian16() & 0xffff;
+        int block = data.get8();
+        data.incrementPosition(3); // bPad
+        data.incrementPosition(4); // dwAudioTimeStamp
+        int length = data.getEnd() - data.getPosition();
+        byte[] audio = new byte[Math.max(length, 0)];
+        if (length > 0)
+            data.copyToByteArray(audio, 0, data.getPosition(), length);
+        rdpsnd_queue_wave(timestamp, format, block, arrived, audio);
+    }
+
+    private void rdpsnd_queue_wave(int timestamp, int format, int blockNo,
+            long arrived, byte[] audio) {
+        if (format >= formats.size() || buffer == null) {
+            logger.warn("Sound block " + blockNo + " in unknown format "
+                    + format);
+            rdpsnd_send_waveconfirm(timestamp, blockNo);
+            return;
+        }
+
+        WaveFormat f = formats.get(format);
+        JitterBuffer.Block block = new JitterBuffer.Block();
+        block.timestamp = timestamp;
+        block.blockNo = blockNo;
+        block.arrived = arrived;
+        block.sampleRate = f.samplesPerSec;
+        block.channels = f.channels;
+        if (f.formatTag == VChannels.WAVE_FORMAT_IMA_ADPCM) {
+            block.bits = 16;
+            block.pcm = ImaAdpcm.decode(audio, 0, audio.length, f.channels,
+                    f.blockAlign);
+        } else {
+            block.bits = f.bitsPerSample;
+            block.pcm = audio;
+        }
+        buffer.put(block);
+    }
+
+    @Override
+    public void played(JitterBuffer.Block block, long delay) {
+        // the timestamp tells the server how long the block took to play
+        rdpsnd_send_waveconfirm((int) (block.timestamp + delay), block.blockNo);
+    }
 
+    private void rdpsnd_send_waveconfirm(int timestamp, int blockNo) {
+        RdpPacket_Localised s = rdpsnd_init(SNDC_WAVECONFIRM, 4);
+        s.setLittleEndian16(timestamp & 0xffff);
+        s.set8(blockNo);
+        s.set8(0); // bPad
+        rdpsnd_send(s);
     }
 
 }
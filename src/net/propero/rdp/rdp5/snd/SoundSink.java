@@ -0,0 +1,69 @@
+package net.propero.rdp.rdp5.snd;
+
+import java.io.IOException;
+
+/**
+ * Destination for the decoded audio of the sound channel. Samples are PCM,
+ * unsigned for 8 bit and signed little-endian for 16 bit, with channels
+ * interleaved.
+ */
+public interface SoundSink {
+
+    /**
+     * @param sampleRate
+     *            Samples per second of each channel
+     * @param channels
+     *            Number of channels
+     * @param bits
+     *            Bits per sample, 8 or 16
+     * @return True if the sink can play PCM in this format
+     */
+    public boolean supports(int sampleRate, int channels, int bits);
+
+    /**
+     * Prepare to play PCM in a format, closing any format open before
+     *
+     * @param sampleRate
+     *            Samples per second of each channel
+     * @param channels
+     *            Number of channels
+     * @param bits
+     *            Bits per sample, 8 or 16
+     * @throws IOException
+     *             if the format cannot be played
+     */
+    public void open(int sampleRate, int channels, int bits)
+            throws IOException;
+
+    /**
+     * Play PCM in the open format. May block until the sink has room, which
+     * paces the caller at the playback rate.
+     *
+     * @param data
+     *            Samples to play
+     * @param offset
+     *            Offset of the first sample in data
+     * @param length
+     *            Number of bytes to play
+     * @throws IOException
+     */
+    public void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Wait until everything written has been played
+     */
+    public void drain();
+
+    /**
+     * Stop playing and release the open format
+     */
+    public void close();
+
+    /**
+     * @param left
+     *            Volume of the left channel, 0 to 0xffff
+     * @param right
+     *            Volume of the right channel, 0 to 0xffff
+     */
+    public void setVolume(int left, int right);
+}
@@ -0,0 +1,82 @@
+package net.propero.rdp.rdp5.snd;
+
+import net.propero.rdp.RdpPacket;
+import net.propero.rdp.RdpPacket_Localised;
+
+/**
+ * An AUDIO_FORMAT entry of the rdpsnd format list, the WAVEFORMATEX of the
+ * server's audio stream.
+ */
+public class WaveFormat {
+
+    public int formatTag;
+
+    public int channels;
+
+    public int samplesPerSec;
+
+    public int avgBytesPerSec;
+
+    public int blockAlign;
+
+    public int bitsPerSample;
+
+    /* format specific data following the fixed fields */
+    public byte[] extra = new byte[0];
+
+    /**
+     * Read a format from a packet
+     *
+     * @param data
+     *            Packet positioned at the start of an AUDIO_FORMAT
+     * @return Format read
+     */
+    public static WaveFormat read(RdpPacket data) {
+        WaveFormat f = new WaveFormat();
+        f.formatTag = data.getLittleEndian16() & 0xffff;
+        f.channels = data.getLittleEndian16() & 0xffff;
+        f.samplesPerSec = data.getLittleEndian32();
+        f.avgBytesPerSec = data.getLittleEndian32();
+        f.blockAlign = data.getLittleEndian16() & 0xffff;
+        f.bitsPerSample = data.getLittleEndian16() & 0xffff;
+        int size = data.getLittleEndian16() & 0xffff;
+        f.extra = new byte[size];
+        if (size > 0) {
+            data.copyToByteArray(f.extra, 0, data.getPosition(), size);
+            data.incrementPosition(size);
+        }
+        return f;
+    }
+
+    /**
+     * Write this format to a packet
+     *
+     * @param s
+     *            Packet to write to, with size() bytes free
+     */
+    public void write(RdpPacket_Localised s) {
+        s.setLittleEndian16(formatTag);
+        s.setLittleEndian16(channels);
+        s.setLittleEndian32(samplesPerSec);
+        s.setLittleEndian32(avgBytesPerSec);
+        s.setLittleEndian16(blockAlign);
+        s.setLittleEndian16(bitsPerSample);
+        s.setLittleEndian16(extra.length);
+        if (extra.length > 0) {
+            s.copyFromByteArray(extra, 0, s.getPosition(), extra.length);
+            s.incrementPosition(extra.length);
+        }
+    }
+
+    /**
+     * @return Number of bytes taken by this format in a packet
+     */
+    public int size() {
+        return 18 + extra.length;
+    }
+
+    public String toString() {
+        return "tag 0x" + Integer.toHexString(formatTag) + ", " + channels
+                + " ch, " + samplesPerSec + " Hz, " + bitsPerSample + " bit";
+    }
+}
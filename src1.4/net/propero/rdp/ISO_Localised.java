@@ -37,10 +37,14 @@ package net.propero.rdp;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 public class ISO_Localised extends ISO {
 
+	public ISO_Localised(RdpContext context) {
+		super(context);
+	}
+
 	/*
 	 * protected Socket negotiateSSL(Socket sock) throws Exception { // The
 	 * default host/port to connect to String host="localhost"; int port=4433;
@@ -87,8 +91,15 @@ public class ISO_Localised extends ISO {
 			throws IOException {
 		int timeout_ms = 3000; // timeout in milliseconds
 
-		rdpsock = new Socket();
-		rdpsock.connect(new InetSocketAddress(host, port), timeout_ms);
+		rdpsock = SocketChannel.open();
+		try {
+			rdpsock.socket().connect(new InetSocketAddress(host, port),
+					timeout_ms);
+		} catch (IOException e) {
+			rdpsock.close();
+			rdpsock = null;
+			throw e;
+		}
 	}
 
 }
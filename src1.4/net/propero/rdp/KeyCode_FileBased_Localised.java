@@ -42,25 +42,27 @@ public class KeyCode_FileBased_Localised extends KeyCode_FileBased {
 
 	/**
 	 * @param fstream
+	 * @param options
 	 * @throws KeyMapException
 	 */
-	public KeyCode_FileBased_Localised(InputStream fstream)
+	public KeyCode_FileBased_Localised(InputStream fstream, Options options)
 			throws KeyMapException {
-		super(fstream);
+		super(fstream, options);
 	}
 
-	public KeyCode_FileBased_Localised(String s) throws KeyMapException {
-		super(s);
+	public KeyCode_FileBased_Localised(String s, Options options)
+			throws KeyMapException {
+		super(s, options);
 	}
 
 	private void updateCapsLock(KeyEvent e) {
-		if (Options.useLockingKeyState) {
+		if (options.useLockingKeyState) {
 			try {
-				Options.useLockingKeyState = true;
+				options.useLockingKeyState = true;
 				capsLockDown = e.getComponent().getToolkit()
 						.getLockingKeyState(KeyEvent.VK_CAPS_LOCK);
 			} catch (Exception uoe) {
-				Options.useLockingKeyState = false;
+				options.useLockingKeyState = false;
 			}
 		}
 	}
@@ -38,15 +38,19 @@ import java.util.prefs.Preferences;
 
 public class LicenceStore_Localised extends LicenceStore {
 
+	public LicenceStore_Localised(Options options) {
+		super(options);
+	}
+
 	public byte[] load_licence() {
 		Preferences prefs = Preferences.userNodeForPackage(this.getClass());
-		return prefs.getByteArray("licence." + Options.hostname, null);
+		return prefs.getByteArray("licence." + options.hostname, null);
 
 	}
 
 	public void save_licence(byte[] databytes) {
 		Preferences prefs = Preferences.userNodeForPackage(this.getClass());
-		prefs.putByteArray("licence." + Options.hostname, databytes);
+		prefs.putByteArray("licence." + options.hostname, databytes);
 	}
 
 }
@@ -51,8 +51,8 @@ public class RdesktopCanvas_Localised extends RdesktopCanvas {
 
 	private Robot robot = null;
 
-	public static void saveToFile(Image image) {
-		if (Options.server_bpp == 8)
+	public void saveToFile(Image image) {
+		if (options.server_bpp == 8)
 			return;
 
 		BufferedImage img = null;
@@ -65,8 +65,8 @@ public class RdesktopCanvas_Localised extends RdesktopCanvas {
 		// Write generated image to a file
 		try {
 			// Save as JPEG
-			File file = new File("./testimages/" + Options.imgCount + ".jpg");
-			Options.imgCount++;
+			File file = new File("./testimages/" + options.imgCount + ".jpg");
+			options.imgCount++;
 			ImageIO.write(img, "jpg", file);
 		} catch (IOException e) {
 		}
@@ -76,8 +76,8 @@ public class RdesktopCanvas_Localised extends RdesktopCanvas {
 
 	BufferedImage apex_backstore = null;
 
-	RdesktopCanvas_Localised(int width, int height) {
-		super(width, height);
+	RdesktopCanvas_Localised(RdpContext context, int width, int height) {
+		super(context, width, height);
 		apex_backstore = new BufferedImage(width, height,
 				BufferedImage.TYPE_INT_RGB);
 	}
@@ -109,11 +109,15 @@ public class RdesktopCanvas_Localised extends RdesktopCanvas {
 	public void update(Graphics g) {
 
 		Rectangle r = g.getClipBounds();
-		g.drawImage(backstore.getSubimage(r.x, r.y, r.width, r.height), r.x,
-				r.y, null);
-
-		if (Options.save_graphics) {
-			RdesktopCanvas_Localised.saveToFile(backstore.getSubimage(r.x, r.y,
+		WrappedImage backstore = surface.backstore;
+		if (r == null)
+			r = new Rectangle(0, 0, backstore.getWidth(), backstore.getHeight());
+		/* draw straight from the backstore, rather than via a subimage */
+		g.drawImage(backstore.getBufferedImage(), r.x, r.y, r.x + r.width,
+				r.y + r.height, r.x, r.y, r.x + r.width, r.y + r.height, null);
+
+		if (options.save_graphics) {
+			saveToFile(backstore.getSubimage(r.x, r.y,
 					r.width, r.height));
 		}
 
@@ -29,8 +29,12 @@
  */
 package net.propero.rdp;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class RdpPacket_Localised extends RdpPacket {
 
@@ -38,11 +42,29 @@ public class RdpPacket_Localised extends RdpPacket {
 
 	private int size = 0;
 
+	/* size class within PacketPool, -1 if not pooled */
+	int sizeClass = -1;
+
+	/* true while the packet sits unused in PacketPool */
+	boolean idle = false;
+
+	private static final byte[] zeros = new byte[1024];
+
 	public RdpPacket_Localised(int capacity) {
 		bb = ByteBuffer.allocateDirect(capacity);
 		size = capacity;
 	}
 
+	/**
+	 * Provide direct access to the buffer backing this packet, for code that
+	 * needs to work on a region in place
+	 * 
+	 * @return Backing buffer
+	 */
+	public ByteBuffer getByteBuffer() {
+		return bb;
+	}
+
 	public void reset(int length) {
 		// logger.info("RdpPacket_Localised.reset(" + length + "), capacity = "
 		// + bb.capacity());
@@ -54,6 +76,27 @@ public class RdpPacket_Localised extends RdpPacket {
 		bb.clear();
 	}
 
+	/**
+	 * Return a pooled packet to the state of a newly constructed packet of
+	 * the given size: zeroed, positioned at 0 and with no layer headers or
+	 * end mark.
+	 * 
+	 * @param length
+	 *            New packet size
+	 */
+	void recycle(int length) {
+		reset(length);
+		while (bb.position() < length)
+			bb.put(zeros, 0, Math.min(zeros.length, length - bb.position()));
+		bb.clear();
+		this.start = -1;
+		this.end = -1;
+		this.mcs = -1;
+		this.secure = -1;
+		this.rdp = -1;
+		this.channel = -1;
+	}
+
 	public void set8(int where, int what) {
 		if (where < 0 || where >= bb.capacity()) {
 			throw new ArrayIndexOutOfBoundsException(
@@ -124,28 +167,84 @@ public class RdpPacket_Localised extends RdpPacket {
 		setPosition(oldpos);
 	}
 
+	/**
+	 * Read bytes from a channel straight into this packet, blocking until the
+	 * requested number of bytes has arrived. The read/write position is left
+	 * unchanged.
+	 * 
+	 * @param in
+	 *            Channel to read from
+	 * @param mem_offset
+	 *            Offset into packet for start of data
+	 * @param len
+	 *            Number of bytes to read
+	 * @throws IOException
+	 */
+	public void readFrom(ReadableByteChannel in, int mem_offset, int len)
+			throws IOException {
+		if (mem_offset < 0 || len < 0 || mem_offset + len > bb.capacity())
+			throw new ArrayIndexOutOfBoundsException(
+					"Memory accessed out of Range!");
+
+		int oldpos = getPosition();
+		bb.limit(mem_offset + len);
+		bb.position(mem_offset);
+		try {
+			while (bb.hasRemaining()) {
+				if (in.read(bb) < 0)
+					throw new EOFException("End of stream");
+			}
+		} finally {
+			bb.limit(bb.capacity());
+			bb.position(oldpos);
+		}
+	}
+
+	/**
+	 * Write bytes from this packet straight to a channel. The read/write
+	 * position is left unchanged.
+	 * 
+	 * @param out
+	 *            Channel to write to
+	 * @param mem_offset
+	 *            Offset into packet for start of data
+	 * @param len
+	 *            Number of bytes to write
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel out, int mem_offset, int len)
+			throws IOException {
+		if (mem_offset < 0 || len < 0 || mem_offset + len > bb.capacity())
+			throw new ArrayIndexOutOfBoundsException(
+					"Memory accessed out of Range!");
+
+		int oldpos = getPosition();
+		bb.limit(mem_offset + len);
+		bb.position(mem_offset);
+		try {
+			while (bb.hasRemaining())
+				out.write(bb);
+		} finally {
+			bb.limit(bb.capacity());
+			bb.position(oldpos);
+		}
+	}
+
 	public void copyToPacket(RdpPacket_Localised dst, int srcOffset,
 			int dstOffset, int len) {
-		int olddstpos = dst.getPosition();
-		int oldpos = getPosition();
-		dst.setPosition(dstOffset);
-		setPosition(srcOffset);
-		for (int i = 0; i < len; i++)
-			dst.set8(bb.get());
-		dst.setPosition(olddstpos);
-		setPosition(oldpos);
+		dst.copyFromPacket(this, srcOffset, dstOffset, len);
 	}
 
 	public void copyFromPacket(RdpPacket_Localised src, int srcOffset,
 			int dstOffset, int len) {
-		int oldsrcpos = src.getPosition();
-		int oldpos = getPosition();
-		src.setPosition(srcOffset);
-		setPosition(dstOffset);
-		for (int i = 0; i < len; i++)
-			bb.put((byte) src.get8());
-		src.setPosition(oldsrcpos);
-		setPosition(oldpos);
+		// work on views so that neither packet's position or limit moves
+		ByteBuffer from = src.bb.duplicate();
+		from.limit(srcOffset + len);
+		from.position(srcOffset);
+		ByteBuffer to = bb.duplicate();
+		to.limit(to.capacity());
+		to.position(dstOffset);
+		to.put(from);
 	}
 
 	public int capacity() {